@@ -0,0 +1,68 @@
+package com.conveyal.analysis;
+
+import com.conveyal.analysis.models.Bundle;
+import com.conveyal.analysis.persistence.Persistence;
+import com.conveyal.file.FileStorage;
+import com.conveyal.file.LocalFileStorage;
+import com.conveyal.gtfs.GTFSCache;
+import com.conveyal.r5.kryo.KryoNetworkSerializer;
+import com.conveyal.r5.streets.OSMCache;
+import com.conveyal.r5.transit.TransportNetworkCache;
+import com.conveyal.r5.util.ExceptionUtils;
+import com.mongodb.QueryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+/**
+ * A batch mode of the backend, run ahead of rolling out an R5 version that changes the network file format. For every
+ * completed bundle in the database, it makes sure a network in the new format is present in file storage, migrating
+ * networks saved in older compatible formats. This avoids workers of the new version stalling on migration or
+ * rebuilding when the first analysis is run on each network.
+ *
+ * This should be run using the new version of the backend. Pass --rebuild to also build networks from scratch
+ * when they can't be upgraded, which may take hours for a large number of regions.
+ *
+ * Like LocalComponents, this uses local file storage. Deployments with other storage can call
+ * TransportNetworkCache.upgradeCachedNetwork in the same way with their own FileStorage component.
+ */
+public abstract class NetworkUpgradeMain {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NetworkUpgradeMain.class);
+
+    public static void main (String... args) {
+        boolean rebuild = Arrays.asList(args).contains("--rebuild");
+        // Wire up only the components needed to load and build networks, without starting the HTTP API.
+        BackendConfig config = new BackendConfig();
+        Persistence.initializeStatically(config);
+        FileStorage fileStorage = new LocalFileStorage(
+                config.localCacheDirectory(),
+                String.format("http://localhost:%s/files", config.serverPort())
+        );
+        TransportNetworkCache transportNetworkCache = new TransportNetworkCache(
+                fileStorage,
+                new GTFSCache(fileStorage, config),
+                new OSMCache(fileStorage, config),
+                config.bundleBucket()
+        );
+        LOG.info("Upgrading all networks to format version {}, rebuilding networks that can't be upgraded: {}",
+                KryoNetworkSerializer.NETWORK_FORMAT_VERSION, rebuild);
+        int nUpgraded = 0;
+        int nFailed = 0;
+        for (Bundle bundle : Persistence.bundles.find(QueryBuilder.start("status").is(Bundle.Status.DONE.name()).get())) {
+            try {
+                if (transportNetworkCache.upgradeCachedNetwork(bundle._id, rebuild)) {
+                    nUpgraded += 1;
+                } else {
+                    nFailed += 1;
+                }
+            } catch (Exception e) {
+                LOG.error("Failed to upgrade network {}: {}", bundle._id, ExceptionUtils.asString(e));
+                nFailed += 1;
+            }
+        }
+        LOG.info("{} networks are available in the current format, {} could not be upgraded.", nUpgraded, nFailed);
+    }
+
+}
@@ -9,6 +9,7 @@ import com.conveyal.analysis.components.eventbus.WorkerEvent;
 import com.conveyal.analysis.results.MultiOriginAssembler;
 import com.conveyal.file.FileStorage;
 import com.conveyal.r5.analyst.WorkerCategory;
+import com.conveyal.r5.analyst.cluster.PrefetchHint;
 import com.conveyal.r5.analyst.cluster.RegionalTask;
 import com.conveyal.r5.analyst.cluster.RegionalWorkResult;
 import com.conveyal.r5.analyst.cluster.WorkerStatus;
@@ -95,6 +96,9 @@ public class Broker {
     /** The most tasks to deliver to a worker at a time. */
     public final int MAX_TASKS_PER_WORKER = 16;
 
+    /** The most upcoming jobs to describe to a worker at a time, so it can prepare their inputs in advance. */
+    public final int MAX_PREFETCH_HINTS_PER_WORKER = 3;
+
     /**
      * Used when auto-starting spot instances. Set to a smaller value to increase the number of
      * workers requested automatically
@@ -256,6 +260,25 @@ public class Broker {
         return job.generateSomeTasksToDeliver(MAX_TASKS_PER_WORKER);
     }
 
+    /**
+     * Describe the jobs that a worker polling in the given category will be asked to work on next, so it can start
+     * fetching and preparing the networks, scenarios and linkages they need while it finishes its current tasks.
+     * The jobs are selected in the same way as in getSomeWork, so the first hint will usually describe the job whose
+     * tasks are currently being delivered, which the worker should already have prepared and will skip.
+     * Always returns a list, which may be empty if no jobs are queued.
+     */
+    public synchronized List<PrefetchHint> getPrefetchHints (WorkerCategory workerCategory) {
+        Collection<Job> candidateJobs = config.offline() ? jobs.values() : jobs.get(workerCategory);
+        List<PrefetchHint> hints = new ArrayList<>();
+        for (Job job : candidateJobs) {
+            if (hints.size() >= MAX_PREFETCH_HINTS_PER_WORKER) break;
+            if (job.hasTasksToDeliver()) {
+                hints.add(PrefetchHint.forTemplateTask(job.templateTask));
+            }
+        }
+        return hints;
+    }
+
     /**
      * Take a normal (non-priority) task out of a job queue, marking it as completed so it will not
      * be re-delivered. The result of the computation is supplied. This could potentially be merged
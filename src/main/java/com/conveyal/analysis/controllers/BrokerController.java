@@ -18,6 +18,7 @@ import com.conveyal.analysis.util.HttpStatus;
 import com.conveyal.analysis.util.JsonUtil;
 import com.conveyal.r5.analyst.WorkerCategory;
 import com.conveyal.r5.analyst.cluster.AnalystWorker;
+import com.conveyal.r5.analyst.cluster.PrefetchHint;
 import com.conveyal.r5.analyst.cluster.RegionalTask;
 import com.conveyal.r5.analyst.cluster.RegionalWorkResult;
 import com.conveyal.r5.analyst.cluster.TravelTimeSurfaceTask;
@@ -316,6 +317,16 @@ public class BrokerController implements HttpController {
         WorkerCategory workerCategory = workerStatus.getWorkerCategory();
         // See if any appropriate tasks exist for this worker.
         List<RegionalTask> tasks = broker.getSomeWork(workerCategory);
+        // Tell the worker which jobs are coming up in its category, so it can prepare their inputs in the background.
+        // These go in a header so they can accompany a 204 response, and so older workers will simply ignore them.
+        List<PrefetchHint> prefetchHints = broker.getPrefetchHints(workerCategory);
+        if (!prefetchHints.isEmpty()) {
+            try {
+                response.header(PrefetchHint.HTTP_HEADER, jsonMapper.writeValueAsString(prefetchHints));
+            } catch (JsonProcessingException e) {
+                LOG.error("Could not serialize prefetch hints for worker, sending none.", e);
+            }
+        }
         // If there is no work for the worker, signal this clearly with a "no content" code,
         // so the worker can sleep a while before the next polling attempt.
         if (tasks.isEmpty()) {
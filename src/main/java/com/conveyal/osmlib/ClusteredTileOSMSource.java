@@ -0,0 +1,425 @@
+package com.conveyal.osmlib;
+
+import com.conveyal.osmlib.serializer.CompactNodeSerializer;
+import com.conveyal.osmlib.serializer.CompactWaySerializer;
+import com.conveyal.osmlib.serializer.VarInt;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+import org.mapdb.Fun;
+import org.mapdb.Fun.Tuple3;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NavigableSet;
+
+/**
+ * An OSM source that pulls web Mercator tiles out of a clustered tile file, an alternative to TileOSMSource for
+ * extracting many bounding boxes from a large OSM store. TileOSMSource scans the tile index of an OSM MapDB, then looks
+ * up every way and node in its BTrees. Those lookups are random reads scattered over the whole store, and dominate
+ * the time spent on extracts from a national store.
+ *
+ * A clustered tile file is written once from an OSM MapDB with a tile index. For each tile, it stores together all
+ * the ways indexed in that tile (by their first node, as in the OSM tile index), all the nodes of those ways, and all
+ * the relations that reference them directly or through other relations. Tiles are stored in the order of the OSM tile
+ * index, i.e. by x then by y, so all tiles in a column of a bounding box are contiguous in the file. An extract maps
+ * the data of each column into memory and decodes it sequentially. Each tile is divided into a node, a way and a
+ * relation section, so that all nodes can be written to the sink before all ways and then all relations, as sinks
+ * expect, without decoding anything twice.
+ *
+ * Nodes shared by ways in different tiles are stored in each of those tiles and relations in each tile they touch, so
+ * the file is somewhat bigger than the data it contains. Duplicates are skipped when extracting.
+ *
+ * File layout: a header (magic bytes, format version, zoom level, replication timestamp), the data of each tile, a
+ * tile index (number of tiles, then for each tile x, y, the offset of its data and the lengths of its three sections)
+ * and finally the offset of the tile index as the last eight bytes of the file.
+ */
+public class ClusteredTileOSMSource implements OSMEntitySource {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ClusteredTileOSMSource.class);
+
+    private static final byte[] MAGIC = "OSMTILES".getBytes();
+
+    /** Version 2 stores tags as TagDictionary IDs. */
+    private static final int FORMAT_VERSION = 2;
+
+    private static final CompactNodeSerializer NODE_SERIALIZER = new CompactNodeSerializer();
+
+    private static final CompactWaySerializer WAY_SERIALIZER = new CompactWaySerializer();
+
+    private final File file;
+
+    private final long timestamp;
+
+    /** The x and y of each tile packed into a long, in ascending order, see tileKey. */
+    private final long[] tileKeys;
+
+    /** The offset in the file of the data of each tile. */
+    private final long[] tileOffsets;
+
+    /** The length of the node, way and relation sections of each tile. */
+    private final int[][] sectionLengths;
+
+    private int minX, minY, maxX, maxY;
+
+    /** Open a clustered tile file, reading its tile index. */
+    public ClusteredTileOSMSource (File file) throws IOException {
+        this.file = file;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] magic = new byte[MAGIC.length];
+            raf.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || raf.readInt() != FORMAT_VERSION) {
+                throw new IOException("File is not a clustered tile file or has an unsupported version: " + file);
+            }
+            if (raf.readInt() != new WebMercatorTile(0, 0).ZOOM) {
+                throw new IOException("Clustered tile file has tiles of a different zoom level: " + file);
+            }
+            timestamp = raf.readLong();
+            raf.seek(raf.length() - 8);
+            long indexOffset = raf.readLong();
+            ByteBuffer index = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, indexOffset,
+                    raf.length() - 8 - indexOffset);
+            int nTiles = index.getInt();
+            tileKeys = new long[nTiles];
+            tileOffsets = new long[nTiles];
+            sectionLengths = new int[nTiles][3];
+            for (int t = 0; t < nTiles; t++) {
+                tileKeys[t] = tileKey(index.getInt(), index.getInt());
+                tileOffsets[t] = index.getLong();
+                for (int s = 0; s < 3; s++) sectionLengths[t][s] = index.getInt();
+            }
+        }
+        LOG.info("Opened clustered tile file {} with {} tiles.", file, tileKeys.length);
+    }
+
+    public void setTileRange(int minX, int minY, int maxX, int maxY) {
+        if (minX > maxX || minY > maxY) {
+            throw new IllegalArgumentException("Min must be smaller or equal to max.");
+        }
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+    }
+
+    public void setBoundingBox(double minLat, double minLon, double maxLat, double maxLon) {
+        WebMercatorTile minTile = new WebMercatorTile(minLat, minLon);
+        WebMercatorTile maxTile = new WebMercatorTile(maxLat, maxLon);
+        // Note that y tile numbers are increasing in the opposite direction of latitude (from north to south)
+        // so the parameter order min,max.max,min is intentional.
+        setTileRange(minTile.xtile, maxTile.ytile, maxTile.xtile, minTile.ytile);
+    }
+
+    @Override
+    public void copyTo (OSMEntitySink sink) throws IOException {
+        // Nodes shared between tiles and relations touching several tiles are stored more than once.
+        NodeTracker nodesSeen = new NodeTracker();
+        TLongSet entitiesSeen = new TLongHashSet();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            if (timestamp > 0) sink.setReplicationTimestamp(timestamp);
+            sink.writeBegin();
+            // One pass for each entity type, so that the sink receives all nodes, then all ways, then all relations.
+            for (int section = 0; section < 3; section++) {
+                entitiesSeen.clear();
+                for (int x = minX; x <= maxX; x++) {
+                    int firstTile = firstTileAtOrAfter(tileKey(x, minY));
+                    int endTile = firstTileAtOrAfter(tileKey(x, maxY) + 1);
+                    if (firstTile == endTile) continue;
+                    // All tiles in this column of the range are contiguous in the file, map them at once.
+                    long columnStart = tileOffsets[firstTile];
+                    long columnEnd = tileOffsets[endTile - 1] + sectionLengths[endTile - 1][0] +
+                            sectionLengths[endTile - 1][1] + sectionLengths[endTile - 1][2];
+                    ByteBuffer column = channel.map(FileChannel.MapMode.READ_ONLY, columnStart, columnEnd - columnStart);
+                    for (int t = firstTile; t < endTile; t++) {
+                        int sectionStart = (int) (tileOffsets[t] - columnStart);
+                        for (int s = 0; s < section; s++) sectionStart += sectionLengths[t][s];
+                        column.limit(sectionStart + sectionLengths[t][section]).position(sectionStart);
+                        DataInput in = new DataInputStream(new ByteBufferInputStream(column.slice()));
+                        column.limit(column.capacity());
+                        readSection(section, in, sink, nodesSeen, entitiesSeen);
+                    }
+                }
+            }
+            sink.writeEnd();
+        }
+    }
+
+    /** Way and relation IDs are tracked in the same set, which is cleared between the way and relation passes. */
+    private static void readSection (int section, DataInput in, OSMEntitySink sink, NodeTracker nodesSeen,
+                                     TLongSet entitiesSeen) throws IOException {
+        int nEntities = VarInt.readRawVarint32(in);
+        long id = 0;
+        for (int i = 0; i < nEntities; i++) {
+            id += VarInt.readSInt64(in);
+            if (section == 0) {
+                Node node = NODE_SERIALIZER.deserialize(in, -1);
+                if (!nodesSeen.contains(id)) {
+                    nodesSeen.add(id);
+                    sink.writeNode(id, node);
+                }
+            } else if (section == 1) {
+                // Each way is normally stored in only one tile, but the tile index can hold stale entries after updates.
+                Way way = WAY_SERIALIZER.deserialize(in, -1);
+                if (entitiesSeen.add(id)) {
+                    sink.writeWay(id, way);
+                }
+            } else {
+                Relation relation = readRelation(in);
+                if (entitiesSeen.add(id)) {
+                    sink.writeRelation(id, relation);
+                }
+            }
+        }
+    }
+
+    /** @return the index of the first tile with a key greater than or equal to the given one. */
+    private int firstTileAtOrAfter (long key) {
+        int t = Arrays.binarySearch(tileKeys, key);
+        return t < 0 ? -t - 1 : t;
+    }
+
+    /** Tile keys order tiles by x then by y, like the OSM tile index. */
+    private static long tileKey (int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Write a clustered tile file containing all the ways in the tile index of the given OSM, with their nodes and
+     * relations. The OSM must have been loaded with tileIndexing enabled.
+     */
+    public static void write (OSM osm, File file) throws IOException {
+        if (osm.index.isEmpty()) {
+            throw new IllegalArgumentException("OSM has no tile index, load it with tileIndexing enabled.");
+        }
+        LOG.info("Writing clustered tile file {}...", file);
+        List<int[]> tiles = new ArrayList<>();
+        List<long[]> offsetsAndLengths = new ArrayList<>();
+        try (CountingOutputStream counter = new CountingOutputStream(new FileOutputStream(file))) {
+            DataOutputStream out = new DataOutputStream(counter);
+            out.write(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(new WebMercatorTile(0, 0).ZOOM);
+            out.writeLong(osm.timestamp.get());
+
+            // The tile index is ordered by x, then y, then way ID. Gather the ways of each tile in turn.
+            TLongList wayIds = new TLongArrayList();
+            int tileX = 0, tileY = 0;
+            for (Tuple3<Integer, Integer, Long> item : osm.index) {
+                if (!wayIds.isEmpty() && (item.a != tileX || item.b != tileY)) {
+                    tiles.add(new int[] {tileX, tileY});
+                    offsetsAndLengths.add(writeTile(osm, wayIds, out, counter));
+                    wayIds.clear();
+                }
+                tileX = item.a;
+                tileY = item.b;
+                wayIds.add(item.c);
+            }
+            tiles.add(new int[] {tileX, tileY});
+            offsetsAndLengths.add(writeTile(osm, wayIds, out, counter));
+
+            long indexOffset = counter.count;
+            out.writeInt(tiles.size());
+            for (int t = 0; t < tiles.size(); t++) {
+                out.writeInt(tiles.get(t)[0]);
+                out.writeInt(tiles.get(t)[1]);
+                long[] offsetAndLengths = offsetsAndLengths.get(t);
+                out.writeLong(offsetAndLengths[0]);
+                for (int s = 1; s <= 3; s++) out.writeInt((int) offsetAndLengths[s]);
+            }
+            out.writeLong(indexOffset);
+            out.flush();
+        }
+        LOG.info("Wrote {} tiles to clustered tile file.", tiles.size());
+    }
+
+    /** @return the offset of the tile's data in the file, then the length of each of its sections. */
+    private static long[] writeTile (OSM osm, TLongList wayIds, DataOutputStream out, CountingOutputStream counter)
+            throws IOException {
+        long offset = counter.count;
+        TLongSet nodeIds = new TLongHashSet();
+        TLongSet relationIds = new TLongHashSet();
+        List<Way> ways = new ArrayList<>();
+        for (int w = 0; w < wayIds.size(); w++) {
+            long wayId = wayIds.get(w);
+            Way way = osm.ways.get(wayId);
+            ways.add(way);
+            if (way == null) continue;
+            nodeIds.addAll(way.nodes);
+            addRelations(osm.relationsByWay, wayId, relationIds);
+        }
+        long[] sortedNodeIds = nodeIds.toArray();
+        Arrays.sort(sortedNodeIds);
+        for (long nodeId : sortedNodeIds) {
+            addRelations(osm.relationsByNode, nodeId, relationIds);
+        }
+        // Add the relations that contain these relations, recursively.
+        TLongList newRelations = new TLongArrayList(relationIds);
+        while (!newRelations.isEmpty()) {
+            TLongSet parentRelations = new TLongHashSet();
+            for (int r = 0; r < newRelations.size(); r++) {
+                addRelations(osm.relationsByRelation, newRelations.get(r), parentRelations);
+            }
+            newRelations.clear();
+            parentRelations.forEach(id -> {
+                if (relationIds.add(id)) newRelations.add(id);
+                return true;
+            });
+        }
+        long[] sortedRelationIds = relationIds.toArray();
+        Arrays.sort(sortedRelationIds);
+
+        long[] offsetAndLengths = new long[] {offset, 0, 0, 0};
+        long sectionStart = counter.count;
+        List<Long> writtenNodeIds = new ArrayList<>();
+        List<Node> nodes = new ArrayList<>();
+        for (long nodeId : sortedNodeIds) {
+            Node node = osm.nodes.get(nodeId);
+            if (node == null) continue;
+            writtenNodeIds.add(nodeId);
+            nodes.add(node);
+        }
+        writeCount(out, nodes.size());
+        long lastId = 0;
+        for (int n = 0; n < nodes.size(); n++) {
+            VarInt.writeSInt64NoTag(out, writtenNodeIds.get(n) - lastId);
+            lastId = writtenNodeIds.get(n);
+            NODE_SERIALIZER.serialize(out, nodes.get(n));
+        }
+        offsetAndLengths[1] = counter.count - sectionStart;
+
+        sectionStart = counter.count;
+        int nWays = 0;
+        for (Way way : ways) if (way != null) nWays++;
+        writeCount(out, nWays);
+        lastId = 0;
+        for (int w = 0; w < ways.size(); w++) {
+            if (ways.get(w) == null) continue;
+            VarInt.writeSInt64NoTag(out, wayIds.get(w) - lastId);
+            lastId = wayIds.get(w);
+            WAY_SERIALIZER.serialize(out, ways.get(w));
+        }
+        offsetAndLengths[2] = counter.count - sectionStart;
+
+        sectionStart = counter.count;
+        List<Long> writtenRelationIds = new ArrayList<>();
+        List<Relation> relations = new ArrayList<>();
+        for (long relationId : sortedRelationIds) {
+            Relation relation = osm.relations.get(relationId);
+            if (relation == null) continue;
+            writtenRelationIds.add(relationId);
+            relations.add(relation);
+        }
+        writeCount(out, relations.size());
+        lastId = 0;
+        for (int r = 0; r < relations.size(); r++) {
+            VarInt.writeSInt64NoTag(out, writtenRelationIds.get(r) - lastId);
+            lastId = writtenRelationIds.get(r);
+            writeRelation(out, relations.get(r));
+        }
+        offsetAndLengths[3] = counter.count - sectionStart;
+        return offsetAndLengths;
+    }
+
+    private static void writeCount (DataOutput out, int count) throws IOException {
+        VarInt.writeRawVarint32(out, count);
+    }
+
+    /** Add the second element of every tuple in the given secondary index whose first element is the given ID. */
+    private static void addRelations (NavigableSet<Fun.Tuple2<Long, Long>> relationIndex, long id,
+                                      TLongSet relationIds) {
+        for (Fun.Tuple2<Long, Long> idx : relationIndex.subSet(new Fun.Tuple2(id, null), new Fun.Tuple2(id, Fun.HI))) {
+            relationIds.add(idx.b);
+        }
+    }
+
+    private static void writeRelation (DataOutput out, Relation relation) throws IOException {
+        VarInt.writeRawVarint32(out, relation.members.size());
+        long lastMemberId = 0;
+        for (Relation.Member member : relation.members) {
+            VarInt.writeRawVarint32(out, member.type.ordinal());
+            VarInt.writeSInt64NoTag(out, member.id - lastMemberId);
+            lastMemberId = member.id;
+            VarInt.writeString(out, member.role == null ? "" : member.role);
+        }
+        VarInt.writeCompactTags(out, relation);
+    }
+
+    private static Relation readRelation (DataInput in) throws IOException {
+        Relation relation = new Relation();
+        int nMembers = VarInt.readRawVarint32(in);
+        long lastMemberId = 0;
+        for (int m = 0; m < nMembers; m++) {
+            Relation.Member member = new Relation.Member();
+            member.type = OSMEntity.Type.values()[VarInt.readRawVarint32(in)];
+            lastMemberId += VarInt.readSInt64(in);
+            member.id = lastMemberId;
+            member.role = VarInt.readString(in);
+            relation.members.add(member);
+        }
+        VarInt.readCompactTags(in, relation);
+        return relation;
+    }
+
+    /** Reads the remaining bytes of a ByteBuffer, e.g. part of a mapped file. */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream (ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read () {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read (byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) return -1;
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+    }
+
+    /** Keeps track of the number of bytes written, i.e. the current offset in the file. */
+    private static class CountingOutputStream extends BufferedOutputStream {
+
+        long count = 0;
+
+        CountingOutputStream (FileOutputStream out) {
+            super(out, 1024 * 1024);
+        }
+
+        @Override
+        public synchronized void write (int b) throws IOException {
+            super.write(b);
+            count++;
+        }
+
+        @Override
+        public synchronized void write (byte[] bytes, int offset, int length) throws IOException {
+            super.write(bytes, offset, length);
+            count += length;
+        }
+    }
+
+}
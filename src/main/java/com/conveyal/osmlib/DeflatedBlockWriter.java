@@ -3,24 +3,20 @@ package com.conveyal.osmlib;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
+import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
-import java.util.concurrent.SynchronousQueue;
+import java.util.zip.Deflater;
 
-/**
- * A pipeline stage that receives uncompressed VEX blocks and writes them out in compressed form.
- * Receives blocks for compression synchronously through a zero-length blocking "queue".
- * This is meant to be run in a separate thread.
- */
 /**
  * Accumulates data in a large in-memory buffer. When a write is about to cause the buffer to overflow, the contents
- * of the buffer are handed off to a secondary thread which writes the compressed data block to a downstream
- * OutputStream, preceded by the specified header bytes, the number of messages, and the number of compressed bytes.
+ * of the buffer are handed off to a ParallelBlockWriter, which compresses several blocks at once on other threads
+ * and writes each compressed data block to a downstream OutputStream in order, preceded by the specified header bytes,
+ * the number of messages, and the number of compressed bytes.
  *
  * Java's ByteArrayOutputStream makes a copy when you fetch its backing byte array. Here, the output buffer and
  * compression process are integrated directly, avoiding this copy step.
  */
-public class DeflatedBlockWriter extends OutputStream implements Runnable {
+public class DeflatedBlockWriter extends OutputStream {
 
     private static final Logger LOG = LoggerFactory.getLogger(DeflatedBlockWriter.class);
 
@@ -30,10 +26,11 @@ public class DeflatedBlockWriter extends OutputStream implements Runnable {
      */
     public static final int MAX_MESSAGE_SIZE = 1024 * 64;
 
-    /** A zero-length BlockingQueue that hands tasks to the compression/writing pipeline stage without buffering them. */
-    private final SynchronousQueue<VEXBlock> synchronousQueue = new SynchronousQueue<>();
+    /** The pipeline stage that compresses and writes out the blocks. */
+    private final ParallelBlockWriter blockWriter;
 
-    private final OutputStream downstream;
+    /** The Deflater compression level of the blocks. */
+    private final int compressionLevel;
 
     private int currentEntityType;
 
@@ -43,78 +40,49 @@ public class DeflatedBlockWriter extends OutputStream implements Runnable {
 
     private int nEntitiesInBlock = 0;
 
-    private final Thread blockWriterThread;
-
     /**
-     * Create a DeflatedBlockWriter that writes deflated data to the given OutputStream.
-     * Starts up a separate thread running the blockWriter's compression/writing loop.
+     * Create a DeflatedBlockWriter that writes deflated data to the given OutputStream, compressing with default
+     * settings on as many threads as there are processors.
      */
     public DeflatedBlockWriter(OutputStream downstream) {
-        this.downstream = downstream;
-        buffer = new byte[VEXBlock.BUFFER_SIZE];
-        currentEntityType = VexFormat.VEX_NONE;
-        blockWriterThread = new Thread(this);
-        blockWriterThread.start();
+        this(downstream, Runtime.getRuntime().availableProcessors(), Deflater.DEFAULT_COMPRESSION);
     }
 
     /**
-     * Hand off a block for writing. Handing off a block with element type NONE signals the end of output, and
-     * will shut down the writer thread.
+     * Create a DeflatedBlockWriter that writes deflated data to the given OutputStream.
+     * Starts up separate threads for the blockWriter's compression and writing.
+     * @param nThreads the number of threads compressing blocks.
+     * @param compressionLevel the Deflater compression level, from 1 to 9 or Deflater.DEFAULT_COMPRESSION. Level 0
+     *                         stores data uncompressed, which always makes a deflated VEX block bigger than its data.
      */
-    private void handOff(VEXBlock vexBlock) {
-        try {
-            synchronousQueue.put(vexBlock);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    public DeflatedBlockWriter(OutputStream downstream, int nThreads, int compressionLevel) {
+        if (compressionLevel != Deflater.DEFAULT_COMPRESSION &&
+                (compressionLevel < Deflater.BEST_SPEED || compressionLevel > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("VEX compression level must be from 1 to 9: " + compressionLevel);
         }
+        this.compressionLevel = compressionLevel;
+        buffer = new byte[VEXBlock.BUFFER_SIZE];
+        currentEntityType = VexFormat.VEX_NONE;
+        blockWriter = new ParallelBlockWriter(downstream, nThreads);
     }
 
     /**
-     * This loop is run in a separate thread. It takes VEXBlocks one by one from the synchronous blocking queue,
-     * deflates all the bytes that have been accumulated in each block and writes the deflated result to the
-     * downstream OutputStream. The compression cannot be done incrementally or with a DeflaterOutputStream because
-     * we need to write the compressed data length to the downstream OutputStream _before_ the compressed data.
+     * Hand off a block for compression and writing. The compression cannot be done incrementally or with a
+     * DeflaterOutputStream because we need to write the compressed data length to the downstream OutputStream
+     * _before_ the compressed data.
      */
-    @Override
-    public void run() {
-
-        while (true) {
-            try {
-                VEXBlock block = synchronousQueue.take(); // block until work is available
-                if (block == VEXBlock.END_BLOCK) break;
-                block.writeDeflated(downstream);
-            } catch (InterruptedException ex) {
-                // Preferably, we'd like to use a thread interrupt to tell the thread to shut down when there's no more
-                // input. It should finish writing the last block before exiting.
-                // InterruptedException should only happen during interruptable activity like sleeping or polling,
-                // and we don't expect it to happen during I/O: http://stackoverflow.com/a/10962613/778449
-                // However when writing to a PipedOutputStream, blocked write() calls can also notice the interrupt and
-                // abort with an InterruptedIOException so this is not viable. Instead we use a special sentinel block.
-                LOG.error("Block writer thread was interrupted while waiting for work.");
-                break;
-            }
-        }
-        // For predictability only one thread should write to a stream, and that thread should close the stream.
-        // Or at least this is what piped streams impose.
-        // See https://techtavern.wordpress.com/2008/07/16/whats-this-ioexception-write-end-dead/
-        try {
-            downstream.flush();
-            downstream.close();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-
+    private void handOff(VEXBlock vexBlock) {
+        blockWriter.submit(() -> {
+            ByteArrayOutputStream deflatedBlock = new ByteArrayOutputStream();
+            vexBlock.writeDeflated(deflatedBlock, compressionLevel);
+            return deflatedBlock.toByteArray();
+        });
     }
 
+    /** Wait for all blocks to be written, then close the downstream OutputStream. */
     @Override
     public void close() {
-        try {
-            // This will let the writing finish, then break out of the polling loop.
-            this.handOff(VEXBlock.END_BLOCK);
-            blockWriterThread.join();
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }
+        blockWriter.close();
     }
 
     /** Affects the header that will be prepended to subsequent blocks when they are written out. */
@@ -158,7 +126,7 @@ public class DeflatedBlockWriter extends OutputStream implements Runnable {
             block.entityType = currentEntityType;
             block.nEntities = nEntitiesInBlock;
 
-            // Give this block to the compression/writer thread synchronously (call blocks until thread is ready)
+            // Give this block to the compression threads (call blocks if too many blocks are already pending)
             handOff(block);
 
             // Create a new buffer and reset the position and message counters
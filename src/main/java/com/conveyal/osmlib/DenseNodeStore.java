@@ -0,0 +1,222 @@
+package com.conveyal.osmlib;
+
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.RoaringBitmap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A node table for OSM that stores the fixed-point coordinates of each node in a memory-mapped temporary file, at a
+ * position given by the node ID. OSM node IDs are dense and only grow slowly, so this array is mostly full, and looking
+ * up a node is a read at a computed offset rather than a search through a MapDB BTree with deserialization and
+ * decompression of each node. Nodes that follow each other along a way were usually created together and have nearby
+ * IDs, so way node lookups tend to hit the same pages. Only the small fraction of nodes that have tags are stored on
+ * the heap, in a side table.
+ *
+ * The file is mapped in fixed-size chunks which are only created once a node in their range is stored. It is sparse on
+ * file systems that support it, so only the chunks touched take up space. Which nodes are present is tracked by a
+ * bitmap per chunk, which also allows iterating over the nodes in ascending ID order like a MapDB BTreeMap.
+ *
+ * This is not persistent: the file is deleted when the store is closed. It is not threadsafe for writing, but any
+ * number of threads can read from it once it is filled.
+ */
+public class DenseNodeStore extends AbstractMap<Long, Node> implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DenseNodeStore.class);
+
+    /** Each chunk holds 2^27 nodes, i.e. 1GiB of coordinates. */
+    private static final int CHUNK_SHIFT = 27;
+
+    private static final long NODES_PER_CHUNK = 1L << CHUNK_SHIFT;
+
+    /** Each node is stored as a fixed-point latitude and longitude, each a 32-bit int. */
+    private static final int BYTES_PER_NODE = 8;
+
+    private final File file;
+
+    private final RandomAccessFile randomAccessFile;
+
+    /** The mapped chunks of the file, with nulls for chunks in which no nodes have been stored. */
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+
+    /** For each chunk, the offsets within the chunk of the nodes that are present. */
+    private final List<RoaringBitmap> presentNodes = new ArrayList<>();
+
+    /** The tags of the nodes that have any. */
+    private final TLongObjectMap<List<OSMEntity.Tag>> tagsForNode = new TLongObjectHashMap<>();
+
+    private int size = 0;
+
+    public DenseNodeStore () {
+        try {
+            file = File.createTempFile("osm-nodes", ".dat");
+            file.deleteOnExit();
+            randomAccessFile = new RandomAccessFile(file, "rw");
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create a temporary file to store OSM nodes.", e);
+        }
+        LOG.info("OSM node coordinates will be stored in temporary file {}.", file);
+    }
+
+    @Override
+    public Node get (Object key) {
+        if (!(key instanceof Long)) return null;
+        long id = (Long) key;
+        if (!containsId(id)) return null;
+        MappedByteBuffer chunk = chunks.get(chunkIndex(id));
+        int position = positionInChunk(id) * BYTES_PER_NODE;
+        Node node = new Node();
+        node.fixedLat = chunk.getInt(position);
+        node.fixedLon = chunk.getInt(position + 4);
+        node.tags = tagsForNode.get(id);
+        return node;
+    }
+
+    @Override
+    public boolean containsKey (Object key) {
+        return key instanceof Long && containsId((Long) key);
+    }
+
+    @Override
+    public Node put (Long id, Node node) {
+        if (id < 0) {
+            throw new IllegalArgumentException("Negative node IDs cannot be stored in a dense node store: " + id);
+        }
+        Node previous = get(id);
+        int chunkIndex = chunkIndex(id);
+        int positionInChunk = positionInChunk(id);
+        MappedByteBuffer chunk = getOrCreateChunk(chunkIndex);
+        chunk.putInt(positionInChunk * BYTES_PER_NODE, node.fixedLat);
+        chunk.putInt(positionInChunk * BYTES_PER_NODE + 4, node.fixedLon);
+        if (presentNodes.get(chunkIndex).checkedAdd(positionInChunk)) size++;
+        if (node.hasNoTags()) {
+            tagsForNode.remove(id);
+        } else {
+            tagsForNode.put(id, node.tags);
+        }
+        return previous;
+    }
+
+    @Override
+    public Node remove (Object key) {
+        Node previous = get(key);
+        if (previous != null) {
+            long id = (Long) key;
+            presentNodes.get(chunkIndex(id)).remove(positionInChunk(id));
+            tagsForNode.remove(id);
+            size--;
+        }
+        return previous;
+    }
+
+    @Override
+    public int size () {
+        return size;
+    }
+
+    /** The entries in ascending ID order. Nodes are created as they are iterated over, and changes are not written back. */
+    @Override
+    public Set<Entry<Long, Node>> entrySet () {
+        return new AbstractSet<Entry<Long, Node>>() {
+            @Override
+            public Iterator<Entry<Long, Node>> iterator () {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size () {
+                return size;
+            }
+        };
+    }
+
+    /** Delete the file backing this store. The store must not be used afterward. */
+    @Override
+    public void close () throws IOException {
+        chunks.clear();
+        presentNodes.clear();
+        randomAccessFile.close();
+        if (!file.delete()) {
+            LOG.warn("Could not delete temporary node file {}.", file);
+        }
+    }
+
+    private boolean containsId (long id) {
+        if (id < 0) return false;
+        int chunkIndex = chunkIndex(id);
+        return chunkIndex < chunks.size() && chunks.get(chunkIndex) != null &&
+                presentNodes.get(chunkIndex).contains(positionInChunk(id));
+    }
+
+    private MappedByteBuffer getOrCreateChunk (int chunkIndex) {
+        while (chunks.size() <= chunkIndex) {
+            chunks.add(null);
+            presentNodes.add(null);
+        }
+        MappedByteBuffer chunk = chunks.get(chunkIndex);
+        if (chunk == null) {
+            long chunkBytes = NODES_PER_CHUNK * BYTES_PER_NODE;
+            try {
+                chunk = randomAccessFile.getChannel()
+                        .map(FileChannel.MapMode.READ_WRITE, chunkIndex * chunkBytes, chunkBytes);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not map OSM node file.", e);
+            }
+            chunks.set(chunkIndex, chunk);
+            presentNodes.set(chunkIndex, new RoaringBitmap());
+        }
+        return chunk;
+    }
+
+    private static int chunkIndex (long id) {
+        return (int) (id >>> CHUNK_SHIFT);
+    }
+
+    private static int positionInChunk (long id) {
+        return (int) (id & (NODES_PER_CHUNK - 1));
+    }
+
+    /** Iterates over the nodes chunk by chunk, in ascending ID order within each chunk. */
+    private class EntryIterator implements Iterator<Entry<Long, Node>> {
+
+        private int chunkIndex = -1;
+
+        private IntIterator positionsInChunk;
+
+        @Override
+        public boolean hasNext () {
+            while (positionsInChunk == null || !positionsInChunk.hasNext()) {
+                chunkIndex++;
+                if (chunkIndex >= presentNodes.size()) return false;
+                RoaringBitmap present = presentNodes.get(chunkIndex);
+                positionsInChunk = present == null ? null : present.getIntIterator();
+            }
+            return true;
+        }
+
+        @Override
+        public Entry<Long, Node> next () {
+            if (!hasNext()) throw new NoSuchElementException();
+            long id = ((long) chunkIndex << CHUNK_SHIFT) | positionsInChunk.next();
+            return new SimpleImmutableEntry<>(id, get(id));
+        }
+    }
+
+}
@@ -1,74 +1,79 @@
 package com.conveyal.osmlib;
 
-import org.roaringbitmap.RoaringBitmap;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.roaringbitmap.longlong.Roaring64NavigableMap;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
 
-/** 
+/**
  * A sparse bit set capable of handling 64-bit int indexes (like OSM IDs).
- * Node numbers in OSM tend to be contiguous so maybe the blocks should be bigger.
  *
  * MapDB TreeSets are much faster than MapDB HashSets, but in-memory NodeTrackers are
  * much faster than MapDB TreeSets.
  *
- * To save space, this uses RoaringBitmaps. RoaringBitmaps currently only support 32 bit keys
- * so we use multiple RoaringBitmaps containing the low 32 bits, stored in a map from the high
- * 32 bits to a roaringbitmap. Since the OSM IDs are concentrated towards the bottom of the long
- * space (i.e. they only need, so far, one more bit than an int provides), only a few blocks are used.
- *
- * This home-made implementation is probably not particularly fast, and the library now has a 64 bit mode:
- * https://github.com/RoaringBitmap/RoaringBitmap#64-bit-integers-long
- * TODO convert to standard 64-bit extension in library
+ * To save space, this uses the 64-bit extension of RoaringBitmaps, which keeps a 32-bit RoaringBitmap of the low
+ * 32 bits for each distinct value of the high 32 bits. Since the OSM IDs are concentrated towards the bottom of the
+ * long space (i.e. they only need, so far, one more bit than an int provides), only a few of these are used, and
+ * the library remembers the most recently used one so consecutive operations on nearby IDs skip the lookup.
+ * Node numbers in OSM tend to be contiguous, so within each of these the IDs are mostly stored as dense bitmap or
+ * run containers.
  */
 public class NodeTracker {
 
-    private static final Logger LOG = LoggerFactory.getLogger(NodeTracker.class);
-
-    private Map<Integer, RoaringBitmap> blocks = new HashMap<>();
+    private final Roaring64NavigableMap bitmap = new Roaring64NavigableMap();
 
     public void add(long x) {
-        int high = highIndex(x);
-        int low = lowIndex(x);
-
-        RoaringBitmap block = blocks.get(high);
+        bitmap.addLong(x);
+    }
 
-        if (block == null) {
-            block = new RoaringBitmap();
-            blocks.put(high, block);
+    /**
+     * Add all the given IDs, e.g. the nodes of a way. They need not be sorted or distinct, but the IDs are added in
+     * ascending order so that runs of nearby IDs go to the same container one after another.
+     */
+    public void addAll(long[] xs) {
+        long[] sorted = xs;
+        for (int i = 1; i < xs.length; i++) {
+            if (xs[i] < xs[i - 1]) {
+                sorted = xs.clone();
+                Arrays.sort(sorted);
+                break;
+            }
+        }
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) bitmap.addLong(sorted[i]);
         }
-
-        block.add(low);
     }
 
     public boolean contains(long x) {
-        int high = highIndex(x);
-        RoaringBitmap block = blocks.get(high);
-        if (block != null) {
-            int low = lowIndex(x);
-            return block.contains(low);
-        } else {
-            return false; // block not found
-        }
+        return bitmap.contains(x);
     }
 
-    public int cardinality () {
-        // cardinality is the sum of the cardinality of all member bitmaps
-        return blocks.values().stream()
-                .mapToInt(RoaringBitmap::getCardinality)
-                .sum();
+    public long cardinality () {
+        return bitmap.getLongCardinality();
     }
 
-    private static int highIndex (long key) {
-        return (int) (key >> 32);
+    /**
+     * Write this NodeTracker to the given output, in a form that can be read back with deserialize. The cardinality is
+     * written too, so that a truncated or corrupt serialized form is detected on reading.
+     */
+    public void serialize (DataOutput out) throws IOException {
+        bitmap.runOptimize();
+        out.writeLong(bitmap.getLongCardinality());
+        bitmap.serialize(out);
     }
 
-    private static int lowIndex (long key) {
-        // this truncation can change the sign of the int, but roaringbitmaps treats ints as unsigned, so that's
-        // not a problem.
-        return (int) key;
+    /** Read a NodeTracker that was written with serialize. */
+    public static NodeTracker deserialize (DataInput in) throws IOException {
+        NodeTracker nodeTracker = new NodeTracker();
+        long cardinality = in.readLong();
+        nodeTracker.bitmap.deserialize(in);
+        if (nodeTracker.cardinality() != cardinality) {
+            throw new IOException(String.format("Expected %d IDs in serialized NodeTracker, found %d.",
+                    cardinality, nodeTracker.cardinality()));
+        }
+        return nodeTracker;
     }
 
     public static NodeTracker acceptEverything() {
@@ -1,7 +1,9 @@
 package com.conveyal.osmlib;
 
-import com.conveyal.osmlib.serializer.NodeSerializer;
-import com.conveyal.osmlib.serializer.WaySerializer;
+import com.conveyal.osmlib.serializer.CompactNodeSerializer;
+import com.conveyal.osmlib.serializer.CompactWaySerializer;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TLongArrayList;
 import org.mapdb.Atomic;
 import org.mapdb.BTreeKeySerializer;
 import org.mapdb.BTreeMap;
@@ -13,7 +15,13 @@ import org.mapdb.Fun.Tuple3;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -54,6 +62,24 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
     /** The nodes which are referenced more than once by ways in this OSM. */
     public NodeTracker intersectionNodes = new NodeTracker();
 
+    /**
+     * The IDs of the nodes tagged as park and rides, so that they can be found without scanning every node. This is
+     * only maintained when nodes are loaded through writeNode, i.e. when reading from an OSMEntitySource.
+     */
+    public TLongList parkAndRideNodes = new TLongArrayList();
+
+    /**
+     * The format version of the index file. Increment this when the contents or encoding of the indexes change, so that
+     * index files written by older versions are rebuilt instead of misread.
+     */
+    private static final int INDEX_FORMAT_VERSION = 3;
+
+    /**
+     * A file next to the MapDB holding the indexes derived from the OSM data that are not stored in the MapDB itself,
+     * so they need not be rebuilt by scanning all the data when the MapDB is reopened. Null if the MapDB is not saved.
+     */
+    private File indexFile = null;
+
     /** The MapDB backing this OSM, if any. */
     DB db = null;
 
@@ -80,6 +106,21 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
      * @param diskPath - the file in which to save the data, null for a temp file, or "__MEMORY__" for in-memory.
      */
     public OSM (String diskPath) {
+        this(diskPath, false);
+    }
+
+    /**
+     * Construct a new OSM data store, optionally keeping nodes in a DenseNodeStore instead of MapDB. This makes loading
+     * and looking up nodes much faster, e.g. when building a street network, but the nodes are not saved, so it can
+     * only be used when the OSM is not persisted to a file.
+     *
+     * @param diskPath - the file in which to save the data, null for a temp file, or "__MEMORY__" for in-memory.
+     * @param denseNodes - if true, store nodes in a DenseNodeStore.
+     */
+    public OSM (String diskPath, boolean denseNodes) {
+        if (denseNodes && diskPath != null && !diskPath.equals("__MEMORY__")) {
+            throw new IllegalArgumentException("Nodes in a dense node store are not saved to the OSM file.");
+        }
         DBMaker dbMaker;
         if (diskPath == null) {
             LOG.info("OSM will be stored in a temporary file.");
@@ -98,6 +139,7 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
                     LOG.info("OSM will be stored in file {}.", diskPath);
                 }
                 dbMaker = DBMaker.newFileDB(dp);
+                indexFile = new File(diskPath + ".indexes");
             }
         }
 
@@ -129,14 +171,20 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
             LOG.info("No OSM tables exist yet, they will be created.");
         }
         
-        nodes = db.createTreeMap("nodes")
-                .keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG)
-                .valueSerializer(new NodeSerializer())
-                .makeOrGet();
+        // New maps store tags as TagDictionary IDs. The serializers given here are ignored when the maps already exist,
+        // MapDB uses the ones recorded in the file when they were created.
+        if (denseNodes) {
+            nodes = new DenseNodeStore();
+        } else {
+            nodes = db.createTreeMap("nodes")
+                    .keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG)
+                    .valueSerializer(new CompactNodeSerializer())
+                    .makeOrGet();
+        }
         
         ways =  db.createTreeMap("ways")
                 .keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG)
-                .valueSerializer(new WaySerializer())
+                .valueSerializer(new CompactWaySerializer())
                 .makeOrGet();
 
         // need as btreemap below to bind function
@@ -179,27 +227,29 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
 
     // TODO put these read/write methods on all sources/sinks
     public void readFromFile(String filePath) {
+        File sourceFile = new File(filePath);
         if (reading && !nodes.isEmpty()) {
             LOG.info("Not reading from file since database is already filled!");
+            if (readIndexes(sourceFile)) {
+                return;
+            }
+            LOG.info("Finding park and ride nodes...");
+            for (Map.Entry<Long, Node> nodeEntry : nodes.entrySet()) {
+                if (nodeEntry.getValue().hasTag("park_ride", "yes")) parkAndRideNodes.add(nodeEntry.getKey());
+            }
             if (intersectionDetection) {
                 // We need to rebuild intersectionNodes since it isn't saved in mapDB
                 // and without it edge creation is wrong (since edges aren't split in intersections)
-                // FIXME this takes two minutes on NL OSM. We should probably save the intersections in a MapDB table.
+                // This takes two minutes on NL OSM, so the result is saved in the index file for the next time.
                 LOG.info("Detecting intersections...");
                 for (Way way : ways.values()) {
-                    if (way.hasTag("building")) continue;
-                    for (long nodeId : way.nodes) {
-                        if (referencedNodes.contains(nodeId)) {
-                            intersectionNodes.add(nodeId);
-                        } else {
-                            referencedNodes.add(nodeId);
-                        }
-                    }
+                    detectIntersections(way);
                 }
                 //referenceNodes isn't needed after intersectionNodes is built
                 referencedNodes = null;
                 LOG.info("Done detecting intersections.");
             }
+            writeIndexes(sourceFile);
             return;
         }
         try {
@@ -209,6 +259,77 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
         } catch (Exception ex) {
             throw new RuntimeException("Error occurred while parsing OSM file " + filePath, ex);
         }
+        writeIndexes(sourceFile);
+    }
+
+    /**
+     * Save the derived indexes to the index file, recording the size and modification time of the OSM file they were
+     * derived from and the last replication update applied to the MapDB. Does nothing if this OSM is not saved to a file. Failing to save the indexes is not an error, they
+     * will just be rebuilt the next time.
+     */
+    private void writeIndexes (File sourceFile) {
+        if (indexFile == null) return;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)))) {
+            out.writeInt(INDEX_FORMAT_VERSION);
+            out.writeLong(sourceFile.length());
+            out.writeLong(sourceFile.lastModified());
+            out.writeLong(timestamp.get());
+            out.writeLong(sequenceNumber.get());
+            out.writeBoolean(intersectionDetection);
+            if (intersectionDetection) {
+                intersectionNodes.serialize(out);
+            }
+            out.writeInt(parkAndRideNodes.size());
+            for (int i = 0; i < parkAndRideNodes.size(); i++) {
+                out.writeLong(parkAndRideNodes.get(i));
+            }
+            LOG.info("Saved derived OSM indexes to {}.", indexFile);
+        } catch (IOException e) {
+            LOG.warn("Could not save derived OSM indexes to {}.", indexFile, e);
+            indexFile.delete();
+        }
+    }
+
+    /**
+     * Load the derived indexes from the index file, if it exists and was derived from the given OSM file with the
+     * same size and modification time as now, with intersection detection if it is enabled. The MapDB must not have
+     * been changed since, which is checked through its replication timestamp and sequence number: the Updater changes
+     * the MapDB directly without maintaining these indexes.
+     * @return whether the indexes were loaded, if not they must be rebuilt.
+     */
+    private boolean readIndexes (File sourceFile) {
+        if (indexFile == null || !indexFile.exists()) return false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_FORMAT_VERSION ||
+                    in.readLong() != sourceFile.length() ||
+                    in.readLong() != sourceFile.lastModified() ||
+                    in.readLong() != timestamp.get() ||
+                    in.readLong() != sequenceNumber.get()) {
+                LOG.info("Derived OSM indexes in {} are out of date, they will be rebuilt.", indexFile);
+                return false;
+            }
+            boolean hasIntersections = in.readBoolean();
+            if (intersectionDetection && !hasIntersections) {
+                LOG.info("Derived OSM indexes in {} do not include intersections, they will be rebuilt.", indexFile);
+                return false;
+            }
+            if (hasIntersections) {
+                intersectionNodes = NodeTracker.deserialize(in);
+            }
+            int nParkAndRideNodes = in.readInt();
+            for (int i = 0; i < nParkAndRideNodes; i++) {
+                parkAndRideNodes.add(in.readLong());
+            }
+            //referenceNodes isn't needed after intersectionNodes is built
+            if (hasIntersections) referencedNodes = null;
+            LOG.info("Loaded derived OSM indexes from {}.", indexFile);
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Could not read derived OSM indexes from {}, they will be rebuilt.", indexFile, e);
+            intersectionNodes = new NodeTracker();
+            parkAndRideNodes.clear();
+            return false;
+        }
     }
 
     public void readFromUrl(String urlString) {
@@ -348,6 +469,7 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
     @Override
     public void writeNode(long id, Node node) {
         this.nodes.put(id, node);
+        if (node.hasTag("park_ride", "yes")) parkAndRideNodes.add(id);
     }
 
     @Override
@@ -357,14 +479,8 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
         this.ways.put(id, way);
 
         // Optionally track which nodes are referenced by more than one way.
-        if (intersectionDetection && !way.hasTag("building")) {
-            for (long nodeId : way.nodes) {
-                if (referencedNodes.contains(nodeId)) {
-                    intersectionNodes.add(nodeId);
-                } else {
-                    referencedNodes.add(nodeId);
-                }
-            }
+        if (intersectionDetection) {
+            detectIntersections(way);
         }
 
         // Insert the way into the tile-based spatial index according to its first node.
@@ -374,6 +490,23 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
 
     }
 
+    /**
+     * Record the nodes of the given way in intersectionNodes if they were already referenced by another way (or
+     * earlier in the same way). Buildings are not considered, since streets don't run through them. This is called
+     * for every way written when intersectionDetection is enabled, but can also be called for ways that are not
+     * stored in this OSM at all.
+     */
+    public void detectIntersections(Way way) {
+        if (way.hasTag("building")) return;
+        for (long nodeId : way.nodes) {
+            if (referencedNodes.contains(nodeId)) {
+                intersectionNodes.add(nodeId);
+            } else {
+                referencedNodes.add(nodeId);
+            }
+        }
+    }
+
     @Override
     public void writeRelation(long id, Relation relation) {
         this.relations.put(id, relation);
@@ -387,6 +520,13 @@ public class OSM implements OSMEntitySource, OSMEntitySink {
     /** Close the database file to ensure clean shutdown and avoid leaving the async write thread running. */
     public void close() {
         db.close();
+        if (nodes instanceof DenseNodeStore) {
+            try {
+                ((DenseNodeStore) nodes).close();
+            } catch (IOException e) {
+                LOG.warn("Could not close dense node store.", e);
+            }
+        }
     }
 
 }
@@ -0,0 +1,89 @@
+package com.conveyal.osmlib;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+
+/**
+ * All the changes contained in one OSM change file, held in memory and sorted by entity ID so they can be applied to
+ * an OSM database at once. Only the last change to each entity within the file is kept. A null value records that the
+ * entity was deleted.
+ *
+ * Applying the changes in ID order means successive writes land in the same BTree nodes. The changes are split into
+ * contiguous ID ranges that are written by several threads at once, which MapDB allows. The spatial index is updated
+ * for all the changed ways together: they are removed from the index before any node or way changes, so their old
+ * tiles can still be found, and indexed again after all nodes and ways have been written, so their new tiles do not
+ * depend on the order of the changes in the file. The relation secondary indexes are kept up to date by the MapDB
+ * bindings as the relations are written, on the same worker threads.
+ */
+public class OSMChangeBatch {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OSMChangeBatch.class);
+
+    final NavigableMap<Long, Node> nodes = new TreeMap<>();
+
+    final NavigableMap<Long, Way> ways = new TreeMap<>();
+
+    final NavigableMap<Long, Relation> relations = new TreeMap<>();
+
+    /** @return the number of distinct entities created, modified or deleted by this batch. */
+    public int size () {
+        return nodes.size() + ways.size() + relations.size();
+    }
+
+    /**
+     * Apply all the changes in this batch to the given OSM database, splitting the work into nThreads parts run on the
+     * given executor. This returns once all the changes have been applied.
+     */
+    public void apply (OSM osm, ExecutorService executor, int nThreads) {
+        long startTime = System.currentTimeMillis();
+        inParallel(ways, executor, nThreads, (id, way) -> osm.unIndexWay(id));
+        inParallel(nodes, executor, nThreads, (id, node) -> {
+            if (node == null) osm.nodes.remove(id);
+            else osm.nodes.put(id, node);
+        });
+        inParallel(ways, executor, nThreads, (id, way) -> {
+            if (way == null) osm.ways.remove(id);
+            else osm.ways.put(id, way);
+        });
+        inParallel(relations, executor, nThreads, (id, relation) -> {
+            if (relation == null) osm.relations.remove(id);
+            else osm.relations.put(id, relation);
+        });
+        inParallel(ways, executor, nThreads, (id, way) -> {
+            if (way != null) osm.indexWay(id, way);
+        });
+        LOG.debug("Applied {} nodes, {} ways and {} relations in {} ms.", nodes.size(), ways.size(), relations.size(),
+                System.currentTimeMillis() - startTime);
+    }
+
+    /** Split the entries into nThreads contiguous ranges of IDs, apply the action to each range on the executor. */
+    private static <T> void inParallel (NavigableMap<Long, T> entities, ExecutorService executor, int nThreads,
+                                        BiConsumer<Long, T> action) {
+        if (entities.isEmpty()) return;
+        List<Map.Entry<Long, T>> entries = new ArrayList<>(entities.entrySet());
+        int chunkSize = (entries.size() + nThreads - 1) / nThreads;
+        List<Future<?>> chunks = new ArrayList<>();
+        for (int start = 0; start < entries.size(); start += chunkSize) {
+            List<Map.Entry<Long, T>> chunk = entries.subList(start, Math.min(start + chunkSize, entries.size()));
+            chunks.add(executor.submit(() -> {
+                for (Map.Entry<Long, T> entry : chunk) action.accept(entry.getKey(), entry.getValue());
+            }));
+        }
+        try {
+            for (Future<?> chunk : chunks) chunk.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Failed to apply OSM changes.", e);
+        }
+    }
+
+}
@@ -8,17 +8,23 @@ import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
+import java.util.Locale;
+
 /**
  * A lenient streaming XML parser that reads OSM change files and applies the changes they contain to an OSM database.
  * It seems like a good idea to abstract out a ChangeSink interface that extends the basic OSM entity sink.
  * However, we need non-streaming behavior here: we want to index all the new ways after applying an entire diff
  * because we have no guarantee that the nodes and ways are coherent at some point partway through the changes.
+ *
+ * When constructed with an OSMChangeBatch instead of an OSM, the changes are collected in the batch rather than
+ * applied one by one, so that they can be applied all at once later, see OSMChangeBatch.
  */
 public class OSMChangeParser extends DefaultHandler {
 
     private static final Logger LOG = LoggerFactory.getLogger(OSMChangeParser.class);
 
     OSM osm;
+    OSMChangeBatch batch;
     boolean inDelete = false; // if false, assume we're in add or modify
     OSMEntity entity;
     long id;
@@ -30,6 +36,10 @@ public class OSMChangeParser extends DefaultHandler {
         this.osm = osm;
     }
 
+    public OSMChangeParser(OSMChangeBatch batch) {
+        this.batch = batch;
+    }
+
     public void startElement(String uri, String localName, String qName, Attributes attributes)
             throws SAXException {
 
@@ -59,6 +69,13 @@ public class OSMChangeParser extends DefaultHandler {
             entity.addTag(attributes.getValue("k"), attributes.getValue("v"));
         } else if (qName.equalsIgnoreCase("ND")) {
             nodeRefs.add(Long.parseLong(attributes.getValue("ref")));
+        } else if (qName.equalsIgnoreCase("MEMBER")) {
+            Relation.Member member = new Relation.Member();
+            member.type = OSMEntity.Type.valueOf(attributes.getValue("type").toUpperCase(Locale.ROOT));
+            member.id = Long.parseLong(attributes.getValue("ref"));
+            String role = attributes.getValue("role");
+            member.role = role == null ? "" : role;
+            ((Relation) entity).members.add(member);
         }
     }
 
@@ -72,6 +89,8 @@ public class OSMChangeParser extends DefaultHandler {
         if (qName.equalsIgnoreCase("DELETE")) {
             inDelete = false;
             return;
+        } else if (batch != null) {
+            collectChange(qName);
         } else if (qName.equalsIgnoreCase("NODE")) {
             if (inDelete) {
                 osm.nodes.remove(id);
@@ -84,6 +103,8 @@ public class OSMChangeParser extends DefaultHandler {
                 osm.unIndexWay(id);
                 osm.ways.remove(id);
             } else {
+                // Remove the old version of the way from the index while it can still be located.
+                osm.unIndexWay(id);
                 Way way = ((Way)entity);
                 way.nodes = nodeRefs.toArray();
                 osm.ways.put(id, way);
@@ -98,6 +119,19 @@ public class OSMChangeParser extends DefaultHandler {
         }
     }
 
+    /** Record the entity that just ended in the batch. Deletions are recorded as null entities. */
+    private void collectChange(String qName) {
+        if (qName.equalsIgnoreCase("NODE")) {
+            batch.nodes.put(id, inDelete ? null : (Node) entity);
+        } else if (qName.equalsIgnoreCase("WAY")) {
+            Way way = (Way) entity;
+            way.nodes = nodeRefs.toArray();
+            batch.ways.put(id, inDelete ? null : way);
+        } else if (qName.equalsIgnoreCase("RELATION")) {
+            batch.relations.put(id, inDelete ? null : (Relation) entity);
+        }
+    }
+
     @Override
     public void startDocument() {
         waysModified.clear();
@@ -108,11 +142,9 @@ public class OSMChangeParser extends DefaultHandler {
     @Override
     public void endDocument() {
         // After the entire diff has been applied, re-index all the ways that were added or modified.
-        if (!waysModified.isEmpty()) {
+        if (batch == null && !waysModified.isEmpty()) {
             LOG.debug("Indexing modified ways...");
             for (int w = 0; w < waysModified.size(); w++) {
-                // TODO unless we are doing snapshots and transactions, we should unindex after indexing the new one?
-                osm.unIndexWay(id);
                 osm.indexWay(waysModified.get(w), null);
             }
         }
@@ -2,6 +2,8 @@ package com.conveyal.osmlib;
 
 import com.beust.jcommander.internal.Lists;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.List;
 
@@ -17,9 +19,37 @@ public abstract class OSMEntity implements Serializable {
 
     public static class Tag implements Serializable {
         public String key, value;
+
+        /**
+         * The TagDictionary IDs of the key and value, or NONE, so that lookups of common tags compare ints instead of
+         * strings. These are private and transient to leave the serialized form of tags unchanged. They are not updated
+         * when the public fields are assigned directly, so values should be replaced through addOrReplaceTag.
+         */
+        private transient int keyId, valueId;
+
+        /** Common keys and values are replaced with the shared instances from the TagDictionary. */
         public Tag (String key, String value) {
-            this.key = key;
-            this.value = value != null ? value : "";
+            this.key = TagDictionary.canonical(key);
+            this.value = value != null ? TagDictionary.canonical(value) : "";
+            this.keyId = TagDictionary.id(this.key);
+            this.valueId = TagDictionary.id(this.value);
+        }
+
+        /** Tags are serialized by Java serialization in relations, so restore the dictionary IDs when reading them. */
+        private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            keyId = TagDictionary.id(key);
+            valueId = TagDictionary.id(value);
+        }
+
+        /** @return whether this tag has the given key, whose TagDictionary ID is keyId. */
+        private boolean hasKey (String key, int keyId) {
+            return keyId != TagDictionary.NONE ? this.keyId == keyId : this.key.equals(key);
+        }
+
+        /** @return whether this tag has the given value, whose TagDictionary ID is valueId. */
+        private boolean hasValue (String value, int valueId) {
+            return valueId != TagDictionary.NONE ? this.valueId == valueId : value.equals(this.value);
         }
 
         @Override
@@ -36,23 +66,33 @@ public abstract class OSMEntity implements Serializable {
 
     }
 
-    /** Return the tag value for the given key. Returns null if the tag key is not present. */
+    /**
+     * Return the tag value for the given key. Returns null if the tag key is not present.
+     * Keys in the TagDictionary, which include all those used by the labelers, are found by comparing IDs.
+     */
     public String getTag(String key) {
-        if (tags == null) return null;
-        for (Tag tag : tags) {
-            if (tag.key.equals(key)) {
-                return tag.value;
-            }
-        }
-        return null;
+        Tag tag = findTag(key);
+        return tag == null ? null : tag.value;
     }
     
     public boolean hasTag(String key) {
-        return (getTag(key) != null);
+        return (findTag(key) != null);
     }
 
     public boolean hasTag(String key, String value) {
-        return (value.equals(getTag(key)));
+        Tag tag = findTag(key);
+        return tag != null && tag.hasValue(value, TagDictionary.id(value));
+    }
+
+    private Tag findTag (String key) {
+        if (tags == null) return null;
+        int keyId = TagDictionary.id(key);
+        for (Tag tag : tags) {
+            if (tag.hasKey(key, keyId)) {
+                return tag;
+            }
+        }
+        return null;
     }
 
     public boolean hasNoTags() {
@@ -94,7 +134,8 @@ public abstract class OSMEntity implements Serializable {
         }
         for (Tag tag : tags) {
             if (tag.key.equalsIgnoreCase(key)) {
-                tag.value = value;
+                tag.value = TagDictionary.canonical(value);
+                tag.valueId = TagDictionary.id(tag.value);
                 return;
             }
         }
@@ -13,26 +13,60 @@ package com.conveyal.osmlib;
  */
 
 import com.conveyal.osmlib.OSMEntity.Type;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TLongArrayList;
 import org.openstreetmap.osmosis.osmbinary.BinaryParser;
+import org.openstreetmap.osmosis.osmbinary.Fileformat;
 import org.openstreetmap.osmosis.osmbinary.Osmformat;
-import org.openstreetmap.osmosis.osmbinary.file.BlockInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
- * An OpenStreetMap entity source that reads from the PBF Format. This class implements callbacks for
- * the crosby.binary OSMPBF library. It loads OSM data into the osm-lib model classes, then sends those
- * objects through to the specified OSM entity sink.
+ * An OpenStreetMap entity source that reads from the PBF Format. It loads OSM data into the osm-lib model classes,
+ * then sends those objects through to the specified OSM entity sink.
+ *
+ * A PBF file is a sequence of independently compressed blobs, each with its own string table. Inflating and decoding
+ * them is CPU-bound, so as with DeflatedBlockReader for VEX, one thread reads the raw bytes of each blob while a pool
+ * of threads inflates and decodes them with the callbacks of the crosby.binary OSMPBF library. The decoded entities
+ * are handed to the sink on the calling thread in the order they appear in the file, so sinks that expect nodes before
+ * ways before relations (e.g. PBFOutput and VexOutput) see exactly what a single-threaded reader would produce.
+ * This is neither threadsafe nor reentrant! Create one instance of this reader per read operation.
  */
-public class PBFInput extends BinaryParser implements OSMEntitySource {
+public class PBFInput implements OSMEntitySource {
 
     protected static final Logger LOG = LoggerFactory.getLogger(PBFInput.class);
 
+    /** This special instance is handed to the calling thread to indicate there will be no more blocks. */
+    private static final Future<DecodedBlock> END_OF_FILE = CompletableFuture.completedFuture(null);
+
+    /** The number of threads inflating and decoding blobs. With one thread, everything is done on the calling thread. */
+    public int nThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The types of entities to decode and write to the sink, all of them by default. Entities of other types are
+     * skipped without being decoded, which saves most of the work of reading a file when only its ways are needed.
+     */
+    public Set<Type> entityTypes = EnumSet.allOf(Type.class);
+
     private long nodeCount = 0;
     private long wayCount = 0;
     private long relationCount = 0;
@@ -50,7 +84,7 @@ public class PBFInput extends BinaryParser implements OSMEntitySource {
     // Accepting all tags increases size by about 15 percent when storing all elements.
     // Not storing elements that lack interesting tags reduces size by 80%.
     // return true; DEBUG
-    private boolean retainTag(String key) {
+    private static boolean retainTag(String key) {
         return true;
 //        for (String s : retainKeys) {
 //            if (s.equals(key)) return true;
@@ -58,41 +92,224 @@ public class PBFInput extends BinaryParser implements OSMEntitySource {
 //        return false;
     }
 
-    /** Note that in many PBF files this function is never called because all nodes are dense. */
     @Override
-    protected void parseNodes(List<Osmformat.Node> nodes) {
+    public void copyTo(OSMEntitySink sink) throws IOException {
+        entitySink = sink;
+        entitySink.writeBegin();
+        DataInputStream dataInputStream = new DataInputStream(inputStream);
+        if (nThreads <= 1) {
+            RawBlob blob;
+            while ((blob = RawBlob.read(dataInputStream)) != null) {
+                writeBlock(blob.decode(entityTypes));
+            }
+        } else {
+            copyInParallel(dataInputStream);
+        }
+        LOG.info("Done parsing PBF.");
+        LOG.info("Read {} nodes, {} ways, {} relations.", nodeCount, wayCount, relationCount);
+        entitySink.writeEnd();
+    }
+
+    /**
+     * Read blobs on a separate thread and decode them in a thread pool, writing the decoded blocks to the sink in
+     * order. The queue of pending blocks is bounded so that reading cannot run arbitrarily far ahead of the sink.
+     */
+    private void copyInParallel (DataInputStream dataInputStream) throws IOException {
+        ExecutorService decoders = Executors.newFixedThreadPool(nThreads);
+        BlockingQueue<Future<DecodedBlock>> pendingBlocks = new ArrayBlockingQueue<>(nThreads * 2);
+        Thread reader = new Thread(() -> {
+            try {
+                RawBlob blob;
+                while ((blob = RawBlob.read(dataInputStream)) != null) {
+                    final RawBlob nextBlob = blob;
+                    pendingBlocks.put(decoders.submit(() -> nextBlob.decode(entityTypes)));
+                }
+                pendingBlocks.put(END_OF_FILE);
+            } catch (InterruptedException e) {
+                // The calling thread stopped taking blocks, there is nothing more to do.
+            } catch (Throwable t) {
+                // Hand any failure to the calling thread in place of the next block. This must wait for space in the
+                // queue, otherwise the calling thread would wait forever for a block that never comes.
+                CompletableFuture<DecodedBlock> failure = new CompletableFuture<>();
+                failure.completeExceptionally(t);
+                try {
+                    pendingBlocks.put(failure);
+                } catch (InterruptedException e) {
+                    // The calling thread stopped taking blocks, there is nothing more to do.
+                }
+            }
+        }, "PBF reader");
+        reader.setDaemon(true);
+        reader.start();
         try {
-            for (Osmformat.Node n : nodes) {
-                if (nodeCount++ % 10000000 == 0) {
+            while (true) {
+                Future<DecodedBlock> pendingBlock = pendingBlocks.take();
+                if (pendingBlock == END_OF_FILE) break;
+                writeBlock(pendingBlock.get());
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for a PBF block to be decoded.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Error while reading or decoding a PBF block.", e.getCause());
+        } finally {
+            reader.interrupt();
+            decoders.shutdownNow();
+        }
+    }
+
+    /** Hand the entities of one decoded block to the sink, logging progress. */
+    private void writeBlock (DecodedBlock block) throws IOException {
+        if (block.replicationTimestamp != null) {
+            entitySink.setReplicationTimestamp(block.replicationTimestamp);
+        }
+        for (int i = 0; i < block.entities.size(); i++) {
+            long id = block.ids.get(i);
+            OSMEntity entity = block.entities.get(i);
+            if (entity instanceof Node) {
+                if (nodeCount++ % 5000000 == 0) {
                     LOG.info("node {}", human(nodeCount));
                 }
+                entitySink.writeNode(id, (Node) entity);
+            } else if (entity instanceof Way) {
+                if (wayCount++ % 1000000 == 0) {
+                    LOG.info("way {}", human(wayCount));
+                }
+                entitySink.writeWay(id, (Way) entity);
+            } else {
+                if (relationCount++ % 100000 == 0) {
+                    LOG.info("relation {}", human(relationCount));
+                }
+                entitySink.writeRelation(id, (Relation) entity);
+            }
+        }
+    }
+
+    private static String human(long n) {
+        if (n > 1000000)
+            return String.format("%.1fM", n / 1000000.0);
+        if (n > 1000)
+            return String.format("%dk", n / 1000);
+        else
+            return String.format("%d", n);
+    }
+
+    /** The undecoded bytes of one blob in a PBF file, and the type of block they contain. */
+    private static class RawBlob {
+
+        final String type;
+        final byte[] bytes;
+
+        RawBlob (String type, byte[] bytes) {
+            this.type = type;
+            this.bytes = bytes;
+        }
+
+        /** @return the next blob in the stream, or null at the end of the stream. */
+        static RawBlob read (DataInputStream in) throws IOException {
+            int headerSize;
+            try {
+                headerSize = in.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            byte[] headerBytes = new byte[headerSize];
+            in.readFully(headerBytes);
+            Fileformat.BlobHeader header = Fileformat.BlobHeader.parseFrom(headerBytes);
+            byte[] blobBytes = new byte[header.getDatasize()];
+            in.readFully(blobBytes);
+            return new RawBlob(header.getType(), blobBytes);
+        }
+
+        /**
+         * Inflate and decode the entities of the given types in this blob. This does not touch any shared state and
+         * can be called on any thread.
+         */
+        DecodedBlock decode (Set<Type> entityTypes) throws IOException {
+            Fileformat.Blob blob = Fileformat.Blob.parseFrom(bytes);
+            byte[] data;
+            if (blob.hasRaw()) {
+                data = blob.getRaw().toByteArray();
+            } else if (blob.hasZlibData()) {
+                data = new byte[blob.getRawSize()];
+                Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(blob.getZlibData().toByteArray());
+                    inflater.inflate(data);
+                    if (!inflater.finished()) {
+                        throw new IOException("PBF blob is larger than its declared size.");
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupt compressed data in PBF blob.", e);
+                } finally {
+                    inflater.end();
+                }
+            } else {
+                throw new IOException("PBF blob uses an unsupported compression scheme.");
+            }
+            BlockDecoder decoder = new BlockDecoder(entityTypes);
+            if (type.equals("OSMHeader")) {
+                decoder.parse(Osmformat.HeaderBlock.parseFrom(data));
+            } else if (type.equals("OSMData")) {
+                decoder.parse(Osmformat.PrimitiveBlock.parseFrom(data));
+            } else {
+                LOG.info("Skipped block of type: {}", type);
+            }
+            return decoder.block;
+        }
+    }
+
+    /** The entities decoded from one PBF block in the order they appear, waiting to be written to the sink. */
+    private static class DecodedBlock {
+        Long replicationTimestamp;
+        final TLongList ids = new TLongArrayList();
+        final List<OSMEntity> entities = new ArrayList<>();
+
+        void add (long id, OSMEntity entity) {
+            ids.add(id);
+            entities.add(entity);
+        }
+    }
+
+    /**
+     * Implements callbacks for the crosby.binary OSMPBF library, decoding a single block into a DecodedBlock. Each
+     * block has its own string table, so each block gets its own decoder.
+     */
+    private static class BlockDecoder extends BinaryParser {
+
+        private final DecodedBlock block = new DecodedBlock();
+
+        private final Set<Type> entityTypes;
+
+        BlockDecoder (Set<Type> entityTypes) {
+            this.entityTypes = entityTypes;
+        }
+
+        /** Note that in many PBF files this function is never called because all nodes are dense. */
+        @Override
+        protected void parseNodes(List<Osmformat.Node> nodes) {
+            if (!entityTypes.contains(Type.NODE)) return;
+            for (Osmformat.Node n : nodes) {
                 Node node = new Node(parseLat(n.getLat()), parseLon(n.getLon()));
                 for (int k = 0; k < n.getKeysCount(); k++) {
                     String key = getStringById(n.getKeys(k));
                     String val = getStringById(n.getVals(k));
                     if (retainTag(key)) node.addTag(key, val);
                 }
-                entitySink.writeNode(n.getId(), node);
+                block.add(n.getId(), node);
             }
-        } catch (IOException ex) {
-            LOG.error("An I/O exception occurred in the OSM entity sink.");
-            ex.printStackTrace();
         }
-    }
 
-    /**
-     * Nodes are usually stored this way. Dense nodes use parallel arrays (a column store) to defeat typical
-     * Protobuf message structure.
-     */
-    @Override
-    protected void parseDense(Osmformat.DenseNodes nodes) {
-        long lastId = 0, lastLat = 0, lastLon = 0;
-        int kv = 0; // index into the keysvals array
-        try {
+        /**
+         * Nodes are usually stored this way. Dense nodes use parallel arrays (a column store) to defeat typical
+         * Protobuf message structure.
+         */
+        @Override
+        protected void parseDense(Osmformat.DenseNodes nodes) {
+            if (!entityTypes.contains(Type.NODE)) return;
+            long lastId = 0, lastLat = 0, lastLon = 0;
+            int kv = 0; // index into the keysvals array
             for (int n = 0; n < nodes.getIdCount(); n++) {
-                if (nodeCount++ % 5000000 == 0) {
-                    LOG.info("node {}", human(nodeCount));
-                }
                 Node node = new Node();
                 long id = nodes.getId(n) + lastId;
                 long lat = nodes.getLat(n) + lastLat;
@@ -112,21 +329,14 @@ public class PBFInput extends BinaryParser implements OSMEntitySource {
                     }
                     kv++; // Skip over the '0' delimiter.
                 }
-                entitySink.writeNode(id, node);
+                block.add(id, node);
             }
-        } catch (IOException ex) {
-            LOG.error("An I/O exception occurred in the OSM entity sink.");
-            ex.printStackTrace();
         }
-    }
 
-    @Override
-    protected void parseWays(List<Osmformat.Way> ways) {
-        try {
+        @Override
+        protected void parseWays(List<Osmformat.Way> ways) {
+            if (!entityTypes.contains(Type.WAY)) return;
             for (Osmformat.Way w : ways) {
-                if (wayCount++ % 1000000 == 0) {
-                    LOG.info("way {}", human(wayCount));
-                }
                 Way way = new Way();
                 /* Handle tags */
                 for (int k = 0; k < w.getKeysCount(); k++) {
@@ -143,21 +353,14 @@ public class PBFInput extends BinaryParser implements OSMEntitySource {
                     nodes[n] = ref;
                 }
                 way.nodes = nodes;
-                entitySink.writeWay(w.getId(), way);
+                block.add(w.getId(), way);
             }
-        } catch (IOException ex) {
-            LOG.error("An I/O exception occurred in the OSM entity sink.");
-            ex.printStackTrace();
         }
-    }
 
-    @Override
-    protected void parseRelations(List<Osmformat.Relation> rels) {
-        try {
+        @Override
+        protected void parseRelations(List<Osmformat.Relation> rels) {
+            if (!entityTypes.contains(Type.RELATION)) return;
             for (Osmformat.Relation r : rels) {
-                if (relationCount++ % 100000 == 0) {
-                    LOG.info("relation {}", human(relationCount));
-                }
                 Relation rel = new Relation();
                 /* Handle Tags */
                 for (int k = 0; k < r.getKeysCount(); k++) {
@@ -187,55 +390,34 @@ public class PBFInput extends BinaryParser implements OSMEntitySource {
                     }
                     rel.members.add(member);
                 }
-                entitySink.writeRelation(r.getId(), rel);
+                block.add(r.getId(), rel);
             }
-        } catch (IOException ex) {
-            LOG.error("An I/O exception occurred in the OSM entity sink.");
-            ex.printStackTrace();
         }
-    }
 
-    @Override
-    public void parse(Osmformat.HeaderBlock block) {
-        for (String s : block.getRequiredFeaturesList()) {
-            if (s.equals("OsmSchema-V0.6")) {
-                continue; // We can parse this.
+        @Override
+        public void parse(Osmformat.HeaderBlock block) {
+            for (String s : block.getRequiredFeaturesList()) {
+                if (s.equals("OsmSchema-V0.6")) {
+                    continue; // We can parse this.
+                }
+                if (s.equals("DenseNodes")) {
+                    continue; // We can parse this.
+                }
+                throw new IllegalStateException("File requires unknown feature: " + s);
             }
-            if (s.equals("DenseNodes")) {
-                continue; // We can parse this.
+            if (block.hasOsmosisReplicationTimestamp()) {
+                long timestamp = block.getOsmosisReplicationTimestamp();
+                LOG.info("PBF file has a replication timestamp of {}", Instant.ofEpochSecond(timestamp));
+                this.block.replicationTimestamp = timestamp;
+            } else {
+                LOG.info("PBF file has no replication timestamp.");
             }
-            throw new IllegalStateException("File requires unknown feature: " + s);
         }
-        if (block.hasOsmosisReplicationTimestamp()) {
-            long timestamp = block.getOsmosisReplicationTimestamp();
-            LOG.info("PBF file has a replication timestamp of {}", Instant.ofEpochSecond(timestamp));
-            entitySink.setReplicationTimestamp(timestamp);
-        } else {
-            LOG.info("PBF file has no replication timestamp.");
-        }
-    }
-
-    @Override
-    public void complete() {
-        LOG.info("Done parsing PBF.");
-        LOG.info("Read {} nodes, {} ways, {} relations.", nodeCount, wayCount, relationCount);
-    }
 
-    private static String human(long n) {
-        if (n > 1000000)
-            return String.format("%.1fM", n / 1000000.0);
-        if (n > 1000)
-            return String.format("%dk", n / 1000);
-        else
-            return String.format("%d", n);
-    }
-
-    @Override
-    public void copyTo(OSMEntitySink sink) throws IOException {
-        entitySink = sink;
-        entitySink.writeBegin();
-        new BlockInputStream(inputStream, this).process();
-        entitySink.writeEnd();
+        @Override
+        public void complete() {
+            // Called by the library at the end of a file, which is handled by PBFInput itself.
+        }
     }
 
 }
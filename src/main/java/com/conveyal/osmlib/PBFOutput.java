@@ -8,16 +8,18 @@ import org.openstreetmap.osmosis.osmbinary.Osmformat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.concurrent.SynchronousQueue;
 import java.util.zip.Deflater;
 
 /**
  * Consumes OSM entity objects and writes a stream of PBF data blocks to the specified output stream.
+ * Entities are gathered into blocks on the calling thread, then the blocks are serialized and compressed in parallel
+ * and written out in order by a ParallelBlockWriter.
  * This is neither threadsafe nor reentrant! Create one instance of this encoder per encode operation.
  */
-public class PBFOutput implements OSMEntitySink, Runnable {
+public class PBFOutput implements OSMEntitySink {
 
     private static final Logger LOG = LoggerFactory.getLogger(PBFOutput.class);
 
@@ -43,7 +45,13 @@ public class PBFOutput implements OSMEntitySink, Runnable {
 
     private Osmformat.DenseNodes.Builder denseNodesBuilder;
 
-    private Thread writerThread = null;
+    /** The number of threads compressing blocks. Should be set before writing begins. */
+    public int nThreads = Runtime.getRuntime().availableProcessors();
+
+    /** The Deflater compression level, from 0 to 9. Should be set before writing begins. */
+    public int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    private ParallelBlockWriter blockWriter = null;
 
     /** Construct a new PBF output encoder which writes to the given downstream OutputStream. */
     public PBFOutput(OutputStream downstream) {
@@ -66,19 +74,19 @@ public class PBFOutput implements OSMEntitySink, Runnable {
             if (currEntityType == OSMEntity.Type.NODE) {
                 primitiveGroupBuilder.setDense(denseNodesBuilder);
             }
-            // Pass the block off to the compression/writing thread
-            try {
-                Osmformat.PrimitiveBlock primitiveBlock = Osmformat.PrimitiveBlock.newBuilder()
-                        .setStringtable(stringTable.toBuilder()).addPrimitivegroup(primitiveGroupBuilder).build();
-                synchronousQueue.put(primitiveBlock);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
+            // Pass the block off to the compression/writing threads
+            Osmformat.PrimitiveBlock primitiveBlock = Osmformat.PrimitiveBlock.newBuilder()
+                    .setStringtable(stringTable.toBuilder()).addPrimitivegroup(primitiveGroupBuilder).build();
+            blockWriter.submit(() -> encodeBlob(primitiveBlock, compressionLevel));
         }
     }
 
-    /** @param block is either a PrimitiveBlock or a HeaderBlock */
-    private void writeOneBlob(GeneratedMessageLite block) {
+    /**
+     * Serialize and compress a block, which can be done on any thread.
+     * @param block is either a PrimitiveBlock or a HeaderBlock
+     * @return the bytes of the blob header and blob exactly as they should be written to the file.
+     */
+    private static byte[] encodeBlob(GeneratedMessageLite block, int compressionLevel) throws IOException {
 
         // FIXME lotsa big copies going on here
 
@@ -94,7 +102,7 @@ public class PBFOutput implements OSMEntitySink, Runnable {
         Fileformat.Blob.Builder blobBuilder = Fileformat.Blob.newBuilder();
         byte[] serializedBlock = block.toByteArray();
         byte[] deflatedBlock = new byte[serializedBlock.length];
-        int deflatedSize = deflate(serializedBlock, deflatedBlock);
+        int deflatedSize = deflate(serializedBlock, deflatedBlock, compressionLevel);
         if (deflatedSize < 0) {
             LOG.debug("Deflate did not reduce the size of a block. Saving it uncompressed.");
             blobBuilder.setRaw(ByteString.copyFrom(serializedBlock));
@@ -107,15 +115,12 @@ public class PBFOutput implements OSMEntitySink, Runnable {
         Fileformat.BlobHeader blobHeader = Fileformat.BlobHeader.newBuilder()
                 .setType(blobTypeString).setDatasize(serializedBlob.length).build();
         byte[] serializedBlobHeader = blobHeader.toByteArray();
-        try {
-            // "Returns a big-endian representation of value in a 4-element byte array"
-            downstream.write(Ints.toByteArray(serializedBlobHeader.length));
-            downstream.write(serializedBlobHeader);
-            downstream.write(serializedBlob);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-
+        ByteArrayOutputStream encodedBlob = new ByteArrayOutputStream(4 + serializedBlobHeader.length + serializedBlob.length);
+        // "Returns a big-endian representation of value in a 4-element byte array"
+        encodedBlob.write(Ints.toByteArray(serializedBlobHeader.length));
+        encodedBlob.write(serializedBlobHeader);
+        encodedBlob.write(serializedBlob);
+        return encodedBlob.toByteArray();
     }
 
     /**
@@ -139,17 +144,27 @@ public class PBFOutput implements OSMEntitySink, Runnable {
      * @return the deflated size of the data, or -1 if deflate did not reduce the data size.
      */
     public static int deflate (byte[] input, byte[] output) {
+        return deflate(input, output, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /** Deflate the given input data buffer into the given output byte buffer with the given compression level. */
+    public static int deflate (byte[] input, byte[] output, int compressionLevel) {
         int pos = 0;
         // Do not compress an empty data block, it will spin forever trying to fill the zero-length output buffer.
         if (input.length > 0) {
-            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, false); // include gzip header and checksum
-            deflater.setInput(input, 0, input.length);
-            deflater.finish(); // There will be no more input after this byte array.
-            while (!deflater.finished()) {
-                pos += deflater.deflate(output, pos, output.length - pos, Deflater.SYNC_FLUSH);
-                if (pos >= input.length) {
-                    return -1; // compressed output is bigger than buffer, store uncompressed
+            Deflater deflater = new Deflater(compressionLevel, false); // include gzip header and checksum
+            try {
+                deflater.setInput(input, 0, input.length);
+                deflater.finish(); // There will be no more input after this byte array.
+                while (!deflater.finished()) {
+                    pos += deflater.deflate(output, pos, output.length - pos, Deflater.SYNC_FLUSH);
+                    if (pos >= input.length) {
+                        return -1; // compressed output is bigger than buffer, store uncompressed
+                    }
                 }
+            } finally {
+                // Release the native zlib memory now rather than when the Deflater is garbage collected.
+                deflater.end();
             }
         }
         return pos;
@@ -168,11 +183,11 @@ public class PBFOutput implements OSMEntitySink, Runnable {
         if (timestamp > 0) {
             builder.setOsmosisReplicationTimestamp(timestamp);
         }
-        writeOneBlob(builder.build());
+        Osmformat.HeaderBlock headerBlock = builder.build();
 
-        // Start another thread that will handle compression and writing in parallel.
-        writerThread = new Thread(this);
-        writerThread.start();
+        // Start the threads that will handle compression and writing in parallel.
+        blockWriter = new ParallelBlockWriter(downstream, nThreads);
+        blockWriter.submit(() -> encodeBlob(headerBlock, compressionLevel));
 
     }
 
@@ -185,13 +200,8 @@ public class PBFOutput implements OSMEntitySink, Runnable {
     public void writeEnd() throws IOException {
         // Finish any partially-completed block.
         endBlock();
-        // Send a primitive block with no primitive group to the writer thread, signaling it to shut down and clean up.
-        try {
-            synchronousQueue.put(Osmformat.PrimitiveBlock.getDefaultInstance());
-            writerThread.join();
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }
+        // Let the writing finish, then close the downstream OutputStream.
+        blockWriter.close();
         LOG.info("Finished writing PBF format.");
     }
 
@@ -293,30 +303,4 @@ public class PBFOutput implements OSMEntitySink, Runnable {
 
     }
 
-    /** A zero-length BlockingQueue that hands tasks to the compression/writing thread. */
-    private final SynchronousQueue<Osmformat.PrimitiveBlock> synchronousQueue = new SynchronousQueue<>();
-
-    /** Runnable interface implementation that compresses and writes output blocks asynchronously. */
-    @Override
-    public void run() {
-        while (true) {
-            try {
-                Osmformat.PrimitiveBlock block = synchronousQueue.take(); // block until work is available
-                if (block.getPrimitivegroupCount() == 0) {
-                    break; // a block with no primitive groups tells the writer thread to shut down.
-                }
-                writeOneBlob(block);
-            } catch (InterruptedException ex) {
-                LOG.error("Block writer thread was interrupted while waiting for work.");
-                break;
-            }
-        }
-        try {
-            downstream.flush();
-            downstream.close();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
 }
@@ -0,0 +1,126 @@
+package com.conveyal.osmlib;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A pipeline stage shared by PBFOutput and DeflatedBlockWriter that compresses blocks on a pool of threads and writes
+ * the compressed blocks to a downstream OutputStream in the order they were submitted.
+ *
+ * Each block is submitted as a task that encodes and compresses it, returning the exact bytes to write. A single
+ * writer thread takes the pending results in submission order and writes them out. The number of pending blocks is
+ * bounded, so a producer that gets ahead of compression or of the downstream stream blocks on submit rather than
+ * accumulating blocks in memory.
+ *
+ * For predictability only the writer thread writes to the downstream stream, and it closes the stream when done.
+ * This is what piped streams impose: https://techtavern.wordpress.com/2008/07/16/whats-this-ioexception-write-end-dead/
+ */
+public class ParallelBlockWriter implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelBlockWriter.class);
+
+    /** This special instance is handed to the writer thread to indicate there will be no more blocks. */
+    private static final Future<byte[]> END_OF_OUTPUT = CompletableFuture.completedFuture(null);
+
+    private final OutputStream downstream;
+
+    private final ExecutorService compressors;
+
+    private final BlockingQueue<Future<byte[]>> pendingBlocks;
+
+    private final Thread writerThread;
+
+    /** The first exception encountered by the writer thread, which is rethrown by close. */
+    private volatile Exception writeException = null;
+
+    /**
+     * Start a writer thread writing to the given OutputStream and a pool of compression threads.
+     * @param nThreads the number of compression threads, at least one.
+     */
+    public ParallelBlockWriter (OutputStream downstream, int nThreads) {
+        this.downstream = downstream;
+        nThreads = Math.max(1, nThreads);
+        // Daemon threads, so that a producer failing before it calls close does not keep the JVM alive.
+        compressors = Executors.newFixedThreadPool(nThreads, runnable -> {
+            Thread thread = new Thread(runnable, "block compressor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        pendingBlocks = new ArrayBlockingQueue<>(nThreads * 2);
+        writerThread = new Thread(this, "block writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Compress a block in parallel with other blocks. This blocks if too many blocks are already waiting to be written.
+     * @param compressBlock a task that returns the compressed block exactly as it should be written out.
+     */
+    public void submit (Callable<byte[]> compressBlock) {
+        if (writeException != null) {
+            throw new RuntimeException("Writing compressed blocks failed.", writeException);
+        }
+        try {
+            pendingBlocks.put(compressors.submit(compressBlock));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Wait for all submitted blocks to be compressed and written, then close the downstream OutputStream. */
+    public void close () {
+        try {
+            pendingBlocks.put(END_OF_OUTPUT);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            compressors.shutdown();
+        }
+        if (writeException != null) {
+            throw new RuntimeException("Writing compressed blocks failed.", writeException);
+        }
+    }
+
+    /**
+     * This loop is run in the writer thread. It takes the pending blocks in order, waits for each one to be compressed
+     * and writes it out. After a failure it keeps taking blocks without writing them so that producers are not blocked.
+     */
+    @Override
+    public void run () {
+        while (true) {
+            try {
+                Future<byte[]> pendingBlock = pendingBlocks.take(); // block until work is available
+                if (pendingBlock == END_OF_OUTPUT) break;
+                byte[] compressedBlock = pendingBlock.get();
+                if (writeException == null) {
+                    downstream.write(compressedBlock);
+                }
+            } catch (InterruptedException ex) {
+                LOG.error("Block writer thread was interrupted while waiting for work.");
+                break;
+            } catch (ExecutionException | IOException ex) {
+                LOG.error("Failed to compress or write a block.", ex);
+                if (writeException == null) writeException = ex;
+            }
+        }
+        try {
+            downstream.flush();
+            downstream.close();
+        } catch (IOException e) {
+            if (writeException == null) writeException = e;
+        }
+    }
+
+}
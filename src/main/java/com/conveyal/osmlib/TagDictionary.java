@@ -0,0 +1,77 @@
+package com.conveyal.osmlib;
+
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+/**
+ * A fixed, global dictionary of the most common OSM tag keys and values, assigning each of them a small integer ID.
+ *
+ * The compact serializers store tags as pairs of IDs from this dictionary, falling back on the string itself for
+ * keys and values that are not in it. The strings in the dictionary are the same instances as the string literals in
+ * our code, since Java interns all literals. Tags created through the Tag constructor share these instances instead
+ * of each holding their own copy of "highway" or "residential", and the tag comparisons made by the labelers on
+ * every way succeed on reference equality.
+ *
+ * The IDs are stored in OSM MapDB files, so strings may be added to the end of this dictionary but existing entries
+ * must never be removed or reordered.
+ */
+public abstract class TagDictionary {
+
+    /** The ID for strings that are not in the dictionary, which are stored literally. */
+    public static final int NONE = 0;
+
+    /** The dictionary strings, in ID order starting at 1. APPEND ONLY, see class Javadoc and TagDictionaryTest. */
+    private static final String[] STRINGS = {
+            // Common keys
+            "building", "highway", "source", "name", "addr:housenumber", "addr:street", "addr:city", "addr:postcode",
+            "addr:country", "natural", "surface", "landuse", "power", "waterway", "oneway", "building:levels",
+            "amenity", "service", "barrier", "maxspeed", "lanes", "access", "ref", "layer", "created_by", "foot",
+            "bicycle", "leisure", "footway", "sidewalk", "bridge", "tunnel", "crossing", "cycleway", "cycleway:left",
+            "cycleway:right", "cycleway:both", "lit", "width", "junction", "railway", "public_transport", "parking",
+            "park_ride", "type", "restriction", "motor_vehicle", "motorcar", "vehicle", "wheelchair", "smoothness",
+            "tracktype", "area", "route", "network", "operator", "shop", "entrance", "level", "covered", "segregated",
+            "oneway:bicycle", "maxspeed:forward", "maxspeed:backward", "lts",
+            // Common values
+            "yes", "no", "residential", "track", "unclassified", "path", "tertiary", "tertiary_link", "secondary",
+            "secondary_link", "primary", "primary_link", "trunk", "trunk_link", "motorway", "motorway_link",
+            "living_street", "pedestrian", "steps", "traffic_signals", "stop", "house", "detached", "garage",
+            "apartments", "asphalt", "unpaved", "paved", "gravel", "ground", "dirt", "concrete", "paving_stones",
+            "grass", "water", "tree", "wood", "forest", "farmland", "meadow", "driveway", "parking_aisle", "alley",
+            "designated", "permissive", "private", "destination", "delivery", "customers", "agricultural",
+            "forestry", "permit", "dismount", "-1", "1", "2", "3", "4", "lane", "opposite", "opposite_lane",
+            "opposite_track", "shared_lane", "separate", "both", "left", "right", "none", "roundabout",
+            "multipolygon", "no_left_turn", "no_right_turn", "no_u_turn", "no_straight_on", "only_straight_on",
+            "only_right_turn", "only_left_turn", "platform", "rail", "uncontrolled", "marked", "zebra", "true",
+            "false", "reverse", "bus_stop", "fence", "wall", "gate", "bing", "survey"
+    };
+
+    private static final TObjectIntMap<String> ID_FOR_STRING = new TObjectIntHashMap<>(STRINGS.length * 2, 0.5f, NONE);
+
+    static {
+        for (int i = 0; i < STRINGS.length; i++) {
+            if (ID_FOR_STRING.put(STRINGS[i], i + 1) != NONE) {
+                throw new IllegalStateException("Tag dictionary contains a duplicate string: " + STRINGS[i]);
+            }
+        }
+    }
+
+    /** @return the ID of the given string, or NONE if it is not in the dictionary. */
+    public static int id (String string) {
+        return string == null ? NONE : ID_FOR_STRING.get(string);
+    }
+
+    /** @return the string with the given ID, which must not be NONE. */
+    public static String string (int id) {
+        if (id < 1 || id > STRINGS.length) {
+            throw new IllegalArgumentException("No string with ID " + id + " in the tag dictionary.");
+        }
+        return STRINGS[id - 1];
+    }
+
+    /** @return the dictionary instance of the given string if it is in the dictionary, otherwise the string itself. */
+    public static String canonical (String string) {
+        int id = id(string);
+        return id == NONE ? string : STRINGS[id - 1];
+    }
+
+}
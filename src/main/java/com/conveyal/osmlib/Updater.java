@@ -22,6 +22,9 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -45,6 +48,15 @@ public class Updater implements Runnable {
 
     Diff lastApplied;
 
+    /**
+     * If true, each diff is parsed into an OSMChangeBatch that is applied all at once by nThreads threads, while the
+     * next diff is downloaded and parsed. Otherwise changes are applied one by one as the diff is parsed.
+     */
+    public boolean batched = false;
+
+    /** The number of threads used to apply each batch of changes in batched mode. */
+    public int nThreads = Runtime.getRuntime().availableProcessors();
+
     public Updater(OSM osm) {
         this.osm = osm;
     }
@@ -61,16 +73,51 @@ public class Updater implements Runnable {
         String timescale;
         int sequenceNumber;
         long timestamp;
+        /** How far behind the present this diff was when it was applied, in seconds. */
+        long lagSeconds;
+        /** The number of changes applied, or -1 if they were not counted (when not in batched mode). */
+        int nChanges = -1;
+
+        public String getTimescale() {
+            return timescale;
+        }
+
+        public int getSequenceNumber() {
+            return sequenceNumber;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public long getLagSeconds() {
+            return lagSeconds;
+        }
+
+        public int getChangeCount() {
+            return nChanges;
+        }
 
         @Override
         public String toString() {
             return "DiffState " +
                     "sequenceNumber=" + sequenceNumber +
                     ", timestamp=" + timestamp +
+                    ", lagSeconds=" + lagSeconds +
                     ", url=" + url;
         }
     }
 
+    /** @return the last diff applied to the database, or null if none has been applied yet. */
+    public Diff getLastApplied() {
+        return lastApplied;
+    }
+
+    /** @return how far behind the present the database currently is, in seconds. */
+    public long getLagSeconds() {
+        return System.currentTimeMillis() / 1000 - osm.timestamp.get();
+    }
+
     public Diff fetchState(String timescale, int sequenceNumber) {
         Diff diffState = new Diff();
         StringBuilder sb = new StringBuilder(BASE_URL);
@@ -151,6 +198,10 @@ public class Updater implements Runnable {
     }
 
     public void applyDiffs(List<Diff> workQueue) {
+        if (batched) {
+            applyDiffsBatched(workQueue);
+            return;
+        }
         try {
             SAXParserFactory factory = SAXParserFactory.newInstance();
             factory.setNamespaceAware(true);
@@ -163,11 +214,60 @@ public class Updater implements Runnable {
                 // Move the DB timestamp forward to that of the update that was applied
                 osm.timestamp.set(state.timestamp);
                 // Record the last update applied so we can jump straight to the next one
+                state.lagSeconds = System.currentTimeMillis() / 1000 - state.timestamp;
+                lastApplied = state;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Apply the diffs in order, each as one OSMChangeBatch. The next diff is downloaded and parsed on another thread
+     * while the current one is being applied.
+     */
+    private void applyDiffsBatched(List<Diff> workQueue) {
+        if (workQueue.isEmpty()) return;
+        ExecutorService parseExecutor = Executors.newSingleThreadExecutor();
+        ExecutorService applyExecutor = Executors.newFixedThreadPool(nThreads);
+        try {
+            Future<OSMChangeBatch> nextBatch = parseExecutor.submit(() -> parseBatch(workQueue.get(0)));
+            for (int i = 0; i < workQueue.size(); i++) {
+                Diff state = workQueue.get(i);
+                OSMChangeBatch batch = nextBatch.get();
+                if (i + 1 < workQueue.size()) {
+                    Diff nextState = workQueue.get(i + 1);
+                    nextBatch = parseExecutor.submit(() -> parseBatch(nextState));
+                }
+                long startTime = System.currentTimeMillis();
+                batch.apply(osm, applyExecutor, nThreads);
+                // Move the DB timestamp forward to that of the update that was applied
+                osm.timestamp.set(state.timestamp);
+                // Record the last update applied so we can jump straight to the next one
+                state.lagSeconds = System.currentTimeMillis() / 1000 - state.timestamp;
+                state.nChanges = batch.size();
                 lastApplied = state;
+                LOG.info("Applied {} update {} for {} ({} changes in {} ms), {} seconds behind.", state.timescale,
+                        state.sequenceNumber, getDateString(state.timestamp * 1000), state.nChanges,
+                        System.currentTimeMillis() - startTime, state.lagSeconds);
             }
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            parseExecutor.shutdownNow();
+            applyExecutor.shutdown();
+        }
+    }
+
+    /** Download and parse a diff into a batch of changes, without applying them. */
+    private static OSMChangeBatch parseBatch(Diff state) throws Exception {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        OSMChangeBatch batch = new OSMChangeBatch();
+        try (InputStream inputStream = new GZIPInputStream(state.url.openStream())) {
+            factory.newSAXParser().parse(inputStream, new OSMChangeParser(batch));
         }
+        return batch;
     }
 
     // If we have a last update, add one to its seq number and attempt to fetch
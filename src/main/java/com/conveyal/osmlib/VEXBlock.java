@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 import java.util.zip.Inflater;
 
 /**
@@ -93,8 +94,12 @@ public class VEXBlock {
     }
 
     public void writeDeflated(OutputStream out) {
+        writeDeflated(out, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public void writeDeflated(OutputStream out, int compressionLevel) {
         byte[] deflatedData = new byte[nBytes]; // FIXME in theory, deflate could make the block larger
-        int deflatedSize = PBFOutput.deflate(data, deflatedData);
+        int deflatedSize = PBFOutput.deflate(data, deflatedData, compressionLevel);
         if (deflatedSize < 0) {
             throw new RuntimeException("Deflate made a block bigger.");
         }
@@ -6,6 +6,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.List;
+import java.util.zip.Deflater;
 
 /**
  * Consumes OSM entity objects and writes a stream of VEX data blocks to a specified output stream.
@@ -33,6 +34,15 @@ public class VexOutput implements OSMEntitySink {
     /** The replication timestamp to apply to the output. */
     private long timestamp;
 
+    /** The number of threads compressing blocks. Should be set before writing begins. */
+    public int nThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The Deflater compression level, from 1 to 9 or Deflater.DEFAULT_COMPRESSION. VEX blocks are always deflated, so
+     * level 0 (no compression) is not allowed. Should be set before writing begins.
+     */
+    public int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
     /** Construct a new VEX output encoder which writes to the given downstream OutputStream. */
     public VexOutput(OutputStream downstream) {
         this.downstream = downstream;
@@ -113,7 +123,7 @@ public class VexOutput implements OSMEntitySink {
     @Override
     public void writeBegin() throws IOException {
         LOG.info("Writing VEX format...");
-        blockWriter = new DeflatedBlockWriter(downstream);
+        blockWriter = new DeflatedBlockWriter(downstream, nThreads, compressionLevel);
         vout = new VarIntOutputStream(blockWriter);
     }
 
@@ -0,0 +1,31 @@
+package com.conveyal.osmlib.serializer;
+
+import com.conveyal.osmlib.Node;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Like NodeSerializer, but stores tags as pairs of TagDictionary IDs. MapDB records the serializer of each map when it
+ * is created, so OSM files created with NodeSerializer keep being read and written with it.
+ */
+public class CompactNodeSerializer extends NodeSerializer {
+
+    @Override
+    public void serialize(DataOutput out, Node node) throws IOException {
+        out.writeInt(node.fixedLat);
+        out.writeInt(node.fixedLon);
+        VarInt.writeCompactTags(out, node);
+    }
+
+    @Override
+    public Node deserialize(DataInput in, int available) throws IOException {
+        Node node = new Node();
+        node.fixedLat = in.readInt();
+        node.fixedLon = in.readInt();
+        VarInt.readCompactTags(in, node);
+        return node;
+    }
+
+}
@@ -0,0 +1,41 @@
+package com.conveyal.osmlib.serializer;
+
+import com.conveyal.osmlib.Way;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Like WaySerializer, but stores tags as pairs of TagDictionary IDs. MapDB records the serializer of each map when it
+ * is created, so OSM files created with WaySerializer keep being read and written with it.
+ */
+public class CompactWaySerializer extends WaySerializer {
+
+    @Override
+    public void serialize(DataOutput out, Way way) throws IOException {
+        VarInt.writeRawVarint32(out, way.nodes.length);
+        long lastNodeId = 0;
+        for (int i = 0; i < way.nodes.length; i++) {
+            long delta = way.nodes[i] - lastNodeId;
+            VarInt.writeSInt64NoTag(out, delta);
+            lastNodeId = way.nodes[i];
+        }
+        VarInt.writeCompactTags(out, way);
+    }
+
+    @Override
+    public Way deserialize(DataInput in, int available) throws IOException {
+        Way way = new Way();
+        int nNodes = VarInt.readRawVarint32(in);
+        way.nodes = new long[nNodes];
+        long lastNodeId = 0;
+        for (int i = 0; i < nNodes; i++) {
+            lastNodeId += VarInt.readSInt64(in);
+            way.nodes[i] = lastNodeId;
+        }
+        VarInt.readCompactTags(in, way);
+        return way;
+    }
+
+}
@@ -31,6 +31,7 @@ package com.conveyal.osmlib.serializer;
 // OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 import com.conveyal.osmlib.OSMEntity;
+import com.conveyal.osmlib.TagDictionary;
 import com.google.common.base.Charsets;
 
 import java.io.DataInput;
@@ -207,7 +208,6 @@ public class VarInt {
     }
 
     // WORKING WITH OSM TAGS
-    // TODO KV serializer using common tags file from VEX
 
     // For strings less that 128 characters in length, this will use only one byte more than the string itself
     public static void writeString(DataOutput out, String string) throws IOException {
@@ -242,6 +242,40 @@ public class VarInt {
         }
     }
 
+    /**
+     * Write the tags as pairs of TagDictionary IDs. Keys and values that are not in the dictionary are written as
+     * NONE followed by the string itself.
+     */
+    public static void writeCompactTags(DataOutput out, OSMEntity tagged) throws IOException {
+        if (tagged.hasNoTags()) {
+            writeRawVarint32(out, 0);
+            return;
+        }
+        writeRawVarint32(out, tagged.tags.size());
+        for (OSMEntity.Tag tag : tagged.tags) {
+            writeDictionaryString(out, tag.key);
+            writeDictionaryString(out, tag.value);
+        }
+    }
+
+    public static void readCompactTags(DataInput in, OSMEntity tagged) throws IOException {
+        int nTags = readRawVarint32(in);
+        for (int i = 0; i < nTags; i++) {
+            tagged.addTag(readDictionaryString(in), readDictionaryString(in));
+        }
+    }
+
+    private static void writeDictionaryString(DataOutput out, String string) throws IOException {
+        int id = TagDictionary.id(string);
+        writeRawVarint32(out, id);
+        if (id == TagDictionary.NONE) writeString(out, string);
+    }
+
+    private static String readDictionaryString(DataInput in) throws IOException {
+        int id = readRawVarint32(in);
+        return id == TagDictionary.NONE ? readString(in) : TagDictionary.string(id);
+    }
+
 
 
 }
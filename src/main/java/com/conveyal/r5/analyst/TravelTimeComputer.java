@@ -4,6 +4,7 @@ import com.conveyal.r5.OneOriginResult;
 import com.conveyal.r5.analyst.cluster.AnalysisTask;
 import com.conveyal.r5.analyst.cluster.PathWriter;
 import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.analyst.cluster.TravelTimeSurfaceTask;
 import com.conveyal.r5.analyst.fare.InRoutingFareCalculator;
 import com.conveyal.r5.analyst.scenario.PickupWaitTimes;
 import com.conveyal.r5.api.util.LegMode;
@@ -13,11 +14,15 @@ import com.conveyal.r5.profile.FareDominatingList;
 import com.conveyal.r5.profile.FastRaptorWorker;
 import com.conveyal.r5.profile.McRaptorSuboptimalPathProfileRouter;
 import com.conveyal.r5.profile.PerTargetPropagater;
+import com.conveyal.r5.profile.ProfileRequest;
 import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.AccessSearchCache;
 import com.conveyal.r5.streets.LinkedPointSet;
 import com.conveyal.r5.streets.PointSetTimes;
 import com.conveyal.r5.streets.Split;
 import com.conveyal.r5.streets.StreetRouter;
+import com.conveyal.r5.streets.StreetRouterPool;
+import com.conveyal.r5.transit.TransitLayer;
 import com.conveyal.r5.transit.TransportNetwork;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.hash.TIntIntHashMap;
@@ -64,6 +69,20 @@ public class TravelTimeComputer {
             throw new IllegalArgumentException("Direct mode may not be different than access mode in Analysis.");
         }
 
+        // In an arrive-by analysis, the streets are searched backward from the destination given by fromLat and fromLon,
+        // and transit is searched forward over a copy of the network running backward in time. Results at each
+        // grid cell are then travel times from that cell to the destination.
+        boolean arriveBy = request instanceof TravelTimeSurfaceTask && ((TravelTimeSurfaceTask) request).arriveBy;
+        ProfileRequest streetRequest = request;
+        if (arriveBy) {
+            if (request.inRoutingFareCalculator != null || request.computePaths || request.computeTravelTimeBreakdown ||
+                    request.accessModes.contains(LegMode.CAR_PARK)) {
+                throw new IllegalArgumentException("Fares, paths and park and ride are not supported in arrive-by analysis.");
+            }
+            streetRequest = request.clone();
+            streetRequest.reverseSearch = true;
+        }
+
         // If this request includes a fare calculator, inject the transport network's transit layer into it.
         // This is threadsafe because deserializing each incoming request creates a new fare calculator instance.
         if (request.inRoutingFareCalculator != null) {
@@ -115,6 +134,7 @@ public class TravelTimeComputer {
         EnumSet<StreetMode> accessModes = LegMode.toStreetModeSet(request.accessModes);
 
         // Perform a street search for each access mode. For now, direct modes must be the same as access modes.
+        StreetRouterPool routerPool = network.streetLayer.getRouterPool();
         for (StreetMode accessMode : accessModes) {
             LOG.info("Performing street search for mode: {}", accessMode);
 
@@ -122,6 +142,12 @@ public class TravelTimeComputer {
             PickupWaitTimes.AccessService accessService =
                     network.streetLayer.getAccessService(request.fromLat, request.fromLon, accessMode);
 
+            // Pick-up waits apply where a trip starts, which is at every grid cell rather than at this point when
+            // arriving by.
+            if (arriveBy && accessService != NO_WAIT_ALL_STOPS) {
+                throw new IllegalArgumentException("On-demand pick-up services are not supported in arrive-by analysis.");
+            }
+
             // When an on-demand mobility service is defined, it may not be available at this particular location.
             if (accessService == NO_SERVICE_HERE) {
                 LOG.info("On-demand {} service is not available at this location, " +
@@ -137,12 +163,14 @@ public class TravelTimeComputer {
             // This allows us to skip routing calculations if the network is entirely inaccessible. In the CAR_PARK
             // case this StreetRouter will be replaced but this still serves to bypass unnecessary computation.
             // The request must be provided to the StreetRouter before setting the origin point.
-            StreetRouter sr = new StreetRouter(network.streetLayer);
-            sr.profileRequest = request;
+            // Routers are reused for every origin of a regional analysis, see StreetRouterPool.
+            StreetRouter sr = routerPool.acquire();
+            sr.profileRequest = streetRequest;
             sr.streetMode = accessMode;
             if ( ! sr.setOrigin(request.fromLat, request.fromLon)) {
                 // Short circuit around routing and propagation if the origin point was not attached to the street network.
                 LOG.info("Origin point could not be linked to the street network for mode {}.", accessMode);
+                routerPool.release(sr);
                 continue;
             }
             foundAnyOriginPoint = true;
@@ -162,19 +190,28 @@ public class TravelTimeComputer {
             // Even if generalized cost tags were present on the input data, we always minimize travel time.
             // The generalized cost calculations currently increment time and weight by the same amount.
             sr.quantityToMinimize = StreetRouter.State.RoutingVariable.DURATION_SECONDS;
-            sr.route();
-            // Change to walking in order to reach transit stops in pedestrian-only areas like train stations.
-            // This implies you are dropped off or have a very easy parking spot for your vehicle.
-            // This kind of multi-stage search should also be used when building egress distance cost tables.
-            if (accessMode != StreetMode.WALK) {
-                sr.keepRoutingOnFoot();
+            // Neighbouring origins of a regional analysis walk and cycle from many of the same street vertices, so
+            // their searches are combined from ones retained for those vertices instead of each starting from scratch.
+            AccessSearchCache accessSearchCache = network.streetLayer.getAccessSearchCache();
+            TIntIntMap travelTimesToVertices = null;
+            if (request instanceof RegionalTask && request.jobId != null && accessSearchCache.canCombine(sr)) {
+                travelTimesToVertices = accessSearchCache.getTravelTimesToVertices(request.jobId, sr);
+            } else {
+                sr.route();
+                // Change to walking in order to reach transit stops in pedestrian-only areas like train stations.
+                // This implies you are dropped off or have a very easy parking spot for your vehicle.
+                // This kind of multi-stage search should also be used when building egress distance cost tables.
+                if (accessMode != StreetMode.WALK) {
+                    sr.keepRoutingOnFoot();
+                }
             }
 
             if (request.hasTransit()) {
                 // Find access times to transit stops, keeping the minimum across all access street modes.
                 // Note that getReachedStops() returns the routing variable units, not necessarily seconds.
                 // TODO add logic here if linkedStops are specified in pickupDelay?
-                TIntIntMap travelTimesToStopsSeconds = sr.getReachedStops();
+                TIntIntMap travelTimesToStopsSeconds = travelTimesToVertices == null ?
+                        sr.getReachedStops() : getReachedStops(travelTimesToVertices);
                 if (accessService != NO_WAIT_ALL_STOPS) {
                     LOG.info("Delaying transit access times by {} seconds (to wait for {} pick-up).",
                             accessService.waitTimeSeconds, accessMode);
@@ -198,12 +235,17 @@ public class TravelTimeComputer {
 
             Split origin = sr.getOriginSplit();
 
+            LinkedPointSet.TravelTimeFunction travelTimeToVertex = sr::getTravelTimeToVertex;
+            if (travelTimesToVertices != null) {
+                travelTimeToVertex = travelTimesToVertices::get;
+            }
             PointSetTimes pointSetTimes = linkedDestinations.eval(
-                    sr::getTravelTimeToVertex,
+                    travelTimeToVertex,
                     streetSpeedMillimetersPerSecond,
                     walkSpeedMillimetersPerSecond,
                     origin
             );
+            routerPool.release(sr);
 
             if (accessService != NO_WAIT_ALL_STOPS) {
                 LOG.info("Delaying direct travel times by {} seconds (to wait for {} pick-up).",
@@ -271,7 +313,17 @@ public class TravelTimeComputer {
         int[][] transitTravelTimesToStops;
         FastRaptorWorker worker = null;
         if (request.inRoutingFareCalculator == null) {
-            worker = new FastRaptorWorker(network.transitLayer, request, accessTimes);
+            if (arriveBy) {
+                // Departure minutes of the search over the reversed network correspond to arrival minutes at the
+                // destination. The window is shifted by one minute so that these are the same minutes at which a
+                // search departing in the requested window would depart, from fromTime to the minute before toTime.
+                AnalysisTask reversedRequest = request.clone();
+                reversedRequest.fromTime = TransitLayer.TIME_REVERSAL_SECONDS - request.toTime + FastRaptorWorker.SECONDS_PER_MINUTE;
+                reversedRequest.toTime = TransitLayer.TIME_REVERSAL_SECONDS - request.fromTime + FastRaptorWorker.SECONDS_PER_MINUTE;
+                worker = new FastRaptorWorker(network.transitLayer.getTimeReversedCopy(), reversedRequest, accessTimes);
+            } else {
+                worker = new FastRaptorWorker(network.transitLayer, request, accessTimes);
+            }
             if (request.computePaths || request.computeTravelTimeBreakdown) {
                 // By default, this is false and intermediate results (e.g. paths) are discarded.
                 // TODO do we really need to save all states just to get the travel time breakdown?
@@ -301,6 +353,8 @@ public class TravelTimeComputer {
         EnumSet<StreetMode> egressStreetModes = LegMode.toStreetModeSet(request.egressModes);
 
         // This propagator will link the destinations to the street layer for all modes as needed.
+        // When arriving by, travel times from the grid cells to the stops are taken to be those from the stops to the
+        // grid cells, as only the latter are tabulated. This is exact for walking on streets without turn costs.
         PerTargetPropagater perTargetPropagater = new PerTargetPropagater(
                 destinations,
                 network.streetLayer,
@@ -324,6 +378,20 @@ public class TravelTimeComputer {
 
     }
 
+    /**
+     * Find travel times to transit stops from travel times to street vertices, as StreetRouter.getReachedStops does
+     * from its states.
+     */
+    private TIntIntMap getReachedStops (TIntIntMap travelTimesToVertices) {
+        TIntIntMap result = new TIntIntHashMap();
+        network.transitLayer.stopForStreetVertex.forEachEntry((streetVertex, stop) -> {
+            if (streetVertex == -1) return true;
+            int travelTime = travelTimesToVertices.get(streetVertex);
+            if (travelTime != Integer.MAX_VALUE) result.put(stop, travelTime);
+            return true; // continue iteration
+        });
+        return result;
+    }
 
     /**
      * Utility method. Merges two Trove int-int maps, keeping the minimum value when keys collide.
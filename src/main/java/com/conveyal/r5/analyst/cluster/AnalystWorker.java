@@ -25,6 +25,7 @@ import com.conveyal.r5.util.AsyncLoader;
 import com.conveyal.r5.util.ExceptionUtils;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.google.common.io.LittleEndianDataOutputStream;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
@@ -46,12 +47,16 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -218,6 +223,15 @@ public class AnalystWorker implements Runnable {
     /** The HTTP server that receives single-point requests. */
     private spark.Service sparkHttpService;
 
+    /**
+     * Resolving the destination grid for a prefetch hint is a synchronous fetch, so it's done on this thread rather
+     * than the polling thread. The network preloader then does the heavy lifting on its own executor.
+     */
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor();
+
+    /** IDs of the jobs for which we've already started preparing inputs, so we only do so once per job. */
+    private final Set<String> prefetchedJobIds = new HashSet<>();
+
     public static AnalystWorker forConfig (Properties config) {
         // FIXME why is there a separate configuration parsing section here? Why not always make the cache based on the configuration?
         // FIXME why is some configuration done here and some in the constructor?
@@ -650,6 +664,8 @@ public class AnalystWorker implements Runnable {
         try {
             HttpResponse response = httpClient.execute(httpPost);
             responseEntity = response.getEntity();
+            // Hints may accompany any response including 204 No Content, so handle them before looking at the status.
+            handlePrefetchHints(response.getFirstHeader(PrefetchHint.HTTP_HEADER));
             if (response.getStatusLine().getStatusCode() == 204) {
                 // Broker said there's no work to do.
                 return null;
@@ -678,6 +694,46 @@ public class AnalystWorker implements Runnable {
         return null;
     }
 
+    /**
+     * The broker may describe regional jobs queued in this worker's category in a header of its polling response.
+     * Start fetching and preparing the networks, scenarios and linkages those jobs will need in the background, so
+     * that when the broker switches this worker to the next job its first tasks don't all stall on the same download,
+     * scenario application and linking. This uses the same NetworkPreloader path as single-point tasks, which fills
+     * the same network and linkage caches used by regional tasks. Failures are only logged, as the inputs will be
+     * prepared (or the error reported) again when the real tasks arrive.
+     */
+    private void handlePrefetchHints (Header prefetchHeader) {
+        if (prefetchHeader == null || testTaskRedelivery) return;
+        List<PrefetchHint> hints;
+        try {
+            hints = JsonUtilities.lenientObjectMapper.readValue(prefetchHeader.getValue(),
+                    new TypeReference<List<PrefetchHint>>() {});
+        } catch (Exception e) {
+            LOG.error("Could not decode prefetch hints from broker: {}", ExceptionUtils.asString(e));
+            return;
+        }
+        for (PrefetchHint hint : hints) {
+            synchronized (prefetchedJobIds) {
+                if (!prefetchedJobIds.add(hint.jobId)) continue;
+            }
+            LOG.info("Preparing inputs in the background for upcoming job: {}", hint);
+            prefetchExecutor.execute(() -> {
+                try {
+                    RegionalTask task = hint.toSkeletalTask();
+                    if (!task.makeTauiSite) {
+                        task.destinationPointSet = pointSetCache.get(task.grid);
+                    }
+                    // Freeform destination pointsets bypass the preloader entirely, see WebMercatorExtents.forGrid.
+                    if (task.getWebMercatorExtents() != null) {
+                        networkPreloader.preloadData(task);
+                    }
+                } catch (Exception e) {
+                    LOG.error("Failed to prefetch inputs for {}: {}", hint, ExceptionUtils.asString(e));
+                }
+            });
+        }
+    }
+
     /**
      * Generate and write out metadata describing what's in a directory of static site output.
      */
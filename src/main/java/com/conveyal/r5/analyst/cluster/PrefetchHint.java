@@ -0,0 +1,103 @@
+package com.conveyal.r5.analyst.cluster;
+
+import com.conveyal.r5.api.util.LegMode;
+
+import java.util.EnumSet;
+
+/**
+ * This is an API data model object, sent by the broker to workers alongside (or instead of) regional tasks when they
+ * poll for work. Each hint describes a regional job that is queued in the worker's category but that the worker has
+ * not yet been handed any tasks for. The worker can use it to prepare the network, scenario and destination linkages
+ * in the background while it finishes its current tasks, rather than stalling on the first task of the next job.
+ *
+ * Hints are only a suggestion. A worker that ignores them (including older workers that don't know about them) will
+ * still prepare everything when it receives the first task of the job, just more slowly.
+ */
+public class PrefetchHint {
+
+    /**
+     * The hints are sent in an HTTP response header rather than in the body, so older workers which expect a bare
+     * list of tasks in the body (and which never see anything in a 204 No Content response) are unaffected.
+     */
+    public static final String HTTP_HEADER = "X-Conveyal-Prefetch-Hints";
+
+    /** The job the hint was derived from, allowing workers to avoid prefetching the same job on every poll. */
+    public String jobId;
+
+    public String networkId;
+
+    public String scenarioId;
+
+    /** Key of the destination opportunity dataset, as in RegionalTask.grid. Null for static site jobs. */
+    public String destinationPointSetKey;
+
+    /** Whether the job is building a static site, in which case the task extents are also the destination extents. */
+    public boolean makeTauiSite;
+
+    // Extents of the job's web Mercator grid, as in AnalysisTask.
+    public int zoom;
+    public int west;
+    public int north;
+    public int width;
+    public int height;
+
+    // The modes determine which linkages and egress cost tables need to be built.
+    public EnumSet<LegMode> accessModes;
+    public EnumSet<LegMode> egressModes;
+    public EnumSet<LegMode> directModes;
+
+    /** No-arg constructor used when deserializing. */
+    public PrefetchHint () { }
+
+    /** Summarize the parts of a regional job's template task that determine what data the worker must prepare. */
+    public static PrefetchHint forTemplateTask (RegionalTask templateTask) {
+        PrefetchHint hint = new PrefetchHint();
+        hint.jobId = templateTask.jobId;
+        hint.networkId = templateTask.graphId;
+        hint.scenarioId = templateTask.scenarioId;
+        hint.destinationPointSetKey = templateTask.grid;
+        hint.makeTauiSite = templateTask.makeTauiSite;
+        hint.zoom = templateTask.zoom;
+        hint.west = templateTask.west;
+        hint.north = templateTask.north;
+        hint.width = templateTask.width;
+        hint.height = templateTask.height;
+        hint.accessModes = templateTask.accessModes;
+        hint.egressModes = templateTask.egressModes;
+        hint.directModes = templateTask.directModes;
+        return hint;
+    }
+
+    /**
+     * Reconstitute a skeletal regional task holding only the fields that NetworkPreloader uses to decide what to
+     * prepare. This lets the worker feed the hint through exactly the same preloading path as a real task. The
+     * destinationPointSet must still be resolved by the caller for non-static-site jobs.
+     */
+    public RegionalTask toSkeletalTask () {
+        RegionalTask task = new RegionalTask();
+        task.jobId = jobId;
+        task.graphId = networkId;
+        task.scenarioId = scenarioId;
+        task.grid = destinationPointSetKey;
+        task.makeTauiSite = makeTauiSite;
+        task.zoom = zoom;
+        task.west = west;
+        task.north = north;
+        task.width = width;
+        task.height = height;
+        task.accessModes = accessModes;
+        task.egressModes = egressModes;
+        task.directModes = directModes;
+        return task;
+    }
+
+    @Override
+    public String toString () {
+        return "PrefetchHint{" +
+                "jobId=" + jobId +
+                ", network=" + networkId +
+                ", scenario=" + scenarioId +
+                '}';
+    }
+
+}
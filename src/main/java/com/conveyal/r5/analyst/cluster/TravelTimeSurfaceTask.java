@@ -28,6 +28,12 @@ public class TravelTimeSurfaceTask extends AnalysisTask {
         GEOTIFF
     }
 
+    /**
+     * If true, find travel times to the point given by fromLat and fromLon from every cell of the grid, arriving at
+     * that point between fromTime and toTime, rather than travel times from that point to every cell.
+     */
+    public boolean arriveBy = false;
+
     /** Default format is a Conveyal flat binary file */
     private Format format = Format.GRID;
 
@@ -0,0 +1,32 @@
+package com.conveyal.r5.kryo;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import java.util.BitSet;
+
+/**
+ * Kryo's default instantiation and deserialization of BitSets leaves them empty, and the BitSet serializer in
+ * magro/kryo-serializers naively writes out a dense stream of booleans. We used to fall back on BitSet's built-in Java
+ * serialization, which saves the internal words efficiently but has the overhead of a full ObjectOutputStream per
+ * instance. This writes the same words in bulk directly to the Kryo output.
+ */
+public class BitSetSerializer extends Serializer<BitSet> {
+
+    private static final int VERSION = 1;
+
+    @Override
+    public void write (Kryo kryo, Output output, BitSet bitSet) {
+        PrimitiveArrayCoding.writeVersion(output, VERSION);
+        PrimitiveArrayCoding.writeBitSet(output, bitSet);
+    }
+
+    @Override
+    public BitSet read (Kryo kryo, Input input, Class<BitSet> type) {
+        PrimitiveArrayCoding.checkVersion(input, VERSION, BitSet.class);
+        return PrimitiveArrayCoding.readBitSet(input);
+    }
+
+}
@@ -0,0 +1,33 @@
+package com.conveyal.r5.kryo;
+
+import com.conveyal.r5.streets.StreetLayer;
+import com.conveyal.r5.transit.TransportNetwork;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.serializers.FieldSerializer;
+
+/**
+ * Format version 4 added the optional carContractionHierarchy field to StreetLayer. Version 3 networks can be read by
+ * skipping that field, and are left without a contraction hierarchy as if they had been built with the default
+ * configuration.
+ */
+class CarContractionHierarchyMigration implements NetworkMigration {
+
+    @Override
+    public int fromVersion () {
+        return 3;
+    }
+
+    @Override
+    public void configureKryo (Kryo kryo) {
+        // Remove the field from the serializer registered by any newer migration, so their changes are kept too.
+        FieldSerializer<StreetLayer> streetLayerSerializer =
+                (FieldSerializer<StreetLayer>) kryo.getSerializer(StreetLayer.class);
+        streetLayerSerializer.removeField("carContractionHierarchy");
+    }
+
+    @Override
+    public void migrate (TransportNetwork network) {
+        // Nothing to do, the carContractionHierarchy field is already null.
+    }
+
+}
@@ -0,0 +1,32 @@
+package com.conveyal.r5.kryo;
+
+import com.conveyal.r5.streets.EdgeStore;
+import com.conveyal.r5.transit.TransportNetwork;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.serializers.FieldSerializer;
+
+/**
+ * Format version 5 added the optional congestionProfiles field to EdgeStore. Version 4 networks can be read by skipping
+ * that field, and are left with car speeds that do not vary over the day, as they were when they were built.
+ */
+class CongestionProfilesMigration implements NetworkMigration {
+
+    @Override
+    public int fromVersion () {
+        return 4;
+    }
+
+    @Override
+    public void configureKryo (Kryo kryo) {
+        // This is the first serializer registered for EdgeStore, which is otherwise handled by a FieldSerializer.
+        FieldSerializer<EdgeStore> edgeStoreSerializer = new FieldSerializer<>(kryo, EdgeStore.class);
+        edgeStoreSerializer.removeField("congestionProfiles");
+        kryo.register(EdgeStore.class, edgeStoreSerializer);
+    }
+
+    @Override
+    public void migrate (TransportNetwork network) {
+        // Nothing to do, the congestionProfiles field is already null.
+    }
+
+}
@@ -0,0 +1,39 @@
+package com.conveyal.r5.kryo;
+
+import com.conveyal.r5.streets.PackedGeometryStore;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Reads and writes EdgeStore geometries in the layout used by network format version 1, when they were held in a
+ * List with one small int array per edge pair. Each array was written inline, delta coding the fixed-point
+ * coordinates along each edge. This is now only used by PackedGeometryMigration to load networks saved in that
+ * format, reading them into a PackedGeometryStore. Writing is retained for testing the migration.
+ */
+public class GeometryListSerializer extends Serializer<PackedGeometryStore> {
+
+    private static final int VERSION = 1;
+
+    @Override
+    public void write (Kryo kryo, Output output, PackedGeometryStore geometries) {
+        PrimitiveArrayCoding.writeVersion(output, VERSION);
+        output.writeVarInt(geometries.size(), true);
+        for (int pair = 0; pair < geometries.size(); pair++) {
+            PrimitiveArrayCoding.writeDeltaCoordinates(output, geometries.get(pair));
+        }
+    }
+
+    @Override
+    public PackedGeometryStore read (Kryo kryo, Input input, Class<PackedGeometryStore> type) {
+        PrimitiveArrayCoding.checkVersion(input, VERSION, PackedGeometryStore.class);
+        int size = input.readVarInt(true);
+        PackedGeometryStore geometries = new PackedGeometryStore(size);
+        for (int i = 0; i < size; i++) {
+            geometries.add(PrimitiveArrayCoding.readDeltaCoordinates(input));
+        }
+        return geometries;
+    }
+
+}
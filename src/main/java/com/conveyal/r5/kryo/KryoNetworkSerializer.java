@@ -4,16 +4,24 @@ import com.conveyal.analysis.BackendVersion;
 import com.conveyal.kryo.InstanceCountingClassResolver;
 import com.conveyal.kryo.TIntArrayListSerializer;
 import com.conveyal.kryo.TIntIntHashMapSerializer;
+import com.conveyal.r5.kryo.TroveArrayListSerializers.TByteArrayListSerializer;
+import com.conveyal.r5.kryo.TroveArrayListSerializers.TLongArrayListSerializer;
+import com.conveyal.r5.kryo.TroveArrayListSerializers.TShortArrayListSerializer;
+import com.conveyal.r5.streets.PackedGeometryStore;
 import com.conveyal.r5.transit.TransportNetwork;
+import com.conveyal.r5.transit.TripPattern;
+import com.conveyal.r5.transit.TripSchedule;
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 import com.esotericsoftware.kryo.serializers.ExternalizableSerializer;
-import com.esotericsoftware.kryo.serializers.JavaSerializer;
 import com.esotericsoftware.kryo.util.DefaultStreamFactory;
-import com.esotericsoftware.kryo.util.MapReferenceResolver;
+import com.google.common.collect.ImmutableSet;
 import gnu.trove.impl.hash.TPrimitiveHash;
+import gnu.trove.list.array.TByteArrayList;
 import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.list.array.TShortArrayList;
 import gnu.trove.map.hash.TIntIntHashMap;
 import org.objenesis.strategy.SerializingInstantiatorStrategy;
 import org.slf4j.Logger;
@@ -25,6 +33,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * This class groups the static methods for saving and loading TransportNetworks.
@@ -32,17 +43,54 @@ import java.util.BitSet;
  * Each serialization or deserialization operation creates a completely new Kryo instance, so there should be no
  * issues with thread safety, as long as the object being serialized is not being changed simultaneously.
  *
+ * Saved networks are tagged with a format version number, which is independent of the R5 release version. A network
+ * saved by any R5 release can be loaded by any other release with the same format version, so a new release does not
+ * force every network to be rebuilt unless it changes the format. Networks in an older format can still be loaded if
+ * a chain of NetworkMigrations exists from their format version to the current one.
+ *
  * Created by abyrd on 2018-11-08
  */
 public abstract class KryoNetworkSerializer {
 
     private static final Logger LOG = LoggerFactory.getLogger(KryoNetworkSerializer.class);
 
-    public static final byte[] HEADER = "R5NETWORK".getBytes();
+    /**
+     * Files saved before format versioning was introduced begin with "R5NETWORK" followed by the R5 version, and will
+     * be rejected as unrecognized. That's fine because they were stored under file names containing the R5 version.
+     */
+    public static final byte[] HEADER = "R5NETWORK-FORMAT".getBytes();
+
+    /**
+     * Increment this whenever a change to R5 changes the serialized layout of any class reachable from a
+     * TransportNetwork, or the meaning of any serialized field. If networks in the previous format can be brought
+     * up to date, add a NetworkMigration to MIGRATIONS so they don't need to be rebuilt.
+     */
+    public static final int NETWORK_FORMAT_VERSION = 6;
+
+    /**
+     * One migration from each format version older than NETWORK_FORMAT_VERSION that can still be loaded, keyed on the
+     * version they migrate from. Old versions can only be loaded if there is an unbroken chain of migrations from
+     * that version to the current one. Migrations should be added to this map in a static initializer block.
+     */
+    private static final Map<Integer, NetworkMigration> MIGRATIONS = new HashMap<>();
+
+    static {
+        addMigration(new PackedGeometryMigration());
+        addMigration(new LandmarksMigration());
+        addMigration(new CarContractionHierarchyMigration());
+        addMigration(new CongestionProfilesMigration());
+        addMigration(new SpatialIndexMigration());
+    }
 
     /** Set this to true to count instances and print a report including which serializer is handling each class. */
     private static final boolean COUNT_CLASS_INSTANCES = false;
 
+    /**
+     * Classes whose instances are numerous and are never shared between two places in a network, so Kryo need not
+     * track references to them. Their serializers must not write anything that could be shared or cyclic either.
+     */
+    private static final Set<Class> UNREFERENCED_CLASSES = ImmutableSet.of(TripSchedule.class);
+
     /**
      * Factory method ensuring that we configure Kryo exactly the same way when saving and loading networks, without
      * duplicating code. We could explicitly register all classes in this method, which would avoid writing out the
@@ -50,12 +98,13 @@ public abstract class KryoNetworkSerializer {
      * Because these networks are so big though, pre-registration should provide very little savings.
      * Registration is more important for small network messages.
      */
-    private static Kryo makeKryo () {
+    static Kryo makeKryo () {
         Kryo kryo;
+        SelectiveReferenceResolver referenceResolver = new SelectiveReferenceResolver(UNREFERENCED_CLASSES);
         if (COUNT_CLASS_INSTANCES) {
-            kryo = new Kryo(new InstanceCountingClassResolver(), new MapReferenceResolver(), new DefaultStreamFactory());
+            kryo = new Kryo(new InstanceCountingClassResolver(), referenceResolver, new DefaultStreamFactory());
         } else {
-            kryo = new Kryo();
+            kryo = new Kryo(referenceResolver);
         }
         // Auto-associate classes with default serializers the first time each class is encountered.
         kryo.setRegistrationRequired(false);
@@ -72,10 +121,17 @@ public abstract class KryoNetworkSerializer {
         kryo.register(TIntArrayList.class, new TIntArrayListSerializer());
         // Likewise for TIntIntHashMaps - there are lots of them in the distance tables.
         kryo.register(TIntIntHashMap.class, new TIntIntHashMapSerializer());
-        // Kryo's default instantiation and deserialization of BitSets leaves them empty.
-        // The Kryo BitSet serializer in magro/kryo-serializers naively writes out a dense stream of booleans.
-        // BitSet's built-in Java serializer saves the internal bitfields, which is efficient. We use that one.
-        kryo.register(BitSet.class, new JavaSerializer());
+        // The other Trove primitive lists are numerous in the EdgeStore, write their contents in bulk.
+        kryo.register(TShortArrayList.class, new TShortArrayListSerializer());
+        kryo.register(TByteArrayList.class, new TByteArrayListSerializer());
+        kryo.register(TLongArrayList.class, new TLongArrayListSerializer());
+        // Kryo's default instantiation and deserialization of BitSets leaves them empty. See BitSetSerializer.
+        kryo.register(BitSet.class, new BitSetSerializer());
+        // Hand-written serializers for the most numerous transit objects, see their class comments.
+        kryo.register(TripSchedule.class, new TripScheduleSerializer());
+        kryo.register(TripPattern.class, new TripPatternSerializer());
+        // The EdgeStore geometries are the biggest single item in most networks. See PackedGeometryStoreSerializer.
+        kryo.register(PackedGeometryStore.class, new PackedGeometryStoreSerializer());
         // Instantiation strategy: how should Kryo make new instances of objects when they are deserialized?
         // The default strategy requires every class you serialize, even in your dependencies, to have a zero-arg
         // constructor (which can be private). The setInstantiatorStrategy method completely replaces that default
@@ -86,12 +142,14 @@ public abstract class KryoNetworkSerializer {
 
     /**
      * Serialize the supplied network using Kryo, storing the result in a file.
+     * The R5 version and commit are saved only for information, the format version determines compatibility.
      */
     public static void write (TransportNetwork network, File file) throws IOException {
         LOG.info("Writing transport network...");
         Output output = new Output(new FileOutputStream(file));
         Kryo kryo = makeKryo();
         output.write(HEADER);
+        output.writeVarInt(NETWORK_FORMAT_VERSION, true);
         kryo.writeObject(output, BackendVersion.instance.version);
         kryo.writeObject(output, BackendVersion.instance.commit);
         kryo.writeObject(output, network);
@@ -104,26 +162,38 @@ public abstract class KryoNetworkSerializer {
 
     /**
      * Read the given file and decode with Kryo into a new R5 TransportNetwork object.
+     * If the file was saved in an older format version, it is upgraded to the current version if possible.
      * Transient fields that were not serialized will be rebuilt (indexes and cached PointSet linkage).
      */
     public static TransportNetwork read (File file) throws Exception {
         LOG.info("Reading transport network...");
         Input input = new Input(new FileInputStream(file));
-        Kryo kryo = makeKryo();
         byte[] header = new byte[HEADER.length];
         input.read(header, 0, header.length);
         if (!Arrays.equals(HEADER, header)) {
-            throw new RuntimeException("Unrecognized file header. Is this an R5 Kryo network?");
+            throw new RuntimeException("Unrecognized file header. Is this an R5 Kryo network in a versioned format?");
+        }
+        int formatVersion = input.readVarInt(true);
+        if (!canRead(formatVersion)) {
+            throw new RuntimeException(String.format("Network file format version %d cannot be read or migrated " +
+                    "by this R5 version %s, which uses format version %d.",
+                    formatVersion, BackendVersion.instance.version, NETWORK_FORMAT_VERSION));
+        }
+        Kryo kryo = makeKryo();
+        // Register readers for any old class layouts, applying the oldest migrations last so they take precedence.
+        for (int v = NETWORK_FORMAT_VERSION - 1; v >= formatVersion; v--) {
+            MIGRATIONS.get(v).configureKryo(kryo);
         }
         String version = kryo.readObject(input, String.class);
         String commit = kryo.readObject(input, String.class);
-        LOG.info("Loading {} file saved by R5 version {} commit {}", new String(header), version, commit);
-        if (!BackendVersion.instance.version.equals(version)) {
-            throw new RuntimeException(String.format("File version %s is not compatible with this R5 version %s",
-                    version, BackendVersion.instance.version));
-        }
+        LOG.info("Loading network in format version {} saved by R5 version {} commit {}",
+                formatVersion, version, commit);
         TransportNetwork result = kryo.readObject(input, TransportNetwork.class);
         input.close();
+        for (int v = formatVersion; v < NETWORK_FORMAT_VERSION; v++) {
+            LOG.info("Migrating network from format version {} to {}.", v, v + 1);
+            MIGRATIONS.get(v).migrate(result);
+        }
         LOG.info("Done reading.");
         if (result.fareCalculator != null) {
             result.fareCalculator.transitLayer = result.transitLayer;
@@ -132,4 +202,29 @@ public abstract class KryoNetworkSerializer {
         return result;
     }
 
+    private static void addMigration (NetworkMigration migration) {
+        MIGRATIONS.put(migration.fromVersion(), migration);
+    }
+
+    /**
+     * @return whether a network saved in the given format version can be loaded, either directly or by migrating it.
+     */
+    public static boolean canRead (int formatVersion) {
+        if (formatVersion > NETWORK_FORMAT_VERSION) return false;
+        for (int v = formatVersion; v < NETWORK_FORMAT_VERSION; v++) {
+            if (!MIGRATIONS.containsKey(v)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the oldest format version that can be loaded by migration. Networks in this version and any later one
+     *         up to NETWORK_FORMAT_VERSION can be loaded.
+     */
+    public static int oldestReadableFormatVersion () {
+        int v = NETWORK_FORMAT_VERSION;
+        while (MIGRATIONS.containsKey(v - 1)) v--;
+        return v;
+    }
+
 }
@@ -0,0 +1,33 @@
+package com.conveyal.r5.kryo;
+
+import com.conveyal.r5.streets.StreetLayer;
+import com.conveyal.r5.transit.TransportNetwork;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.serializers.FieldSerializer;
+
+/**
+ * Format version 3 added the optional landmarks field to StreetLayer. Version 2 networks can be read by skipping that
+ * field. Landmarks are only built when requested in the build configuration, which was not possible for version 2
+ * networks, so they are left without landmarks, just as if they had been built with the default configuration.
+ */
+class LandmarksMigration implements NetworkMigration {
+
+    @Override
+    public int fromVersion () {
+        return 2;
+    }
+
+    @Override
+    public void configureKryo (Kryo kryo) {
+        // Remove the field from the serializer registered by any newer migration, so their changes are kept too.
+        FieldSerializer<StreetLayer> streetLayerSerializer =
+                (FieldSerializer<StreetLayer>) kryo.getSerializer(StreetLayer.class);
+        streetLayerSerializer.removeField("landmarks");
+    }
+
+    @Override
+    public void migrate (TransportNetwork network) {
+        // Nothing to do, the landmarks field is already null.
+    }
+
+}
@@ -0,0 +1,35 @@
+package com.conveyal.r5.kryo;
+
+import com.conveyal.r5.transit.TransportNetwork;
+import com.esotericsoftware.kryo.Kryo;
+
+/**
+ * Upgrades a TransportNetwork saved in one network file format version to the next version. Registering a migration
+ * for a format version in KryoNetworkSerializer allows networks saved in that format to be loaded by newer code,
+ * instead of rebuilding them from scratch from OSM and GTFS, which can take hours for large regions.
+ *
+ * Migrations are only appropriate for compatible changes, where all the information in the new format can be derived
+ * from what was saved in the old one. Examples are a field whose meaning or units have changed, a new field that can
+ * be filled in from existing data, or a class whose serialized layout changed but whose old layout can still be read
+ * by a dedicated serializer. Changes that require information from the original OSM or GTFS (e.g. new tags or GTFS
+ * fields) cannot be migrated and networks must be rebuilt.
+ */
+public interface NetworkMigration {
+
+    /** @return the format version this migration upgrades from. It produces a network in version fromVersion + 1. */
+    int fromVersion ();
+
+    /**
+     * If the serialized layout of some class changed in the format version following fromVersion, register a
+     * serializer here that can read the old layout. When reading a network several versions old, this is called on
+     * every migration from the newest to the oldest, so older layouts take precedence.
+     */
+    default void configureKryo (Kryo kryo) { }
+
+    /**
+     * Modify the network, just after it is deserialized and before its transient indexes are rebuilt, to bring it up
+     * to date with format version fromVersion + 1.
+     */
+    void migrate (TransportNetwork network);
+
+}
@@ -0,0 +1,34 @@
+package com.conveyal.r5.kryo;
+
+import com.conveyal.r5.streets.EdgeStore;
+import com.conveyal.r5.streets.PackedGeometryStore;
+import com.conveyal.r5.transit.TransportNetwork;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.serializers.FieldSerializer;
+
+/**
+ * Format version 2 replaced the List of int arrays holding EdgeStore geometries with a PackedGeometryStore. The
+ * coordinates themselves are unchanged, so version 1 networks can be loaded by reading the old list layout straight
+ * into a PackedGeometryStore. In version 1 the concrete class of the geometries field was fixed, so no class name was
+ * written for it and the field must be read the same way.
+ */
+class PackedGeometryMigration implements NetworkMigration {
+
+    @Override
+    public int fromVersion () {
+        return 1;
+    }
+
+    @Override
+    public void configureKryo (Kryo kryo) {
+        // Change the field in the serializer registered by any newer migration, so their changes are kept too.
+        FieldSerializer<EdgeStore> edgeStoreSerializer = (FieldSerializer<EdgeStore>) kryo.getSerializer(EdgeStore.class);
+        edgeStoreSerializer.getField("geometries").setClass(PackedGeometryStore.class, new GeometryListSerializer());
+    }
+
+    @Override
+    public void migrate (TransportNetwork network) {
+        // Nothing to do, the geometries were converted as they were read.
+    }
+
+}
@@ -0,0 +1,94 @@
+package com.conveyal.r5.kryo;
+
+import com.conveyal.r5.streets.PackedGeometryStore;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Serializes the intermediate points of every edge pair in an EdgeStore. The number of points on each edge pair is
+ * written first, followed by all the coordinates in edge pair order, so the store can be read back into exactly three
+ * arrays. Any coordinates left unreferenced in the store by replacing edge geometries are not written.
+ *
+ * Coordinates may be delta coded as a single stream, latitudes and longitudes separately. This continues from one
+ * edge to the next because edges created one after another are usually from the same or adjacent OSM ways, so even
+ * the first point on an edge is often close to the last point on the previous one. Delta coding usually takes one or
+ * two bytes per coordinate instead of four, at the cost of decoding each coordinate individually rather than in bulk.
+ */
+public class PackedGeometryStoreSerializer extends Serializer<PackedGeometryStore> {
+
+    private static final int VERSION = 1;
+
+    private final boolean deltaCoding;
+
+    public PackedGeometryStoreSerializer () {
+        this(true);
+    }
+
+    /** @param deltaCoding whether to delta code coordinates when writing. Both forms can always be read. */
+    public PackedGeometryStoreSerializer (boolean deltaCoding) {
+        this.deltaCoding = deltaCoding;
+    }
+
+    @Override
+    public void write (Kryo kryo, Output output, PackedGeometryStore store) {
+        PrimitiveArrayCoding.writeVersion(output, VERSION);
+        output.writeBoolean(deltaCoding);
+        int nPairs = store.size();
+        output.writeVarInt(nPairs, true);
+        int nCoordinates = 0;
+        for (int pair = 0; pair < nPairs; pair++) {
+            int nPoints = store.nPoints(pair);
+            output.writeVarInt(nPoints, true);
+            nCoordinates += nPoints * 2;
+        }
+        output.writeVarInt(nCoordinates, true);
+        int previousLat = 0;
+        int previousLon = 0;
+        for (int pair = 0; pair < nPairs; pair++) {
+            int nPoints = store.nPoints(pair);
+            for (int point = 0; point < nPoints; point++) {
+                int fixedLat = store.getFixedLat(pair, point);
+                int fixedLon = store.getFixedLon(pair, point);
+                if (deltaCoding) {
+                    output.writeVarInt(fixedLat - previousLat, false);
+                    output.writeVarInt(fixedLon - previousLon, false);
+                    previousLat = fixedLat;
+                    previousLon = fixedLon;
+                } else {
+                    output.writeInt(fixedLat);
+                    output.writeInt(fixedLon);
+                }
+            }
+        }
+    }
+
+    @Override
+    public PackedGeometryStore read (Kryo kryo, Input input, Class<PackedGeometryStore> type) {
+        PrimitiveArrayCoding.checkVersion(input, VERSION, PackedGeometryStore.class);
+        boolean deltaCoded = input.readBoolean();
+        int nPairs = input.readVarInt(true);
+        int[] lengths = new int[nPairs];
+        for (int pair = 0; pair < nPairs; pair++) {
+            lengths[pair] = input.readVarInt(true) * 2;
+        }
+        int nCoordinates = input.readVarInt(true);
+        int[] coordinates;
+        if (deltaCoded) {
+            coordinates = new int[nCoordinates];
+            int previousLat = 0;
+            int previousLon = 0;
+            for (int i = 0; i < nCoordinates; i += 2) {
+                previousLat += input.readVarInt(false);
+                previousLon += input.readVarInt(false);
+                coordinates[i] = previousLat;
+                coordinates[i + 1] = previousLon;
+            }
+        } else {
+            coordinates = input.readInts(nCoordinates);
+        }
+        return PackedGeometryStore.fromArrays(coordinates, lengths);
+    }
+
+}
@@ -0,0 +1,136 @@
+package com.conveyal.r5.kryo;
+
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import java.util.BitSet;
+
+/**
+ * Static methods shared by our hand-written Kryo serializers, for writing primitive arrays in bulk or as varints.
+ *
+ * Nullable arrays are prefixed with their length plus one, so that a zero prefix can represent null. Arrays of values
+ * that are usually sorted or close to one another (clock times, coordinates along a line) are delta coded: each
+ * element is written as its difference from the previous one, as a zig-zag varint. That takes one or two bytes for
+ * most elements instead of four, and still handles the occasional negative difference correctly.
+ */
+abstract class PrimitiveArrayCoding {
+
+    /** Write the version number of a serializer's format, which should be the first thing it writes. */
+    static void writeVersion (Output output, int version) {
+        output.writeVarInt(version, true);
+    }
+
+    /** Read a serializer format version and fail fast if it's not the one this code knows how to read. */
+    static void checkVersion (Input input, int expectedVersion, Class<?> serializedClass) {
+        int version = input.readVarInt(true);
+        if (version != expectedVersion) {
+            throw new KryoException(String.format("Serialized %s has format version %d, expected %d.",
+                    serializedClass.getSimpleName(), version, expectedVersion));
+        }
+    }
+
+    static void writeNullableLength (Output output, Object array, int length) {
+        output.writeVarInt(array == null ? 0 : length + 1, true);
+    }
+
+    /** @return the length of the array that follows, or -1 if the array is null. */
+    static int readNullableLength (Input input) {
+        return input.readVarInt(true) - 1;
+    }
+
+    static void writeInts (Output output, int[] values) {
+        writeNullableLength(output, values, values == null ? 0 : values.length);
+        if (values != null) output.writeInts(values);
+    }
+
+    static int[] readInts (Input input) {
+        int length = readNullableLength(input);
+        return length < 0 ? null : input.readInts(length);
+    }
+
+    static void writeDeltaInts (Output output, int[] values) {
+        writeNullableLength(output, values, values == null ? 0 : values.length);
+        if (values == null) return;
+        int previous = 0;
+        for (int value : values) {
+            output.writeVarInt(value - previous, false);
+            previous = value;
+        }
+    }
+
+    static int[] readDeltaInts (Input input) {
+        int length = readNullableLength(input);
+        if (length < 0) return null;
+        int[] values = new int[length];
+        int previous = 0;
+        for (int i = 0; i < length; i++) {
+            previous += input.readVarInt(false);
+            values[i] = previous;
+        }
+        return values;
+    }
+
+    /**
+     * Write interleaved (lat, lon) fixed-point coordinates, delta coding latitudes and longitudes separately, since
+     * it's consecutive points rather than consecutive array elements that are close to one another.
+     */
+    static void writeDeltaCoordinates (Output output, int[] coordinates) {
+        writeNullableLength(output, coordinates, coordinates == null ? 0 : coordinates.length);
+        if (coordinates == null) return;
+        int[] previous = new int[2];
+        for (int i = 0; i < coordinates.length; i++) {
+            output.writeVarInt(coordinates[i] - previous[i & 1], false);
+            previous[i & 1] = coordinates[i];
+        }
+    }
+
+    static int[] readDeltaCoordinates (Input input) {
+        int length = readNullableLength(input);
+        if (length < 0) return null;
+        int[] coordinates = new int[length];
+        int[] previous = new int[2];
+        for (int i = 0; i < length; i++) {
+            previous[i & 1] += input.readVarInt(false);
+            coordinates[i] = previous[i & 1];
+        }
+        return coordinates;
+    }
+
+    static void writeFloats (Output output, float[] values) {
+        writeNullableLength(output, values, values == null ? 0 : values.length);
+        if (values != null) output.writeFloats(values);
+    }
+
+    static float[] readFloats (Input input) {
+        int length = readNullableLength(input);
+        return length < 0 ? null : input.readFloats(length);
+    }
+
+    static void writeStrings (Output output, String[] values) {
+        writeNullableLength(output, values, values == null ? 0 : values.length);
+        if (values == null) return;
+        for (String value : values) output.writeString(value);
+    }
+
+    static String[] readStrings (Input input) {
+        int length = readNullableLength(input);
+        if (length < 0) return null;
+        String[] values = new String[length];
+        for (int i = 0; i < length; i++) values[i] = input.readString();
+        return values;
+    }
+
+    /** BitSets are written as their internal words, which is compact and matches what Java serialization does. */
+    static void writeBitSet (Output output, BitSet bitSet) {
+        long[] words = bitSet == null ? null : bitSet.toLongArray();
+        writeNullableLength(output, words, words == null ? 0 : words.length);
+        if (words != null) output.writeLongs(words);
+    }
+
+    static BitSet readBitSet (Input input) {
+        int length = readNullableLength(input);
+        return length < 0 ? null : BitSet.valueOf(input.readLongs(length));
+    }
+
+}
@@ -0,0 +1,26 @@
+package com.conveyal.r5.kryo;
+
+import com.esotericsoftware.kryo.util.MapReferenceResolver;
+
+import java.util.Set;
+
+/**
+ * Kryo tracks every object it writes in an identity map when references are enabled, so that shared instances and
+ * cycles are written only once. That bookkeeping is wasted on the huge numbers of small objects we know are never
+ * shared, e.g. TripSchedules, each of which appears in exactly one TripPattern. This resolver skips reference tracking
+ * for a supplied set of classes, while keeping it for everything else in the object graph.
+ */
+public class SelectiveReferenceResolver extends MapReferenceResolver {
+
+    private final Set<Class> unreferencedClasses;
+
+    public SelectiveReferenceResolver (Set<Class> unreferencedClasses) {
+        this.unreferencedClasses = unreferencedClasses;
+    }
+
+    @Override
+    public boolean useReferences (Class type) {
+        return !unreferencedClasses.contains(type) && super.useReferences(type);
+    }
+
+}
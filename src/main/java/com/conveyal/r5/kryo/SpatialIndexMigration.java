@@ -0,0 +1,32 @@
+package com.conveyal.r5.kryo;
+
+import com.conveyal.r5.streets.StreetLayer;
+import com.conveyal.r5.transit.TransportNetwork;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.serializers.FieldSerializer;
+
+/**
+ * Format version 6 started saving the StreetLayer spatialIndex field, which was transient before. Version 5 networks
+ * can be read by skipping that field. The index is then built when the network's transient indexes are rebuilt.
+ */
+class SpatialIndexMigration implements NetworkMigration {
+
+    @Override
+    public int fromVersion () {
+        return 5;
+    }
+
+    @Override
+    public void configureKryo (Kryo kryo) {
+        // This is the first serializer registered for StreetLayer, which is otherwise handled by a FieldSerializer.
+        FieldSerializer<StreetLayer> streetLayerSerializer = new FieldSerializer<>(kryo, StreetLayer.class);
+        streetLayerSerializer.removeField("spatialIndex");
+        kryo.register(StreetLayer.class, streetLayerSerializer);
+    }
+
+    @Override
+    public void migrate (TransportNetwork network) {
+        // Nothing to do, the spatialIndex field is null and is built by TransportNetwork.rebuildTransientIndexes.
+    }
+
+}
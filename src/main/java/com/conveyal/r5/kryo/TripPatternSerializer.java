@@ -0,0 +1,97 @@
+package com.conveyal.r5.kryo;
+
+import com.conveyal.r5.transit.PickDropType;
+import com.conveyal.r5.transit.TripPattern;
+import com.conveyal.r5.transit.TripSchedule;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import org.locationtech.jts.geom.LineString;
+
+import java.util.ArrayList;
+
+/**
+ * Writes TripPatterns with their stop sequences and pickup/dropoff types as compact primitive arrays, and their trip
+ * schedules through TripScheduleSerializer without writing a class name or reference ID for each one.
+ *
+ * Every field is written explicitly, so any field added to TripPattern must also be added here (and the VERSION
+ * incremented). KryoNetworkSerializerTest will catch a field that is silently dropped.
+ */
+public class TripPatternSerializer extends Serializer<TripPattern> {
+
+    private static final int VERSION = 1;
+
+    private static final PickDropType[] PICK_DROP_TYPES = PickDropType.values();
+
+    @Override
+    public void write (Kryo kryo, Output output, TripPattern pattern) {
+        PrimitiveArrayCoding.writeVersion(output, VERSION);
+        output.writeVarInt(pattern.originalId, true);
+        output.writeString(pattern.routeId);
+        output.writeInt(pattern.directionId);
+        PrimitiveArrayCoding.writeInts(output, pattern.stops);
+        writePickDropTypes(output, pattern.pickups);
+        writePickDropTypes(output, pattern.dropoffs);
+        PrimitiveArrayCoding.writeBitSet(output, pattern.wheelchairAccessible);
+        output.writeVarInt(pattern.tripSchedules.size(), true);
+        for (TripSchedule schedule : pattern.tripSchedules) {
+            kryo.writeObjectOrNull(output, schedule, TripSchedule.class);
+        }
+        // Shapes are rare in analysis networks and are handled by the default JTS geometry serialization.
+        kryo.writeClassAndObject(output, pattern.shape);
+        PrimitiveArrayCoding.writeInts(output, pattern.stopShapeSegment);
+        PrimitiveArrayCoding.writeFloats(output, pattern.stopShapeFraction);
+        output.writeBoolean(pattern.hasFrequencies);
+        output.writeBoolean(pattern.hasSchedules);
+        PrimitiveArrayCoding.writeBitSet(output, pattern.servicesActive);
+        output.writeInt(pattern.routeIndex);
+    }
+
+    @Override
+    public TripPattern read (Kryo kryo, Input input, Class<TripPattern> type) {
+        PrimitiveArrayCoding.checkVersion(input, VERSION, TripPattern.class);
+        TripPattern pattern = kryo.newInstance(TripPattern.class);
+        kryo.reference(pattern);
+        pattern.originalId = input.readVarInt(true);
+        pattern.routeId = input.readString();
+        pattern.directionId = input.readInt();
+        pattern.stops = PrimitiveArrayCoding.readInts(input);
+        pattern.pickups = readPickDropTypes(input);
+        pattern.dropoffs = readPickDropTypes(input);
+        pattern.wheelchairAccessible = PrimitiveArrayCoding.readBitSet(input);
+        int nSchedules = input.readVarInt(true);
+        pattern.tripSchedules = new ArrayList<>(nSchedules);
+        for (int i = 0; i < nSchedules; i++) {
+            pattern.tripSchedules.add(kryo.readObjectOrNull(input, TripSchedule.class));
+        }
+        pattern.shape = (LineString) kryo.readClassAndObject(input);
+        pattern.stopShapeSegment = PrimitiveArrayCoding.readInts(input);
+        pattern.stopShapeFraction = PrimitiveArrayCoding.readFloats(input);
+        pattern.hasFrequencies = input.readBoolean();
+        pattern.hasSchedules = input.readBoolean();
+        pattern.servicesActive = PrimitiveArrayCoding.readBitSet(input);
+        pattern.routeIndex = input.readInt();
+        return pattern;
+    }
+
+    /** Pickup and dropoff types are written as one byte per stop, holding the enum ordinal. */
+    private static void writePickDropTypes (Output output, PickDropType[] types) {
+        PrimitiveArrayCoding.writeNullableLength(output, types, types == null ? 0 : types.length);
+        if (types == null) return;
+        for (PickDropType pickDropType : types) {
+            output.writeByte(pickDropType.ordinal());
+        }
+    }
+
+    private static PickDropType[] readPickDropTypes (Input input) {
+        int length = PrimitiveArrayCoding.readNullableLength(input);
+        if (length < 0) return null;
+        PickDropType[] types = new PickDropType[length];
+        for (int i = 0; i < length; i++) {
+            types[i] = PICK_DROP_TYPES[input.readByte()];
+        }
+        return types;
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.conveyal.r5.kryo;
+
+import com.conveyal.r5.transit.TripSchedule;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * There is one TripSchedule per GTFS trip, so these are among the most numerous objects in a TransportNetwork.
+ * Arrival and departure times alternate and increase monotonically along a trip, so they are written interleaved and
+ * delta coded, usually taking one or two bytes per time rather than four.
+ *
+ * Every field is written explicitly, so any field added to TripSchedule must also be added here (and the VERSION
+ * incremented). KryoNetworkSerializerTest will catch a field that is silently dropped.
+ */
+public class TripScheduleSerializer extends Serializer<TripSchedule> {
+
+    private static final int VERSION = 1;
+
+    @Override
+    public void write (Kryo kryo, Output output, TripSchedule schedule) {
+        PrimitiveArrayCoding.writeVersion(output, VERSION);
+        output.writeString(schedule.tripId);
+        writeStopTimes(output, schedule.arrivals, schedule.departures);
+        PrimitiveArrayCoding.writeInts(output, schedule.headwaySeconds);
+        PrimitiveArrayCoding.writeDeltaInts(output, schedule.startTimes);
+        PrimitiveArrayCoding.writeDeltaInts(output, schedule.endTimes);
+        PrimitiveArrayCoding.writeStrings(output, schedule.frequencyEntryIds);
+        output.writeVarInt(schedule.flags, true);
+        output.writeVarInt(schedule.serviceCode, true);
+        // This field is never set at present, but the default serializer would handle it so we do the same.
+        kryo.writeObjectOrNull(output, schedule.nextInBlock, TripSchedule.class);
+        PrimitiveArrayCoding.writeStrings(output, schedule.phaseFromId);
+        PrimitiveArrayCoding.writeStrings(output, schedule.phaseAtStop);
+        PrimitiveArrayCoding.writeStrings(output, schedule.phaseFromStop);
+        PrimitiveArrayCoding.writeInts(output, schedule.phaseSeconds);
+        PrimitiveArrayCoding.writeDeltaInts(output, schedule.stopSequences);
+    }
+
+    @Override
+    public TripSchedule read (Kryo kryo, Input input, Class<TripSchedule> type) {
+        PrimitiveArrayCoding.checkVersion(input, VERSION, TripSchedule.class);
+        TripSchedule schedule = kryo.newInstance(TripSchedule.class);
+        kryo.reference(schedule);
+        schedule.tripId = input.readString();
+        readStopTimes(input, schedule);
+        schedule.headwaySeconds = PrimitiveArrayCoding.readInts(input);
+        schedule.startTimes = PrimitiveArrayCoding.readDeltaInts(input);
+        schedule.endTimes = PrimitiveArrayCoding.readDeltaInts(input);
+        schedule.frequencyEntryIds = PrimitiveArrayCoding.readStrings(input);
+        schedule.flags = input.readVarInt(true);
+        schedule.serviceCode = input.readVarInt(true);
+        schedule.nextInBlock = kryo.readObjectOrNull(input, TripSchedule.class);
+        schedule.phaseFromId = PrimitiveArrayCoding.readStrings(input);
+        schedule.phaseAtStop = PrimitiveArrayCoding.readStrings(input);
+        schedule.phaseFromStop = PrimitiveArrayCoding.readStrings(input);
+        schedule.phaseSeconds = PrimitiveArrayCoding.readInts(input);
+        schedule.stopSequences = PrimitiveArrayCoding.readDeltaInts(input);
+        return schedule;
+    }
+
+    /**
+     * Arrivals and departures are written as a single delta-coded sequence arrival0, departure0, arrival1... because
+     * that is the order in which they increase. If only one of the arrays is present, or they differ in length (which
+     * should not happen) they are written separately.
+     */
+    private static void writeStopTimes (Output output, int[] arrivals, int[] departures) {
+        boolean interleave = arrivals != null && departures != null && arrivals.length == departures.length;
+        output.writeBoolean(interleave);
+        if (interleave) {
+            int[] interleaved = new int[arrivals.length * 2];
+            for (int s = 0; s < arrivals.length; s++) {
+                interleaved[s * 2] = arrivals[s];
+                interleaved[s * 2 + 1] = departures[s];
+            }
+            PrimitiveArrayCoding.writeDeltaInts(output, interleaved);
+        } else {
+            PrimitiveArrayCoding.writeDeltaInts(output, arrivals);
+            PrimitiveArrayCoding.writeDeltaInts(output, departures);
+        }
+    }
+
+    private static void readStopTimes (Input input, TripSchedule schedule) {
+        boolean interleaved = input.readBoolean();
+        if (interleaved) {
+            int[] times = PrimitiveArrayCoding.readDeltaInts(input);
+            int nStops = times.length / 2;
+            schedule.arrivals = new int[nStops];
+            schedule.departures = new int[nStops];
+            for (int s = 0; s < nStops; s++) {
+                schedule.arrivals[s] = times[s * 2];
+                schedule.departures[s] = times[s * 2 + 1];
+            }
+        } else {
+            schedule.arrivals = PrimitiveArrayCoding.readDeltaInts(input);
+            schedule.departures = PrimitiveArrayCoding.readDeltaInts(input);
+        }
+    }
+
+}
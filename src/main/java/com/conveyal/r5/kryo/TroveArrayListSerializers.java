@@ -0,0 +1,81 @@
+package com.conveyal.r5.kryo;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import gnu.trove.list.array.TByteArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.list.array.TShortArrayList;
+
+/**
+ * Serializers for the Trove primitive array lists other than TIntArrayList (which has a serializer in kryo-tools).
+ * The EdgeStore holds several of these with one entry per edge or edge pair. By default they would be handled by a
+ * FieldSerializer writing out the whole backing array including unused capacity, one element at a time.
+ * These write only the used part of the backing array, in bulk.
+ */
+public abstract class TroveArrayListSerializers {
+
+    private static final int VERSION = 1;
+
+    public static class TShortArrayListSerializer extends Serializer<TShortArrayList> {
+        @Override
+        public void write (Kryo kryo, Output output, TShortArrayList list) {
+            PrimitiveArrayCoding.writeVersion(output, VERSION);
+            output.writeShort(list.getNoEntryValue());
+            output.writeVarInt(list.size(), true);
+            output.writeShorts(list.toArray());
+        }
+
+        @Override
+        public TShortArrayList read (Kryo kryo, Input input, Class<TShortArrayList> type) {
+            PrimitiveArrayCoding.checkVersion(input, VERSION, TShortArrayList.class);
+            short noEntryValue = input.readShort();
+            int size = input.readVarInt(true);
+            TShortArrayList list = new TShortArrayList(size, noEntryValue);
+            list.add(input.readShorts(size));
+            return list;
+        }
+    }
+
+    public static class TByteArrayListSerializer extends Serializer<TByteArrayList> {
+        @Override
+        public void write (Kryo kryo, Output output, TByteArrayList list) {
+            PrimitiveArrayCoding.writeVersion(output, VERSION);
+            output.writeByte(list.getNoEntryValue());
+            output.writeVarInt(list.size(), true);
+            output.writeBytes(list.toArray());
+        }
+
+        @Override
+        public TByteArrayList read (Kryo kryo, Input input, Class<TByteArrayList> type) {
+            PrimitiveArrayCoding.checkVersion(input, VERSION, TByteArrayList.class);
+            byte noEntryValue = input.readByte();
+            int size = input.readVarInt(true);
+            TByteArrayList list = new TByteArrayList(size, noEntryValue);
+            list.add(input.readBytes(size));
+            return list;
+        }
+    }
+
+    public static class TLongArrayListSerializer extends Serializer<TLongArrayList> {
+        @Override
+        public void write (Kryo kryo, Output output, TLongArrayList list) {
+            PrimitiveArrayCoding.writeVersion(output, VERSION);
+            output.writeLong(list.getNoEntryValue());
+            output.writeVarInt(list.size(), true);
+            output.writeLongs(list.toArray());
+        }
+
+        @Override
+        public TLongArrayList read (Kryo kryo, Input input, Class<TLongArrayList> type) {
+            PrimitiveArrayCoding.checkVersion(input, VERSION, TLongArrayList.class);
+            long noEntryValue = input.readLong();
+            int size = input.readVarInt(true);
+            TLongArrayList list = new TLongArrayList(size, noEntryValue);
+            list.add(input.readLongs(size));
+            return list;
+        }
+    }
+
+}
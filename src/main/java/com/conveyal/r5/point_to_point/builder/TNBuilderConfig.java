@@ -125,6 +125,18 @@ public class TNBuilderConfig {
     /** The fare calculator for analysis */
     public InRoutingFareCalculator analysisFareCalculator;
 
+    /**
+     * Number of landmarks to use for goal direction in point-to-point street searches, or zero to build none.
+     * Each landmark makes the network 16 bytes larger per street vertex, 8 to 16 landmarks usually work well.
+     */
+    public final int landmarkCount;
+
+    /**
+     * Whether to build a contraction hierarchy for driving, which makes car access searches and car egress cost tables
+     * much faster. It can take several minutes to build for a large region and makes the saved network larger.
+     */
+    public final boolean carContractionHierarchy;
+
     public TNBuilderConfig() {
         htmlAnnotations = false;
         maxHtmlAnnotationsPerFile = 1000;
@@ -144,6 +156,8 @@ public class TNBuilderConfig {
         bikeRentalFile = null;
         speeds = SpeedConfig.defaultConfig();
         analysisFareCalculator = null;
+        landmarkCount = 0;
+        carContractionHierarchy = false;
     }
 
     public static TNBuilderConfig defaultConfig() {
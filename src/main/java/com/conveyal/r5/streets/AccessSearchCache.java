@@ -0,0 +1,167 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.profile.ProfileRequest;
+import com.conveyal.r5.profile.StreetMode;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+import java.util.Objects;
+
+/**
+ * Retains walk and bike searches from single origin states, so that access searches from nearby origins of a regional
+ * analysis can be answered by combining them instead of each exploring the street network from scratch.
+ *
+ * An origin point is linked to the street network by two states, at the ends of the two directed edges of the street
+ * it lies on. Walking and cycling have no turn restrictions, so the time to reach a vertex is the lower of the times
+ * through these two states, and the time through one state is its duration plus the time to reach the vertex from a
+ * state at the same place with zero duration. That second time does not depend on where the origin point is, so
+ * it is computed once and shared by all origins linked to the same edge. When turns have no cost (as with the
+ * BasicTraversalTimeCalculator outside cars), it does not depend on which edge led to the vertex either, so it is
+ * shared by all origins linked to any street ending at that vertex, which includes many neighbouring grid cells.
+ *
+ * The results are identical to those of a StreetRouter started at the origin point and continued on foot, as in
+ * access searches. All searches with the same search ID (e.g. a regional job ID) must use the same request.
+ */
+public class AccessSearchCache {
+
+    /**
+     * The maximum total number of vertices in the retained searches. At roughly twenty bytes per vertex this limits
+     * the cache to a couple hundred megabytes. Regional tasks are handed out row by row, so retaining the searches of
+     * the last few rows of origins is enough for most of them to be reused.
+     */
+    private static final int MAX_VERTICES = 10_000_000;
+
+    private final StreetLayer streetLayer;
+
+    private final LoadingCache<Key, TIntIntMap> cache;
+
+    AccessSearchCache (StreetLayer streetLayer) {
+        this.streetLayer = streetLayer;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(MAX_VERTICES)
+                .weigher((Key key, TIntIntMap travelTimes) -> travelTimes.size())
+                .build(new CacheLoader<Key, TIntIntMap>() {
+                    @Override
+                    public TIntIntMap load (Key key) {
+                        return route(key);
+                    }
+                });
+    }
+
+    /**
+     * @return whether getTravelTimesToVertices can answer a search from the given router, whose origin point has been
+     *         set but which has not yet been routed.
+     */
+    public boolean canCombine (StreetRouter router) {
+        Split split = router.getOriginSplit();
+        return (router.streetMode == StreetMode.WALK || router.streetMode == StreetMode.BICYCLE) &&
+                split != null &&
+                !router.profileRequest.reverseSearch &&
+                router.quantityToMinimize == StreetRouter.State.RoutingVariable.DURATION_SECONDS &&
+                router.timeLimitSeconds > 0 &&
+                router.distanceLimitMeters == 0 &&
+                router.usesDefaultTimeCalculator() &&
+                router.getStateAtEdge(split.edge) != null &&
+                router.getStateAtEdge(split.edge + 1) != null;
+    }
+
+    /**
+     * Find the travel times that the given router would find by routing from its origin point, then continuing on
+     * foot if it is not walking. The router itself is not routed. Check canCombine before calling this method.
+     * @return a map from vertices to travel times in seconds, returning Integer.MAX_VALUE for vertices not reached.
+     */
+    public TIntIntMap getTravelTimesToVertices (String searchId, StreetRouter router) {
+        TIntIntMap result = new TIntIntHashMap(100, 0.5f, -1, Integer.MAX_VALUE);
+        Split split = router.getOriginSplit();
+        boolean turnsAreFree = router.timeCalculator instanceof BasicTraversalTimeCalculator;
+        for (int originEdge = split.edge; originEdge <= split.edge + 1; originEdge++) {
+            StreetRouter.State origin = router.getStateAtEdge(originEdge);
+            int originSeconds = origin.getDurationSeconds();
+            Key key = new Key(searchId, router.streetMode, router.timeLimitSeconds, streetLayer.edgeStore.nEdges(),
+                    origin.vertex, originEdge, turnsAreFree, router.profileRequest);
+            cache.getUnchecked(key).forEachEntry((vertex, seconds) -> {
+                // As in StreetRouter, the origin state is kept whatever its duration and other states are only kept
+                // within the time limit.
+                int totalSeconds = originSeconds + seconds;
+                if ((vertex == origin.vertex || totalSeconds < router.timeLimitSeconds) && totalSeconds < result.get(vertex)) {
+                    result.put(vertex, totalSeconds);
+                }
+                return true; // continue iteration
+            });
+        }
+        return result;
+    }
+
+    /** Route from a state with zero duration at the end of the key's edge, continuing on foot when not walking. */
+    private TIntIntMap route (Key key) {
+        StreetRouterPool routerPool = streetLayer.getRouterPool();
+        StreetRouter router = routerPool.acquire();
+        router.profileRequest = key.request;
+        router.streetMode = key.streetMode;
+        router.timeLimitSeconds = key.timeLimitSeconds;
+        router.quantityToMinimize = StreetRouter.State.RoutingVariable.DURATION_SECONDS;
+        TIntObjectMap<StreetRouter.State> origins = new TIntObjectHashMap<>();
+        origins.put(key.vertex, new StreetRouter.State(key.vertex, key.edge, key.streetMode));
+        router.setOrigin(origins, 0, 0, null);
+        router.route();
+        if (key.streetMode != StreetMode.WALK) {
+            router.keepRoutingOnFoot();
+        }
+        TIntIntMap travelTimes = router.getReachedVertices();
+        routerPool.release(router);
+        return travelTimes;
+    }
+
+    /**
+     * Searches are identified by the vertex at which they start, and also by the edge leading to it unless turns are
+     * free. The request is retained only to perform the search, it is identified by the search ID.
+     */
+    private static class Key {
+
+        final String searchId;
+        final StreetMode streetMode;
+        final int timeLimitSeconds;
+        final int nEdges;
+        final int vertex;
+        final int edge;
+        final boolean turnsAreFree;
+        final ProfileRequest request;
+
+        Key (String searchId, StreetMode streetMode, int timeLimitSeconds, int nEdges, int vertex, int edge,
+             boolean turnsAreFree, ProfileRequest request) {
+            this.searchId = searchId;
+            this.streetMode = streetMode;
+            this.timeLimitSeconds = timeLimitSeconds;
+            this.nEdges = nEdges;
+            this.vertex = vertex;
+            this.edge = edge;
+            this.turnsAreFree = turnsAreFree;
+            this.request = request;
+        }
+
+        @Override
+        public boolean equals (Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key other = (Key) o;
+            return searchId.equals(other.searchId) &&
+                    streetMode == other.streetMode &&
+                    timeLimitSeconds == other.timeLimitSeconds &&
+                    nEdges == other.nEdges &&
+                    vertex == other.vertex &&
+                    turnsAreFree == other.turnsAreFree &&
+                    (turnsAreFree || edge == other.edge);
+        }
+
+        @Override
+        public int hashCode () {
+            return Objects.hash(searchId, streetMode, timeLimitSeconds, nEdges, vertex, turnsAreFree);
+        }
+    }
+
+}
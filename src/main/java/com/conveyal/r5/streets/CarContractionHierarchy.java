@@ -0,0 +1,706 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.profile.ProfileRequest;
+import com.conveyal.r5.profile.StreetMode;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A contraction hierarchy over the driving graph of a StreetLayer, used to answer car searches from one origin to every
+ * edge within a time limit with the PHAST algorithm (Delling et al. 2011, "PHAST: Hardware-Accelerated Shortest path
+ * Trees"): a small Dijkstra search upward in the hierarchy from the origin, followed by a single sweep over all nodes
+ * in a fixed order. The sweep has no priority queue and reads arrays sequentially, so it is much faster than a
+ * Dijkstra search over the same area. Car access searches and car egress cost tables in analysis are limited only by
+ * time and usually cover a large part of the network, which is the case this is meant for.
+ *
+ * The nodes of the graph are the states of a StreetRouter car search. That search keeps a state at the end of each
+ * edge, and a separate state for each combination of turn restrictions it is partway through. So there is one node
+ * for every edge, having the same index as the edge, plus an extra node for each combination of edge and positions in
+ * turn restrictions that can actually occur. The arcs are the movements from one edge onto the next, weighted by the
+ * traversal time of the next edge plus the turn time as computed by Edge#traverse with the default traversal time
+ * calculator. Turn restrictions are applied with Edge#canTurnFrom while building the graph, so it only contains
+ * permitted movements and searches on it need no knowledge of turn restrictions.
+ *
+ * Contraction removes nodes one at a time in order of increasing importance, adding a shortcut arc between two
+ * remaining neighbors of each removed node wherever no other path between them is as short as the path through it.
+ * The hierarchy then contains, for every pair of nodes, a shortest path that first only goes up in the contraction
+ * order and then only goes down.
+ *
+ * Searches find the same durations as StreetRouter, with one exception: StreetRouter keeps the first state it finds
+ * with a given set of turn restrictions at an edge even if it later finds a faster one, while the shortest paths here
+ * always pass through the fastest. Only durations are found, but a predecessor on a shortest path to each node can be
+ * recovered from the durations and the original arcs, which are also retained.
+ *
+ * Like Landmarks, this is only built when requested in the network build config. It reflects the edges and speeds
+ * when it was built, so it is not used on scenarios that modify the street network.
+ */
+public class CarContractionHierarchy implements Serializable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CarContractionHierarchy.class);
+
+    /** Duration of nodes that cannot be reached within the time limit. */
+    public static final int UNREACHED = Integer.MAX_VALUE;
+
+    /** Arc weights and time limits are capped at this value so that the sum of any two cannot overflow. */
+    private static final int MAX_WEIGHT = Integer.MAX_VALUE / 2;
+
+    /** Nodes settled by witness searches when estimating the number of shortcuts needed to contract a node. */
+    private static final int ESTIMATE_SETTLED_LIMIT = 50;
+
+    /** Nodes settled by witness searches when actually contracting a node. Shortcuts are added if none is found. */
+    private static final int CONTRACT_SETTLED_LIMIT = 500;
+
+    /** The number of edges in the street layer when the hierarchy was built, which are also the first nodes. */
+    private final int nEdges;
+
+    /** For nodes after the first nEdges, the edge at the end of which the node is found. */
+    private final int[] extraNodeEdges;
+
+    /** For nodes after the first nEdges, their turn restriction positions as (restriction, position) pairs. */
+    private final int[][] extraNodeTurnRestrictions;
+
+    /**
+     * The arcs of the graph before contraction, grouped by the node they lead to. The arcs into node n are at index
+     * firstArcIn[n] up to but not including firstArcIn[n + 1] in arcTails and arcWeights.
+     */
+    private final int[] firstArcIn;
+    private final int[] arcTails;
+    private final int[] arcWeights;
+
+    /**
+     * Nodes are stored in the hierarchy in decreasing order of contraction, i.e. the most important node is at
+     * position 0. A sweep over positions in increasing order then visits every node after all those above it.
+     */
+    private final int[] nodeAtPosition;
+    private final int[] positionOfNode;
+
+    /** Arcs from each position to positions above it, at index firstUpArc[p] up to firstUpArc[p + 1]. */
+    private final int[] firstUpArc;
+    private final int[] upArcHeads;
+    private final int[] upArcWeights;
+
+    /** Arcs into each position from positions above it, at index firstDownArc[p] up to firstDownArc[p + 1]. */
+    private final int[] firstDownArc;
+    private final int[] downArcTails;
+    private final int[] downArcWeights;
+
+    private CarContractionHierarchy (StreetLayer streetLayer) {
+        EdgeStore edgeStore = streetLayer.edgeStore;
+        nEdges = edgeStore.nEdges();
+        TurnGraph graph = new TurnGraph(streetLayer);
+        int nNodes = graph.nNodes();
+        extraNodeEdges = graph.extraNodeEdges.toArray();
+        extraNodeTurnRestrictions = graph.extraNodeTurnRestrictions.toArray(new int[0][]);
+        LOG.info("Driving graph has {} nodes ({} in turn restrictions) and {} arcs.",
+                nNodes, nNodes - nEdges, graph.tails.size());
+
+        firstArcIn = new int[nNodes + 1];
+        arcTails = new int[graph.tails.size()];
+        arcWeights = new int[graph.tails.size()];
+        groupArcs(graph.heads, graph.tails, graph.weights, nNodes, firstArcIn, arcTails, arcWeights);
+
+        Contraction contraction = new Contraction(nNodes, graph);
+        contraction.contractAll();
+        nodeAtPosition = new int[nNodes];
+        positionOfNode = new int[nNodes];
+        for (int i = 0; i < nNodes; i++) {
+            int position = nNodes - 1 - i;
+            nodeAtPosition[position] = contraction.order[i];
+            positionOfNode[contraction.order[i]] = position;
+        }
+        int nArcs = contraction.arcTails.size();
+        TIntList tailPositions = new TIntArrayList(nArcs);
+        TIntList headPositions = new TIntArrayList(nArcs);
+        for (int a = 0; a < nArcs; a++) {
+            tailPositions.add(positionOfNode[contraction.arcTails.get(a)]);
+            headPositions.add(positionOfNode[contraction.arcHeads.get(a)]);
+        }
+        // Every arc in the hierarchy goes either up or down, and is used in only one direction in searches.
+        TIntList upTails = new TIntArrayList(), upHeads = new TIntArrayList(), upWeights = new TIntArrayList();
+        TIntList downTails = new TIntArrayList(), downHeads = new TIntArrayList(), downWeights = new TIntArrayList();
+        for (int a = 0; a < nArcs; a++) {
+            if (headPositions.get(a) < tailPositions.get(a)) {
+                upTails.add(tailPositions.get(a));
+                upHeads.add(headPositions.get(a));
+                upWeights.add(contraction.arcWeights.get(a));
+            } else {
+                downTails.add(tailPositions.get(a));
+                downHeads.add(headPositions.get(a));
+                downWeights.add(contraction.arcWeights.get(a));
+            }
+        }
+        firstUpArc = new int[nNodes + 1];
+        upArcHeads = new int[upTails.size()];
+        upArcWeights = new int[upTails.size()];
+        groupArcs(upTails, upHeads, upWeights, nNodes, firstUpArc, upArcHeads, upArcWeights);
+        firstDownArc = new int[nNodes + 1];
+        downArcTails = new int[downTails.size()];
+        downArcWeights = new int[downTails.size()];
+        groupArcs(downHeads, downTails, downWeights, nNodes, firstDownArc, downArcTails, downArcWeights);
+        LOG.info("Contraction hierarchy has {} arcs ({} shortcuts).", nArcs, nArcs - arcTails.length);
+    }
+
+    /** Build a contraction hierarchy for driving on the given street layer, whose edge lists must already be built. */
+    public static CarContractionHierarchy build (StreetLayer streetLayer) {
+        LOG.info("Building car contraction hierarchy...");
+        long startTime = System.currentTimeMillis();
+        CarContractionHierarchy hierarchy = new CarContractionHierarchy(streetLayer);
+        LOG.info("Done building car contraction hierarchy in {} sec.", (System.currentTimeMillis() - startTime) / 1000);
+        return hierarchy;
+    }
+
+    /** @return whether this hierarchy was built for a street layer with the same edges. */
+    public boolean isValidFor (StreetLayer streetLayer) {
+        return streetLayer.edgeStore.nEdges() == nEdges;
+    }
+
+    public int getNodeCount () {
+        return nodeAtPosition.length;
+    }
+
+    /** @return the edge at the end of which the state represented by the given node is found. */
+    public int getEdge (int node) {
+        return node < nEdges ? node : extraNodeEdges[node - nEdges];
+    }
+
+    /**
+     * @return the turn restriction positions of the given node as (restriction index, position) pairs, or null if the
+     *         node is one of the first nEdges, whose restrictions are just those that start on its edge.
+     */
+    public int[] getTurnRestrictionPositions (int node) {
+        return node < nEdges ? null : extraNodeTurnRestrictions[node - nEdges];
+    }
+
+    /**
+     * Find the shortest driving time from the given origin nodes to every node (PHAST).
+     * @param originNodes the nodes where the search begins, usually the two edges on which the origin point lies.
+     * @param originDurations the duration in seconds already elapsed at each of the originNodes.
+     * @param limitSeconds durations of this value or more are not exact and should be ignored.
+     * @return the duration to reach every node, indexed by node, or a value of limitSeconds or more if the node cannot
+     *         be reached within the limit.
+     */
+    public int[] durationsFrom (int[] originNodes, int[] originDurations, int limitSeconds) {
+        limitSeconds = Math.min(limitSeconds, MAX_WEIGHT);
+        int nNodes = nodeAtPosition.length;
+        int[] durationAtPosition = new int[nNodes];
+        Arrays.fill(durationAtPosition, UNREACHED);
+        // Upward search from the origins. Any shortest path begins with an upward part found by this search.
+        LongHeap heap = new LongHeap();
+        for (int i = 0; i < originNodes.length; i++) {
+            int position = positionOfNode[originNodes[i]];
+            if (originDurations[i] < durationAtPosition[position]) {
+                durationAtPosition[position] = originDurations[i];
+                heap.add(pack(originDurations[i], position));
+            }
+        }
+        while (!heap.isEmpty()) {
+            long top = heap.poll();
+            int duration = (int) (top >>> 32);
+            int position = (int) top;
+            if (duration > durationAtPosition[position]) continue;
+            if (duration >= limitSeconds) break;
+            for (int a = firstUpArc[position]; a < firstUpArc[position + 1]; a++) {
+                int head = upArcHeads[a];
+                int headDuration = duration + upArcWeights[a];
+                if (headDuration < durationAtPosition[head] && headDuration < limitSeconds) {
+                    durationAtPosition[head] = headDuration;
+                    heap.add(pack(headDuration, head));
+                }
+            }
+        }
+        // Downward sweep. Every node is visited after all the nodes above it, so their durations are already final.
+        for (int position = 0; position < nNodes; position++) {
+            int best = durationAtPosition[position];
+            for (int a = firstDownArc[position]; a < firstDownArc[position + 1]; a++) {
+                int tailDuration = durationAtPosition[downArcTails[a]];
+                if (tailDuration < limitSeconds) {
+                    int duration = tailDuration + downArcWeights[a];
+                    if (duration < best) best = duration;
+                }
+            }
+            durationAtPosition[position] = best;
+        }
+        int[] durations = new int[nNodes];
+        for (int position = 0; position < nNodes; position++) {
+            durations[nodeAtPosition[position]] = durationAtPosition[position];
+        }
+        return durations;
+    }
+
+    /**
+     * @param durations the result of durationsFrom.
+     * @return a node preceding the given one on a shortest path, or -1 if there is none (i.e. the node is an origin).
+     */
+    public int getPredecessor (int node, int[] durations) {
+        int duration = durations[node];
+        for (int a = firstArcIn[node]; a < firstArcIn[node + 1]; a++) {
+            int tailDuration = durations[arcTails[a]];
+            if (tailDuration < duration && duration - tailDuration == arcWeights[a]) return arcTails[a];
+        }
+        return -1;
+    }
+
+    private static long pack (int value, int index) {
+        return ((long) value << 32) | index;
+    }
+
+    /**
+     * Group arcs by one of their endpoints in compressed sparse row form.
+     * @param groupBy the endpoint of each arc to group by.
+     * @param other the other endpoint of each arc, which is copied into otherOut.
+     * @param first receives the index of the first arc in each group, with a final element for the end of the last.
+     */
+    private static void groupArcs (TIntList groupBy, TIntList other, TIntList weights, int nNodes,
+                                   int[] first, int[] otherOut, int[] weightsOut) {
+        for (int a = 0; a < groupBy.size(); a++) first[groupBy.get(a) + 1]++;
+        for (int n = 0; n < nNodes; n++) first[n + 1] += first[n];
+        int[] next = Arrays.copyOf(first, nNodes);
+        for (int a = 0; a < groupBy.size(); a++) {
+            int index = next[groupBy.get(a)]++;
+            otherOut[index] = other.get(a);
+            weightsOut[index] = weights.get(a);
+        }
+    }
+
+    /**
+     * The driving graph before contraction, with a node for each state a StreetRouter car search can have and an arc
+     * for each way of moving from one state to another.
+     */
+    private static class TurnGraph {
+
+        final int nEdges;
+        final TIntList extraNodeEdges = new TIntArrayList();
+        final List<int[]> extraNodeTurnRestrictions = new ArrayList<>();
+        final TIntList tails = new TIntArrayList();
+        final TIntList heads = new TIntArrayList();
+        final TIntList weights = new TIntArrayList();
+
+        /** The extra nodes, keyed on their edge and turn restriction positions. */
+        private final Map<NodeKey, Integer> extraNodes = new HashMap<>();
+
+        TurnGraph (StreetLayer streetLayer) {
+            EdgeStore edgeStore = streetLayer.edgeStore;
+            nEdges = edgeStore.nEdges();
+            TraversalTimeCalculator timeCalculator = edgeStore.getDefaultTraversalTimeCalculator();
+            // Car permissions and speeds do not depend on any request parameters.
+            PrecomputedEdgeCosts costs = new PrecomputedEdgeCosts(edgeStore, StreetMode.CAR, new ProfileRequest(),
+                    timeCalculator);
+            EdgeStore.Edge edge = edgeStore.getCursor();
+            EdgeStore.Edge nextEdge = edgeStore.getCursor();
+            // Extra nodes are discovered while adding arcs, and appended to the nodes still to be processed.
+            for (int node = 0; node < nNodes(); node++) {
+                int e = node < nEdges ? node : extraNodeEdges.get(node - nEdges);
+                edge.seek(e);
+                int vertex = edge.getToVertex();
+                boolean edgeIsLink = edge.getFlag(EdgeStore.EdgeFlag.LINK);
+                TIntIntMap turnRestrictions = node < nEdges ?
+                        startedTurnRestrictions(edgeStore, e) : toMap(extraNodeTurnRestrictions.get(node - nEdges));
+                TIntList outgoingEdges = streetLayer.outgoingEdges.get(vertex);
+                for (int i = 0; i < outgoingEdges.size(); i++) {
+                    int next = outgoingEdges.get(i);
+                    if (costs.getTraversalMode(next) == null) continue;
+                    nextEdge.seek(next);
+                    // Two link edges in a row would be a shortcut through a linked point. Searches beginning at the
+                    // end of a link edge are allowed to do this, but are not answered with the hierarchy.
+                    if (edgeIsLink && nextEdge.getFlag(EdgeStore.EdgeFlag.LINK)) continue;
+                    int nextNode = next;
+                    if (turnRestrictions != null) {
+                        // Apply the restrictions exactly as Edge#traverse does.
+                        StreetRouter.State s0 = new StreetRouter.State(vertex, e, StreetMode.CAR);
+                        s0.turnRestrictions = new TIntIntHashMap(turnRestrictions);
+                        StreetRouter.State s1 = new StreetRouter.State(nextEdge.getToVertex(), next, s0);
+                        if (!nextEdge.canTurnFrom(s0, s1, false)) continue;
+                        if (s1.turnRestrictions != null && s1.turnRestrictions.isEmpty()) s1.turnRestrictions = null;
+                        edgeStore.startTurnRestriction(StreetMode.CAR, false, s1);
+                        nextNode = getNode(edgeStore, next, s1.turnRestrictions);
+                    }
+                    // A path never benefits from returning to the same state.
+                    if (nextNode == node) continue;
+                    int increment = costs.getTraversalTimeSeconds(next) +
+                            timeCalculator.turnTimeSeconds(e, next, StreetMode.CAR);
+                    tails.add(node);
+                    heads.add(nextNode);
+                    weights.add(Math.min(increment > 0 ? increment : 1, MAX_WEIGHT));
+                }
+            }
+        }
+
+        int nNodes () {
+            return nEdges + extraNodeEdges.size();
+        }
+
+        /**
+         * @return the node for a state at the end of the given edge with the given turn restriction positions,
+         *         creating an extra node if it does not exist yet.
+         */
+        private int getNode (EdgeStore edgeStore, int edge, TIntIntMap turnRestrictions) {
+            if (turnRestrictions == null) return edge;
+            int[] pairs = toPairs(turnRestrictions);
+            TIntIntMap started = startedTurnRestrictions(edgeStore, edge);
+            if (started != null && Arrays.equals(pairs, toPairs(started))) return edge;
+            NodeKey key = new NodeKey(edge, pairs);
+            Integer node = extraNodes.get(key);
+            if (node == null) {
+                node = nNodes();
+                extraNodeEdges.add(edge);
+                extraNodeTurnRestrictions.add(pairs);
+                extraNodes.put(key, node);
+            }
+            return node;
+        }
+
+        /** @return the turn restrictions of a state just after entering the given edge, or null if there are none. */
+        private static TIntIntMap startedTurnRestrictions (EdgeStore edgeStore, int edge) {
+            StreetRouter.State state = new StreetRouter.State(-1, edge, StreetMode.CAR);
+            edgeStore.startTurnRestriction(StreetMode.CAR, false, state);
+            return state.turnRestrictions;
+        }
+
+        /** @return turn restriction positions as (restriction, position) pairs, sorted on the restriction index. */
+        private static int[] toPairs (TIntIntMap turnRestrictions) {
+            int[] restrictions = turnRestrictions.keys();
+            Arrays.sort(restrictions);
+            int[] pairs = new int[restrictions.length * 2];
+            for (int i = 0; i < restrictions.length; i++) {
+                pairs[i * 2] = restrictions[i];
+                pairs[i * 2 + 1] = turnRestrictions.get(restrictions[i]);
+            }
+            return pairs;
+        }
+
+        private static TIntIntMap toMap (int[] pairs) {
+            TIntIntMap turnRestrictions = new TIntIntHashMap();
+            for (int i = 0; i < pairs.length; i += 2) turnRestrictions.put(pairs[i], pairs[i + 1]);
+            return turnRestrictions;
+        }
+    }
+
+    private static class NodeKey {
+
+        final int edge;
+        final int[] turnRestrictionPairs;
+
+        NodeKey (int edge, int[] turnRestrictionPairs) {
+            this.edge = edge;
+            this.turnRestrictionPairs = turnRestrictionPairs;
+        }
+
+        @Override
+        public boolean equals (Object o) {
+            if (!(o instanceof NodeKey)) return false;
+            NodeKey other = (NodeKey) o;
+            return edge == other.edge && Arrays.equals(turnRestrictionPairs, other.turnRestrictionPairs);
+        }
+
+        @Override
+        public int hashCode () {
+            return 31 * edge + Arrays.hashCode(turnRestrictionPairs);
+        }
+    }
+
+    /**
+     * The state of the graph during contraction. The arcs of each node that has not yet been contracted are held in
+     * arrays of (neighbor, weight) pairs, which only refer to other nodes that have not been contracted.
+     */
+    private static class Contraction {
+
+        /** Node priorities are stored in heap entries with this offset, as they can be negative. */
+        private static final int PRIORITY_OFFSET = 1 << 30;
+
+        final int nNodes;
+
+        private final int[][] outArcs;
+        private final int[] outArcCount;
+        private final int[][] inArcs;
+        private final int[] inArcCount;
+
+        private final boolean[] contracted;
+        private final int[] contractedNeighbors;
+        private final int[] priorities;
+
+        /** The nodes in the order they were contracted. */
+        final int[] order;
+
+        /** Every arc of the hierarchy, i.e. each node's arcs to and from its neighbors when it was contracted. */
+        final TIntList arcTails = new TIntArrayList();
+        final TIntList arcHeads = new TIntArrayList();
+        final TIntList arcWeights = new TIntArrayList();
+
+        // Witness search state, reset after each search using the list of nodes it touched.
+        private final int[] witnessDurations;
+        private final TIntList witnessTouched = new TIntArrayList();
+        private final LongHeap witnessHeap = new LongHeap();
+
+        Contraction (int nNodes, TurnGraph graph) {
+            this.nNodes = nNodes;
+            outArcCount = new int[nNodes];
+            inArcCount = new int[nNodes];
+            for (int a = 0; a < graph.tails.size(); a++) {
+                outArcCount[graph.tails.get(a)]++;
+                inArcCount[graph.heads.get(a)]++;
+            }
+            outArcs = new int[nNodes][];
+            inArcs = new int[nNodes][];
+            for (int n = 0; n < nNodes; n++) {
+                outArcs[n] = new int[Math.max(outArcCount[n], 1) * 2];
+                inArcs[n] = new int[Math.max(inArcCount[n], 1) * 2];
+            }
+            Arrays.fill(outArcCount, 0);
+            Arrays.fill(inArcCount, 0);
+            for (int a = 0; a < graph.tails.size(); a++) {
+                appendArc(graph.tails.get(a), graph.heads.get(a), graph.weights.get(a));
+            }
+            contracted = new boolean[nNodes];
+            contractedNeighbors = new int[nNodes];
+            priorities = new int[nNodes];
+            order = new int[nNodes];
+            witnessDurations = new int[nNodes];
+            Arrays.fill(witnessDurations, UNREACHED);
+        }
+
+        void contractAll () {
+            LongHeap queue = new LongHeap();
+            for (int n = 0; n < nNodes; n++) {
+                priorities[n] = priority(n);
+                queue.add(pack(priorities[n] + PRIORITY_OFFSET, n));
+            }
+            int[] lastUpdated = new int[nNodes];
+            Arrays.fill(lastUpdated, -1);
+            int nContracted = 0;
+            while (!queue.isEmpty()) {
+                long top = queue.poll();
+                int node = (int) top;
+                if (contracted[node] || (int) (top >>> 32) - PRIORITY_OFFSET != priorities[node]) continue;
+                // Priorities of nodes other than the neighbors of contracted nodes may be out of date. Recompute this
+                // one and put it back if it is no longer the lowest.
+                int priority = priority(node);
+                if (priority != priorities[node]) {
+                    priorities[node] = priority;
+                    if (!queue.isEmpty() && priority > (int) (queue.peek() >>> 32) - PRIORITY_OFFSET) {
+                        queue.add(pack(priority + PRIORITY_OFFSET, node));
+                        continue;
+                    }
+                }
+                contract(node, false);
+                for (int i = 0; i < outArcCount[node]; i++) {
+                    arcTails.add(node);
+                    arcHeads.add(outArcs[node][i * 2]);
+                    arcWeights.add(outArcs[node][i * 2 + 1]);
+                }
+                for (int i = 0; i < inArcCount[node]; i++) {
+                    arcTails.add(inArcs[node][i * 2]);
+                    arcHeads.add(node);
+                    arcWeights.add(inArcs[node][i * 2 + 1]);
+                }
+                removeNode(node);
+                order[nContracted++] = node;
+                // Update the priorities of the neighbors, which have lost an arc and may have gained shortcuts.
+                TIntList neighbors = new TIntArrayList();
+                for (int i = 0; i < outArcCount[node]; i++) neighbors.add(outArcs[node][i * 2]);
+                for (int i = 0; i < inArcCount[node]; i++) neighbors.add(inArcs[node][i * 2]);
+                for (int i = 0; i < neighbors.size(); i++) {
+                    int neighbor = neighbors.get(i);
+                    if (lastUpdated[neighbor] == node) continue;
+                    lastUpdated[neighbor] = node;
+                    contractedNeighbors[neighbor]++;
+                    priorities[neighbor] = priority(neighbor);
+                    queue.add(pack(priorities[neighbor] + PRIORITY_OFFSET, neighbor));
+                }
+                if (nContracted % 100_000 == 0) {
+                    LOG.info("Contracted {} of {} nodes, {} arcs so far.", nContracted, nNodes, arcTails.size());
+                }
+            }
+        }
+
+        /**
+         * The priority of a node is the number of shortcuts needed to contract it minus the number of arcs it has
+         * (the change in the number of arcs in the remaining graph), plus the number of its neighbors already
+         * contracted, which spreads contraction evenly over the graph.
+         */
+        private int priority (int node) {
+            return contract(node, true) - outArcCount[node] - inArcCount[node] + contractedNeighbors[node];
+        }
+
+        /**
+         * Find the shortcuts needed to contract the given node: for each pair of an incoming and an outgoing
+         * neighbor, a shortcut is needed unless a witness search finds another path between them that is no longer.
+         * @param estimate if true, only count the shortcuts, using a quicker witness search.
+         * @return the number of shortcuts needed.
+         */
+        private int contract (int node, boolean estimate) {
+            int shortcuts = 0;
+            for (int i = 0; i < inArcCount[node]; i++) {
+                int tail = inArcs[node][i * 2];
+                int tailWeight = inArcs[node][i * 2 + 1];
+                int maxWeight = -1;
+                for (int j = 0; j < outArcCount[node]; j++) {
+                    if (outArcs[node][j * 2] == tail) continue;
+                    maxWeight = Math.max(maxWeight, Math.min(tailWeight + outArcs[node][j * 2 + 1], MAX_WEIGHT));
+                }
+                if (maxWeight < 0) continue;
+                witnessSearch(tail, node, maxWeight, estimate ? ESTIMATE_SETTLED_LIMIT : CONTRACT_SETTLED_LIMIT);
+                for (int j = 0; j < outArcCount[node]; j++) {
+                    int head = outArcs[node][j * 2];
+                    if (head == tail) continue;
+                    int weight = Math.min(tailWeight + outArcs[node][j * 2 + 1], MAX_WEIGHT);
+                    if (witnessDurations[head] > weight) {
+                        shortcuts++;
+                        if (!estimate) addArc(tail, head, weight);
+                    }
+                }
+            }
+            return shortcuts;
+        }
+
+        /**
+         * Dijkstra search from the source among the nodes not yet contracted, avoiding the excluded node, until all
+         * paths up to maxWeight have been found or the given number of nodes have been settled. The durations found
+         * are left in witnessDurations, and are upper bounds on the shortest path lengths avoiding the excluded node.
+         */
+        private void witnessSearch (int source, int excluded, int maxWeight, int settledLimit) {
+            for (int i = 0; i < witnessTouched.size(); i++) witnessDurations[witnessTouched.get(i)] = UNREACHED;
+            witnessTouched.clear();
+            witnessHeap.clear();
+            witnessDurations[source] = 0;
+            witnessTouched.add(source);
+            witnessHeap.add(pack(0, source));
+            int nSettled = 0;
+            while (!witnessHeap.isEmpty()) {
+                long top = witnessHeap.poll();
+                int duration = (int) (top >>> 32);
+                int node = (int) top;
+                if (duration > witnessDurations[node]) continue;
+                if (duration > maxWeight || ++nSettled > settledLimit) break;
+                for (int i = 0; i < outArcCount[node]; i++) {
+                    int head = outArcs[node][i * 2];
+                    if (head == excluded) continue;
+                    int headDuration = duration + outArcs[node][i * 2 + 1];
+                    if (headDuration < witnessDurations[head]) {
+                        if (witnessDurations[head] == UNREACHED) witnessTouched.add(head);
+                        witnessDurations[head] = headDuration;
+                        witnessHeap.add(pack(headDuration, head));
+                    }
+                }
+            }
+        }
+
+        /** Add an arc, or lower the weight of the existing arc between the same nodes. */
+        private void addArc (int tail, int head, int weight) {
+            for (int i = 0; i < outArcCount[tail]; i++) {
+                if (outArcs[tail][i * 2] == head) {
+                    if (weight < outArcs[tail][i * 2 + 1]) {
+                        outArcs[tail][i * 2 + 1] = weight;
+                        for (int j = 0; j < inArcCount[head]; j++) {
+                            if (inArcs[head][j * 2] == tail) inArcs[head][j * 2 + 1] = weight;
+                        }
+                    }
+                    return;
+                }
+            }
+            appendArc(tail, head, weight);
+        }
+
+        private void appendArc (int tail, int head, int weight) {
+            if (outArcCount[tail] * 2 == outArcs[tail].length) {
+                outArcs[tail] = Arrays.copyOf(outArcs[tail], outArcs[tail].length * 2);
+            }
+            outArcs[tail][outArcCount[tail] * 2] = head;
+            outArcs[tail][outArcCount[tail] * 2 + 1] = weight;
+            outArcCount[tail]++;
+            if (inArcCount[head] * 2 == inArcs[head].length) {
+                inArcs[head] = Arrays.copyOf(inArcs[head], inArcs[head].length * 2);
+            }
+            inArcs[head][inArcCount[head] * 2] = tail;
+            inArcs[head][inArcCount[head] * 2 + 1] = weight;
+            inArcCount[head]++;
+        }
+
+        /**
+         * Remove the arcs between the given node and its neighbors from the neighbors' arrays. The node's own arrays
+         * are left as they are, as they are still used to find its neighbors.
+         */
+        private void removeNode (int node) {
+            contracted[node] = true;
+            for (int i = 0; i < outArcCount[node]; i++) {
+                int head = outArcs[node][i * 2];
+                inArcCount[head] = removePair(inArcs[head], inArcCount[head], node);
+            }
+            for (int i = 0; i < inArcCount[node]; i++) {
+                int tail = inArcs[node][i * 2];
+                outArcCount[tail] = removePair(outArcs[tail], outArcCount[tail], node);
+            }
+        }
+
+        /** Remove the pair for the given neighbor by moving the last pair into its place. @return the new count. */
+        private static int removePair (int[] pairs, int count, int neighbor) {
+            for (int i = 0; i < count; i++) {
+                if (pairs[i * 2] == neighbor) {
+                    count--;
+                    pairs[i * 2] = pairs[count * 2];
+                    pairs[i * 2 + 1] = pairs[count * 2 + 1];
+                    return count;
+                }
+            }
+            return count;
+        }
+    }
+
+    /** A binary min-heap of longs, which hold a value in the high 32 bits and an index in the low 32 bits. */
+    private static class LongHeap {
+
+        private long[] heap = new long[64];
+        private int size = 0;
+
+        boolean isEmpty () {
+            return size == 0;
+        }
+
+        void clear () {
+            size = 0;
+        }
+
+        long peek () {
+            return heap[0];
+        }
+
+        void add (long entry) {
+            if (size == heap.length) heap = Arrays.copyOf(heap, size * 2);
+            int position = size++;
+            while (position > 0) {
+                int parent = (position - 1) >> 1;
+                if (heap[parent] <= entry) break;
+                heap[position] = heap[parent];
+                position = parent;
+            }
+            heap[position] = entry;
+        }
+
+        long poll () {
+            long top = heap[0];
+            long last = heap[--size];
+            int position = 0;
+            while (true) {
+                int child = 2 * position + 1;
+                if (child >= size) break;
+                if (child + 1 < size && heap[child + 1] < heap[child]) child++;
+                if (heap[child] >= last) break;
+                heap[position] = heap[child];
+                position = child;
+            }
+            if (size > 0) heap[position] = last;
+            return top;
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+package com.conveyal.r5.streets;
+
+import gnu.trove.list.TByteList;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TByteArrayList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Time-of-day car speeds for the edges of an EdgeStore, relative to the free-flow speed of each edge in
+ * EdgeStore.speeds. The day is divided into equal time bins, and a profile holds one byte per bin giving the speed in
+ * that bin in 255ths of the free-flow speed. Congested edges mostly follow a few patterns (e.g. slow at the morning and
+ * evening peaks), so each distinct profile is stored once and shared by all the edges that have it. Edges without a
+ * profile, including those added by scenarios, always run at free-flow speed. Profiles are created by RoadCongestion
+ * modifications with time of day attributes, which also scale the free-flow speeds that the profiles are relative to.
+ *
+ * Congestion can only slow traffic down, which keeps lower bounds computed from free-flow speeds (e.g. Landmarks) valid.
+ * Profiles are shared by extend-only copies of the EdgeStore and must not be changed once routing has begun.
+ */
+public class CongestionProfiles implements Serializable {
+
+    public static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+    /** The relative speed stored for free-flow speed. */
+    private static final int FREE_FLOW = 255;
+
+    private static final int NO_PROFILE = -1;
+
+    /** The number of equal time bins into which the day is divided. */
+    private int nBins;
+
+    /** The index of the profile of each edge, or NO_PROFILE. Edges past the end of this list have no profile. */
+    private TIntList profileForEdge = new TIntArrayList();
+
+    /** The relative speeds of all profiles as unsigned bytes, nBins consecutive bytes for each profile. */
+    private TByteList relativeSpeeds = new TByteArrayList();
+
+    /** The index of each distinct profile, so that edges can share them. Rebuilt when needed after deserialization. */
+    private transient Map<ByteBuffer, Integer> indexForProfile;
+
+    public CongestionProfiles (int nBins) {
+        if (nBins < 1 || SECONDS_PER_DAY % nBins != 0) {
+            throw new IllegalArgumentException("The number of time bins must evenly divide a day.");
+        }
+        this.nBins = nBins;
+    }
+
+    public int getBinCount () {
+        return nBins;
+    }
+
+    /** @return the number of distinct profiles stored. */
+    public int getProfileCount () {
+        return relativeSpeeds.size() / nBins;
+    }
+
+    /**
+     * Set the profile of the given edge, replacing any profile it already had.
+     * @param relativeSpeeds for each time bin from midnight, the speed on the edge divided by its free-flow speed.
+     *                       These must be greater than zero and at most one.
+     */
+    public void setProfile (int edge, double[] relativeSpeeds) {
+        if (relativeSpeeds.length != nBins) {
+            throw new IllegalArgumentException("A congestion profile must have one speed for each time bin.");
+        }
+        byte[] profile = new byte[nBins];
+        for (int bin = 0; bin < nBins; bin++) {
+            double relativeSpeed = relativeSpeeds[bin];
+            if (!(relativeSpeed > 0 && relativeSpeed <= 1)) {
+                throw new IllegalArgumentException("Congested speeds must be greater than zero and at most free-flow.");
+            }
+            // Round down so that no speed exceeds the original, but not to zero which would make the edge impassable.
+            profile[bin] = (byte) Math.max(1, (int) (relativeSpeed * FREE_FLOW));
+        }
+        int index = getIndexForProfile().computeIfAbsent(ByteBuffer.wrap(profile), p -> {
+            this.relativeSpeeds.add(profile);
+            return getProfileCount() - 1;
+        });
+        while (profileForEdge.size() <= edge) {
+            profileForEdge.add(NO_PROFILE);
+        }
+        profileForEdge.set(edge, index);
+    }
+
+    /** @return whether the given edge has a profile, i.e. whether its speed varies over the day. */
+    public boolean hasProfile (int edge) {
+        return edge < profileForEdge.size() && profileForEdge.get(edge) != NO_PROFILE;
+    }
+
+    /**
+     * @param freeFlowSeconds the time to traverse the edge at free-flow speed.
+     * @param clockTimeSeconds the time of day in seconds after midnight, which may be outside a single day.
+     * @return the time to traverse the edge at the given time of day, rounded up as free-flow times are.
+     */
+    public int getTraversalTimeSeconds (int edge, int freeFlowSeconds, int clockTimeSeconds) {
+        if (!hasProfile(edge)) {
+            return freeFlowSeconds;
+        }
+        int bin = Math.floorMod(clockTimeSeconds, SECONDS_PER_DAY) / (SECONDS_PER_DAY / nBins);
+        int relativeSpeed = relativeSpeeds.get(profileForEdge.get(edge) * nBins + bin) & 0xFF;
+        return (freeFlowSeconds * FREE_FLOW + relativeSpeed - 1) / relativeSpeed;
+    }
+
+    private Map<ByteBuffer, Integer> getIndexForProfile () {
+        if (indexForProfile == null) {
+            indexForProfile = new HashMap<>();
+            byte[] allSpeeds = relativeSpeeds.toArray();
+            for (int p = 0; p < getProfileCount(); p++) {
+                indexForProfile.put(ByteBuffer.wrap(allSpeeds, p * nBins, nBins).slice(), p);
+            }
+        }
+        return indexForProfile;
+    }
+
+}
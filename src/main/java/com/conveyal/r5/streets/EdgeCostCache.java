@@ -0,0 +1,113 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.profile.ProfileRequest;
+import com.conveyal.r5.profile.StreetMode;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Objects;
+
+/**
+ * Lazily builds and retains PrecomputedEdgeCosts for one EdgeStore, keyed on the street mode and the request
+ * parameters that affect the cost of traversing single edges. Each scenario has its own extend-only copy of the
+ * EdgeStore and therefore its own EdgeCostCache.
+ *
+ * The number of edges is part of the key, so costs are recomputed if edges are added after they were first cached
+ * (as happens while the network is being built). Other changes to edges, such as their flags or speeds, are assumed
+ * not to happen once routing has begun on an EdgeStore.
+ */
+public class EdgeCostCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EdgeCostCache.class);
+
+    /**
+     * Each entry holds five bytes per edge. There are usually only a few distinct parameter sets in use at once, e.g.
+     * walk, bike and car with the parameters of the current regional analysis.
+     */
+    private static final int MAX_ENTRIES = 6;
+
+    private final EdgeStore edgeStore;
+
+    private final LoadingCache<Key, PrecomputedEdgeCosts> cache;
+
+    EdgeCostCache (EdgeStore edgeStore) {
+        this.edgeStore = edgeStore;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(MAX_ENTRIES)
+                .build(new CacheLoader<Key, PrecomputedEdgeCosts>() {
+                    @Override
+                    public PrecomputedEdgeCosts load (Key key) {
+                        LOG.debug("Precomputing edge costs for {}.", key);
+                        return new PrecomputedEdgeCosts(edgeStore, key.streetMode, key.request,
+                                edgeStore.getDefaultTraversalTimeCalculator());
+                    }
+                });
+    }
+
+    /**
+     * @return the traversal permissions and times of every edge for the given mode and request, computing them if
+     *         they are not already cached. The result is only valid for the default TraversalTimeCalculator.
+     */
+    public PrecomputedEdgeCosts get (StreetMode streetMode, ProfileRequest request) {
+        return cache.getUnchecked(new Key(streetMode, request, edgeStore.nEdges()));
+    }
+
+    /**
+     * Only the request parameters that are used to evaluate single edges for the given mode are retained and compared,
+     * so requests differing in unrelated ways (e.g. departure time or transit settings) share the same costs.
+     */
+    private static class Key {
+
+        final StreetMode streetMode;
+        final int nEdges;
+        final float walkSpeed;
+        final float bikeSpeed;
+        final boolean wheelchair;
+        final int bikeTrafficStress;
+
+        /** A request holding only the parameters in this key, used to compute the costs. */
+        final ProfileRequest request = new ProfileRequest();
+
+        Key (StreetMode streetMode, ProfileRequest request, int nEdges) {
+            this.streetMode = streetMode;
+            this.nEdges = nEdges;
+            // Bicycle searches walk the bike where cycling is not allowed, so they also depend on the walk speed.
+            this.walkSpeed = (streetMode == StreetMode.WALK || streetMode == StreetMode.BICYCLE) ? request.walkSpeed : 0;
+            this.bikeSpeed = (streetMode == StreetMode.BICYCLE) ? request.bikeSpeed : 0;
+            this.wheelchair = (streetMode == StreetMode.WALK) && request.wheelchair;
+            this.bikeTrafficStress = (streetMode == StreetMode.BICYCLE) ? request.bikeTrafficStress : 0;
+            this.request.walkSpeed = walkSpeed;
+            this.request.bikeSpeed = bikeSpeed;
+            this.request.wheelchair = wheelchair;
+            this.request.bikeTrafficStress = bikeTrafficStress;
+        }
+
+        @Override
+        public boolean equals (Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key other = (Key) o;
+            return streetMode == other.streetMode &&
+                    nEdges == other.nEdges &&
+                    walkSpeed == other.walkSpeed &&
+                    bikeSpeed == other.bikeSpeed &&
+                    wheelchair == other.wheelchair &&
+                    bikeTrafficStress == other.bikeTrafficStress;
+        }
+
+        @Override
+        public int hashCode () {
+            return Objects.hash(streetMode, nEdges, walkSpeed, bikeSpeed, wheelchair, bikeTrafficStress);
+        }
+
+        @Override
+        public String toString () {
+            return String.format("%s with %d edges (walk %.2f m/s, bike %.2f m/s, wheelchair %b, LTS %d)",
+                    streetMode, nEdges, walkSpeed, bikeSpeed, wheelchair, bikeTrafficStress);
+        }
+    }
+
+}
@@ -0,0 +1,272 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.profile.StreetMode;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.Arrays;
+
+/**
+ * The best state at the end of each edge in a street search, for states that are not in the middle of a turn
+ * restriction, stored as flat primitive arrays rather than State objects. Such states are compared only on the
+ * routing variable, so there is at most one of them per edge. This also contains an indexed binary heap of the edges
+ * whose states have not yet been explored, which allows the priority of an edge to be decreased in place rather than
+ * leaving stale entries in the queue.
+ *
+ * Arrays are allocated in fixed-size pages as the search reaches new parts of the network, so a short search on a
+ * large network only allocates and clears memory for the area it actually explores. Each edge is stamped with the
+ * generation in which its state was recorded, so the arrays can be emptied for another search in constant time by
+ * advancing the generation, and a reused StreetRouter does not need to allocate or clear them again.
+ *
+ * The path to each state is recorded by storing the edge of the preceding state. States that follow a State object
+ * (an origin state or a state in a turn restriction) have the special predecessor OBJECT_PREDECESSOR, and the
+ * StreetRouter keeps track of those objects.
+ */
+class EdgeStateArrays {
+
+    /** The predecessor of states that were reached from a State object rather than a state in these arrays. */
+    static final int OBJECT_PREDECESSOR = -1;
+
+    private static final int PAGE_SHIFT = 11;
+
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    /** A value in the heapPositions pages indicating that an edge is not in the queue. */
+    private static final int NOT_QUEUED = -1;
+
+    private static final StreetMode[] STREET_MODES = StreetMode.values();
+
+    /** The routing variable used to compare states and order the queue. */
+    StreetRouter.State.RoutingVariable routingVariable;
+
+    /**
+     * Edges have a state only if their entry in the generations pages is equal to this. Newly allocated pages are
+     * filled with zero, which is never the current generation.
+     */
+    private int generation = 1;
+
+    private int[][] generations;
+
+    private int[][] durationSeconds;
+
+    private int[][] distanceMillimeters;
+
+    private int[][] predecessors;
+
+    private byte[][] streetModes;
+
+    private int[][] heapPositions;
+
+    /** Every edge that has a state, in the order they were first reached. */
+    private final TIntList edges = new TIntArrayList();
+
+    /** Edges in binary heap order, with the routing variable of each in the parallel array heapKeys. */
+    private int[] heapEdges = new int[64];
+
+    private int[] heapKeys = new int[64];
+
+    private int heapSize = 0;
+
+    EdgeStateArrays (int nEdges, StreetRouter.State.RoutingVariable routingVariable) {
+        this.routingVariable = routingVariable;
+        int nPages = (nEdges >> PAGE_SHIFT) + 1;
+        durationSeconds = new int[nPages][];
+        distanceMillimeters = new int[nPages][];
+        predecessors = new int[nPages][];
+        streetModes = new byte[nPages][];
+        heapPositions = new int[nPages][];
+        generations = new int[nPages][];
+    }
+
+    /** Remove all states and queued edges, so these arrays can be used for a new search. */
+    void reset (StreetRouter.State.RoutingVariable routingVariable) {
+        this.routingVariable = routingVariable;
+        edges.clear();
+        heapSize = 0;
+        if (generation == Integer.MAX_VALUE) {
+            // Rather than ever wrapping around to old generations, clear the stamps of every allocated page.
+            for (int[] page : generations) if (page != null) Arrays.fill(page, 0);
+            generation = 0;
+        }
+        generation++;
+    }
+
+    /** @return whether there is a state at the end of the given edge. */
+    boolean contains (int edge) {
+        int page = edge >> PAGE_SHIFT;
+        return page < generations.length && generations[page] != null &&
+                generations[page][edge & PAGE_MASK] == generation;
+    }
+
+    int getDurationSeconds (int edge) {
+        return durationSeconds[edge >> PAGE_SHIFT][edge & PAGE_MASK];
+    }
+
+    int getDistanceMillimeters (int edge) {
+        return distanceMillimeters[edge >> PAGE_SHIFT][edge & PAGE_MASK];
+    }
+
+    int getRoutingVariable (int edge) {
+        return routingVariable == StreetRouter.State.RoutingVariable.DURATION_SECONDS ?
+                getDurationSeconds(edge) : getDistanceMillimeters(edge);
+    }
+
+    /** @return the edge at the end of which the preceding state is found, or OBJECT_PREDECESSOR. */
+    int getPredecessor (int edge) {
+        return predecessors[edge >> PAGE_SHIFT][edge & PAGE_MASK];
+    }
+
+    StreetMode getStreetMode (int edge) {
+        return STREET_MODES[streetModes[edge >> PAGE_SHIFT][edge & PAGE_MASK]];
+    }
+
+    /** @return every edge that has a state. The caller must not modify this list. */
+    TIntList getEdges () {
+        return edges;
+    }
+
+    /**
+     * Record a state at the end of the given edge, unless an existing state at that edge is better or equal, and
+     * queue the edge for exploration.
+     * @return true if the new state was retained.
+     */
+    boolean offer (int edge, int duration, int distance, StreetMode streetMode, int predecessor) {
+        int key = routingVariable == StreetRouter.State.RoutingVariable.DURATION_SECONDS ? duration : distance;
+        int page = edge >> PAGE_SHIFT;
+        int offset = edge & PAGE_MASK;
+        if (page >= generations.length || generations[page] == null) {
+            allocatePage(page);
+        } else if (generations[page][offset] == generation) {
+            // The existing state wins ties, as in StreetRouter#dominates.
+            if (getRoutingVariable(edge) <= key) return false;
+        }
+        record(page, offset, edge, duration, distance, streetMode, predecessor);
+        int position = heapPositions[page][offset];
+        if (position == NOT_QUEUED) {
+            position = heapSize++;
+            if (position == heapEdges.length) {
+                heapEdges = Arrays.copyOf(heapEdges, position * 2);
+                heapKeys = Arrays.copyOf(heapKeys, position * 2);
+            }
+        }
+        // The key can only decrease, so the edge only needs to move toward the root of the heap.
+        siftUp(position, edge, key);
+        return true;
+    }
+
+    /**
+     * Record a state at the end of the given edge without queueing it, replacing any existing state there. This is
+     * used when the states have been found by some other means than exploring the queue.
+     */
+    void put (int edge, int duration, int distance, StreetMode streetMode, int predecessor) {
+        int page = edge >> PAGE_SHIFT;
+        if (page >= generations.length || generations[page] == null) allocatePage(page);
+        record(page, edge & PAGE_MASK, edge, duration, distance, streetMode, predecessor);
+    }
+
+    private void record (int page, int offset, int edge, int duration, int distance, StreetMode streetMode,
+                         int predecessor) {
+        if (generations[page][offset] != generation) {
+            // Any heap position left from an earlier generation is stale.
+            generations[page][offset] = generation;
+            heapPositions[page][offset] = NOT_QUEUED;
+            edges.add(edge);
+        }
+        durationSeconds[page][offset] = duration;
+        distanceMillimeters[page][offset] = distance;
+        predecessors[page][offset] = predecessor;
+        streetModes[page][offset] = (byte) streetMode.ordinal();
+    }
+
+    /** Queue an edge that already has a state for exploration again, e.g. to continue the search in another mode. */
+    void enqueue (int edge) {
+        if (heapPositions[edge >> PAGE_SHIFT][edge & PAGE_MASK] != NOT_QUEUED) return;
+        int position = heapSize++;
+        if (position == heapEdges.length) {
+            heapEdges = Arrays.copyOf(heapEdges, position * 2);
+            heapKeys = Arrays.copyOf(heapKeys, position * 2);
+        }
+        siftUp(position, edge, getRoutingVariable(edge));
+    }
+
+    boolean isQueueEmpty () {
+        return heapSize == 0;
+    }
+
+    /** @return the routing variable of the state that will be returned by the next call to poll. */
+    int peekRoutingVariable () {
+        return heapKeys[0];
+    }
+
+    /** Remove the edge with the lowest routing variable from the queue and return it. */
+    int poll () {
+        int edge = heapEdges[0];
+        setHeapPosition(edge, NOT_QUEUED);
+        heapSize--;
+        if (heapSize > 0) {
+            siftDown(0, heapEdges[heapSize], heapKeys[heapSize]);
+        }
+        return edge;
+    }
+
+    /** Empty the queue without removing any states. */
+    void clearQueue () {
+        for (int i = 0; i < heapSize; i++) setHeapPosition(heapEdges[i], NOT_QUEUED);
+        heapSize = 0;
+    }
+
+    /** Move an edge up from the given heap position until its parent has a lower or equal key. */
+    private void siftUp (int position, int edge, int key) {
+        while (position > 0) {
+            int parent = (position - 1) >> 1;
+            if (heapKeys[parent] <= key) break;
+            placeInHeap(position, heapEdges[parent], heapKeys[parent]);
+            position = parent;
+        }
+        placeInHeap(position, edge, key);
+    }
+
+    /** Move an edge down from the given heap position until both its children have higher or equal keys. */
+    private void siftDown (int position, int edge, int key) {
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= heapSize) break;
+            if (child + 1 < heapSize && heapKeys[child + 1] < heapKeys[child]) child++;
+            if (heapKeys[child] >= key) break;
+            placeInHeap(position, heapEdges[child], heapKeys[child]);
+            position = child;
+        }
+        placeInHeap(position, edge, key);
+    }
+
+    private void placeInHeap (int position, int edge, int key) {
+        heapEdges[position] = edge;
+        heapKeys[position] = key;
+        setHeapPosition(edge, position);
+    }
+
+    private void setHeapPosition (int edge, int position) {
+        heapPositions[edge >> PAGE_SHIFT][edge & PAGE_MASK] = position;
+    }
+
+    private void allocatePage (int page) {
+        if (page >= generations.length) {
+            int nPages = Math.max(page + 1, generations.length * 2);
+            durationSeconds = Arrays.copyOf(durationSeconds, nPages);
+            distanceMillimeters = Arrays.copyOf(distanceMillimeters, nPages);
+            predecessors = Arrays.copyOf(predecessors, nPages);
+            streetModes = Arrays.copyOf(streetModes, nPages);
+            heapPositions = Arrays.copyOf(heapPositions, nPages);
+            generations = Arrays.copyOf(generations, nPages);
+        }
+        durationSeconds[page] = new int[PAGE_SIZE];
+        distanceMillimeters[page] = new int[PAGE_SIZE];
+        predecessors[page] = new int[PAGE_SIZE];
+        streetModes[page] = new byte[PAGE_SIZE];
+        heapPositions[page] = new int[PAGE_SIZE];
+        generations[page] = new int[PAGE_SIZE];
+    }
+
+}
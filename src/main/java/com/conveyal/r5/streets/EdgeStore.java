@@ -5,7 +5,6 @@ import com.conveyal.r5.common.DirectionUtils;
 import com.conveyal.r5.common.GeometryUtils;
 import com.conveyal.r5.profile.ProfileRequest;
 import com.conveyal.r5.profile.StreetMode;
-import com.conveyal.r5.trove.AugmentedList;
 import com.conveyal.r5.trove.TIntAugmentedList;
 import com.conveyal.r5.trove.TLongAugmentedList;
 import com.conveyal.r5.util.P2;
@@ -30,8 +29,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Set;
@@ -67,7 +66,9 @@ import java.util.function.IntConsumer;
  * List of int arrays: 246MB serialized, 5.2 sec write, 6.3 sec read.
  * List of int arrays, full lists (not only intermediates): 261MB, 6.1 sec write, 6.2 sec read.
  * Indexes into single contiguous int array: 259MB, 5 sec write, 7.5 sec read.
- * We are using the first option as it is both readable and efficient.
+ * We originally used the first option as it is both readable and efficient. Since then network files have been
+ * written with hand-written Kryo serializers rather than Java serialization, which makes the contiguous array the
+ * fastest to write and read as well as the most compact on the heap (see PackedGeometryStore).
  */
 public class EdgeStore implements Serializable {
 
@@ -108,7 +109,7 @@ public class EdgeStore implements Serializable {
      * Geometries. One entry for each edge pair. These are packed lists of lat, lon, lat, lon... as fixed-point
      * integers, and don't include the endpoints (i.e. don't include the intersection vertices, only intermediate points).
      */
-    public List<int[]> geometries;
+    public PackedGeometryStore geometries;
 
     /**
      * The compass angle at the start of the edge geometry (binary radians clockwise from North).
@@ -156,21 +157,43 @@ public class EdgeStore implements Serializable {
         return firstModifiableEdge > 0;
     }
 
-    /** Turn restrictions for turning _out of_ each edge */
+    /**
+     * Turn restrictions for turning _out of_ each edge. Add to or modify this through addTurnRestriction and
+     * moveTurnRestrictions, so that restrictionStartEdges stays up to date.
+     */
     public TIntIntMultimap turnRestrictions;
 
-    /** Turn restrictions for turning _into_ each edge */
+    /** Turn restrictions for turning _into_ each edge. Add to this through addReverseTurnRestriction. */
     public TIntIntMultimap turnRestrictionsReverse;
 
+    /**
+     * The edges that are keys in turnRestrictions and turnRestrictionsReverse respectively, i.e. where forward or
+     * reverse searches enter a turn restriction. Almost all edges have no restrictions, so checking these bitsets lets
+     * searches skip looking up restrictions for them. They are derived from the multimaps when first needed, and
+     * discarded whenever restrictions are added or moved.
+     */
+    private transient volatile BitSet restrictionStartEdges;
+
+    private transient volatile BitSet reverseRestrictionStartEdges;
+
     /**
      * Stores and retrieves per-edge costs, either specified in input data or derived from standard OSM tags.
      * For now this may be null, indicating that no per-edge times are available and default values should be used.
      */
     public EdgeTraversalTimes edgeTraversalTimes;
 
+    /**
+     * Car speeds on some edges at different times of day, relative to their speeds in the speeds list. May be null if
+     * car speeds do not vary over the day. Shared with extend-only copies, so it must not be changed once routing begins.
+     */
+    public CongestionProfiles congestionProfiles;
+
     /** The street layer of a transport network that the edges in this edgestore make up. */
     public StreetLayer layer;
 
+    /** Per-edge costs precomputed for the parameter sets of recent searches. Created lazily, not serialized. */
+    private transient EdgeCostCache edgeCostCache;
+
     /** As a convenience, the set of all edge flags that control which modes can traverse the edge */
     public static final transient EnumSet<EdgeFlag> PERMISSION_FLAGS = EnumSet
         .of(EdgeFlag.ALLOWS_PEDESTRIAN, EdgeFlag.ALLOWS_BIKE, EdgeFlag.ALLOWS_CAR);
@@ -193,7 +216,7 @@ public class EdgeStore implements Serializable {
         int initialEdgePairs = initialSize / 2;
         fromVertices = new TIntArrayList(initialEdgePairs);
         toVertices = new TIntArrayList(initialEdgePairs);
-        geometries = new ArrayList<>(initialEdgePairs);
+        geometries = new PackedGeometryStore(initialEdgePairs);
         lengths_mm = new TIntArrayList(initialEdgePairs);
         osmids = new TLongArrayList(initialEdgePairs);
         inAngles = new TByteArrayList(initialEdgePairs);
@@ -361,6 +384,64 @@ public class EdgeStore implements Serializable {
         return edge;
     }
 
+    /**
+     * @return the calculator that StreetRouters use unless another one is supplied: the per-edge traversal times
+     * stored in this EdgeStore if there are any, otherwise the default timings.
+     */
+    public TraversalTimeCalculator getDefaultTraversalTimeCalculator () {
+        if (edgeTraversalTimes != null) {
+            return edgeTraversalTimes;
+        }
+        // TODO one of two things: 1) don't hardwire drive-on-right, or 2) https://en.wikipedia.org/wiki/Dagen_H
+        return new BasicTraversalTimeCalculator(layer, true);
+    }
+
+    /** @return the cache of precomputed per-edge costs for this EdgeStore, creating it if necessary. */
+    public synchronized EdgeCostCache getEdgeCostCache () {
+        if (edgeCostCache == null) {
+            edgeCostCache = new EdgeCostCache(this);
+        }
+        return edgeCostCache;
+    }
+
+    /** Record that the turn restriction with the given index in StreetLayer.turnRestrictions starts on the given edge. */
+    public void addTurnRestriction (int fromEdge, int restrictionIndex) {
+        turnRestrictions.put(fromEdge, restrictionIndex);
+        restrictionStartEdges = null;
+    }
+
+    /** Record that the turn restriction with the given index ends on the given edge, for use in reverse searches. */
+    public void addReverseTurnRestriction (int toEdge, int restrictionIndex) {
+        turnRestrictionsReverse.put(toEdge, restrictionIndex);
+        reverseRestrictionStartEdges = null;
+    }
+
+    /** Make all turn restrictions that start on one edge start on another edge instead, e.g. when an edge is split. */
+    public void moveTurnRestrictions (int fromEdge, int toEdge) {
+        turnRestrictions.removeAll(fromEdge).forEach(ridx -> turnRestrictions.put(toEdge, ridx));
+        restrictionStartEdges = null;
+    }
+
+    /**
+     * @return whether a state at the end of the given edge begins a turn restriction (ends one in a reverse search).
+     *         This is equivalent to checking whether the edge is a key in turnRestrictions (turnRestrictionsReverse)
+     *         but much faster, and is called for every edge traversed by car.
+     */
+    public boolean startsTurnRestriction (int edge, boolean reverseSearch) {
+        BitSet edges = reverseSearch ? reverseRestrictionStartEdges : restrictionStartEdges;
+        if (edges == null) {
+            // Concurrent searches may each build the same bitset, which is harmless.
+            TIntIntMultimap restrictions = reverseSearch ? turnRestrictionsReverse : turnRestrictions;
+            edges = new BitSet(nEdges());
+            for (int e = 0; e < nEdges(); e++) {
+                if (restrictions.containsKey(e)) edges.set(e);
+            }
+            if (reverseSearch) reverseRestrictionStartEdges = edges;
+            else restrictionStartEdges = edges;
+        }
+        return edges.get(edge);
+    }
+
     /**
      * Sets turn restriction maps in state
      * @param streetMode of previous state (since turn restrictions are set only in CAR mode)
@@ -372,7 +453,7 @@ public class EdgeStore implements Serializable {
             // add turn restrictions that start on this edge
             // Turn restrictions only apply to cars for now. This is also coded in canTurnFrom, so change it both places
             // if/when it gets changed.
-            if (streetMode == StreetMode.CAR && turnRestrictionsReverse.containsKey(s1.backEdge)) {
+            if (streetMode == StreetMode.CAR && startsTurnRestriction(s1.backEdge, true)) {
                 if (s1.turnRestrictions == null)
                     s1.turnRestrictions = new TIntIntHashMap();
                 turnRestrictionsReverse.get(s1.backEdge).forEach(r -> {
@@ -385,7 +466,7 @@ public class EdgeStore implements Serializable {
             // add turn restrictions that start on this edge
             // Turn restrictions only apply to cars for now. This is also coded in canTurnFrom, so change it both places
             // if/when it gets changed.
-            if (streetMode == StreetMode.CAR && turnRestrictions.containsKey(s1.backEdge)) {
+            if (streetMode == StreetMode.CAR && startsTurnRestriction(s1.backEdge, false)) {
                 if (s1.turnRestrictions == null)
                     s1.turnRestrictions = new TIntIntHashMap();
                 turnRestrictions.get(s1.backEdge).forEach(r -> {
@@ -544,7 +625,7 @@ public class EdgeStore implements Serializable {
         }
 
         public void copyPairGeometry(Edge other) {
-            geometries.set(pairIndex, other.getEdgeStore().geometries.get(other.pairIndex));
+            geometries.copy(other.getEdgeStore().geometries, other.pairIndex, pairIndex);
         }
 
         /**
@@ -590,12 +671,76 @@ public class EdgeStore implements Serializable {
             return options.getSpeedForMode(traverseStreetMode);
         }
 
+        /**
+         * @param freeFlowSeconds the time to traverse this edge by car at its speed in the speeds list.
+         * @param durationSeconds the duration of the search so far, from which the clock time is found. That is the
+         *        time this edge is entered in a forward search starting at the request's fromTime, and the time it is
+         *        left in a reverse search arriving at fromTime.
+         * @return the time to traverse this edge by car considering its congestion profile, if it has one.
+         */
+        public int getCongestedTraversalTimeSeconds (int freeFlowSeconds, int durationSeconds, ProfileRequest req) {
+            if (congestionProfiles == null) {
+                return freeFlowSeconds;
+            }
+            int clockTimeSeconds = req.reverseSearch ? req.fromTime - durationSeconds : req.fromTime + durationSeconds;
+            return congestionProfiles.getTraversalTimeSeconds(edgeIndex, freeFlowSeconds, clockTimeSeconds);
+        }
+
+        /**
+         * Check whether this edge allows the selected mode, considering the request settings.
+         * @return the mode that will actually be used to traverse this edge, which may differ from the requested mode
+         *         (a bicycle may need to be walked), or null if the edge cannot be traversed with the requested mode.
+         */
+        public StreetMode getTraversalMode (StreetMode streetMode, ProfileRequest req) {
+            if (streetMode == StreetMode.WALK) {
+                if (!getFlag(EdgeFlag.ALLOWS_PEDESTRIAN)) {
+                    return null;
+                }
+                if (req.wheelchair && !getFlag(EdgeFlag.ALLOWS_WHEELCHAIR)) {
+                    return null;
+                }
+            } else if (streetMode == StreetMode.BICYCLE) {
+                // If biking is not allowed on this edge, or if the traffic stress is too high, walk the bike.
+                boolean tryWalking = !getFlag(EdgeFlag.ALLOWS_BIKE);
+                if (req.bikeTrafficStress > 0 && req.bikeTrafficStress < 4) {
+                    if (getFlag(EdgeFlag.BIKE_LTS_4)) tryWalking = true;
+                    if (req.bikeTrafficStress < 3 && getFlag(EdgeFlag.BIKE_LTS_3)) tryWalking = true;
+                    if (req.bikeTrafficStress < 2 && getFlag(EdgeFlag.BIKE_LTS_2)) tryWalking = true;
+                }
+                if (tryWalking) {
+                    if (!getFlag(EdgeFlag.ALLOWS_PEDESTRIAN)) {
+                        return null;
+                    }
+                    return StreetMode.WALK;
+                }
+            } else if (streetMode == StreetMode.CAR) {
+                if (!getFlag(EdgeFlag.ALLOWS_CAR)) {
+                    return null;
+                }
+            }
+            return streetMode;
+        }
+
         // TODO move most or all of this logic into the router to avoid passing search state like req and timeCalculator
         public StreetRouter.State traverse (
                 StreetRouter.State s0,
                 StreetMode streetMode,
                 ProfileRequest req,
                 TraversalTimeCalculator timeCalculator
+        ) {
+            return traverse(s0, streetMode, req, timeCalculator, null);
+        }
+
+        /**
+         * @param precomputedCosts if non-null, permissions and traversal times are looked up in this table (which must
+         *        have been computed for the same mode, request and timeCalculator) instead of being evaluated here.
+         */
+        public StreetRouter.State traverse (
+                StreetRouter.State s0,
+                StreetMode streetMode,
+                ProfileRequest req,
+                TraversalTimeCalculator timeCalculator,
+                PrecomputedEdgeCosts precomputedCosts
         ) {
             // The vertex we'll be at after the traversal
             // TODO check/assert that s0 is at the other vertex, at the other end of the edge.
@@ -604,6 +749,25 @@ public class EdgeStore implements Serializable {
                 return null;
             }
 
+            // Check whether this edge allows the selected mode before doing anything else, as this rejects many edges.
+            int traverseTimeSeconds;
+            if (precomputedCosts != null && precomputedCosts.contains(edgeIndex)) {
+                streetMode = precomputedCosts.getTraversalMode(edgeIndex);
+                if (streetMode == null) {
+                    return null;
+                }
+                traverseTimeSeconds = precomputedCosts.getTraversalTimeSeconds(edgeIndex);
+            } else {
+                streetMode = getTraversalMode(streetMode, req);
+                if (streetMode == null) {
+                    return null;
+                }
+                traverseTimeSeconds = timeCalculator.traversalTimeSeconds(this, streetMode, req);
+            }
+            if (streetMode == StreetMode.CAR) {
+                traverseTimeSeconds = getCongestedTraversalTimeSeconds(traverseTimeSeconds, s0.durationSeconds, req);
+            }
+
             int vertex;
             if (req.reverseSearch) {
                 vertex = getFromVertex();
@@ -632,36 +796,7 @@ public class EdgeStore implements Serializable {
                 return null;
             }
 
-            // Check whether this edge allows the selected mode, considering the request settings.
-            if (streetMode == StreetMode.WALK) {
-                if (!getFlag(EdgeFlag.ALLOWS_PEDESTRIAN)) {
-                    return null;
-                }
-                if (req.wheelchair && !getFlag(EdgeFlag.ALLOWS_WHEELCHAIR)) {
-                    return null;
-                }
-            } else if (streetMode == StreetMode.BICYCLE) {
-                // If biking is not allowed on this edge, or if the traffic stress is too high, walk the bike.
-                boolean tryWalking = !getFlag(EdgeFlag.ALLOWS_BIKE);
-                if (req.bikeTrafficStress > 0 && req.bikeTrafficStress < 4) {
-                    if (getFlag(EdgeFlag.BIKE_LTS_4)) tryWalking = true;
-                    if (req.bikeTrafficStress < 3 && getFlag(EdgeFlag.BIKE_LTS_3)) tryWalking = true;
-                    if (req.bikeTrafficStress < 2 && getFlag(EdgeFlag.BIKE_LTS_2)) tryWalking = true;
-                }
-                if (tryWalking) {
-                    if (!getFlag(EdgeFlag.ALLOWS_PEDESTRIAN)) {
-                        return null;
-                    }
-                    streetMode = StreetMode.WALK;
-                }
-            } else if (streetMode == StreetMode.CAR) {
-                if (!getFlag(EdgeFlag.ALLOWS_CAR)) {
-                    return null;
-                }
-            }
-
             s1.streetMode = streetMode;
-            int traverseTimeSeconds = timeCalculator.traversalTimeSeconds(this, streetMode, req);
 
             // This was rounding up, now truncating ... maybe change back for consistency?
             // int roundedTime = (int) Math.ceil(time);
@@ -770,7 +905,7 @@ public class EdgeStore implements Serializable {
         public P2<int[]> splitGeometryAfter(int segment) {
             int[] preSplit = EMPTY_INT_ARRAY;
             int[] postSplit = EMPTY_INT_ARRAY;
-            // Original packed array of edge's intermediate coordinates
+            // Original packed array of edge's intermediate coordinates (a copy, the store is not modified)
             int[] original = geometries.get(pairIndex);
             if (original.length > 0) {
                 if (segment > 0) {
@@ -880,11 +1015,8 @@ public class EdgeStore implements Serializable {
          * @return
          */
         public LineString getGeometry() {
-            int[] coords = geometries.get(pairIndex);
-            //Size is 2 (from and to vertex) if there are no intermediate vertices
-            int size = coords == EMPTY_INT_ARRAY ? 2 :
-                //division with two since coordinates are in same array saved as lat, lon,lat etc.
-                (coords.length / 2) + 2;
+            //Size is 2 (from and to vertex) plus the number of intermediate vertices
+            int size = geometries.nPoints(pairIndex) + 2;
             Coordinate[] c = new Coordinate[size];
 
             VertexStore.Vertex fromVertex = vertexStore.getCursor(getFromVertex());
@@ -906,12 +1038,10 @@ public class EdgeStore implements Serializable {
             // getFromVertex returns the from vertex of the edge _pair_ rather than that of a particular edge.
             // This is the from vertex when we are on a forward edge, and the to vertex when we are on a back edge.
             c[0] = new Coordinate(firstCoorLon, firstCoorLat);
-            if (coords != null) {
-                for (int i = 1; i < c.length - 1; i++) {
-                    int ilat = coords[(i - 1) * 2];
-                    int ilon = coords[(i - 1) * 2 + 1];
-                    c[i] = new Coordinate(ilon / VertexStore.FIXED_FACTOR, ilat /  VertexStore.FIXED_FACTOR);
-                }
+            for (int i = 1; i < c.length - 1; i++) {
+                int ilat = geometries.getFixedLat(pairIndex, i - 1);
+                int ilon = geometries.getFixedLon(pairIndex, i - 1);
+                c[i] = new Coordinate(ilon / VertexStore.FIXED_FACTOR, ilat /  VertexStore.FIXED_FACTOR);
             }
             c[c.length - 1] = new Coordinate(lastCoorLon, lastCoorLat);
             LineString out = GeometryUtils.geometryFactory.createLineString(c);
@@ -928,12 +1058,11 @@ public class EdgeStore implements Serializable {
             VertexStore.Vertex vertex = vertexStore.getCursor(fromVertices.get(pairIndex));
             int prevFixedLat = vertex.getFixedLat();
             int prevFixedLon = vertex.getFixedLon();
-            int[] intermediates = geometries.get(pairIndex);
+            int nIntermediates = geometries.nPoints(pairIndex);
             int s = 0;
-            int i = 0;
-            while (i < intermediates.length) {
-                int fixedLat = intermediates[i++];
-                int fixedLon = intermediates[i++];
+            while (s < nIntermediates) {
+                int fixedLat = geometries.getFixedLat(pairIndex, s);
+                int fixedLon = geometries.getFixedLon(pairIndex, s);
                 segmentConsumer.consumeSegment(s, prevFixedLat, prevFixedLon, fixedLat, fixedLon);
                 prevFixedLat = fixedLat;
                 prevFixedLon = fixedLon;
@@ -952,10 +1081,9 @@ public class EdgeStore implements Serializable {
             VertexStore.Vertex vertex = vertexStore.getCursor(fromVertices.get(pairIndex));
             int p = 0;
             pointConsumer.consumePoint(p++, vertex.getFixedLat(), vertex.getFixedLon());
-            int[] intermediates = geometries.get(pairIndex);
-            int i = 0;
-            while (i < intermediates.length) {
-                pointConsumer.consumePoint(p++, intermediates[i++], intermediates[i++]);
+            int nIntermediates = geometries.nPoints(pairIndex);
+            for (int i = 0; i < nIntermediates; i++) {
+                pointConsumer.consumePoint(p++, geometries.getFixedLat(pairIndex, i), geometries.getFixedLon(pairIndex, i));
             }
             vertex.seek(toVertices.get(pairIndex));
             pointConsumer.consumePoint(p, vertex.getFixedLat(), vertex.getFixedLon());
@@ -972,14 +1100,9 @@ public class EdgeStore implements Serializable {
          * @return the number of segments in the geometry of the current edge.
          */
         public int nSegments () {
-            int[] geom = geometries.get(pairIndex);
-            if (geom != null) {
-                // Number of packed lat-lon pairs plus the final segment.
-                return (geom.length / 2) + 1;
-            } else {
-                // A single segment from the initial vertex to the final vertex.
-                return 1;
-            }
+            // Number of intermediate points plus the final segment. This is a single segment from the initial vertex
+            // to the final vertex when there are no intermediate points.
+            return geometries.nPoints(pairIndex) + 1;
         }
 
         @Override
@@ -1195,7 +1318,7 @@ public class EdgeStore implements Serializable {
         // Vertex indices, geometries, and lengths are shared between pairs of forward and backward edges.
         copy.fromVertices = new TIntAugmentedList(fromVertices);
         copy.toVertices = new TIntAugmentedList(toVertices);
-        copy.geometries = new AugmentedList<>(geometries);
+        copy.geometries = geometries.extendOnlyCopy();
         copy.lengths_mm = new TIntAugmentedList(lengths_mm);
         copy.osmids = new TLongAugmentedList(this.osmids);
         copy.temporarilyDeletedEdges = new TIntHashSet();
@@ -1205,6 +1328,7 @@ public class EdgeStore implements Serializable {
         // We don't expect to add/change any turn restrictions.
         copy.turnRestrictions = turnRestrictions;
         copy.turnRestrictionsReverse = turnRestrictionsReverse;
+        copy.congestionProfiles = congestionProfiles;
         if (edgeTraversalTimes != null) {
             copy.edgeTraversalTimes = edgeTraversalTimes.extendOnlyCopy(copy);
         }
@@ -73,6 +73,13 @@ public class IntHashGrid implements Serializable {
         bins = new TLongObjectHashMap<>();
     }
 
+    /** Create a HashGrid with the given bin sizes in fixed-point coordinate units. */
+    IntHashGrid(int xBinSize, int yBinSize) {
+        this.xBinSize = xBinSize;
+        this.yBinSize = yBinSize;
+        bins = new TLongObjectHashMap<>();
+    }
+
     /** Create a HashGrid with the default grid dimensions. */
     public IntHashGrid() {
         this(0.0018); // About 200m
@@ -230,6 +237,21 @@ public class IntHashGrid implements Serializable {
         }
     }
 
+    /** @return an immutable copy of the bins of this grid packed into flat arrays, with the same query results. */
+    public PackedIntGrid pack () {
+        return new PackedIntGrid(xBinSize, yBinSize, bins);
+    }
+
+    /** @return the column of the bin with the given map key, reversing the word swap in visit(). */
+    static long xKey (long mapKey) {
+        return Integer.rotateLeft((int) mapKey, 16);
+    }
+
+    /** @return the row of the bin with the given map key. */
+    static long yKey (long mapKey) {
+        return mapKey >> 32;
+    }
+
     public String toString() {
         return String
                 .format("IntHashGrid %d x %d, %d bins allocated, %d objs, %d entries (avg %.2f entries/bin, %.2f entries/object)",
@@ -0,0 +1,280 @@
+package com.conveyal.r5.streets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Shortest path lengths between a few "landmark" vertices and every other vertex in a StreetLayer, which provide lower
+ * bounds on the length of the shortest path between any two vertices via the triangle inequality: for any landmark L,
+ * d(a, b) >= d(L, b) - d(L, a) and d(a, b) >= d(a, L) - d(b, L). These lower bounds are used as the A* heuristic in
+ * point-to-point street searches (the ALT algorithm: A*, Landmarks and the Triangle inequality). On road networks
+ * they are usually far tighter than the straight-line distance divided by the highest possible speed, particularly
+ * for driving times where that speed is much higher than the typical speed.
+ *
+ * Two sets of path lengths are stored. Distances in millimeters are computed over all edges regardless of permissions,
+ * so they are a lower bound for every mode. Driving times in seconds are computed over edges that allow cars, using
+ * each edge's own speed with no turn costs, so they are a lower bound on driving time using the default traversal time
+ * calculators. Landmarks are chosen one by one to be as far as possible from all those already chosen, which tends
+ * to put them around the edges of the network where they give the best bounds.
+ *
+ * This holds 16 bytes per vertex for each landmark, so it is only built when requested in the network build config.
+ * The bounds are no longer valid once edges are added or speeds are changed, so they are not used on scenarios that
+ * modify the street network.
+ */
+public class Landmarks implements Serializable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Landmarks.class);
+
+    /** Path length to or from vertices that cannot be reached from or cannot reach a landmark. */
+    private static final int UNREACHED = Integer.MAX_VALUE;
+
+    /** The number of vertices and edges in the street layer when the landmarks were computed. */
+    private final int nVertices;
+    private final int nEdges;
+
+    /** The vertex index of each landmark. */
+    public final int[] landmarkVertices;
+
+    // For each landmark, the path length from or to that landmark for every vertex.
+    private final int[][] millimetersFromLandmark;
+    private final int[][] millimetersToLandmark;
+    private final int[][] carSecondsFromLandmark;
+    private final int[][] carSecondsToLandmark;
+
+    private Landmarks (StreetLayer streetLayer, int nLandmarks) {
+        nVertices = streetLayer.vertexStore.getVertexCount();
+        nEdges = streetLayer.edgeStore.nEdges();
+        Graph graph = new Graph(streetLayer);
+        nLandmarks = Math.min(nLandmarks, nVertices);
+        landmarkVertices = new int[nLandmarks];
+        millimetersFromLandmark = new int[nLandmarks][];
+
+        // Choose landmarks one by one, each as far as possible from those already chosen, starting from the vertex
+        // farthest from the center of the network. This requires the distances from each landmark in turn.
+        int[] distances = graph.shortestPaths(centralVertex(streetLayer), false, graph.millimeters);
+        int[] minDistances = new int[nVertices];
+        Arrays.fill(minDistances, UNREACHED);
+        for (int i = 0; i < nLandmarks; i++) {
+            int farthest = 0;
+            for (int v = 0; v < nVertices; v++) {
+                int distance = i == 0 ? distances[v] : minDistances[v];
+                int farthestDistance = i == 0 ? distances[farthest] : minDistances[farthest];
+                if (distance != UNREACHED && (farthestDistance == UNREACHED || distance > farthestDistance)) {
+                    farthest = v;
+                }
+            }
+            landmarkVertices[i] = farthest;
+            millimetersFromLandmark[i] = graph.shortestPaths(farthest, false, graph.millimeters);
+            for (int v = 0; v < nVertices; v++) {
+                minDistances[v] = Math.min(minDistances[v], millimetersFromLandmark[i][v]);
+            }
+        }
+        millimetersToLandmark = IntStream.range(0, nLandmarks).parallel()
+                .mapToObj(i -> graph.shortestPaths(landmarkVertices[i], true, graph.millimeters))
+                .toArray(int[][]::new);
+        carSecondsFromLandmark = IntStream.range(0, nLandmarks).parallel()
+                .mapToObj(i -> graph.shortestPaths(landmarkVertices[i], false, graph.carSeconds))
+                .toArray(int[][]::new);
+        carSecondsToLandmark = IntStream.range(0, nLandmarks).parallel()
+                .mapToObj(i -> graph.shortestPaths(landmarkVertices[i], true, graph.carSeconds))
+                .toArray(int[][]::new);
+    }
+
+    /** Choose landmarks and compute the path lengths to and from them for every vertex in the given street layer. */
+    public static Landmarks compute (StreetLayer streetLayer, int nLandmarks) {
+        LOG.info("Computing path lengths to and from {} landmarks...", nLandmarks);
+        long startTime = System.currentTimeMillis();
+        Landmarks landmarks = new Landmarks(streetLayer, nLandmarks);
+        LOG.info("Done computing landmarks in {} sec.", (System.currentTimeMillis() - startTime) / 1000);
+        return landmarks;
+    }
+
+    /** @return whether these landmarks were computed for a street layer with the same vertices and edges. */
+    public boolean isValidFor (StreetLayer streetLayer) {
+        return streetLayer.vertexStore.getVertexCount() == nVertices && streetLayer.edgeStore.nEdges() == nEdges;
+    }
+
+    /** @return whether lower bounds are available for paths to and from the given vertex. */
+    public boolean contains (int vertex) {
+        return vertex >= 0 && vertex < nVertices;
+    }
+
+    /**
+     * @param carSeconds if true, return a lower bound on driving time in seconds, otherwise on distance in millimeters.
+     * @return a lower bound on the length of the shortest path from one vertex to another. Both vertices must be
+     *         contained in these landmarks.
+     */
+    public int lowerBound (int fromVertex, int toVertex, boolean carSeconds) {
+        int[][] fromLandmark = carSeconds ? carSecondsFromLandmark : millimetersFromLandmark;
+        int[][] toLandmark = carSeconds ? carSecondsToLandmark : millimetersToLandmark;
+        int bound = 0;
+        for (int i = 0; i < landmarkVertices.length; i++) {
+            // Skip any bound involving an unreached vertex: it would be either meaningless or infinite, and an
+            // infinite bound is only useful if the destination is unreachable, which the search will find anyway.
+            int landmarkToTarget = fromLandmark[i][toVertex];
+            int landmarkToSource = fromLandmark[i][fromVertex];
+            if (landmarkToTarget != UNREACHED && landmarkToSource != UNREACHED) {
+                bound = Math.max(bound, landmarkToTarget - landmarkToSource);
+            }
+            int sourceToLandmark = toLandmark[i][fromVertex];
+            int targetToLandmark = toLandmark[i][toVertex];
+            if (sourceToLandmark != UNREACHED && targetToLandmark != UNREACHED) {
+                bound = Math.max(bound, sourceToLandmark - targetToLandmark);
+            }
+        }
+        return bound;
+    }
+
+    /** @return the vertex closest to the center of the bounding box of all vertices. */
+    private static int centralVertex (StreetLayer streetLayer) {
+        VertexStore vertexStore = streetLayer.vertexStore;
+        int nVertices = vertexStore.getVertexCount();
+        long minLat = Long.MAX_VALUE, maxLat = Long.MIN_VALUE, minLon = Long.MAX_VALUE, maxLon = Long.MIN_VALUE;
+        for (int v = 0; v < nVertices; v++) {
+            minLat = Math.min(minLat, vertexStore.fixedLats.get(v));
+            maxLat = Math.max(maxLat, vertexStore.fixedLats.get(v));
+            minLon = Math.min(minLon, vertexStore.fixedLons.get(v));
+            maxLon = Math.max(maxLon, vertexStore.fixedLons.get(v));
+        }
+        long centerLat = (minLat + maxLat) / 2;
+        long centerLon = (minLon + maxLon) / 2;
+        int central = 0;
+        long bestSquaredDistance = Long.MAX_VALUE;
+        for (int v = 0; v < nVertices; v++) {
+            long dLat = vertexStore.fixedLats.get(v) - centerLat;
+            long dLon = vertexStore.fixedLons.get(v) - centerLon;
+            long squaredDistance = dLat * dLat + dLon * dLon;
+            if (squaredDistance < bestSquaredDistance) {
+                bestSquaredDistance = squaredDistance;
+                central = v;
+            }
+        }
+        return central;
+    }
+
+    /**
+     * A compact copy of the street graph's adjacency and edge lengths, so that the many full-network shortest path
+     * searches needed to compute landmarks don't need to go through edge cursors or create StreetRouter states.
+     */
+    private static class Graph {
+
+        final int nVertices;
+
+        /** The edges leaving or entering each vertex v are at index firstOutgoing[v] (or firstIncoming[v]) up to
+         *  but not including firstOutgoing[v + 1] in outgoingEdges (or incomingEdges). */
+        final int[] firstOutgoing;
+        final int[] outgoingEdges;
+        final int[] firstIncoming;
+        final int[] incomingEdges;
+
+        final int[] fromVertices;
+        final int[] toVertices;
+
+        /** Length of each edge in millimeters. */
+        final int[] millimeters;
+
+        /** Driving time on each edge in seconds, or -1 if the edge does not allow cars. */
+        final int[] carSeconds;
+
+        Graph (StreetLayer streetLayer) {
+            nVertices = streetLayer.vertexStore.getVertexCount();
+            int nEdges = streetLayer.edgeStore.nEdges();
+            fromVertices = new int[nEdges];
+            toVertices = new int[nEdges];
+            millimeters = new int[nEdges];
+            carSeconds = new int[nEdges];
+            firstOutgoing = new int[nVertices + 1];
+            firstIncoming = new int[nVertices + 1];
+            EdgeStore.Edge edge = streetLayer.edgeStore.getCursor();
+            for (int e = 0; e < nEdges; e++) {
+                edge.seek(e);
+                fromVertices[e] = edge.getFromVertex();
+                toVertices[e] = edge.getToVertex();
+                millimeters[e] = edge.getLengthMm();
+                // This is the driving time in EdgeTraversalTimes, which is no greater than the rounded-up driving time
+                // in BasicTraversalTimeCalculator.
+                carSeconds[e] = edge.getFlag(EdgeStore.EdgeFlag.ALLOWS_CAR) ?
+                        (int) (edge.getLengthM() / edge.getCarSpeedMetersPerSecond()) : -1;
+                firstOutgoing[fromVertices[e] + 1]++;
+                firstIncoming[toVertices[e] + 1]++;
+            }
+            for (int v = 0; v < nVertices; v++) {
+                firstOutgoing[v + 1] += firstOutgoing[v];
+                firstIncoming[v + 1] += firstIncoming[v];
+            }
+            outgoingEdges = new int[nEdges];
+            incomingEdges = new int[nEdges];
+            int[] nextOutgoing = Arrays.copyOf(firstOutgoing, nVertices);
+            int[] nextIncoming = Arrays.copyOf(firstIncoming, nVertices);
+            for (int e = 0; e < nEdges; e++) {
+                outgoingEdges[nextOutgoing[fromVertices[e]]++] = e;
+                incomingEdges[nextIncoming[toVertices[e]]++] = e;
+            }
+        }
+
+        /**
+         * Dijkstra's algorithm with a binary heap of vertices packed into longs along with their path lengths.
+         * Vertices may appear in the heap more than once, entries for vertices that have already been settled are
+         * skipped when they are removed.
+         * @param reverse if true, find the path lengths from every vertex to the source rather than the reverse.
+         * @param weights the length of each edge, or a negative number for edges that cannot be traversed.
+         * @return the path length from the source vertex to every vertex, or UNREACHED.
+         */
+        int[] shortestPaths (int source, boolean reverse, int[] weights) {
+            int[] first = reverse ? firstIncoming : firstOutgoing;
+            int[] adjacentEdges = reverse ? incomingEdges : outgoingEdges;
+            int[] adjacentVertices = reverse ? fromVertices : toVertices;
+            int[] pathLengths = new int[nVertices];
+            Arrays.fill(pathLengths, UNREACHED);
+            boolean[] settled = new boolean[nVertices];
+            long[] heap = new long[1024];
+            int heapSize = 0;
+            pathLengths[source] = 0;
+            heap[heapSize++] = source;
+            while (heapSize > 0) {
+                long top = heap[0];
+                long last = heap[--heapSize];
+                // Sift the last entry down from the root.
+                int position = 0;
+                while (true) {
+                    int child = 2 * position + 1;
+                    if (child >= heapSize) break;
+                    if (child + 1 < heapSize && heap[child + 1] < heap[child]) child++;
+                    if (heap[child] >= last) break;
+                    heap[position] = heap[child];
+                    position = child;
+                }
+                if (heapSize > 0) heap[position] = last;
+                int vertex = (int) top;
+                if (settled[vertex]) continue;
+                settled[vertex] = true;
+                long pathLength = top >>> 32;
+                for (int i = first[vertex]; i < first[vertex + 1]; i++) {
+                    int e = adjacentEdges[i];
+                    if (weights[e] < 0) continue;
+                    int next = adjacentVertices[e];
+                    long nextPathLength = Math.min(pathLength + weights[e], UNREACHED - 1);
+                    if (nextPathLength >= pathLengths[next]) continue;
+                    pathLengths[next] = (int) nextPathLength;
+                    if (heapSize == heap.length) heap = Arrays.copyOf(heap, heapSize * 2);
+                    // Sift the new entry up from the bottom.
+                    long entry = (nextPathLength << 32) | next;
+                    position = heapSize++;
+                    while (position > 0) {
+                        int parent = (position - 1) >> 1;
+                        if (heap[parent] <= entry) break;
+                        heap[position] = heap[parent];
+                        position = parent;
+                    }
+                    heap[position] = entry;
+                }
+            }
+            return pathLengths;
+        }
+    }
+
+}
@@ -51,10 +51,8 @@ public class OSMCache {
         try {
             return osmCache.get(id, () -> {
                 File osmFile = fileStorage.getFile(getKey(id));
-                OSM ret = new OSM(null);
-                ret.intersectionDetection = true;
-                ret.readFromFile(osmFile.getAbsolutePath());
-                return ret;
+                // The OSM is only used to build networks, so only the parts needed for that are loaded.
+                return StreamingOSMLoader.load(osmFile);
             });
         } catch (ExecutionException e) {
             throw new RuntimeException(e);
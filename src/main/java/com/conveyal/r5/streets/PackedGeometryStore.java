@@ -0,0 +1,149 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.trove.TIntAugmentedList;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.Serializable;
+
+/**
+ * Holds the intermediate points of every edge pair in an EdgeStore, packed into a single growable int array of
+ * interleaved fixed-point lat, lon, lat, lon... coordinates. For each edge pair we store the index in that array where
+ * its coordinates begin, and how many ints (twice the number of points) it occupies.
+ *
+ * This replaces a List with one small int array per edge pair. On a country-scale network that was millions of array
+ * headers and references, and geometries for successive edges were scattered around the heap. Here the coordinates
+ * of edges created one after another are adjacent in memory, and the whole store is just three primitive arrays.
+ *
+ * Replacing the geometry of an edge pair (which happens when edges are split) overwrites the old coordinates if the
+ * new ones fit in the same space. Otherwise it appends the new coordinates and leaves the old ones unreferenced. The
+ * wasted space is small because only a few edges are split, and is reclaimed when the store is serialized, since the
+ * serializer writes only the referenced coordinates in edge pair order.
+ *
+ * Like the other EdgeStore columns this supports extend-only copies for applying scenarios: the copy shares the
+ * baseline arrays, and may only add new edge pairs or replace the geometry of edge pairs it added.
+ */
+public class PackedGeometryStore implements Serializable {
+
+    private static final int[] EMPTY_INT_ARRAY = new int[0];
+
+    /** Interleaved fixed-point lat, lon coordinates for all edge pairs. */
+    private TIntList coordinates;
+
+    /** For each edge pair, the index in coordinates of the latitude of its first intermediate point. */
+    private TIntList offsets;
+
+    /** For each edge pair, the number of ints it occupies in coordinates. Always even. Zero for straight edges. */
+    private TIntList lengths;
+
+    public PackedGeometryStore (int initialEdgePairs) {
+        // Somewhat more than half of street edges have intermediate points, often only a few.
+        coordinates = new TIntArrayList(initialEdgePairs * 4);
+        offsets = new TIntArrayList(initialEdgePairs);
+        lengths = new TIntArrayList(initialEdgePairs);
+    }
+
+    private PackedGeometryStore () {
+        // Private trivial constructor. Leaves all fields blank for use in extend-only copy method.
+    }
+
+    /**
+     * Create a store from existing arrays, as when deserializing. The arrays are copied because Trove lists that wrap
+     * an array cannot grow, and edges may still be added to a network after it's loaded.
+     * @param coordinates interleaved fixed-point lat, lon coordinates for all edge pairs, in edge pair order.
+     * @param lengths the number of ints each edge pair occupies in the coordinates array.
+     */
+    public static PackedGeometryStore fromArrays (int[] coordinates, int[] lengths) {
+        PackedGeometryStore store = new PackedGeometryStore();
+        int[] offsets = new int[lengths.length];
+        int offset = 0;
+        for (int i = 0; i < lengths.length; i++) {
+            offsets[i] = offset;
+            offset += lengths[i];
+        }
+        if (offset != coordinates.length) {
+            throw new IllegalArgumentException("Geometry lengths do not add up to the number of coordinates.");
+        }
+        store.coordinates = new TIntArrayList(coordinates);
+        store.offsets = new TIntArrayList(offsets);
+        store.lengths = new TIntArrayList(lengths);
+        return store;
+    }
+
+    /** @return the number of edge pairs in this store. */
+    public int size () {
+        return offsets.size();
+    }
+
+    /** Add intermediate coordinates for a new edge pair at the end of the store. */
+    public void add (int[] packedCoordinates) {
+        offsets.add(coordinates.size());
+        lengths.add(packedCoordinates.length);
+        coordinates.add(packedCoordinates);
+    }
+
+    /** Replace the intermediate coordinates of an existing edge pair. */
+    public void set (int pairIndex, int[] packedCoordinates) {
+        if (packedCoordinates.length <= lengths.get(pairIndex)) {
+            // The new geometry fits in the space occupied by the old one. Straight edges need not be moved at all.
+            // Extend-only copies cannot overwrite baseline coordinates this way, because they cannot set baseline
+            // offsets and lengths either (TIntAugmentedList throws an exception) so baseline edges never get here.
+            int offset = offsets.get(pairIndex);
+            for (int i = 0; i < packedCoordinates.length; i++) {
+                coordinates.set(offset + i, packedCoordinates[i]);
+            }
+        } else {
+            offsets.set(pairIndex, coordinates.size());
+            coordinates.add(packedCoordinates);
+        }
+        lengths.set(pairIndex, packedCoordinates.length);
+    }
+
+    /** Give the given edge pair the same geometry as an edge pair in another store, or in this same store. */
+    public void copy (PackedGeometryStore source, int sourcePairIndex, int pairIndex) {
+        set(pairIndex, source.get(sourcePairIndex));
+    }
+
+    /** @return the number of intermediate points (not including the endpoint vertices) on the given edge pair. */
+    public int nPoints (int pairIndex) {
+        return lengths.get(pairIndex) / 2;
+    }
+
+    /** @return the fixed-point latitude of the given intermediate point on the given edge pair. */
+    public int getFixedLat (int pairIndex, int point) {
+        return coordinates.get(offsets.get(pairIndex) + point * 2);
+    }
+
+    /** @return the fixed-point longitude of the given intermediate point on the given edge pair. */
+    public int getFixedLon (int pairIndex, int point) {
+        return coordinates.get(offsets.get(pairIndex) + point * 2 + 1);
+    }
+
+    /**
+     * @return a new packed array of the intermediate coordinates of the given edge pair, which can be modified by the
+     *         caller. Iterating with nPoints and getFixedLat/Lon avoids this allocation.
+     */
+    public int[] get (int pairIndex) {
+        int length = lengths.get(pairIndex);
+        if (length == 0) return EMPTY_INT_ARRAY;
+        int offset = offsets.get(pairIndex);
+        int[] packedCoordinates = new int[length];
+        for (int i = 0; i < length; i++) {
+            packedCoordinates[i] = coordinates.get(offset + i);
+        }
+        return packedCoordinates;
+    }
+
+    /**
+     * @return a copy of this store for use when applying scenarios, which shares the baseline coordinates with all
+     *         other copies and only extends them.
+     */
+    public PackedGeometryStore extendOnlyCopy () {
+        PackedGeometryStore copy = new PackedGeometryStore();
+        copy.coordinates = new TIntAugmentedList(coordinates);
+        copy.offsets = new TIntAugmentedList(offsets);
+        copy.lengths = new TIntAugmentedList(lengths);
+        return copy;
+    }
+
+}
@@ -0,0 +1,134 @@
+package com.conveyal.r5.streets;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.LineString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A spatial index with the same bins and query semantics as IntHashGrid, with the bins of an IntHashGrid packed into
+ * three flat arrays: the sorted keys of the non-empty bins, the offset of each bin's items, and the items themselves.
+ * This takes a fraction of the memory of one list object per bin in a hash map, is serialized in bulk with the network
+ * instead of being rebuilt each time it is loaded, and lets queries scan each row of bins in order.
+ *
+ * The packed bins are never modified. Items inserted after packing (such as edges created while linking transit stops
+ * during network building) go into a small IntHashGrid overlay that is also queried. As with IntHashGrid, queries
+ * overselect, and inserts are not synchronized but queries are thread-safe.
+ */
+public class PackedIntGrid implements Serializable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PackedIntGrid.class);
+
+    /* Size of bin in X and Y direction, in coordinate units. */
+    private final int xBinSize, yBinSize;
+
+    /** The keys of all non-empty bins in ascending order, see packKey. Bins are sorted by row, then by column. */
+    private final long[] keys;
+
+    /** The items of the bin with keys[i] are items[offsets[i]] until items[offsets[i + 1]]. */
+    private final int[] offsets;
+
+    /** The items of all bins, without duplicates within a bin. */
+    private final int[] items;
+
+    /** Items inserted after packing, or null if there are none. */
+    private IntHashGrid overlay;
+
+    /** Pack the given bins, keyed as in IntHashGrid. */
+    PackedIntGrid (int xBinSize, int yBinSize, TLongObjectMap<TIntList> bins) {
+        this.xBinSize = xBinSize;
+        this.yBinSize = yBinSize;
+        long[] hashKeys = bins.keys();
+        long[] packedKeys = new long[hashKeys.length];
+        Integer[] order = new Integer[hashKeys.length];
+        for (int i = 0; i < hashKeys.length; i++) {
+            packedKeys[i] = packKey(IntHashGrid.xKey(hashKeys[i]), IntHashGrid.yKey(hashKeys[i]));
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> packedKeys[i]));
+        keys = new long[hashKeys.length];
+        offsets = new int[hashKeys.length + 1];
+        TIntList allItems = new TIntArrayList();
+        for (int k = 0; k < keys.length; k++) {
+            keys[k] = packedKeys[order[k]];
+            offsets[k] = allItems.size();
+            int[] bin = bins.get(hashKeys[order[k]]).toArray();
+            Arrays.sort(bin);
+            // An item inserted more than once into a bin need only be stored once.
+            for (int j = 0; j < bin.length; j++) {
+                if (j == 0 || bin[j] != bin[j - 1]) allItems.add(bin[j]);
+            }
+        }
+        offsets[keys.length] = allItems.size();
+        items = allItems.toArray();
+    }
+
+    /** Insert an item in all the bins touching the given envelope, in fixed-point coordinates. */
+    public void insert (Envelope envelope, int item) {
+        getOverlay().insert(envelope, item);
+    }
+
+    /** Insert a linestring in floating-point coordinates, see IntHashGrid.insert(LineString, int). */
+    public void insert (LineString geom, int item) {
+        getOverlay().insert(geom, item);
+    }
+
+    /**
+     * The spatial index can and will return false positives, but should not produce false negatives.
+     * We return the unfiltered results including false positives. That is, this overselects and MUST BE FILTERED.
+     * @return all indexed objects within the envelope, and then some.
+     */
+    public TIntSet query (Envelope envelope) {
+        TIntSet result = new TIntHashSet();
+        long minXKey = Math.round(envelope.getMinX() / xBinSize);
+        long maxXKey = Math.round(envelope.getMaxX() / xBinSize);
+        long minYKey = Math.round(envelope.getMinY() / yBinSize);
+        long maxYKey = Math.round(envelope.getMaxY() / yBinSize);
+        if ((maxXKey - minXKey) * (maxYKey - minYKey) > 10000) {
+            LOG.error("Visiting too many spatial index cells.");
+            return result;
+        }
+        for (long yKey = minYKey; yKey <= maxYKey; yKey++) {
+            // The bins of each row that are within the envelope are consecutive in the keys array.
+            long lastKey = packKey(maxXKey, yKey);
+            int k = Arrays.binarySearch(keys, packKey(minXKey, yKey));
+            if (k < 0) k = -k - 1;
+            for (; k < keys.length && keys[k] <= lastKey; k++) {
+                for (int i = offsets[k]; i < offsets[k + 1]; i++) {
+                    result.add(items[i]);
+                }
+            }
+        }
+        if (overlay != null) {
+            result.addAll(overlay.query(envelope));
+        }
+        return result;
+    }
+
+    private IntHashGrid getOverlay () {
+        if (overlay == null) {
+            overlay = new IntHashGrid(xBinSize, yBinSize);
+        }
+        return overlay;
+    }
+
+    /** Keys ordered by row, then by column. Columns are offset so that negative ones sort before positive ones. */
+    private static long packKey (long xKey, long yKey) {
+        return (yKey << 32) | (xKey + 0x80000000L);
+    }
+
+    public String toString () {
+        return String.format("PackedIntGrid %d x %d, %d bins, %d entries, overlay %s",
+                xBinSize, yBinSize, keys.length, items.length, overlay);
+    }
+
+}
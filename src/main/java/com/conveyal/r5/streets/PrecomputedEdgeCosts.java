@@ -0,0 +1,65 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.profile.ProfileRequest;
+import com.conveyal.r5.profile.StreetMode;
+
+/**
+ * The result of checking permissions and computing traversal times for every edge in an EdgeStore, for one street
+ * mode and one set of request parameters (speeds, wheelchair accessibility, bike traffic stress). Many street searches
+ * are performed with exactly the same parameters, notably the access and egress searches for every origin in a
+ * regional analysis. Those searches can then look up each edge's cost in an array instead of re-evaluating flags and
+ * speeds on every relaxation.
+ *
+ * Only the characteristics of single edges are precomputed. Turn costs, turn restrictions and temporarily deleted
+ * edges depend on the path or the scenario and are still evaluated during the search.
+ *
+ * Instances are immutable and may be shared between threads. They are obtained from an EdgeCostCache.
+ */
+public class PrecomputedEdgeCosts {
+
+    /** A value in the modes array indicating that the edge cannot be traversed in this search at all. */
+    private static final byte NOT_TRAVERSABLE = -1;
+
+    private static final StreetMode[] STREET_MODES = StreetMode.values();
+
+    /** For each edge, the ordinal of the StreetMode actually used to traverse it (e.g. walking a bike), or -1. */
+    private final byte[] modes;
+
+    /** For each edge, the time in seconds to traverse it using the mode in the modes array. */
+    private final int[] traversalTimeSeconds;
+
+    PrecomputedEdgeCosts (EdgeStore edgeStore, StreetMode streetMode, ProfileRequest req,
+                          TraversalTimeCalculator timeCalculator) {
+        int nEdges = edgeStore.nEdges();
+        modes = new byte[nEdges];
+        traversalTimeSeconds = new int[nEdges];
+        EdgeStore.Edge edge = edgeStore.getCursor();
+        for (int e = 0; e < nEdges; e++) {
+            edge.seek(e);
+            StreetMode traversalMode = edge.getTraversalMode(streetMode, req);
+            if (traversalMode == null) {
+                modes[e] = NOT_TRAVERSABLE;
+            } else {
+                modes[e] = (byte) traversalMode.ordinal();
+                traversalTimeSeconds[e] = timeCalculator.traversalTimeSeconds(edge, traversalMode, req);
+            }
+        }
+    }
+
+    /** @return whether the given edge existed when these costs were computed. */
+    public boolean contains (int edge) {
+        return edge < modes.length;
+    }
+
+    /** @return the mode used to traverse the given edge, or null if the edge cannot be traversed. */
+    public StreetMode getTraversalMode (int edge) {
+        byte mode = modes[edge];
+        return mode == NOT_TRAVERSABLE ? null : STREET_MODES[mode];
+    }
+
+    /** @return the time in seconds to traverse the given edge, which is meaningless if it cannot be traversed. */
+    public int getTraversalTimeSeconds (int edge) {
+        return traversalTimeSeconds[edge];
+    }
+
+}
@@ -0,0 +1,128 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.osmlib.Node;
+import com.conveyal.osmlib.NodeTracker;
+import com.conveyal.osmlib.OSM;
+import com.conveyal.osmlib.OSMEntity;
+import com.conveyal.osmlib.OSMEntitySink;
+import com.conveyal.osmlib.PBFInput;
+import com.conveyal.osmlib.Relation;
+import com.conveyal.osmlib.Way;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.EnumSet;
+
+/**
+ * Loads only the parts of a PBF file that StreetLayer.loadFromOsm uses, instead of loading every node, way and
+ * relation with all their tags into an OSM MapDB and reading it all back. The file is read twice:
+ *
+ * The first pass skips the nodes, which are most of the file. It detects intersections among all ways exactly as OSM
+ * does when reading a whole file, but only stores the routable ways, the park and ride ways and the turn restriction
+ * relations, marking the nodes they reference in a NodeTracker.
+ *
+ * The second pass reads only the nodes, storing the coordinates of the marked ones and any park and ride nodes in a
+ * DenseNodeStore.
+ *
+ * The resulting OSM can be passed to StreetLayer.loadFromOsm like any other. It is missing everything else, so it
+ * should not be used for anything but building a street layer.
+ */
+public class StreamingOSMLoader implements OSMEntitySink {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StreamingOSMLoader.class);
+
+    private final OSM osm;
+
+    /** The nodes referenced by the ways and relations that were kept in the first pass. */
+    private final NodeTracker neededNodes = new NodeTracker();
+
+    private long nWaysRead = 0;
+
+    private long nNodesRead = 0;
+
+    private StreamingOSMLoader (OSM osm) {
+        this.osm = osm;
+    }
+
+    /** @return an OSM containing what is needed to build a street layer from the given PBF file. */
+    public static OSM load (File pbfFile) {
+        // The nodes are only needed while building the street layer, so they need not be saved.
+        OSM osm = new OSM(null, true);
+        StreamingOSMLoader loader = new StreamingOSMLoader(osm);
+        try {
+            LOG.info("Reading routable ways and turn restrictions from {}...", pbfFile);
+            loader.readPass(pbfFile, EnumSet.of(OSMEntity.Type.WAY, OSMEntity.Type.RELATION));
+            LOG.info("Kept {} of {} ways, referencing {} nodes.",
+                    osm.ways.size(), loader.nWaysRead, loader.neededNodes.cardinality());
+            LOG.info("Reading the nodes of routable ways from {}...", pbfFile);
+            loader.readPass(pbfFile, EnumSet.of(OSMEntity.Type.NODE));
+            LOG.info("Kept {} of {} nodes.", osm.nodes.size(), loader.nNodesRead);
+        } catch (IOException e) {
+            osm.close();
+            throw new RuntimeException("Error occurred while parsing OSM file " + pbfFile, e);
+        }
+        // Intersections were detected as the ways were read, StreetLayer.loadFromOsm requires this to be set.
+        osm.intersectionDetection = true;
+        return osm;
+    }
+
+    private void readPass (File pbfFile, EnumSet<OSMEntity.Type> entityTypes) throws IOException {
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(pbfFile))) {
+            PBFInput pbfInput = new PBFInput(inputStream);
+            pbfInput.entityTypes = entityTypes;
+            pbfInput.copyTo(this);
+        }
+    }
+
+    /* OSM ENTITY SINK INTERFACE, called once for each pass */
+
+    @Override
+    public void writeBegin () {
+        // Do nothing, the OSM is written to directly.
+    }
+
+    @Override
+    public void setReplicationTimestamp (long secondsSinceEpoch) {
+        osm.setReplicationTimestamp(secondsSinceEpoch);
+    }
+
+    @Override
+    public void writeNode (long id, Node node) {
+        nNodesRead++;
+        if (neededNodes.contains(id) || node.hasTag("park_ride", "yes")) {
+            osm.writeNode(id, node);
+        }
+    }
+
+    @Override
+    public void writeWay (long id, Way way) {
+        nWaysRead++;
+        // Ways that are not kept can still split the ways that are at the nodes they share, as in a complete OSM.
+        osm.detectIntersections(way);
+        if (StreetLayer.isWayRoutable(way) || way.hasTag("park_ride", "yes")) {
+            osm.writeWay(id, way);
+            neededNodes.addAll(way.nodes);
+        }
+    }
+
+    @Override
+    public void writeRelation (long id, Relation relation) {
+        if (relation.hasTag("type", "restriction")) {
+            osm.writeRelation(id, relation);
+            for (Relation.Member member : relation.members) {
+                if (member.type == OSMEntity.Type.NODE) neededNodes.add(member.id);
+            }
+        }
+    }
+
+    @Override
+    public void writeEnd () {
+        // Do nothing.
+    }
+
+}
@@ -49,6 +49,8 @@ import java.util.EnumSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.LongStream;
 
@@ -114,8 +116,11 @@ public class StreetLayer implements Serializable, Cloneable {
     public transient List<TIntList> outgoingEdges;
     public transient List<TIntList> incomingEdges;
 
-    /** A spatial index of all street network edges, using fixed-point WGS84 coordinates. */
-    public transient IntHashGrid spatialIndex = new IntHashGrid();
+    /**
+     * A spatial index of all street network edges, using fixed-point WGS84 coordinates. This is serialized with the
+     * network. It is null after loading a network saved without it, until the network's transient indexes are rebuilt.
+     */
+    public PackedIntGrid spatialIndex = new IntHashGrid().pack();
 
     /**
      * Spatial index of temporary edges from a scenario. We used to not have this, and we used to return all
@@ -188,6 +193,26 @@ public class StreetLayer implements Serializable, Cloneable {
      */
     public PickupWaitTimes pickupWaitTimes;
 
+    /**
+     * Lower bounds on path lengths between vertices, used for goal direction in point-to-point street searches.
+     * This is only built if requested in the network build configuration, otherwise it is null. It is also null in
+     * scenario copies that modify the street network, since new edges or speeds could invalidate the bounds.
+     */
+    public Landmarks landmarks;
+
+    /**
+     * A contraction hierarchy used to answer car searches within a time limit, such as car access searches in analysis.
+     * Like landmarks, this is only built if requested in the network build configuration and is null in scenario copies
+     * that modify the street network.
+     */
+    public CarContractionHierarchy carContractionHierarchy;
+
+    /** Walk and bike searches retained for reuse by access searches from nearby origins, created when first needed. */
+    private transient AccessSearchCache accessSearchCache;
+
+    /** StreetRouters retained for reuse by each thread, created when first needed. */
+    private transient StreetRouterPool routerPool;
+
     public static final EnumSet<EdgeStore.EdgeFlag> ALL_PERMISSIONS = EnumSet
         .of(EdgeStore.EdgeFlag.ALLOWS_BIKE, EdgeStore.EdgeFlag.ALLOWS_CAR,
             EdgeStore.EdgeFlag.ALLOWS_PEDESTRIAN, EdgeStore.EdgeFlag.NO_THRU_TRAFFIC,
@@ -224,7 +249,7 @@ public class StreetLayer implements Serializable, Cloneable {
      * @param way
      * @return
      */
-    private static boolean isWayRoutable(Way way) {
+    static boolean isWayRoutable(Way way) {
         boolean isRoutable = false;
 
         String highway = way.getTag("highway");
@@ -334,9 +359,12 @@ public class StreetLayer implements Serializable, Cloneable {
 
         List<Node> parkAndRideNodes = new ArrayList<>();
 
-        for (Node node : osm.nodes.values()) {
-            if (node.hasTag("park_ride", "yes")) parkAndRideNodes.add(node);
-        }
+        // The OSM keeps track of park and ride nodes, so we don't have to scan every node for them.
+        osm.parkAndRideNodes.forEach(nodeId -> {
+            Node node = osm.nodes.get(nodeId);
+            if (node != null) parkAndRideNodes.add(node);
+            return true; // continue iteration
+        });
 
         LOG.info("Done making street edges.");
         LOG.info("Made {} vertices and {} edges.", vertexStore.getVertexCount(), edgeStore.nEdges());
@@ -346,10 +374,8 @@ public class StreetLayer implements Serializable, Cloneable {
         buildEdgeLists();
         stressLabeler.applyIntersectionCosts(this);
         if (removeIslands) {
-            new TarjanIslandPruner(this, MIN_SUBGRAPH_SIZE, StreetMode.CAR).run();
             // due to bike walking, walk must go before bike, see comment in TarjanIslandPruner javadoc
-            new TarjanIslandPruner(this, MIN_SUBGRAPH_SIZE, StreetMode.WALK).run();
-            new TarjanIslandPruner(this, MIN_SUBGRAPH_SIZE, StreetMode.BICYCLE).run();
+            TarjanIslandPruner.pruneIslands(this, MIN_SUBGRAPH_SIZE);
         }
 
         // index the streets, we need the index to connect things to them.
@@ -369,7 +395,7 @@ public class StreetLayer implements Serializable, Cloneable {
 
         // create turn restrictions.
         // TODO transit splitting is going to mess this up
-        osm.relations.entrySet().stream().filter(e -> e.getValue().hasTag("type", "restriction")).forEach(e -> this.applyTurnRestriction(e.getKey(), e.getValue()));
+        createTurnRestrictions();
         LOG.info("Created {} turn restrictions", turnRestrictions.size());
 
         //edgesPerWayHistogram.display();
@@ -599,15 +625,51 @@ public class StreetLayer implements Serializable, Cloneable {
         created.setFlag(EdgeStore.EdgeFlag.LINK);
     }
 
+    /**
+     * Create turn restrictions from all the turn restriction relations in the OSM data. This is done in two phases.
+     * The first phase finds the edges affected by each restriction in parallel. It only reads the OSM data and the
+     * street layer, looking up all the ways referenced by restrictions once up front instead of in the nested loops
+     * of the via way search. The second phase adds the resulting restrictions to the street layer one by one, in
+     * relation ID order so the restriction indexes are the same from one build to the next.
+     */
+    private void createTurnRestrictions () {
+        List<Map.Entry<Long, Relation>> restrictionRelations = osm.relations.entrySet().stream()
+                .filter(e -> e.getValue().hasTag("type", "restriction"))
+                .collect(Collectors.toList());
+        long[] memberWayIds = restrictionRelations.stream()
+                .flatMap(e -> e.getValue().members.stream())
+                .filter(m -> m.type == OSMEntity.Type.WAY)
+                .mapToLong(m -> m.id)
+                .sorted().distinct().toArray();
+        Map<Long, Way> restrictionWays = new ConcurrentHashMap<>();
+        LongStream.of(memberWayIds).parallel().forEach(wayId -> {
+            Way way = osm.ways.get(wayId);
+            if (way != null) restrictionWays.put(wayId, way);
+        });
+        List<TurnRestriction> restrictions = restrictionRelations.parallelStream()
+                .map(e -> resolveTurnRestriction(e.getKey(), e.getValue(), restrictionWays))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        for (TurnRestriction restriction : restrictions) {
+            int index = turnRestrictions.size();
+            turnRestrictions.add(restriction);
+            edgeStore.addTurnRestriction(restriction.fromEdge, index);
+            addReverseTurnRestriction(restriction, index);
+        }
+    }
+
     /**
      * Given a turn restriction relation from OSM, find the affected edges in our street layer and create a turn
-     * restriction object to store this information. The restriction is added to the network and associated with
-     * the edges it affects, so the method need not return anything.
+     * restriction object to store this information. This does not modify the street layer, so it can be called from
+     * several threads at once. The caller is responsible for adding the restriction to the network.
      *
      * @param osmRelationId the OSM ID of the supplied turn restriction relation
      * @param restrictionRelation a turn restriction relation from OSM
+     * @param restrictionWays all the OSM ways referenced by turn restriction relations, by ID
+     * @return the turn restriction, or null if the relation is invalid or does not match the street layer.
      */
-    private void applyTurnRestriction (long osmRelationId, Relation restrictionRelation) {
+    private TurnRestriction resolveTurnRestriction (long osmRelationId, Relation restrictionRelation,
+                                                    Map<Long, Way> restrictionWays) {
 
         // If true, this is an "only" turn restriction rather than a "no" turn restriction, as in
         // "right turn only" rather than "no right turn".
@@ -616,14 +678,14 @@ public class StreetLayer implements Serializable, Cloneable {
         if (!restrictionRelation.hasTag("restriction")) {
             // TODO shouldn't this just be an assertion, checking for bugs?
             LOG.error("Restriction {} has no restriction tag, skipping", osmRelationId);
-            return;
+            return null;
         }
 
         if (restrictionRelation.getTag("restriction").startsWith("no_")) only = false;
         else if (restrictionRelation.getTag("restriction").startsWith("only_")) only = true;
         else {
             LOG.error("Restriction {} has invalid restriction tag {}, skipping", osmRelationId, restrictionRelation.getTag("restriction"));
-            return;
+            return null;
         }
 
         TurnRestriction restriction = new TurnRestriction();
@@ -637,22 +699,22 @@ public class StreetLayer implements Serializable, Cloneable {
             if ("from".equals(member.role)) {
                 if (from != null) {
                     LOG.error("Turn restriction {} has multiple 'from' members, skipping.", osmRelationId);
-                    return;
+                    return null;
                 }
                 if (member.type != OSMEntity.Type.WAY) {
                     LOG.error("Turn restriction {} has a 'from' member that is not a way, skipping.", osmRelationId);
-                    return;
+                    return null;
                 }
                 from = member;
             }
             else if ("to".equals(member.role)) {
                 if (to != null) {
                     LOG.error("Turn restriction {} has multiple 'to' members, skipping.", osmRelationId);
-                    return;
+                    return null;
                 }
                 if (member.type != OSMEntity.Type.WAY) {
                     LOG.error("Turn restriction {} has a 'to' member that is not a way, skipping.", osmRelationId);
-                    return;
+                    return null;
                 }
                 to = member;
             }
@@ -662,25 +724,25 @@ public class StreetLayer implements Serializable, Cloneable {
             // Osmosis may produce situations where referential integrity is violated, probably at the edge of the
             // bounding box where half a turn restriction is outside the box.
             if (member.type == OSMEntity.Type.WAY) {
-                if (!osm.ways.containsKey(member.id)) {
+                if (!restrictionWays.containsKey(member.id)) {
                     LOG.warn("Turn restriction relation {} references nonexistent way {}, dropping this relation",
                             osmRelationId,
                             member.id);
-                    return;
+                    return null;
                 }
             } else if (member.type == OSMEntity.Type.NODE) {
                 if (!osm.nodes.containsKey(member.id)) {
                     LOG.warn("Turn restriction relation {} references nonexistent node {}, dropping this relation",
                             osmRelationId,
                             member.id);
-                    return;
+                    return null;
                 }
             }
         }
 
         if (from == null || to == null || via.isEmpty()) {
             LOG.error("Invalid turn restriction {}, does not have from, to and via, skipping", osmRelationId);
-            return;
+            return null;
         }
 
         boolean hasViaWays = false, hasViaNodes = false;
@@ -690,13 +752,13 @@ public class StreetLayer implements Serializable, Cloneable {
             else if (m.type == OSMEntity.Type.NODE) hasViaNodes = true;
             else {
                 LOG.error("via must be node or way, skipping restriction {}", osmRelationId);
-                return;
+                return null;
             }
         }
 
         if ((hasViaWays && hasViaNodes) || (hasViaNodes && via.size() > 1)) {
             LOG.error("via must be single node or one or more ways, skipping restriction {}", osmRelationId);
-            return;
+            return null;
         }
 
         EdgeStore.Edge e = edgeStore.getCursor();
@@ -707,7 +769,7 @@ public class StreetLayer implements Serializable, Cloneable {
             int vertex = vertexIndexForOsmNode.get(via.get(0).id);
             if (vertex == -1) {
                 LOG.warn("Vertex {} not found to use as via node for restriction {}, skipping this restriction", via.get(0).id, osmRelationId);
-                return;
+                return null;
             }
             // use array to dodge Java closure "effectively final" nonsense
             final int[] fromEdge = new int[] { -1 };
@@ -746,26 +808,22 @@ public class StreetLayer implements Serializable, Cloneable {
                 return true; // iteration should continue
             });
 
-            if (bad[0]) return; // log message already printed
+            if (bad[0]) return null; // log message already printed
 
             if (fromEdge[0] == -1 || toEdge[0] == -1) {
                 LOG.warn("Did not find from/to edges for restriction {}, skipping", osmRelationId);
-                return;
+                return null;
             }
 
-            // phew. create the restriction and apply it where needed
+            // phew. create the restriction
             restriction.fromEdge = fromEdge[0];
             restriction.toEdge = toEdge[0];
-
-            int newRestrictionIndex = turnRestrictions.size();
-            turnRestrictions.add(restriction);
-            edgeStore.turnRestrictions.put(restriction.fromEdge, newRestrictionIndex);
-            addReverseTurnRestriction(restriction, newRestrictionIndex);
+            return restriction;
         } else {
             // The restriction's via member(s) are ways, which is more tricky than a restriction via a single node.
-            Way fromWay = osm.ways.get(from.id);
-            long[][] viaNodes = via.stream().map(m -> osm.ways.get(m.id).nodes).toArray(i -> new long[i][]);
-            Way toWay = osm.ways.get(to.id);
+            Way fromWay = restrictionWays.get(from.id);
+            long[][] viaNodes = via.stream().map(m -> restrictionWays.get(m.id).nodes).toArray(i -> new long[i][]);
+            Way toWay = restrictionWays.get(to.id);
 
             // We need to convert from an unordered set of OSM ways to an ordered sequence of R5 edges, where the
             // edges may be smaller than the ways. We do a search, finding a path through our street graph that touches
@@ -799,7 +857,7 @@ public class StreetLayer implements Serializable, Cloneable {
                 for (int statePos = 0; statePos < previousNodes.size(); statePos++) {
                     // get the way we are on and search all its nodes
                     long wayId = previousWays.get(statePos)[round];
-                    Way way = osm.ways.get(wayId);
+                    Way way = restrictionWays.get(wayId);
 
                     for (long node : way.nodes) {
                         VIA:
@@ -811,7 +869,7 @@ public class StreetLayer implements Serializable, Cloneable {
                                 if (viaWayId == prevWay) continue VIA;
                             }
 
-                            for (long viaNode : osm.ways.get(viaWayId).nodes) {
+                            for (long viaNode : restrictionWays.get(viaWayId).nodes) {
                                 if (viaNode == node) {
                                     long[] newNodes = Arrays.copyOf(previousNodes.get(statePos), round + 2);
                                     long[] newWays = Arrays.copyOf(previousWays.get(statePos), round + 2);
@@ -835,14 +893,14 @@ public class StreetLayer implements Serializable, Cloneable {
 
             for (int statePos = 0; statePos < nodes.size(); statePos++) {
                 long[] theseWays = ways.get(statePos);
-                Way finalWay = osm.ways.get(theseWays[theseWays.length - 1]);
+                Way finalWay = restrictionWays.get(theseWays[theseWays.length - 1]);
 
                 for (long node : finalWay.nodes) {
                     for (long toNode : toWay.nodes) {
                         if (node == toNode) {
                             if (pathNodes != null) {
                                 LOG.error("Turn restriction {} has ambiguous via ways (multiple paths through via ways between from and to), skipping", osmRelationId);
-                                return;
+                                return null;
                             }
 
                             pathNodes = Arrays.copyOf(nodes.get(statePos), theseWays.length + 1);
@@ -855,7 +913,7 @@ public class StreetLayer implements Serializable, Cloneable {
 
             if (pathNodes == null) {
                 LOG.error("Invalid turn restriction {}, no way from from to to via via, skipping", osmRelationId);
-                return;
+                return null;
             }
 
             // convert OSM nodes and ways into IDs
@@ -901,11 +959,11 @@ public class StreetLayer implements Serializable, Cloneable {
                 return true; // iteration should continue
             });
 
-            if (bad[0]) return; // log message already printed
+            if (bad[0]) return null; // log message already printed
 
             if (fromEdge[0] == -1 || toEdge[0] == -1) {
                 LOG.error("Did not find from/to edges for restriction {}, skipping", osmRelationId);
-                return;
+                return null;
             }
 
             restriction.fromEdge = fromEdge[0];
@@ -925,7 +983,6 @@ public class StreetLayer implements Serializable, Cloneable {
                     e.seek(eidx);
                     if (e.getOSMID() == wayId) {
                         if (edge[0] != -1) {
-                            // TODO we've already started messing with data structures!
                             LOG.error("To way exits vertex {} twice, restriction {} is therefore ambiguous, skipping", vertex, osmRelationId);
                             bad[0] = true;
                             return false;
@@ -937,10 +994,10 @@ public class StreetLayer implements Serializable, Cloneable {
                     return true; // iteration should continue
                 });
 
-                if (bad[0]) return; // log message already printed
+                if (bad[0]) return null; // log message already printed
                 if (edge[0] == -1) {
                     LOG.warn("Did not find via way {} for restriction {}, skipping", wayId, osmRelationId);
-                    return;
+                    return null;
                 }
 
                 affectedEdges.add(edge[0]);
@@ -950,12 +1007,8 @@ public class StreetLayer implements Serializable, Cloneable {
 
             restriction.viaEdges = affectedEdges.toArray();
 
-            int index = turnRestrictions.size();
-            turnRestrictions.add(restriction);
-            edgeStore.turnRestrictions.put(restriction.fromEdge, index);
-            addReverseTurnRestriction(restriction, index);
-
             // take a deep breath
+            return restriction;
         }
     }
 
@@ -978,10 +1031,10 @@ public class StreetLayer implements Serializable, Cloneable {
             for (TurnRestriction remapped_restriction: remapped) {
                 index = turnRestrictions.size();
                 turnRestrictions.add(remapped_restriction);
-                edgeStore.turnRestrictionsReverse.put(remapped_restriction.toEdge, index);
+                edgeStore.addReverseTurnRestriction(remapped_restriction.toEdge, index);
             }
         } else {
-            edgeStore.turnRestrictionsReverse.put(turnRestriction.toEdge, index);
+            edgeStore.addReverseTurnRestriction(turnRestriction.toEdge, index);
         }
     }
 
@@ -1112,13 +1165,15 @@ public class StreetLayer implements Serializable, Cloneable {
 
     public void indexStreets () {
         LOG.info("Indexing streets...");
-        spatialIndex = new IntHashGrid();
+        IntHashGrid grid = new IntHashGrid();
         // Skip by twos, we only need to index forward (even) edges. Their odd companions have the same geometry.
         Edge edge = edgeStore.getCursor();
         for (int e = 0; e < edgeStore.nEdges(); e += 2) {
             edge.seek(e);
-            spatialIndex.insert(edge.getGeometry(), e);
+            grid.insert(edge.getGeometry(), e);
         }
+        spatialIndex = grid.pack();
+        LOG.info("Packed spatial index: {}", spatialIndex);
         LOG.info("Done indexing streets.");
     }
 
@@ -1315,7 +1370,7 @@ public class StreetLayer implements Serializable, Cloneable {
         // clean up any turn restrictions that exist
         // turn restrictions on the forward edge go to the new edge's forward edge. Turn restrictions on the back edge stay
         // where they are
-        edgeStore.turnRestrictions.removeAll(split.edge).forEach(ridx -> edgeStore.turnRestrictions.put(newEdge.edgeIndex, ridx));
+        edgeStore.moveTurnRestrictions(split.edge, newEdge.edgeIndex);
 
         return newVertexIndex;
         // TODO store street-to-stop distance in a table in TransitLayer. This also allows adjusting for subway entrances etc.
@@ -1393,6 +1448,9 @@ public class StreetLayer implements Serializable, Cloneable {
             transitLayer.streetVertexForStop.add(stopVertex); // This is always a valid, unique vertex index.
             // The inverse stopForStreetVertex map is a transient, derived index and will be built later.
         }
+        // Link edges are not added to the spatial index as they are created. This is the last step adding edges while
+        // building a network, so index them all now, as the index is saved with the network.
+        indexStreets();
     }
 
     public int getVertexCount() {
@@ -1403,6 +1461,22 @@ public class StreetLayer implements Serializable, Cloneable {
         return envelope;
     }
 
+    /** @return the cache of walk and bike searches for access from nearby origins, creating it if necessary. */
+    public synchronized AccessSearchCache getAccessSearchCache () {
+        if (accessSearchCache == null) {
+            accessSearchCache = new AccessSearchCache(this);
+        }
+        return accessSearchCache;
+    }
+
+    /** @return the StreetRouters retained for reuse by each thread on this StreetLayer, creating them if necessary. */
+    public synchronized StreetRouterPool getRouterPool () {
+        if (routerPool == null) {
+            routerPool = new StreetRouterPool(this);
+        }
+        return routerPool;
+    }
+
     /**
      * We intentionally avoid using clone() on EdgeStore and VertexStore so all field copying is explicit and we can
      * clearly see whether we are accidentally shallow-copying any collections or data structures from the base graph.
@@ -1429,9 +1503,14 @@ public class StreetLayer implements Serializable, Cloneable {
             // The extend-only copy of the EdgeStore also contains a new extend-only copy of the VertexStore.
             copy.vertexStore = copy.edgeStore.vertexStore;
             copy.temporaryEdgeIndex = new IntHashGrid();
+            copy.landmarks = null;
+            copy.carContractionHierarchy = null;
+            copy.accessSearchCache = null;
         }
         copy.parentNetwork = newScenarioNetwork;
         copy.baseStreetLayer = this;
+        // Pooled routers refer to the StreetLayer they were created for, which may not be shared with the copy.
+        copy.routerPool = null;
         return copy;
     }
 
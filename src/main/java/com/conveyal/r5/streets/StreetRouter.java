@@ -9,8 +9,10 @@ import com.conveyal.r5.transit.TransitLayer;
 import com.conveyal.r5.transit.TransportNetwork;
 import com.conveyal.r5.util.TIntObjectHashMultimap;
 import com.conveyal.r5.util.TIntObjectMultimap;
+import gnu.trove.iterator.TIntIntIterator;
 import gnu.trove.iterator.TIntIterator;
 import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntIntHashMap;
@@ -29,6 +31,7 @@ import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.Iterator;
@@ -84,6 +87,17 @@ public class StreetRouter {
      */
     public TraversalTimeCalculator timeCalculator;
 
+    /** The calculator this router was created with. Edge costs can only be precomputed for this calculator. */
+    private final TraversalTimeCalculator defaultTimeCalculator;
+
+    /**
+     * If true and the default timeCalculator is in use, permissions and traversal times of individual edges are
+     * looked up in a table shared by all searches with the same mode and parameters, rather than evaluated on every
+     * edge traversal. Building the table requires a pass over every edge in the network, so this is only worthwhile
+     * if many searches will be performed, but that is nearly always the case on analysis workers.
+     */
+    public boolean usePrecomputedEdgeCosts = true;
+
     // These are used for scaling coordinates in approximate distance calculations.
     // The lon value must be properly scaled to underestimate distances in the region where we're routing.
     private static final double MM_PER_UNIT_LAT_FIXED =
@@ -92,6 +106,11 @@ public class StreetRouter {
     // Yes, that's indeed the speed unit "seconds per millimeter", to avoid computing 1/x repeatedly.
     private double maxSpeedSecondsPerMillimeter;
 
+    // Landmarks giving lower bounds on the remaining path length to the destination, or null if none are available.
+    private Landmarks landmarks;
+    // True if the landmark bounds used are driving times in seconds rather than distances in millimeters.
+    private boolean landmarkCarSeconds;
+
     /**
      * The StreetRouter will respect any nonzero limits, and will stop the search when it hits either of them.
      * If both limits are zero a warning will be logged. If both are set, both are used, but you should never do this.
@@ -143,9 +162,9 @@ public class StreetRouter {
      * apply that left turn cost. Even more important is to make sure that the destination edge is not the end of a
      * restricted turn; if it is, one must reach the destination via an alternate state.
      *
-     * TODO we might be able to make this more efficient (not using a multimap)
-     * by taking advantage of the fact that we almost always have a single state per edge
-     * (the only time we don't is when we're in the middle of a turn restriction).
+     * We almost always have a single state per edge (the only time we don't is when we're in the middle of a turn
+     * restriction). When flatStates is in use, this multimap only holds origin states and states in turn
+     * restrictions, and all other states are held in flatStates.
      */
     TIntObjectMultimap<State> bestStatesAtEdge = new TIntObjectHashMultimap<>();
 
@@ -153,6 +172,36 @@ public class StreetRouter {
     PriorityQueue<State> queue = new PriorityQueue<>(
             Comparator.comparingInt(s0 -> (s0.getRoutingVariable(quantityToMinimize) + s0.heuristic)));
 
+    /**
+     * If true, searches that do not need to observe every state as it is explored (those without a destination,
+     * RoutingVisitor, transit stop search or flag search, which includes all access and egress searches in analysis)
+     * store states that are not in turn restrictions in flat arrays instead of creating a State object for each one.
+     * State objects are then only created on demand when retrieving results.
+     */
+    public boolean useFlatStates = true;
+
+    /**
+     * The best states outside turn restrictions, with their own queue which is explored in step with the queue of
+     * State objects. This is null when State objects are used for all states.
+     */
+    private EdgeStateArrays flatStates;
+
+    /** Flat state arrays no longer in use, kept so that later searches by this router can reuse them. */
+    private EdgeStateArrays spareFlatStates;
+
+    /** For states in flatStates that were reached from a State object, that object keyed on the state's edge. */
+    private final TIntObjectMap<State> flatStatePredecessors = new TIntObjectHashMap<>();
+
+    /** State objects already created for states in flatStates, so paths to nearby edges can share them. */
+    private final TIntObjectMap<State> materializedFlatStates = new TIntObjectHashMap<>();
+
+    /**
+     * If true, car searches that would use flatStates and have only a time limit are answered using the StreetLayer's
+     * CarContractionHierarchy when it has one, rather than exploring the network edge by edge. This includes car
+     * access searches and car egress cost tables in analysis.
+     */
+    public boolean useContractionHierarchy = true;
+
     /**
      * If you set this to a non-negative number, the search will end at the vertex with the given index,
      * and will be directed toward that vertex.
@@ -217,8 +266,8 @@ public class StreetRouter {
         TransitLayer transitLayer = streetLayer.parentNetwork.transitLayer;
         transitLayer.stopForStreetVertex.forEachEntry((streetVertex, stop) -> {
             if (streetVertex == -1) return true;
-            State state = getStateAtVertex(streetVertex);
-            if (state != null) result.put(stop, state.getRoutingVariable(quantityToMinimize));
+            int value = getBestValueAtVertex(streetVertex, quantityToMinimize);
+            if (value != Integer.MAX_VALUE) result.put(stop, value);
             return true; // continue iteration
         });
         return result;
@@ -245,6 +294,16 @@ public class StreetRouter {
 
             return true; // continue iteration
         });
+        if (flatStates != null) {
+            TIntList edges = flatStates.getEdges();
+            for (int i = 0; i < edges.size(); i++) {
+                int eidx = edges.get(i);
+                int value = flatStates.getRoutingVariable(eidx);
+                e.seek(eidx);
+                int vidx = e.getToVertex();
+                if (!result.containsKey(vidx) || result.get(vidx) > value) result.put(vidx, value);
+            }
+        }
         return result;
     }
 
@@ -283,17 +342,27 @@ public class StreetRouter {
 
             return true; // continue iteration
         });
+        if (flatStates != null) {
+            TIntList edges = flatStates.getEdges();
+            for (int i = 0; i < edges.size(); i++) {
+                int eidx = edges.get(i);
+                e.seek(eidx);
+                int vidx = e.getToVertex();
+                v.seek(vidx);
+                if (v.getFlag(flag) && (!result.containsKey(vidx) ||
+                        result.get(vidx).getRoutingVariable(quantityToMinimize) > flatStates.getRoutingVariable(eidx))) {
+                    result.put(vidx, materializeFlatState(eidx));
+                }
+            }
+        }
         return result;
     }
 
     public StreetRouter (StreetLayer streetLayer) {
         this.streetLayer = streetLayer;
-        this.timeCalculator = streetLayer.edgeStore.edgeTraversalTimes;
-        // If no per-edge timings were supplied in the network, fall back on simple default timings
-        if (this.timeCalculator == null) {
-            // TODO one of two things: 1) don't hardwire drive-on-right, or 2) https://en.wikipedia.org/wiki/Dagen_H
-            this.timeCalculator = new BasicTraversalTimeCalculator(streetLayer, true);
-        }
+        // If no per-edge timings were supplied in the network, this falls back on simple default timings
+        this.timeCalculator = streetLayer.edgeStore.getDefaultTraversalTimeCalculator();
+        this.defaultTimeCalculator = this.timeCalculator;
     }
 
 
@@ -319,31 +388,29 @@ public class StreetRouter {
         }
 
         originSplit = split;
-        bestStatesAtEdge.clear();
-        queue.clear();
+        clearStates();
         // The states are located at the end of edges. Vertex0 is at the end of the reverse edge (split.edge + 1).
         // In these states we must specify which edge was traversed to reach them, so that turn costs work.
-        State startState0 = new State(split.vertex0, split.edge + 1, streetMode);
-        State startState1 = new State(split.vertex1, split.edge, streetMode);
+        // In a reverse search the states are at the start of the edges instead, from which the edges lead to the
+        // origin point, so each state is at the other vertex and covers the other part of its edge.
+        boolean reverse = profileRequest.reverseSearch;
+        State startState0 = new State(reverse ? split.vertex1 : split.vertex0, split.edge + 1, streetMode);
+        State startState1 = new State(reverse ? split.vertex0 : split.vertex1, split.edge, streetMode);
+        int distance0_mm = reverse ? split.distance1_mm : split.distance0_mm;
+        int distance1_mm = reverse ? split.distance0_mm : split.distance1_mm;
         EdgeStore.Edge  edge = streetLayer.edgeStore.getCursor(split.edge);
         int offStreetTime = split.distanceToEdge_mm / OFF_STREET_SPEED_MILLIMETERS_PER_SECOND;
 
         // Uses weight based on distance from end vertices, and speed on edge which depends on transport mode
         float speedMetersPerSecond = edge.calculateSpeed(profileRequest, streetMode);
-        startState1.durationSeconds = (int) ((split.distance1_mm / 1000) / speedMetersPerSecond) + offStreetTime;
-        startState1.distance = split.distance1_mm + split.distanceToEdge_mm;
+        startState1.durationSeconds = (int) ((distance1_mm / 1000) / speedMetersPerSecond) + offStreetTime;
+        startState1.distance = distance1_mm + split.distanceToEdge_mm;
         edge.advance();
 
         // Speed can be different on opposite sides of the same street
         speedMetersPerSecond = edge.calculateSpeed(profileRequest, streetMode);
-        startState0.durationSeconds = (int) ((split.distance0_mm / 1000) / speedMetersPerSecond) + offStreetTime;
-        startState0.distance = split.distance0_mm + split.distanceToEdge_mm;
-
-        // FIXME Below is reversing the vertices, but then aren't the weights, times, distances wrong? Why are we even doing this?
-        if (profileRequest.reverseSearch) {
-             startState0.vertex = split.vertex1;
-             startState1.vertex = split.vertex0;
-        }
+        startState0.durationSeconds = (int) ((distance0_mm / 1000) / speedMetersPerSecond) + offStreetTime;
+        startState0.distance = distance0_mm + split.distanceToEdge_mm;
 
         // If there is a turn restriction on this edge, we need to indicate that we are beginning the search in a
         // turn restriction.
@@ -362,8 +429,7 @@ public class StreetRouter {
     }
 
     public void setOrigin (int fromVertex) {
-        bestStatesAtEdge.clear();
-        queue.clear();
+        clearStates();
 
         // sets maximal absolute origin latitude used for goal direction heuristic
         VertexStore.Vertex vertex = streetLayer.vertexStore.getCursor(fromVertex);
@@ -386,8 +452,7 @@ public class StreetRouter {
      * @param legMode What origin search is this bike share or P+R
      */
     public void setOrigin(TIntObjectMap<State> previousStates, int switchTime, int switchCost, LegMode legMode) {
-        bestStatesAtEdge.clear();
-        queue.clear();
+        clearStates();
         //Maximal origin latitude is used in goal direction heuristic.
         final int[] maxOriginLatArr = { Integer.MIN_VALUE };
 
@@ -414,6 +479,53 @@ public class StreetRouter {
 
     }
 
+    /** Discard all states and queued states from any previous search. */
+    private void clearStates () {
+        bestStatesAtEdge.clear();
+        queue.clear();
+        releaseFlatStates();
+        flatStatePredecessors.clear();
+        materializedFlatStates.clear();
+    }
+
+    /** Stop using flatStates, keeping the arrays for reuse by a later search. */
+    private void releaseFlatStates () {
+        if (flatStates != null) spareFlatStates = flatStates;
+        flatStates = null;
+    }
+
+    /**
+     * Discard the results of any previous search and restore every setting to its default, so that this router can
+     * be used for a new search exactly as if it had just been constructed. Its queue, maps and flat state arrays
+     * keep the capacity they have grown to, so routers reused for every origin of an analysis (see
+     * StreetRouterPool) do not allocate and grow them again each time.
+     */
+    public void reset () {
+        clearStates();
+        transitStopSearch = false;
+        flagSearch = null;
+        transitStopSearchQuantity = PointToPointQuery.MAX_ACCESS_STOPS;
+        flagSearchQuantity = 20;
+        timeCalculator = defaultTimeCalculator;
+        usePrecomputedEdgeCosts = true;
+        landmarks = null;
+        landmarkCarSeconds = false;
+        distanceLimitMeters = 0;
+        timeLimitSeconds = 0;
+        quantityToMinimize = State.RoutingVariable.DURATION_SECONDS;
+        useFlatStates = true;
+        useContractionHierarchy = true;
+        toVertex = ALL_VERTICES;
+        profileRequest = new ProfileRequest();
+        streetMode = StreetMode.WALK;
+        routingVisitor = null;
+        originSplit = null;
+        destinationSplit = null;
+        bestValueAtDestination = Integer.MAX_VALUE;
+        maxAbsOriginLat = Integer.MIN_VALUE;
+        previousRouter = null;
+    }
+
     /**
      * Finds closest vertex which has streetMode permissions
      *
@@ -432,7 +544,7 @@ public class StreetRouter {
 
     /**
      * Call one of the setOrigin functions first before calling route().
-     * Don't call route() more than once, a StreetRouter is only intended to be used once.
+     * Don't call route() more than once for the same search. To reuse a StreetRouter for another search, call reset().
      * Routing will respect any nonzero limits (distance or time), and will stop the search when it hits either of them.
      * If both limits are zero a warning will be logged. If both are set, both are used, but you should not do this
      * because it always implies a resource limiting problem.
@@ -463,6 +575,15 @@ public class StreetRouter {
             // Car speed is currently often unspecified in the request and defaults to zero.
             if (maxSpeedMetersPerSecond == 0) maxSpeedMetersPerSecond = 36.11; // 130 km/h
             maxSpeedSecondsPerMillimeter = 1 / (maxSpeedMetersPerSecond * 1000);
+            // Landmarks give much better lower bounds on network distance, and for cars on driving time. The driving
+            // times are computed from edge speeds, so they are only valid for the default time calculator.
+            Landmarks layerLandmarks = streetLayer.landmarks;
+            if (layerLandmarks != null && layerLandmarks.isValidFor(streetLayer) &&
+                    layerLandmarks.contains(destinationSplit.vertex0) && layerLandmarks.contains(destinationSplit.vertex1)) {
+                landmarks = layerLandmarks;
+                landmarkCarSeconds = streetMode == StreetMode.CAR && timeCalculator == defaultTimeCalculator &&
+                        quantityToMinimize == State.RoutingVariable.DURATION_SECONDS;
+            }
         }
 
         if (distanceLimitMeters > 0) {
@@ -515,12 +636,50 @@ public class StreetRouter {
 
         EdgeStore.Edge edge = streetLayer.edgeStore.getCursor();
 
+        final PrecomputedEdgeCosts precomputedCosts;
+        if (usePrecomputedEdgeCosts && timeCalculator == defaultTimeCalculator) {
+            precomputedCosts = streetLayer.edgeStore.getEdgeCostCache().get(streetMode, profileRequest);
+        } else {
+            precomputedCosts = null;
+        }
+
         if (transitStopSearch) {
             routingVisitor = new StopVisitor(streetLayer, quantityToMinimize, transitStopSearchQuantity, profileRequest.getMinTimeSeconds(streetMode));
         } else if (flagSearch != null) {
             routingVisitor = new VertexFlagVisitor(streetLayer, quantityToMinimize, flagSearch, flagSearchQuantity, profileRequest.getMinTimeSeconds(streetMode));
         }
-        while (!queue.isEmpty()) {
+
+        // Flat states are never passed to the RoutingVisitor or used for target pruning, so only use them when
+        // neither is needed. If a search continues with different settings, fall back on State objects.
+        boolean canUseFlatStates = useFlatStates && routingVisitor == null && destinationSplit == null && !DEBUG_OUTPUT;
+        if (flatStates != null && !(canUseFlatStates && flatStates.routingVariable == quantityToMinimize)) {
+            moveFlatStatesToObjects();
+        } else if (flatStates == null && canUseFlatStates) {
+            if (spareFlatStates != null) {
+                flatStates = spareFlatStates;
+                flatStates.reset(quantityToMinimize);
+                spareFlatStates = null;
+            } else {
+                flatStates = new EdgeStateArrays(streetLayer.edgeStore.nEdges(), quantityToMinimize);
+            }
+        }
+        if (flatStates != null && canRouteWithContractionHierarchy()) {
+            // This finds all the states within the time limit and empties the queues, so the loop below does nothing.
+            routeWithContractionHierarchy(tmpTimeLimitSeconds);
+        }
+
+        while (true) {
+            // Explore whichever of the two queues holds the state with the lower routing variable.
+            if (flatStates != null && !flatStates.isQueueEmpty() && (queue.isEmpty() ||
+                    flatStates.peekRoutingVariable() < queue.peek().getRoutingVariable(quantityToMinimize) + queue.peek().heuristic)) {
+                int backEdge = flatStates.poll();
+                edge.seek(backEdge);
+                int vertex = profileRequest.reverseSearch ? edge.getFromVertex() : edge.getToVertex();
+                if (toVertex > 0 && toVertex == vertex) break;
+                exploreFlatState(backEdge, vertex, edge, precomputedCosts, distanceLimitMm, tmpTimeLimitSeconds);
+                continue;
+            }
+            if (queue.isEmpty()) break;
             State s0 = queue.poll();
 
             if (DEBUG_OUTPUT) {
@@ -584,14 +743,9 @@ public class StreetRouter {
             // explore edges leaving this vertex
             edgeList.forEach(eidx -> {
                 edge.seek(eidx);
-                State s1 = edge.traverse(s0, streetMode, profileRequest, timeCalculator);
+                State s1 = edge.traverse(s0, streetMode, profileRequest, timeCalculator, precomputedCosts);
                 if (s1 != null && s1.distance <= distanceLimitMm && s1.getDurationSeconds() < tmpTimeLimitSeconds) {
-                    if (!isDominated(s1)) {
-                        // Calculate the heuristic (which involves a square root) only when the state is retained.
-                        s1.heuristic = calcHeuristic(s1);
-                        bestStatesAtEdge.put(s1.backEdge, s1);
-                        queue.add(s1);
-                    }
+                    retainIfNotDominated(s1, s0);
                 }
                 return true; // Iteration over the edge list should continue.
             });
@@ -603,6 +757,329 @@ public class StreetRouter {
         LOG.debug("Routing took {} msec", routingTimeMsec);
     }
 
+    /** @return whether this router finds traversal times with the default calculator for its StreetLayer. */
+    boolean usesDefaultTimeCalculator () {
+        return timeCalculator == defaultTimeCalculator;
+    }
+
+    /**
+     * @return whether the search about to begin can be answered with the StreetLayer's CarContractionHierarchy. That
+     *         only finds driving times with the default traversal time calculator, so it cannot apply a distance limit
+     *         or stop at a destination. It also requires a new search from origin states that have no preceding
+     *         states and are not at the end of link edges, like those created by setOrigin(lat, lon).
+     */
+    private boolean canRouteWithContractionHierarchy () {
+        CarContractionHierarchy hierarchy = streetLayer.carContractionHierarchy;
+        EdgeStore edgeStore = streetLayer.edgeStore;
+        if (!useContractionHierarchy || hierarchy == null || !hierarchy.isValidFor(streetLayer)) return false;
+        // The hierarchy is built with free-flow speeds, which do not vary over the day.
+        if (edgeStore.congestionProfiles != null) return false;
+        if (streetMode != StreetMode.CAR || quantityToMinimize != State.RoutingVariable.DURATION_SECONDS ||
+                profileRequest.reverseSearch || timeCalculator != defaultTimeCalculator) {
+            return false;
+        }
+        if (timeLimitSeconds <= 0 || distanceLimitMeters > 0 || toVertex != ALL_VERTICES) return false;
+        if (edgeStore.temporarilyDeletedEdges != null && !edgeStore.temporarilyDeletedEdges.isEmpty()) return false;
+        if (queue.isEmpty() || !flatStates.getEdges().isEmpty()) return false;
+        EdgeStore.Edge edge = edgeStore.getCursor();
+        TIntSet originEdges = new TIntHashSet();
+        for (State state : queue) {
+            if (state.backState != null || state.backEdge < 0 || !originEdges.add(state.backEdge)) return false;
+            edge.seek(state.backEdge);
+            if (edge.getFlag(EdgeStore.EdgeFlag.LINK)) return false;
+            // The hierarchy only has a node for a state at the start of an edge with the restrictions starting there.
+            if ((state.turnRestrictions == null) == edgeStore.turnRestrictions.containsKey(state.backEdge)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Find every state within the time limit using the StreetLayer's CarContractionHierarchy, then record them as
+     * though they had been found by exploring the queue: states outside turn restrictions in flatStates and the
+     * others as State objects, with a path back to the origin states.
+     */
+    private void routeWithContractionHierarchy (int timeLimitSeconds) {
+        CarContractionHierarchy hierarchy = streetLayer.carContractionHierarchy;
+        EdgeStore edgeStore = streetLayer.edgeStore;
+        TIntObjectMap<State> origins = new TIntObjectHashMap<>();
+        int[] originNodes = new int[queue.size()];
+        int[] originDurations = new int[queue.size()];
+        int i = 0;
+        for (State state : queue) {
+            origins.put(state.backEdge, state);
+            originNodes[i] = state.backEdge;
+            originDurations[i] = state.durationSeconds;
+            i++;
+        }
+        queue.clear();
+        int[] durations = hierarchy.durationsFrom(originNodes, originDurations, timeLimitSeconds);
+        int nNodes = durations.length;
+
+        // Find a predecessor for every state reached. Origin states are kept unless a faster path to them was found.
+        int[] predecessors = new int[nNodes];
+        int[] distances = new int[nNodes];
+        Arrays.fill(distances, -1);
+        for (int node = 0; node < nNodes; node++) {
+            if (durations[node] >= timeLimitSeconds) continue;
+            State origin = origins.get(node);
+            if (origin != null) {
+                if (durations[node] == origin.durationSeconds) {
+                    predecessors[node] = -1;
+                    distances[node] = origin.distance;
+                    continue;
+                }
+                bestStatesAtEdge.get(node).remove(origin);
+                origins.remove(node);
+            }
+            predecessors[node] = hierarchy.getPredecessor(node, durations);
+        }
+
+        // Distances depend on the whole path, so compute them from the origin outward along the predecessors.
+        EdgeStore.Edge edge = edgeStore.getCursor();
+        TIntList path = new TIntArrayList();
+        for (int node = 0; node < nNodes; node++) {
+            if (durations[node] >= timeLimitSeconds || distances[node] >= 0) continue;
+            for (int n = node; distances[n] < 0; n = predecessors[n]) path.add(n);
+            for (int j = path.size() - 1; j >= 0; j--) {
+                int n = path.get(j);
+                edge.seek(hierarchy.getEdge(n));
+                int distance = distances[predecessors[n]] + edge.getLengthMm();
+                distances[n] = distance == distances[predecessors[n]] ? distance + 1 : distance;
+            }
+            path.clear();
+        }
+
+        // Record the states outside turn restrictions in flatStates. Those following a State object are remembered
+        // so that object can be recorded as their predecessor once it exists.
+        TIntObjectMap<TIntList> flatSuccessors = new TIntObjectHashMap<>();
+        TIntList restrictedNodes = new TIntArrayList();
+        for (int node = 0; node < nNodes; node++) {
+            if (durations[node] >= timeLimitSeconds || predecessors[node] < 0) continue;
+            if (!isFlatNode(node, origins)) {
+                restrictedNodes.add(node);
+                continue;
+            }
+            int predecessor = predecessors[node];
+            if (isFlatNode(predecessor, origins)) {
+                flatStates.put(node, durations[node], distances[node], StreetMode.CAR, predecessor);
+            } else {
+                flatStates.put(node, durations[node], distances[node], StreetMode.CAR,
+                        EdgeStateArrays.OBJECT_PREDECESSOR);
+                TIntList successors = flatSuccessors.get(predecessor);
+                if (successors == null) flatSuccessors.put(predecessor, successors = new TIntArrayList());
+                successors.add(node);
+            }
+        }
+        origins.forEachEntry((node, origin) -> {
+            TIntList successors = flatSuccessors.get(node);
+            if (successors != null) successors.forEach(e -> { flatStatePredecessors.put(e, origin); return true; });
+            return true;
+        });
+
+        // Create State objects for the states in turn restrictions in order of increasing duration, so that every
+        // State object on the path to each one already exists.
+        long[] byDuration = new long[restrictedNodes.size()];
+        for (int j = 0; j < byDuration.length; j++) {
+            int node = restrictedNodes.get(j);
+            byDuration[j] = ((long) durations[node] << 32) | node;
+        }
+        Arrays.sort(byDuration);
+        TIntObjectMap<State> restrictedStates = new TIntObjectHashMap<>();
+        for (long entry : byDuration) {
+            int node = (int) entry;
+            int predecessor = predecessors[node];
+            State backState;
+            if (origins.containsKey(predecessor)) backState = origins.get(predecessor);
+            else if (restrictedStates.containsKey(predecessor)) backState = restrictedStates.get(predecessor);
+            else backState = materializeFlatState(predecessor);
+            int edgeIndex = hierarchy.getEdge(node);
+            edge.seek(edgeIndex);
+            State state = new State(edge.getToVertex(), edgeIndex, backState);
+            state.durationSeconds = durations[node];
+            state.durationFromOriginSeconds += state.durationSeconds - backState.durationSeconds;
+            state.distance = distances[node];
+            state.streetMode = StreetMode.CAR;
+            int[] turnRestrictionPositions = hierarchy.getTurnRestrictionPositions(node);
+            if (turnRestrictionPositions == null) {
+                edgeStore.startTurnRestriction(StreetMode.CAR, false, state);
+            } else {
+                state.turnRestrictions = new TIntIntHashMap();
+                for (int j = 0; j < turnRestrictionPositions.length; j += 2) {
+                    state.turnRestrictions.put(turnRestrictionPositions[j], turnRestrictionPositions[j + 1]);
+                }
+            }
+            bestStatesAtEdge.put(edgeIndex, state);
+            restrictedStates.put(node, state);
+            TIntList successors = flatSuccessors.get(node);
+            if (successors != null) successors.forEach(e -> { flatStatePredecessors.put(e, state); return true; });
+        }
+    }
+
+    /**
+     * @return whether the state represented by the given CarContractionHierarchy node is stored in flatStates: it is
+     *         not an origin State object, and is not in any turn restriction.
+     */
+    private boolean isFlatNode (int node, TIntObjectMap<State> origins) {
+        return node < streetLayer.edgeStore.nEdges() && !origins.containsKey(node) &&
+                !streetLayer.edgeStore.startsTurnRestriction(node, false);
+    }
+
+    /**
+     * Record a state produced by traversing an edge from the given State object, unless it is dominated by an existing
+     * state at the end of the same edge, and queue it for exploration.
+     */
+    private void retainIfNotDominated (State s1, State s0) {
+        if (flatStates != null && s1.turnRestrictions == null) {
+            offerFlatState(s1.backEdge, s1.durationSeconds, s1.distance, s1.streetMode, s0, EdgeStateArrays.OBJECT_PREDECESSOR);
+        } else if (!isDominated(s1)) {
+            // Calculate the heuristic (which involves a square root) only when the state is retained.
+            s1.heuristic = calcHeuristic(s1);
+            bestStatesAtEdge.put(s1.backEdge, s1);
+            queue.add(s1);
+        }
+    }
+
+    /**
+     * Explore the edges leaving the end of the given edge from the flat state there. This must give the same results
+     * as Edge#traverse, which is still used for any traversal that starts a turn restriction. A flat state is never
+     * in a turn restriction, always has a preceding state, and never needs goal direction.
+     */
+    private void exploreFlatState (int backEdge, int vertex, EdgeStore.Edge edge, PrecomputedEdgeCosts precomputedCosts,
+                                   int distanceLimitMm, int timeLimitSeconds) {
+        EdgeStore edgeStore = streetLayer.edgeStore;
+        boolean reverseSearch = profileRequest.reverseSearch;
+        int durationSeconds = flatStates.getDurationSeconds(backEdge);
+        int distance = flatStates.getDistanceMillimeters(backEdge);
+        StreetMode backStreetMode = flatStates.getStreetMode(backEdge);
+        boolean backEdgeIsLink = edge.getFlag(EdgeStore.EdgeFlag.LINK);
+        TIntList edgeList = reverseSearch ? streetLayer.incomingEdges.get(vertex) : streetLayer.outgoingEdges.get(vertex);
+        for (int i = 0; i < edgeList.size(); i++) {
+            int eidx = edgeList.get(i);
+            edge.seek(eidx);
+            if (backStreetMode == StreetMode.CAR && edgeStore.startsTurnRestriction(eidx, reverseSearch)) {
+                // The new state will be in a turn restriction, so it must be a State object.
+                State s0 = materializeFlatState(backEdge);
+                State s1 = edge.traverse(s0, streetMode, profileRequest, timeCalculator, precomputedCosts);
+                if (s1 != null && s1.distance <= distanceLimitMm && s1.getDurationSeconds() < timeLimitSeconds) {
+                    retainIfNotDominated(s1, s0);
+                }
+                continue;
+            }
+            if (edgeStore.temporarilyDeletedEdges != null && edgeStore.temporarilyDeletedEdges.contains(eidx)) {
+                continue;
+            }
+            StreetMode traversalMode;
+            int traversalTimeSeconds;
+            if (precomputedCosts != null && precomputedCosts.contains(eidx)) {
+                traversalMode = precomputedCosts.getTraversalMode(eidx);
+                if (traversalMode == null) continue;
+                traversalTimeSeconds = precomputedCosts.getTraversalTimeSeconds(eidx);
+            } else {
+                traversalMode = edge.getTraversalMode(streetMode, profileRequest);
+                if (traversalMode == null) continue;
+                traversalTimeSeconds = timeCalculator.traversalTimeSeconds(edge, traversalMode, profileRequest);
+            }
+            if (traversalMode == StreetMode.CAR) {
+                traversalTimeSeconds = edge.getCongestedTraversalTimeSeconds(traversalTimeSeconds, durationSeconds,
+                        profileRequest);
+            }
+            // Two link edges in a row would be a shortcut through a linked point.
+            if (backEdgeIsLink && edge.getFlag(EdgeStore.EdgeFlag.LINK)) continue;
+            int turnTimeSeconds = reverseSearch ?
+                    timeCalculator.turnTimeSeconds(eidx, backEdge, traversalMode) :
+                    timeCalculator.turnTimeSeconds(backEdge, eidx, traversalMode);
+            int increment = traversalTimeSeconds + turnTimeSeconds;
+            int newDurationSeconds = increment > 0 ? durationSeconds + increment : durationSeconds + 1;
+            int newDistance = distance + edge.getLengthMm();
+            if (newDistance == distance) newDistance += 1;
+            if (newDistance <= distanceLimitMm && newDurationSeconds < timeLimitSeconds) {
+                offerFlatState(eidx, newDurationSeconds, newDistance, traversalMode, null, backEdge);
+            }
+        }
+    }
+
+    /**
+     * Record a state outside turn restrictions in flatStates, unless it is dominated by the existing state at the end
+     * of the same edge. Origin states may also be State objects outside turn restrictions, so they are compared too.
+     * @param predecessorState the preceding State object, or null if the preceding state is in flatStates.
+     * @param predecessorEdge the edge of the preceding state in flatStates, if predecessorState is null.
+     */
+    private void offerFlatState (int edge, int durationSeconds, int distance, StreetMode streetMode,
+                                 State predecessorState, int predecessorEdge) {
+        if (bestStatesAtEdge.containsKey(edge)) {
+            int routingVariable = quantityToMinimize == State.RoutingVariable.DURATION_SECONDS ? durationSeconds : distance;
+            for (Iterator<State> it = bestStatesAtEdge.get(edge).iterator(); it.hasNext(); ) {
+                State existingState = it.next();
+                if (existingState.turnRestrictions != null) continue;
+                if (existingState.getRoutingVariable(quantityToMinimize) <= routingVariable) return;
+                it.remove();
+            }
+        }
+        if (flatStates.offer(edge, durationSeconds, distance, streetMode, predecessorEdge)) {
+            if (predecessorState == null) flatStatePredecessors.remove(edge);
+            else flatStatePredecessors.put(edge, predecessorState);
+            // Any State object already created for this edge now represents a superseded path.
+            materializedFlatStates.remove(edge);
+        }
+    }
+
+    /**
+     * Create a State object (and the chain of back states leading to it) for the state in flatStates at the end of
+     * the given edge. Objects are retained and shared by the paths to all edges that pass through that state, unless
+     * it is replaced by a better state. If a state earlier in the path has been replaced since the given state was
+     * reached (which can only happen when a search is continued in another mode), the path will pass through the
+     * replacement, though the given state's own duration and distance are unaffected.
+     */
+    private State materializeFlatState (int edge) {
+        State state = materializedFlatStates.get(edge);
+        if (state != null) return state;
+        // Follow predecessors back to a state that already exists as an object, then create states forward from there.
+        TIntList path = new TIntArrayList();
+        State backState;
+        for (int e = edge; ; e = flatStates.getPredecessor(e)) {
+            path.add(e);
+            int predecessor = flatStates.getPredecessor(e);
+            if (predecessor == EdgeStateArrays.OBJECT_PREDECESSOR) {
+                backState = flatStatePredecessors.get(e);
+                break;
+            }
+            backState = materializedFlatStates.get(predecessor);
+            if (backState != null) break;
+        }
+        EdgeStore.Edge cursor = streetLayer.edgeStore.getCursor();
+        for (int i = path.size() - 1; i >= 0; i--) {
+            int e = path.get(i);
+            cursor.seek(e);
+            state = new State(profileRequest.reverseSearch ? cursor.getFromVertex() : cursor.getToVertex(), e, backState);
+            state.durationSeconds = flatStates.getDurationSeconds(e);
+            state.durationFromOriginSeconds += state.durationSeconds - backState.durationSeconds;
+            state.distance = flatStates.getDistanceMillimeters(e);
+            state.streetMode = flatStates.getStreetMode(e);
+            materializedFlatStates.put(e, state);
+            backState = state;
+        }
+        return state;
+    }
+
+    /**
+     * Replace all the states in flatStates with State objects, queueing those that had not yet been explored, so the
+     * search can continue using only State objects.
+     */
+    private void moveFlatStatesToObjects () {
+        TIntList edges = flatStates.getEdges();
+        TIntSet queued = new TIntHashSet();
+        while (!flatStates.isQueueEmpty()) queued.add(flatStates.poll());
+        for (int i = 0; i < edges.size(); i++) {
+            State state = materializeFlatState(edges.get(i));
+            state.heuristic = calcHeuristic(state);
+            bestStatesAtEdge.put(state.backEdge, state);
+            if (queued.contains(state.backEdge)) queue.add(state);
+        }
+        releaseFlatStates();
+        flatStatePredecessors.clear();
+        materializedFlatStates.clear();
+    }
+
     /**
      * Given a new state, check whether it is dominated by any existing state that resulted from traversing the
      * same edge. Side effect: Boot out any existing states that are dominated by the new one.
@@ -637,6 +1114,13 @@ public class StreetRouter {
         double millimetersX = millimetersPerUnitLonFixed * deltaLonFixed;
         double millimetersY = MM_PER_UNIT_LAT_FIXED * deltaLatFixed;
         double distanceMillimeters = FastMath.sqrt(millimetersX * millimetersX + millimetersY * millimetersY);
+        // The larger of two lower bounds is still a lower bound.
+        if (landmarks != null && landmarks.contains(state.vertex)) {
+            if (landmarkCarSeconds) {
+                return Math.max(getLandmarkLowerBound(state.vertex), (int) (distanceMillimeters * maxSpeedSecondsPerMillimeter));
+            }
+            distanceMillimeters = Math.max(distanceMillimeters, getLandmarkLowerBound(state.vertex));
+        }
         double estimate = distanceMillimeters;
         if (quantityToMinimize != State.RoutingVariable.DISTANCE_MILLIMETERS) {
             // Calculate time in seconds to traverse this distance in a straight line.
@@ -646,6 +1130,23 @@ public class StreetRouter {
         return (int) estimate;
     }
 
+    /**
+     * @return the landmark lower bound on the path length from the given vertex to the destination (or from the
+     *         destination to the vertex in a reverse search). The destination is on an edge, so any path to it must
+     *         pass through one of the two vertices at the ends of that edge.
+     */
+    private int getLandmarkLowerBound (int vertex) {
+        int vertex0 = destinationSplit.vertex0;
+        int vertex1 = destinationSplit.vertex1;
+        if (profileRequest.reverseSearch) {
+            return Math.min(landmarks.lowerBound(vertex0, vertex, landmarkCarSeconds),
+                    landmarks.lowerBound(vertex1, vertex, landmarkCarSeconds));
+        } else {
+            return Math.min(landmarks.lowerBound(vertex, vertex0, landmarkCarSeconds),
+                    landmarks.lowerBound(vertex, vertex1, landmarkCarSeconds));
+        }
+    }
+
     /**
      * @return true if s1 is better *or equal* to s2, otherwise return false.
      */
@@ -663,26 +1164,36 @@ public class StreetRouter {
         // In practice, this means once we have a state with a certain set of turn restrictions, we don't allow any
         // more at the same location.
         if (s1.turnRestrictions != null && s2.turnRestrictions != null &&
-            s1.turnRestrictions.size() == s2.turnRestrictions.size()) {
-                boolean[] same = new boolean[]{true}; // Trick to circumvent java "effectively final" ridiculousness.
-                s1.turnRestrictions.forEachEntry((ridx, pos) -> {
-                    if (!s2.turnRestrictions.containsKey(ridx) || s2.turnRestrictions.get(ridx) != pos) same[0] = false;
-                    return same[0]; // Continue iteration until a difference is discovered, then bail out.
-                });
-                if (same[0]) return true; // s1 dominates s2 because it has the same turn restrictions.
-                // TODO shouldn't we add a test to see which one has the lower dominance variable, just to make this more principled?
-                // As in: states are comparable only when they have the same set of turn restrictions.
+                sameTurnRestrictions(s1.turnRestrictions, s2.turnRestrictions)) {
+            // s1 dominates s2 because it has the same turn restrictions.
+            // TODO shouldn't we add a test to see which one has the lower dominance variable, just to make this more principled?
+            // As in: states are comparable only when they have the same set of turn restrictions.
+            return true;
         }
         // At least one of the states has turn restrictions. Neither dominates the other.
         return false;
     }
 
+    /**
+     * @return whether two maps from turn restrictions to positions within them have exactly the same entries. This
+     *         iterates directly rather than through a lambda, as it is called whenever states in turn restrictions
+     *         meet at the same edge.
+     */
+    private static boolean sameTurnRestrictions (TIntIntMap restrictions1, TIntIntMap restrictions2) {
+        if (restrictions1.size() != restrictions2.size()) return false;
+        for (TIntIntIterator it = restrictions1.iterator(); it.hasNext();) {
+            it.advance();
+            if (!restrictions2.containsKey(it.key()) || restrictions2.get(it.key()) != it.value()) return false;
+        }
+        return true;
+    }
+
     /**
      * Get a single best state at the end of an edge.
      * There can be more than one state at the end of an edge due to turn restrictions
      */
     public State getStateAtEdge (int edgeIndex) {
-        Collection<State> states = bestStatesAtEdge.get(edgeIndex);
+        Collection<State> states = getStatesAtEdge(edgeIndex);
         if (states.isEmpty()) {
             return null; // Unreachable
         }
@@ -691,6 +1202,48 @@ public class StreetRouter {
                 s0.getRoutingVariable(quantityToMinimize) < s1.getRoutingVariable(quantityToMinimize) ? s0 : s1).get();
     }
 
+    /** @return all the states at the end of the given edge, creating a State object for any flat state there. */
+    private Collection<State> getStatesAtEdge (int edgeIndex) {
+        Collection<State> states = bestStatesAtEdge.get(edgeIndex);
+        if (flatStates == null || edgeIndex < 0 || !flatStates.contains(edgeIndex)) return states;
+        List<State> allStates = new ArrayList<>(states);
+        allStates.add(materializeFlatState(edgeIndex));
+        return allStates;
+    }
+
+    /**
+     * Find the best state at a vertex as in getStateAtVertex, without creating State objects for flat states.
+     * @return the given variable for the best state at the vertex, or Integer.MAX_VALUE if the vertex was not reached.
+     */
+    private int getBestValueAtVertex (int vertexIndex, State.RoutingVariable variable) {
+        TIntList edgeList;
+        if (profileRequest.reverseSearch) {
+            edgeList = streetLayer.outgoingEdges.get(vertexIndex);
+        } else {
+            edgeList = streetLayer.incomingEdges.get(vertexIndex);
+        }
+        int bestRoutingVariable = Integer.MAX_VALUE;
+        int bestValue = Integer.MAX_VALUE;
+        for (int i = 0; i < edgeList.size(); i++) {
+            int eidx = edgeList.get(i);
+            if (flatStates != null && flatStates.contains(eidx)) {
+                int routingVariable = flatStates.getRoutingVariable(eidx);
+                if (routingVariable < bestRoutingVariable) {
+                    bestRoutingVariable = routingVariable;
+                    bestValue = variable == State.RoutingVariable.DURATION_SECONDS ?
+                            flatStates.getDurationSeconds(eidx) : flatStates.getDistanceMillimeters(eidx);
+                }
+            }
+            for (State state : bestStatesAtEdge.get(eidx)) {
+                if (state.getRoutingVariable(quantityToMinimize) < bestRoutingVariable) {
+                    bestRoutingVariable = state.getRoutingVariable(quantityToMinimize);
+                    bestValue = state.getRoutingVariable(variable);
+                }
+            }
+        }
+        return bestValue;
+    }
+
     /**
      * Get a single best state at a vertex. NB this should not be used for propagating to samples, as you need to apply
      * turn costs/restrictions during propagation.
@@ -722,8 +1275,7 @@ public class StreetRouter {
     }
 
     public int getTravelTimeToVertex (int vertexIndex) {
-        State state = getStateAtVertex(vertexIndex);
-        return state != null ? state.durationSeconds : Integer.MAX_VALUE;
+        return getBestValueAtVertex(vertexIndex, State.RoutingVariable.DURATION_SECONDS);
     }
 
     /**
@@ -749,7 +1301,7 @@ public class StreetRouter {
         }
         // TODO change iteration style to imperative
         for (TIntIterator it = edgeList.iterator(); it.hasNext();) {
-            Collection<State> states = bestStatesAtEdge.get(it.next());
+            Collection<State> states = getStatesAtEdge(it.next());
             // NB this needs a state to copy turn restrictions into. We then don't use that state, which is fine because
             // we don't need the turn restrictions any more because we're at the end of the search
             states.stream().filter(s -> e.canTurnFrom(s, new State(-1, split.edge, s), profileRequest.reverseSearch))
@@ -780,7 +1332,7 @@ public class StreetRouter {
         }
 
         for (TIntIterator it = edgeList.iterator(); it.hasNext();) {
-            Collection<State> states = bestStatesAtEdge.get(it.next());
+            Collection<State> states = getStatesAtEdge(it.next());
             for (State state : states) {
                 if (!e.canTurnFrom(state, new State(-1, split.edge + 1, state), profileRequest.reverseSearch)) {
                     continue;
@@ -1191,6 +1743,13 @@ public class StreetRouter {
     public void keepRoutingOnFoot() {
         queue.clear();
         bestStatesAtEdge.forEachEntry((edgeId, states) -> queue.addAll(states));
+        if (flatStates != null) {
+            flatStates.clearQueue();
+            flatStates.getEdges().forEach(edge -> {
+                flatStates.enqueue(edge);
+                return true;
+            });
+        }
         streetMode = StreetMode.WALK;
         route();
     }
@@ -0,0 +1,61 @@
+package com.conveyal.r5.streets;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * StreetRouters retained for reuse on one StreetLayer, so that searches repeated for every origin of a regional
+ * analysis or every stop of a network do not each allocate new queues, maps and state arrays and then grow them by
+ * rehashing. Each thread has its own routers, so a router is never used by two threads at once. A thread may use more
+ * than one router at a time (e.g. when an access search starts other searches), so routers are acquired and released
+ * rather than there being a single router per thread.
+ *
+ * The routers are held by the pool itself, in a map weakly keyed on threads, rather than in a ThreadLocal. Routers
+ * refer to their StreetLayer, which refers to this pool, so a ThreadLocal per pool would be reachable from its own
+ * values, and every long-lived worker thread would keep every scenario StreetLayer it ever routed on alive. Here the
+ * routers become unreachable along with the StreetLayer, and those of threads that have ended are dropped.
+ */
+public class StreetRouterPool {
+
+    /** Routers released by a thread that already retains this many are left to the garbage collector. */
+    private static final int MAX_ROUTERS_PER_THREAD = 4;
+
+    private final StreetLayer streetLayer;
+
+    private final Map<Thread, Deque<StreetRouter>> routersForThread = Collections.synchronizedMap(new WeakHashMap<>());
+
+    StreetRouterPool (StreetLayer streetLayer) {
+        this.streetLayer = streetLayer;
+    }
+
+    /** @return a router with default settings, reusing one released by this thread if there is one. */
+    public StreetRouter acquire () {
+        StreetRouter router = threadRouters().pollFirst();
+        return router != null ? router : new StreetRouter(streetLayer);
+    }
+
+    /**
+     * Reset the given router and retain it for reuse by this thread. The router must not be used after it is released,
+     * but the maps and State objects it returned remain valid since they are never reused. Routers that are not
+     * released (e.g. because an exception was thrown) are simply garbage collected.
+     */
+    public void release (StreetRouter router) {
+        if (router.streetLayer != streetLayer) {
+            throw new IllegalArgumentException("Router was created for a different street layer.");
+        }
+        router.reset();
+        Deque<StreetRouter> threadRouters = threadRouters();
+        if (threadRouters.size() < MAX_ROUTERS_PER_THREAD) {
+            threadRouters.addFirst(router);
+        }
+    }
+
+    /** @return the routers retained for the current thread, which only that thread reads or modifies. */
+    private Deque<StreetRouter> threadRouters () {
+        return routersForThread.computeIfAbsent(Thread.currentThread(), thread -> new ArrayDeque<>());
+    }
+
+}
@@ -1,20 +1,16 @@
 package com.conveyal.r5.streets;
 
 import com.conveyal.r5.profile.StreetMode;
-import gnu.trove.iterator.TIntIterator;
 import gnu.trove.list.TIntList;
-import gnu.trove.set.TIntSet;
-import gnu.trove.set.hash.TIntHashSet;
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.stack.TIntStack;
 import gnu.trove.stack.array.TIntArrayStack;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
-import java.util.List;
-import java.util.function.Consumer;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Prune islands from a graph using Tarjan's strong-components algorithm, described in
@@ -52,39 +48,32 @@ import java.util.function.Consumer;
  * C is not part of a larger strong component because it cannot be reached due to the turn restriction. However, this
  * case is believed to be sufficiently rare not to worry about.
  *
- * The algorithm used here is a modified version of the one Tarjan described; Tarjan's algorithm used recursion, but with
- * real world graphs a naïve implementation using recursion quickly caused a StackOverflow in the JVM. The modified
- * algorithm works as follows.
+ * The algorithm used here is Tarjan's, with the recursion replaced by explicit stacks of primitive ints: with real world
+ * graphs a naïve implementation using recursion quickly caused a StackOverflow in the JVM. The depth-first search keeps a
+ * callStack of the vertices whose outgoing edges are still being explored, which stands in for the call stack of the
+ * recursive strongconnect() function, and for each vertex the position of the next outgoing edge to explore. This lets
+ * the search resume exactly where it left off in each vertex's edge list when it returns from a successor, so every edge
+ * is examined only once and the search runs in time linear in the size of the graph.
  *
- * Tarjan's algorithm uses a depth-first search. We loop over all vertices, and when we find one that hasn't been explored, we
- * add it to the toExplore stack.
+ * We loop over all vertices, and when we find one that hasn't been discovered, we give it a consecutive discovery index
+ * and push it on the callStack and the tarjan stack. We then repeatedly look at the vertex on top of the callStack and
+ * advance through its outgoing edges usable by the chosen mode. When an edge leads to an undiscovered vertex, we
+ * discover that vertex and push it, which is the equivalent of a recursive call. When an edge leads to a vertex that is
+ * still on the tarjan stack, that vertex is a predecessor of the current one and we update the lowest-discovery-index
+ * predecessor of the current vertex with its discovery index.
  *
- * We then pop a vertex off the toExplore stack. If it has not previously been explored, we
- * give it a consecutive discovery index, set the lowest-discovery-index vertex that is both reachable from this vertex and a
- * is also a predecessor vertex to the itself, and we add it to the tarjan stack to indicate it is a precessor of any
- * vertices explored later in the search. We push this vertex back on the toExplore stack to make sure it is updated once all successor
- * nodes have been explored, and then loop over all the edges usable by the chosen mode originating from the selected vertex.
+ * Once all the edges of a vertex have been explored, it is popped off the callStack, which is the equivalent of
+ * returning. If it has itself as the lowest-discovery-index predecessor, it is the root of a strong component: we pop
+ * vertices off the Tarjan stack until we reach it, and these vertices form the component. Otherwise its
+ * lowest-discovery-index predecessor is propagated to the vertex below it on the callStack, from which it was discovered.
  *
- * For each edge, we check if the target vertex has previously been explored. If it has not, we put the source vertex
- * and then the target vertex back on the toExplore stack. This way, the target vertex will
- * be popped from the toExplore stack and explored, and then the source vertex will be popped and updated. If it has,
- * we check if it is on the tarjan stack; if it has, we know that it is a predecessor to the source vertex, and update
- * the lowest-discovery-index predecessor based on the discovery index of the target vertex.
+ * Strong components with fewer vertices than the minimum component size are islands, and we remove permissions for the
+ * relevant mode from all edges connected to their vertices. Only the vertices of islands are retained, so memory use does
+ * not grow with the number of components found.
  *
- * If the vertex popped off the toExplore stack has already been explored, we first check all successors; if they have a higher discovery
- * index than the vertex popped off the stack, we know they were explored downstream of the source vertex, and their
- * lowest-discovery-index predecessor was on the Tarjan stack when they were explored. If the lowest-discovery-index predecessor
- * is less than the lowest-discovery-index predecessor of the popped vertex, we update the lowest-discovery-index predecessor of the
- * popped vertex. This looping over edges is potentially less efficient than the original implementation which used the call
- * stack to keep track of which successors could have been updated, but it is simple, eliminates recursion, and is quick
- * even in relatively large street networks.
- *
- * If the vertex popped off the toExplore stack has itself as the lowest-discovery-index predecessor, we have found a
- * strong component. We pop vertices off the Tarjan stack until we reach the vertex popped from the toExplore stack.
- * These vertices form a strong component, which we record.
- *
- * Once all strong components have been found, we loop through all of them and if they have a size less than the minimum
- * component size, we remove permissions for the relevant mode from all edges connected to their vertices.
+ * The searches for different modes only read the permission flags for their own mode, so the car search can run in
+ * parallel with the walk and bike searches (see pruneIslands). All the flags of an edge are packed into a single int, so
+ * permissions are only ever removed by one thread at a time.
  *
  * We previously used a flood-fill algorithm designed for undirected graphs. This worked okay for walking and biking because
  * the graph is effectively undirected; for every edge there is a corresponding back edge (we don't support one-way streets
@@ -106,15 +95,21 @@ public class TarjanIslandPruner {
 
     /**
      * The stack used in Tarjan's algorithm. Simply called stack in the paper and Wikipedia, but renamed here to
-     * differentiate from the toExplore stack
+     * differentiate from the callStack
      */
     private TIntStack tarjanStack;
 
     /** Quick lookups of whether something is on the stack */
     private BitSet onTarjanStack;
 
-    /** The stack of which vertices to explore, replaces the recursion in Tarjan's algorithm */
-    private TIntStack toExplore;
+    /** The vertices whose outgoing edges are being explored, replaces the recursion in Tarjan's algorithm */
+    private TIntStack callStack;
+
+    /**
+     * For each vertex on the callStack, the position in its outgoing edge list of the next edge to explore, indexed by
+     * r5 vertex index.
+     */
+    private int[] nextEdgePosition;
 
     /**
      * The lowest discovery index of any predecessor vertex known to be reachable from this vertex, indexed by r5 vertex index
@@ -131,8 +126,14 @@ public class TarjanIslandPruner {
     /** keep track of the order of vertex discovery */
     private int nextDiscoveryIndex;
 
-    /** The strong components identified by the algorithm */
-    private List<TIntSet> strongComponents = new ArrayList<>();
+    /** The number of strong components identified by the algorithm */
+    private int nStrongComponents;
+
+    /** The number of strong components with fewer than minComponentSize vertices */
+    private int nIslands;
+
+    /** The vertices of all strong components with fewer than minComponentSize vertices */
+    private TIntList islandVertices = new TIntArrayList();
 
     /** Reüse the edge cursor to save memory */
     private final EdgeStore.Edge edgeCursor;
@@ -144,7 +145,8 @@ public class TarjanIslandPruner {
 
         tarjanStack = new TIntArrayStack();
         onTarjanStack = new BitSet();
-        toExplore = new TIntArrayStack();
+        callStack = new TIntArrayStack();
+        nextEdgePosition = new int[streets.getVertexCount()];
         lowestDiscoveryIndexOfReachableVertexKnownToBePredecessor = new int[streets.getVertexCount()];
         Arrays.fill(lowestDiscoveryIndexOfReachableVertexKnownToBePredecessor, -1);
         discoveryIndex = new int[streets.getVertexCount()];
@@ -152,156 +154,138 @@ public class TarjanIslandPruner {
         edgeCursor = streetLayer.edgeStore.getCursor();
     }
 
+    /**
+     * Prune car, walk and bike islands from the given street layer. Walk islands are removed before the bike search,
+     * see the class comment. The car search does not depend on walk or bike permissions, so it runs in parallel with
+     * them, and car permissions are removed once the walk and bike permissions have been.
+     */
+    public static void pruneIslands (StreetLayer streetLayer, int minComponentSize) {
+        TarjanIslandPruner carPruner = new TarjanIslandPruner(streetLayer, minComponentSize, StreetMode.CAR);
+        CompletableFuture<Void> carSearch = CompletableFuture.runAsync(carPruner::findIslands);
+        new TarjanIslandPruner(streetLayer, minComponentSize, StreetMode.WALK).run();
+        new TarjanIslandPruner(streetLayer, minComponentSize, StreetMode.BICYCLE).run();
+        carSearch.join();
+        carPruner.removeIslands();
+    }
+
+    /** Find the islands for this pruner's mode and remove its permissions from their edges. */
     public void run () {
-        LOG.info("Removing islands for mode {}", mode);
+        findIslands();
+        removeIslands();
+    }
+
+    /**
+     * Find all strong components for this pruner's mode, recording the vertices of those that are islands. This only
+     * reads the permissions for this mode and does not modify the street layer.
+     */
+    public void findIslands () {
+        LOG.info("Finding islands for mode {}", mode);
         long startTime = System.currentTimeMillis();
 
         for (int sourceVertex = 0; sourceVertex < streets.getVertexCount(); sourceVertex++) {
-            if (discoveryIndex[sourceVertex] == -1) {
-                toExplore.push(sourceVertex);
-
-                while (toExplore.size() > 0) {
-                    int vertex = toExplore.pop();
-
-                    if (discoveryIndex[vertex] != -1) {
-                        if (!onTarjanStack.get(vertex)) continue; // this strong component has already been found and removed from the tarjanStack
-
-                        // we have previously visited this vertex and are looping back to it,
-                        // update lowestDiscoveryIndexOfReachableVertexKnownToBePredecessor based on successors
-
-                        // keep track of whether we've visited every successor yet
-                        // NB this still works if successors were found previous to reaching this root node, because all
-                        // edges are always looped over.
-                        // Successors that have not been explored are queued to be
-                        // explored, and those that have been explored are used to tighten
-                        // lowestDiscoveryIndexOfReachableVertexKnownToBePredecessor without further iteration.
-                        boolean[] everySuccessorExplored = new boolean[] { true };
-
-                        // only update lowestDiscoveryIndexOfReachableVertexKnownToBePredecessor based on those vertices
-                        // that were explored from this vertex, not ones that had been explored earlier, so that we're
-                        // sure that the lowestDiscoveryIndexOfReachableVertexKnownToBePredecessor only represents
-                        // vertices that are predecessors.
-                        // Looping here has somewhat higher complexity than the original algorithm but uses less memory than
-                        // keeping a tarjanStack of which successor was most recently explored, and still runs in <10 seconds on
-                        // a relatively large (metropolitan Washington, DC) graph.
-                        forEachOutgoingEdge(vertex, e -> {
-                            int toVertex = e.getToVertex();
-                            if (discoveryIndex[toVertex] == -1) everySuccessorExplored[0] = false;
-                            if (discoveryIndex[toVertex] > discoveryIndex[vertex] &&
-                                    lowestDiscoveryIndexOfReachableVertexKnownToBePredecessor[vertex] > lowestDiscoveryIndexOfReachableVertexKnownToBePredecessor[toVertex])
-                                // only update if toVertex was discovered later than the vertex under consideration
-                                // i.e. if it was explored downstream of this vertex.
-                                // We don't want to accidentally set lowestDiscoveryIndexOfReachableVertexKnownToBePredecessor to something that is not a predecessor of this vertex
-                                lowestDiscoveryIndexOfReachableVertexKnownToBePredecessor[vertex] = lowestDiscoveryIndexOfReachableVertexKnownToBePredecessor[toVertex];
-                        });
-
-                        // this is the root of a strong component if every successor has been explored and the lowest reachable
-                        // vertex is this vertex
-                        if (everySuccessorExplored[0] && discoveryIndex[vertex] == lowestDiscoveryIndexOfReachableVertexKnownToBePredecessor[vertex]) {
-                            // we're back at the root of a strong component, pop it off the tarjanStack
-                            TIntSet strongComponent = new TIntHashSet();
-                            int poppedVertex;
-                            do {
-                                // since we put this vertex on the tarjanStack at the start of iteration, we know the loop will
-                                // terminate, no need to check for no data value.
-                                poppedVertex = tarjanStack.pop();
-
-                                onTarjanStack.clear(poppedVertex);
-                                strongComponent.add(poppedVertex);
-                            } while (poppedVertex != vertex);
-
-                            strongComponents.add(strongComponent);
-                        }
-                    } else {
-                        // start recursion. This is basically what the strongconnect() function in the wikipedia pseudocode
-                        // example starts with
-                        discoveryIndex[vertex] = lowestDiscoveryIndexOfReachableVertexKnownToBePredecessor[vertex] = nextDiscoveryIndex++;
-                        tarjanStack.push(vertex);
-                        onTarjanStack.set(vertex);
-
-                        // if this vertex is a dead end or if all successors have been explored,
-                        // it will not be hit again unless we put it on the deque here.
-                        // this ensures it will be hit one more time after the loop over successors
-                        // if it's already been popped at that point, no harm done.
-                        toExplore.push(vertex);
-
-                        forEachOutgoingEdge(vertex, e -> {
-                            int toVertex = e.getToVertex();
-                            if (discoveryIndex[toVertex] == -1) {
-                                // re-mark this vertex to update lowestDiscoveryIndexOfReachableVertexKnownToBePredecessor
-                                // after the vertex has been explored
-                                toExplore.push(vertex);
-                                // Unlike in the original algorithm, we are not recursing but instead marking this vertex
-                                // to be explored in the next iteration of the loop. This means that all edges that lead
-                                // to vertices already explored (else clause below) will be used to update lowestDiscoveryIndexOfReachableVertexKnownToBePredecessor
-                                // before any unexplored vertices are explored. This is harmless as it basically is just
-                                // a reordering of edge exploration.
-                                toExplore.push(toVertex);
-                            } else if (onTarjanStack.get(toVertex)) {
-                                // don't recurse, just mark that the next vertex is lowest reachable
-                                // note that we are using the discovery index, not the lowest reachable discovery index from the
-                                // to vertex, because we don't know if the lowest reachable discovery index is a predecessor
-                                // of this vertex
-                                if (lowestDiscoveryIndexOfReachableVertexKnownToBePredecessor[vertex] > discoveryIndex[toVertex]) lowestDiscoveryIndexOfReachableVertexKnownToBePredecessor[vertex] = discoveryIndex[toVertex];
-                            }
-                        });
+            if (discoveryIndex[sourceVertex] != -1) continue;
+            discover(sourceVertex);
+
+            while (callStack.size() > 0) {
+                int vertex = callStack.peek();
+                TIntList outgoingEdges = streets.outgoingEdges.get(vertex);
+                boolean descended = false;
+
+                // Resume exploring the outgoing edges of this vertex where we left off.
+                while (nextEdgePosition[vertex] < outgoingEdges.size()) {
+                    edgeCursor.seek(outgoingEdges.get(nextEdgePosition[vertex]++));
+                    if (!allowsMode(edgeCursor)) continue;
+                    int toVertex = edgeCursor.getToVertex();
+                    if (discoveryIndex[toVertex] == -1) {
+                        // This is the equivalent of a recursive call to strongconnect() in the original algorithm.
+                        discover(toVertex);
+                        descended = true;
+                        break;
+                    } else if (onTarjanStack.get(toVertex)) {
+                        // toVertex is a predecessor of this vertex. Note that we are using the discovery index, not the
+                        // lowest reachable discovery index from the to vertex, as in the original algorithm.
+                        lowestDiscoveryIndexOfReachableVertexKnownToBePredecessor[vertex] = Math.min(
+                                lowestDiscoveryIndexOfReachableVertexKnownToBePredecessor[vertex], discoveryIndex[toVertex]);
                     }
                 }
-            }
-        }
-
-        LOG.info("Found {} strong components for mode {} using Tarjan's algorithm in {}sec",
-                strongComponents.size(), mode, (System.currentTimeMillis() - startTime) / 1000d);
-
-        startTime = System.currentTimeMillis();
-
-        int nComponentsRemoved = 0;
-        int nVerticesRemoved = 0;
-
-        for (TIntSet strongComponent : strongComponents) {
-            if (strongComponent.size() < minComponentSize) {
-                nComponentsRemoved++;
-                for (TIntIterator it = strongComponent.iterator(); it.hasNext();) {
-                    int vertex = it.next();
-                    nVerticesRemoved++;
-                    removePermissionsAroundVertex(vertex);
+                if (descended) continue;
+
+                // All outgoing edges have been explored, the equivalent of returning from strongconnect().
+                callStack.pop();
+                if (lowestDiscoveryIndexOfReachableVertexKnownToBePredecessor[vertex] == discoveryIndex[vertex]) {
+                    // we're back at the root of a strong component, pop it off the tarjanStack
+                    popStrongComponent(vertex);
+                } else {
+                    // The vertex we were exploring when this one was discovered can reach everything this one can.
+                    int parentVertex = callStack.peek();
+                    lowestDiscoveryIndexOfReachableVertexKnownToBePredecessor[parentVertex] = Math.min(
+                            lowestDiscoveryIndexOfReachableVertexKnownToBePredecessor[parentVertex],
+                            lowestDiscoveryIndexOfReachableVertexKnownToBePredecessor[vertex]);
                 }
             }
         }
 
+        LOG.info("Found {} strong components for mode {} using Tarjan's algorithm in {}sec, {} of them with fewer than {} vertices.",
+                nStrongComponents, mode, (System.currentTimeMillis() - startTime) / 1000d, nIslands, minComponentSize);
+    }
+
+    /** Remove the permissions for this pruner's mode around every vertex of the islands found by findIslands. */
+    public void removeIslands () {
+        long startTime = System.currentTimeMillis();
+        islandVertices.forEach(vertex -> {
+            removePermissionsAroundVertex(vertex);
+            return true; // continue iteration
+        });
         LOG.info("Removed {} strong component (islands) with fewer than {} vertices for mode {} in {}sec. {} vertices removed.",
-                nComponentsRemoved, minComponentSize, mode, (System.currentTimeMillis() - startTime) / 1000d, nVerticesRemoved);
+                nIslands, minComponentSize, mode, (System.currentTimeMillis() - startTime) / 1000d, islandVertices.size());
     }
 
-    /** Loop over every outgoing edge for a particular mode */
-    public void forEachOutgoingEdge (int vertex, Consumer<EdgeStore.Edge> consumer) {
-        streets.outgoingEdges.get(vertex).forEach(eidx -> {
-            edgeCursor.seek(eidx);
+    /** Give a vertex the next discovery index and push it on both stacks. */
+    private void discover (int vertex) {
+        discoveryIndex[vertex] = lowestDiscoveryIndexOfReachableVertexKnownToBePredecessor[vertex] = nextDiscoveryIndex++;
+        tarjanStack.push(vertex);
+        onTarjanStack.set(vertex);
+        callStack.push(vertex);
+    }
 
-            // filter by mode
-            switch (mode) {
-                case WALK:
-                    if (!edgeCursor.getFlag(EdgeStore.EdgeFlag.ALLOWS_PEDESTRIAN)) return true;
-                    else break;
-                case CAR:
-                    if (!edgeCursor.getFlag(EdgeStore.EdgeFlag.ALLOWS_CAR)) return true;
-                    else break;
-                case BICYCLE:
-                    // include ped mode here, because walking bikes is a thing you can do.
-                    boolean allowsBike = edgeCursor.getFlag(EdgeStore.EdgeFlag.ALLOWS_BIKE) ||
-                                    edgeCursor.getFlag(EdgeStore.EdgeFlag.ALLOWS_PEDESTRIAN);
-                    if (!allowsBike) return true;
-                    else break;
-                default:
-                    throw new IllegalArgumentException(String.format("Unsupported mode %s for island removal", mode));
-            }
+    /** Pop the strong component with the given root off the tarjanStack, recording its vertices if it is an island. */
+    private void popStrongComponent (int rootVertex) {
+        nStrongComponents++;
+        int islandStart = islandVertices.size();
+        int size = 0;
+        int poppedVertex;
+        do {
+            // since the root was put on the tarjanStack when it was discovered, we know the loop will terminate
+            poppedVertex = tarjanStack.pop();
+            onTarjanStack.clear(poppedVertex);
+            if (++size < minComponentSize) islandVertices.add(poppedVertex);
+        } while (poppedVertex != rootVertex);
+
+        if (size < minComponentSize) {
+            nIslands++;
+        } else {
+            // Not an island, forget the vertices recorded before the size reached the minimum.
+            islandVertices.remove(islandStart, islandVertices.size() - islandStart);
+        }
+    }
 
-            consumer.accept(edgeCursor);
-            return true; // continue iteration over outgoing edges
-        });
+    /** @return whether the given edge can be used by this pruner's mode. */
+    private boolean allowsMode (EdgeStore.Edge edge) {
+        switch (mode) {
+            case WALK:
+                return edge.getFlag(EdgeStore.EdgeFlag.ALLOWS_PEDESTRIAN);
+            case CAR:
+                return edge.getFlag(EdgeStore.EdgeFlag.ALLOWS_CAR);
+            case BICYCLE:
+                // include ped mode here, because walking bikes is a thing you can do.
+                return edge.getFlag(EdgeStore.EdgeFlag.ALLOWS_BIKE) ||
+                        edge.getFlag(EdgeStore.EdgeFlag.ALLOWS_PEDESTRIAN);
+            default:
+                throw new IllegalArgumentException(String.format("Unsupported mode %s for island removal", mode));
+        }
     }
 
-    /** Remove the permissions around a vertex for the desired mode. Returns the number of edges affected */
+    /** Remove the permissions around a vertex for the desired mode. */
     public void removePermissionsAroundVertex (int vertex) {
         for (TIntList edgeList : new TIntList[] { streets.outgoingEdges.get(vertex), streets.incomingEdges.get(vertex) }) {
             edgeList.forEach(eidx -> {
@@ -14,6 +14,7 @@ import com.conveyal.r5.api.util.TransitModes;
 import com.conveyal.r5.common.GeometryUtils;
 import com.conveyal.r5.streets.EdgeStore;
 import com.conveyal.r5.streets.StreetRouter;
+import com.conveyal.r5.streets.StreetRouterPool;
 import com.conveyal.r5.streets.VertexStore;
 import com.conveyal.r5.util.LambdaCounter;
 import com.conveyal.r5.util.LocationIndexedLineInLocalCoordinateSystem;
@@ -79,6 +80,12 @@ public class TransitLayer implements Serializable, Cloneable {
      */
     public static final int PARKRIDE_DISTANCE_LIMIT_METERS = 500;
 
+    /**
+     * Times in the time-reversed copy of this layer are subtracted from this number of seconds. Two days keeps them
+     * positive for trips running past midnight.
+     */
+    public static final int TIME_REVERSAL_SECONDS = 2 * 24 * 60 * 60;
+
     private static final Logger LOG = LoggerFactory.getLogger(TransitLayer.class);
 
     /**
@@ -176,6 +183,9 @@ public class TransitLayer implements Serializable, Cloneable {
      */
     public String scenarioId;
 
+    /** A copy of this layer running backward in time for arrive-by searches, built on demand. */
+    private transient TransitLayer timeReversedCopy;
+
     /** Load a GTFS feed with full load level */
     public void loadFromGtfs (GTFSFeed gtfs) throws DuplicateFeedException {
         loadFromGtfs(gtfs, LoadLevel.FULL);
@@ -582,7 +592,8 @@ public class TransitLayer implements Serializable, Cloneable {
             LOG.warn("Stop {} has not been linked to the street network, cannot build a distance table for it.", stop);
             return null;
         }
-        StreetRouter router = new StreetRouter(parentNetwork.streetLayer);
+        StreetRouterPool routerPool = parentNetwork.streetLayer.getRouterPool();
+        StreetRouter router = routerPool.acquire();
         router.distanceLimitMeters = WALK_DISTANCE_LIMIT_METERS;
 
         // Dominate based on distance in millimeters, since (a) we're using a hard distance limit, and (b) we divide
@@ -592,7 +603,9 @@ public class TransitLayer implements Serializable, Cloneable {
         router.route();
 
         // The values in this map will be distances in millimeters since that is our dominance function.
-        return router.getReachedVertices();
+        TIntIntMap distanceTable = router.getReachedVertices();
+        routerPool.release(router);
+        return distanceTable;
     }
 
     public int getStopCount () {
@@ -612,6 +625,39 @@ public class TransitLayer implements Serializable, Cloneable {
         return activeServices;
     }
 
+    /**
+     * Get a copy of this layer in which every trip runs backward in time, visiting its stops in reverse order, with
+     * each time t replaced by TIME_REVERSAL_SECONDS - t, and every transfer leads from the stop where it ended to the
+     * stop where it started. A forward search departing at time t over the reversed layer is an arrive-by search
+     * arriving at TIME_REVERSAL_SECONDS - t over this one: it finds the latest departure from each stop that still
+     * reaches the stops it starts from by that time. Stop indexes are the same in both layers.
+     */
+    public synchronized TransitLayer getTimeReversedCopy () {
+        if (timeReversedCopy == null) {
+            LOG.info("Building time-reversed copy of transit layer for arrive-by searches.");
+            TransitLayer copy = this.clone();
+            copy.tripPatterns = tripPatterns.stream()
+                    .map(pattern -> pattern.reversedInTime(TIME_REVERSAL_SECONDS))
+                    .collect(Collectors.toList());
+            copy.transfersForStop = new ArrayList<>(transfersForStop.size());
+            for (int stop = 0; stop < transfersForStop.size(); stop++) {
+                copy.transfersForStop.add(new TIntArrayList());
+            }
+            for (int stop = 0; stop < transfersForStop.size(); stop++) {
+                TIntList transfers = transfersForStop.get(stop);
+                if (transfers == null) continue;
+                for (int i = 0; i < transfers.size(); i += 2) {
+                    TIntList reversedTransfers = copy.transfersForStop.get(transfers.get(i));
+                    reversedTransfers.add(stop);
+                    reversedTransfers.add(transfers.get(i + 1));
+                }
+            }
+            copy.rebuildTransientIndexes();
+            timeReversedCopy = copy;
+        }
+        return timeReversedCopy;
+    }
+
     // TODO setStreetLayer which automatically links and records the streetLayer ID in a field for use elsewhere?
 
 
@@ -731,6 +777,7 @@ public class TransitLayer implements Serializable, Cloneable {
     public TransitLayer scenarioCopy(TransportNetwork newScenarioNetwork, boolean willBeModified) {
         TransitLayer copy = this.clone();
         copy.parentNetwork = newScenarioNetwork;
+        copy.timeReversedCopy = null;
         if (willBeModified) {
             // Protectively copy all the lists that will be affected by adding new stops to the network.
             // See StopSpec.materializeOne(). We would really only need to do this for modifications that create new stops.
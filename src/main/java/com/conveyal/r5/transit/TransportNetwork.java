@@ -11,6 +11,8 @@ import com.conveyal.r5.common.JsonUtilities;
 import com.conveyal.r5.kryo.KryoNetworkSerializer;
 import com.conveyal.r5.point_to_point.builder.TNBuilderConfig;
 import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.CarContractionHierarchy;
+import com.conveyal.r5.streets.Landmarks;
 import com.conveyal.r5.streets.StreetLayer;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
@@ -96,11 +98,14 @@ public class TransportNetwork implements Serializable {
 
     /**
      * Build some simple derived index tables that are not serialized with the network.
-     * Distance tables and street spatial indexes are now serialized with the network.
+     * Distance tables and street spatial indexes are now serialized with the network, the latter is only built here
+     * for networks saved without one.
      */
     public void rebuildTransientIndexes() {
         streetLayer.buildEdgeLists();
-        streetLayer.indexStreets();
+        if (streetLayer.spatialIndex == null) {
+            streetLayer.indexStreets();
+        }
         transitLayer.rebuildTransientIndexes();
     }
 
@@ -170,9 +175,7 @@ public class TransportNetwork implements Serializable {
         transitLayer.parentNetwork = transportNetwork;
         // transitLayer.summarizeRoutesAndPatterns();
 
-        // The street index is needed for associating transit stops with the street network.
-        // FIXME indexStreets is called three times: in StreetLayer::loadFromOsm, just after loading the OSM, and here
-        streetLayer.indexStreets();
+        // This uses the street index built above, and indexes the link edges it creates.
         streetLayer.associateStops(transitLayer);
         // Edge lists must be built after all inter-layer linking has occurred.
         streetLayer.buildEdgeLists();
@@ -182,6 +185,15 @@ public class TransportNetwork implements Serializable {
         new TransferFinder(transportNetwork).findTransfers();
         new TransferFinder(transportNetwork).findParkRideTransfer();
 
+        // Landmarks and the contraction hierarchy must be built once no more vertices or edges will be added to the
+        // street layer.
+        if (tnBuilderConfig.landmarkCount > 0) {
+            streetLayer.landmarks = Landmarks.compute(streetLayer, tnBuilderConfig.landmarkCount);
+        }
+        if (tnBuilderConfig.carContractionHierarchy) {
+            streetLayer.carContractionHierarchy = CarContractionHierarchy.build(streetLayer);
+        }
+
         transportNetwork.fareCalculator = tnBuilderConfig.analysisFareCalculator;
 
         if (transportNetwork.fareCalculator != null) transportNetwork.fareCalculator.transitLayer = transitLayer;
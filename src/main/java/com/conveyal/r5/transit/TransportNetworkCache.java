@@ -1,6 +1,5 @@
 package com.conveyal.r5.transit;
 
-import com.conveyal.analysis.BackendVersion;
 import com.conveyal.file.FileStorage;
 import com.conveyal.file.FileStorageKey;
 import com.conveyal.file.FileUtils;
@@ -136,7 +135,10 @@ public class TransportNetworkCache {
         return String.format("%s_%s.json", networkId, scenarioId);
     }
 
-    /** If this transport network is already built and cached, fetch it quick */
+    /**
+     * If this transport network is already built and cached, fetch it quick. If it was only cached in an older file
+     * format that can still be read, load and migrate it, then save it in the current format for next time.
+     */
     private TransportNetwork checkCached (String networkId) {
         FileStorageKey r5Key = getR5NetworkFileStorageKey(networkId);
         if (fileStorage.exists(r5Key)) {
@@ -148,17 +150,79 @@ public class TransportNetworkCache {
                 LOG.error("Exception occurred retrieving cached transport network", e);
             }
         } else {
-            LOG.error("Could not find transport network " + networkId);
+            LOG.info("Could not find transport network {} in current format, looking for older formats.", networkId);
+            return loadAndUpgradeOlderFormat(networkId);
+        }
+        return null;
+    }
+
+    /**
+     * Look for the most recent saved copy of the given network in a file format older than the current one but still
+     * readable through migrations. If one is found, load it and save it in the current format.
+     * @return the upgraded network, or null if none could be found or loaded.
+     */
+    private TransportNetwork loadAndUpgradeOlderFormat (String networkId) {
+        int oldestVersion = KryoNetworkSerializer.oldestReadableFormatVersion();
+        for (int v = KryoNetworkSerializer.NETWORK_FORMAT_VERSION - 1; v >= oldestVersion; v--) {
+            FileStorageKey oldKey = new FileStorageKey(bucket, getR5NetworkFilename(networkId, v));
+            if (!fileStorage.exists(oldKey)) continue;
+            try {
+                LOG.info("Upgrading transport network {} from format version {}.", networkId, v);
+                TransportNetwork network = KryoNetworkSerializer.read(fileStorage.getFile(oldKey));
+                saveToStorage(networkId, network);
+                return network;
+            } catch (Exception e) {
+                LOG.error("Exception occurred upgrading cached transport network from format version {}", v, e);
+            }
         }
         return null;
     }
 
-    private String getR5NetworkFilename(String networkId) {
-        return networkId + "_" + BackendVersion.instance.version + ".dat";
+    /**
+     * Ensure that the given network is available in storage in the current file format, without loading it into this
+     * cache. This can be called on a batch of networks ahead of deploying a new R5 version with a new format, so that
+     * workers of the new version don't need to migrate or rebuild them on demand.
+     * @param rebuild if true, build networks from scratch when they can't be upgraded from an older format.
+     * @return true if the network is now available in the current format.
+     */
+    public boolean upgradeCachedNetwork (String networkId, boolean rebuild) {
+        if (fileStorage.exists(getR5NetworkFileStorageKey(networkId))) {
+            LOG.info("Transport network {} is already saved in the current format.", networkId);
+            return true;
+        }
+        if (loadAndUpgradeOlderFormat(networkId) != null) {
+            return true;
+        }
+        if (rebuild) {
+            LOG.info("Transport network {} could not be upgraded, building it from scratch.", networkId);
+            return buildNetwork(networkId) != null;
+        }
+        LOG.warn("Transport network {} could not be upgraded and will be rebuilt on demand.", networkId);
+        return false;
+    }
+
+    /**
+     * Saved networks are keyed on the network file format version, not the R5 version. All R5 versions using the same
+     * format share saved networks, so a new release does not cause networks to be rebuilt unless the format changes.
+     */
+    private String getR5NetworkFilename (String networkId, int formatVersion) {
+        return String.format("%s_nv%d.dat", networkId, formatVersion);
     }
 
     private FileStorageKey getR5NetworkFileStorageKey (String networkId) {
-        return new FileStorageKey(bucket, getR5NetworkFilename(networkId));
+        return new FileStorageKey(bucket, getR5NetworkFilename(networkId, KryoNetworkSerializer.NETWORK_FORMAT_VERSION));
+    }
+
+    /** Serialize the network to a scratch file, then store it locally (and on S3) in the current format. */
+    private void saveToStorage (String networkId, TransportNetwork network) {
+        try {
+            File cacheLocation = FileUtils.createScratchFile();
+            KryoNetworkSerializer.write(network, cacheLocation);
+            fileStorage.moveIntoStorage(getR5NetworkFileStorageKey(networkId), cacheLocation);
+        } catch (Exception e) {
+            // Don't break here as we do have a network to return, we just couldn't cache it.
+            LOG.error("Error saving cached network", e);
+        }
     }
 
     /** If we did not find a cached network, build one */
@@ -184,19 +248,8 @@ public class TransportNetworkCache {
         network.transitLayer.buildDistanceTables(null);
         network.rebuildLinkedGridPointSet(StreetMode.WALK);
 
-        // Cache the serialized network on the local filesystem.
-
-
-        try {
-            File cacheLocation = FileUtils.createScratchFile();
-            // Serialize TransportNetwork to local cache on this worker
-            KryoNetworkSerializer.write(network, cacheLocation);
-            // Store locally (and on S3)
-            fileStorage.moveIntoStorage(getR5NetworkFileStorageKey(networkId), cacheLocation);
-        } catch (Exception e) {
-            // Don't break here as we do have a network to return, we just couldn't cache it.
-            LOG.error("Error saving cached network", e);
-        }
+        // Cache the serialized network on the local filesystem (and on S3).
+        saveToStorage(networkId, network);
         return network;
     }
 
@@ -269,7 +322,6 @@ public class TransportNetworkCache {
         network.streetLayer = new StreetLayer(new TNBuilderConfig()); // TODO builderConfig
         network.streetLayer.loadFromOsm(osmCache.get(manifest.osmId));
         network.streetLayer.parentNetwork = network;
-        network.streetLayer.indexStreets();
 
         network.transitLayer = new TransitLayer();
 
@@ -306,12 +358,13 @@ public class TransportNetworkCache {
      * If not, build the graph from the inputs, fetching them from S3 to the local cache as needed.
      */
     private TransportNetwork loadNetwork(String networkId) {
-        LOG.info("Finding or building a TransportNetwork for ID {} and R5 version {}", networkId, BackendVersion.instance.version);
+        LOG.info("Finding or building a TransportNetwork for ID {} and network format version {}",
+                networkId, KryoNetworkSerializer.NETWORK_FORMAT_VERSION);
 
         TransportNetwork network = checkCached(networkId);
         if (network == null) {
-            LOG.info("Cached transport network for id {} and R5 version {} was not found. Building the network from scratch.",
-                    networkId, BackendVersion.instance.version);
+            LOG.info("Cached transport network for id {} and format version {} was not found. " +
+                    "Building the network from scratch.", networkId, KryoNetworkSerializer.NETWORK_FORMAT_VERSION);
             network = buildNetwork(networkId);
         }
 
@@ -147,6 +147,35 @@ public class TripPattern implements Serializable, Cloneable {
         return bestSchedule;
     }
 
+    /**
+     * @return a copy of this pattern running backward in time, visiting its stops in reverse order with trips reversed
+     *         as in TripSchedule.reversedInTime. Passengers board the reversed trips where they alight from these ones.
+     */
+    public TripPattern reversedInTime (int reversalSeconds) {
+        TripPattern reversed = this.clone();
+        int nStops = stops.length;
+        reversed.stops = new int[nStops];
+        reversed.pickups = new PickDropType[nStops];
+        reversed.dropoffs = new PickDropType[nStops];
+        reversed.wheelchairAccessible = new BitSet(nStops);
+        for (int s = 0; s < nStops; s++) {
+            int original = nStops - 1 - s;
+            reversed.stops[s] = stops[original];
+            reversed.pickups[s] = dropoffs[original];
+            reversed.dropoffs[s] = pickups[original];
+            reversed.wheelchairAccessible.set(s, wheelchairAccessible.get(original));
+        }
+        // Trips are kept sorted by departure time, reversing them reverses their order.
+        reversed.tripSchedules = tripSchedules.stream()
+                .map(schedule -> schedule.reversedInTime(reversalSeconds))
+                .sorted()
+                .collect(Collectors.toList());
+        reversed.shape = null;
+        reversed.stopShapeSegment = null;
+        reversed.stopShapeFraction = null;
+        return reversed;
+    }
+
     public TripPattern clone() {
         try {
             return (TripPattern) super.clone();
@@ -194,6 +194,45 @@ public class TripSchedule implements Serializable, Comparable<TripSchedule>, Clo
         }
     }
 
+    /**
+     * @return a copy of this trip running backward in time, passing the stops of its pattern in reverse order, with
+     *         each time t replaced by reversalSeconds - t so that arrivals become departures and vice versa. Frequency
+     *         trips keep times relative to their first arrival, and their frequency entries are reversed instead.
+     *         Phasing is not retained, as it refers to stops and trips that have not been reversed.
+     */
+    public TripSchedule reversedInTime (int reversalSeconds) {
+        TripSchedule reversed = this.clone();
+        int nStops = arrivals.length;
+        // The first arrival of the reversed trip is the last departure of this one.
+        int base = headwaySeconds == null ? reversalSeconds : departures[nStops - 1];
+        reversed.arrivals = new int[nStops];
+        reversed.departures = new int[nStops];
+        for (int i = 0; i < nStops; i++) {
+            reversed.arrivals[i] = base - departures[nStops - 1 - i];
+            reversed.departures[i] = base - arrivals[nStops - 1 - i];
+        }
+        if (stopSequences != null) {
+            reversed.stopSequences = new int[nStops];
+            for (int i = 0; i < nStops; i++) reversed.stopSequences[i] = stopSequences[nStops - 1 - i];
+        }
+        if (headwaySeconds != null) {
+            // A vehicle starting at time t starts the reversed trip at reversalSeconds - base - t.
+            int nEntries = headwaySeconds.length;
+            reversed.startTimes = new int[nEntries];
+            reversed.endTimes = new int[nEntries];
+            for (int i = 0; i < nEntries; i++) {
+                reversed.startTimes[i] = reversalSeconds - base - endTimes[i];
+                reversed.endTimes[i] = reversalSeconds - base - startTimes[i];
+            }
+            reversed.phaseFromId = null;
+            reversed.phaseAtStop = null;
+            reversed.phaseFromStop = null;
+            reversed.phaseSeconds = null;
+        }
+        reversed.nextInBlock = null;
+        return reversed;
+    }
+
     /** return whether it makes sense for the supplied trip to be served by the same vehicle as this trip. */
     public void chainTo (TripSchedule that) {
         // Check that chain is temporally coherent
@@ -310,12 +310,12 @@ public class TIntAugmentedList implements TIntList {
 
     @Override
     public void add(int[] vals) {
-        throw new UnsupportedOperationException();
+        extension.add(vals);
     }
 
     @Override
     public void add(int[] vals, int offset, int length) {
-        throw new UnsupportedOperationException();
+        extension.add(vals, offset, length);
     }
 
     @Override
@@ -0,0 +1,44 @@
+package com.conveyal.osmlib;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+public class ClusteredTileOSMSourceTest extends TestCase {
+
+    /** Extracting from a clustered tile file should yield the same ways and nodes as extracting from the OSM MapDB. */
+    public void testSameExtract() throws Exception {
+        OSM osm = new OSM(null);
+        osm.tileIndexing = true;
+        osm.readFromFile("./src/test/resources/bangor_maine.osm.pbf");
+
+        File tileFile = File.createTempFile("test", ".tiles");
+        tileFile.deleteOnExit();
+        ClusteredTileOSMSource.write(osm, tileFile);
+
+        double minLat = 44.79, minLon = -68.80, maxLat = 44.81, maxLon = -68.76;
+        TileOSMSource expectedSource = new TileOSMSource(osm);
+        expectedSource.setBoundingBox(minLat, minLon, maxLat, maxLon);
+        OSM expected = new OSM(null);
+        expectedSource.copyTo(expected);
+
+        ClusteredTileOSMSource actualSource = new ClusteredTileOSMSource(tileFile);
+        actualSource.setBoundingBox(minLat, minLon, maxLat, maxLon);
+        OSM actual = new OSM(null);
+        actualSource.copyTo(actual);
+
+        assertTrue(expected.ways.size() > 0);
+        assertEquals(expected.ways.keySet(), actual.ways.keySet());
+        assertEquals(expected.nodes.keySet(), actual.nodes.keySet());
+        for (Long wayId : expected.ways.keySet()) {
+            assertEquals(expected.ways.get(wayId), actual.ways.get(wayId));
+        }
+        for (Long nodeId : expected.nodes.keySet()) {
+            assertEquals(expected.nodes.get(nodeId).fixedLat, actual.nodes.get(nodeId).fixedLat);
+            assertEquals(expected.nodes.get(nodeId).fixedLon, actual.nodes.get(nodeId).fixedLon);
+        }
+        // Relations containing other relations are included, so there may be more than TileOSMSource finds.
+        assertTrue(actual.relations.keySet().containsAll(expected.relations.keySet()));
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.conveyal.osmlib;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class DenseNodeStoreTest extends TestCase {
+
+    /** Check that nodes in several chunks, with and without tags, come back out as they went in and in ID order. */
+    public void testStoreAndIterate() throws Exception {
+        DenseNodeStore store = new DenseNodeStore();
+        long[] ids = new long[] {12_000_000_000L, 5L, (1L << 27) + 3, 0L};
+        for (long id : ids) {
+            Node node = new Node(-45.5 + id % 7, 122.2 - id % 11);
+            if (id == 5L) node.addTag("amenity", "bicycle_rental");
+            store.put(id, node);
+        }
+        assertEquals(4, store.size());
+        assertNull(store.get(6L));
+        assertFalse(store.containsKey(-1L));
+        Node expected = new Node(-45.5 + 5, 122.2 - 5);
+        assertEquals(expected.fixedLat, store.get(5L).fixedLat);
+        assertEquals(expected.fixedLon, store.get(5L).fixedLon);
+        assertEquals("bicycle_rental", store.get(5L).getTag("amenity"));
+        assertTrue(store.get(0L).hasNoTags());
+
+        // Replacing a node does not change the size.
+        store.put(0L, new Node(1, 2));
+        assertEquals(4, store.size());
+        assertEquals(new Node(1, 2), store.get(0L));
+
+        List<Long> iteratedIds = new ArrayList<>();
+        for (Map.Entry<Long, Node> entry : store.entrySet()) {
+            iteratedIds.add(entry.getKey());
+            assertEquals(store.get(entry.getKey()), entry.getValue());
+        }
+        assertEquals(Arrays.asList(0L, 5L, (1L << 27) + 3, 12_000_000_000L), iteratedIds);
+
+        store.remove(5L);
+        assertEquals(3, store.size());
+        assertFalse(store.containsKey(5L));
+        store.close();
+    }
+
+}
@@ -3,6 +3,10 @@ package com.conveyal.osmlib;
 import com.beust.jcommander.internal.Sets;
 import junit.framework.TestCase;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.util.Set;
 
 public class NodeTrackerTest extends TestCase {
@@ -44,4 +48,32 @@ public class NodeTrackerTest extends TestCase {
             assertEquals(numbers.size(), tracker.cardinality());
         }
     }
+
+    /** Check that a NodeTracker read back after serialization contains the same numbers, including ones above 2^32. */
+    public void testSerialization() throws Exception {
+        NodeTracker tracker = new NodeTracker();
+        long[] numbers = new long[] {0L, 12L, 1L << 31, (1L << 34) + 5, 1L << 50};
+        for (long n : numbers) tracker.add(n);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        tracker.serialize(new DataOutputStream(bytes));
+        NodeTracker copy = NodeTracker.deserialize(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(numbers.length, copy.cardinality());
+        for (long n : numbers) {
+            assertTrue(copy.contains(n));
+            assertFalse(copy.contains(n + 1));
+        }
+    }
+
+    /** Check that adding the unsorted nodes of a way, some repeated, is the same as adding them one by one. */
+    public void testAddAll() {
+        NodeTracker tracker = new NodeTracker();
+        tracker.addAll(new long[] {(1L << 33) + 2, 7L, 9L, 7L, (1L << 33) + 1});
+        assertEquals(4, tracker.cardinality());
+        for (long n : new long[] {7L, 9L, (1L << 33) + 1, (1L << 33) + 2}) {
+            assertTrue(tracker.contains(n));
+        }
+        assertFalse(tracker.contains(8L));
+    }
 }
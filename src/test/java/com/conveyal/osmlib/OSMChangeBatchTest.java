@@ -0,0 +1,116 @@
+package com.conveyal.osmlib;
+
+import junit.framework.TestCase;
+import org.mapdb.Fun;
+
+import javax.xml.parsers.SAXParserFactory;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class OSMChangeBatchTest extends TestCase {
+
+    /**
+     * Creates, modifies and deletes a node, a way and a relation. Way 10 moves from the first tile to the second one,
+     * relation 20 moves from way 10 to way 12.
+     */
+    static final String CHANGES = "<osmChange version=\"0.6\">" +
+            "<create>" +
+            "<node id=\"5\" lat=\"45.501\" lon=\"-68.001\"/>" +
+            "<way id=\"12\"><nd ref=\"5\"/><nd ref=\"6\"/><tag k=\"highway\" v=\"residential\"/></way>" +
+            "<relation id=\"21\"><member type=\"way\" ref=\"12\" role=\"\"/><tag k=\"type\" v=\"route\"/></relation>" +
+            "</create>" +
+            "<modify>" +
+            "<node id=\"2\" lat=\"44.802\" lon=\"-68.772\"/>" +
+            "<way id=\"10\"><nd ref=\"3\"/><nd ref=\"2\"/><tag k=\"highway\" v=\"primary\"/></way>" +
+            "<relation id=\"20\"><member type=\"way\" ref=\"12\" role=\"forward\"/><tag k=\"type\" v=\"route\"/>" +
+            "</relation>" +
+            "</modify>" +
+            "<delete>" +
+            "<relation id=\"22\"/>" +
+            "<way id=\"11\"/>" +
+            "<node id=\"4\" lat=\"45.502\" lon=\"-68.002\"/>" +
+            "</delete>" +
+            "</osmChange>";
+
+    /** Applying the changes in a batch on several threads must give the same result as applying them one by one. */
+    public void testBatchMatchesSerialChanges() throws Exception {
+        OSM serial = makeOSM();
+        SAXParserFactory.newInstance().newSAXParser().parse(stream(CHANGES), new OSMChangeParser(serial));
+
+        OSM batched = makeOSM();
+        OSMChangeBatch batch = new OSMChangeBatch();
+        SAXParserFactory.newInstance().newSAXParser().parse(stream(CHANGES), new OSMChangeParser(batch));
+        assertEquals(9, batch.size());
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        batch.apply(batched, executor, 3);
+        executor.shutdown();
+
+        assertEquals(new HashMap<>(serial.nodes), new HashMap<>(batched.nodes));
+        assertEquals(new HashMap<>(serial.ways), new HashMap<>(batched.ways));
+        assertEquals(new HashMap<>(serial.relations), new HashMap<>(batched.relations));
+        assertEquals(new HashSet<>(serial.index), new HashSet<>(batched.index));
+        assertEquals(new HashSet<>(serial.relationsByWay), new HashSet<>(batched.relationsByWay));
+
+        assertFalse(batched.nodes.containsKey(4L));
+        assertFalse(batched.ways.containsKey(11L));
+        assertFalse(batched.relations.containsKey(22L));
+        assertEquals(44.802, batched.nodes.get(2L).getLat(), 1e-6);
+        assertEquals("primary", batched.ways.get(10L).getTag("highway"));
+        WebMercatorTile first = new WebMercatorTile(44.801, -68.771);
+        WebMercatorTile second = new WebMercatorTile(45.501, -68.001);
+        assertFalse(batched.index.contains(new Fun.Tuple3<>(first.xtile, first.ytile, 10L)));
+        assertTrue(batched.index.contains(new Fun.Tuple3<>(second.xtile, second.ytile, 10L)));
+        assertTrue(batched.index.contains(new Fun.Tuple3<>(second.xtile, second.ytile, 12L)));
+        assertFalse(batched.index.contains(new Fun.Tuple3<>(second.xtile, second.ytile, 11L)));
+        assertFalse(batched.relationsByWay.contains(new Fun.Tuple2<>(10L, 20L)));
+        assertFalse(batched.relationsByWay.contains(new Fun.Tuple2<>(11L, 22L)));
+        assertTrue(batched.relationsByWay.contains(new Fun.Tuple2<>(12L, 20L)));
+        assertTrue(batched.relationsByWay.contains(new Fun.Tuple2<>(12L, 21L)));
+
+        serial.close();
+        batched.close();
+    }
+
+    /** Nodes 1, 2 and 6 and way 10 are in one tile, nodes 3 and 4 and way 11 in another. */
+    private static OSM makeOSM() {
+        OSM osm = new OSM(null);
+        osm.nodes.put(1L, new Node(44.801, -68.771));
+        osm.nodes.put(2L, new Node(44.801, -68.772));
+        osm.nodes.put(3L, new Node(45.501, -68.001));
+        osm.nodes.put(4L, new Node(45.502, -68.002));
+        osm.nodes.put(6L, new Node(44.802, -68.771));
+        addWay(osm, 10, 1, 2);
+        addWay(osm, 11, 3, 4);
+        addRelation(osm, 20, 10);
+        addRelation(osm, 22, 11);
+        return osm;
+    }
+
+    private static void addWay(OSM osm, long id, long... nodes) {
+        Way way = new Way();
+        way.nodes = nodes;
+        way.addTag("highway", "residential");
+        osm.ways.put(id, way);
+        osm.indexWay(id, way);
+    }
+
+    private static void addRelation(OSM osm, long id, long wayId) {
+        Relation relation = new Relation();
+        Relation.Member member = new Relation.Member();
+        member.type = OSMEntity.Type.WAY;
+        member.id = wayId;
+        member.role = "";
+        relation.members.add(member);
+        relation.addTag("type", "route");
+        osm.relations.put(id, relation);
+    }
+
+    private static ByteArrayInputStream stream(String xml) {
+        return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -2,6 +2,11 @@ package com.conveyal.osmlib;
 
 import junit.framework.TestCase;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
 public class OSMEntityTest extends TestCase{
     /**
      * Create the test case
@@ -48,4 +53,32 @@ public class OSMEntityTest extends TestCase{
     	assertEquals( tt.getTag("key"), "value" );
     	assertEquals( tt.getTag("foo"), "true" );
     }
+
+    /** Lookups by dictionary ID must agree with string comparison, including after Java serialization. */
+    public void testDictionaryTags() throws Exception
+    {
+        Relation relation = new Relation();
+        relation.addTag(new String("highway"), new String("residential"));
+        relation.addTag("not_in_dictionary", "yes");
+        relation.addTag("oneway", "not_in_dictionary");
+
+        assertEquals( "residential", relation.getTag("highway") );
+        assertTrue( relation.hasTag("highway", "residential") );
+        assertFalse( relation.hasTag("highway", "primary") );
+        assertFalse( relation.hasTag("name") );
+        assertTrue( relation.tagIsTrue("not_in_dictionary") );
+        assertTrue( relation.hasTag("oneway", "not_in_dictionary") );
+        assertFalse( relation.hasTag("oneway", "yes") );
+
+        relation.addOrReplaceTag("highway", "primary");
+        assertTrue( relation.hasTag("highway", "primary") );
+        assertFalse( relation.hasTag("highway", "residential") );
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new ObjectOutputStream(bytes).writeObject(relation);
+        Relation copy = (Relation) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertTrue( copy.hasTag("highway", "primary") );
+        assertTrue( copy.tagIsTrue("not_in_dictionary") );
+        assertFalse( copy.hasTag("highway", "residential") );
+    }
 }
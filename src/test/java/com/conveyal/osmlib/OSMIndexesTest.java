@@ -0,0 +1,65 @@
+package com.conveyal.osmlib;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class OSMIndexesTest extends TestCase {
+
+    static final String TEST_FILE = "./src/test/resources/bangor_maine.osm.pbf";
+
+    /**
+     * The derived indexes saved next to a persistent OSM MapDB must not be reused after replication updates were
+     * applied to the MapDB, since those do not maintain them.
+     */
+    public void testIndexesRebuiltAfterUpdate() throws Exception {
+        File dir = Files.createTempDirectory("osm").toFile();
+        String dbPath = new File(dir, "test.db").getPath();
+
+        OSM osm = new OSM(dbPath);
+        osm.intersectionDetection = true;
+        osm.readFromFile(TEST_FILE);
+        osm.close();
+
+        // Reopen the MapDB, loading the saved indexes, then apply an update adding a way through a node that was not
+        // an intersection.
+        osm = new OSM(dbPath);
+        osm.intersectionDetection = true;
+        osm.readFromFile(TEST_FILE);
+        long newIntersection = -1;
+        for (Way way : osm.ways.values()) {
+            for (long nodeId : way.nodes) {
+                if (!osm.intersectionNodes.contains(nodeId)) {
+                    newIntersection = nodeId;
+                    break;
+                }
+            }
+            if (newIntersection != -1) break;
+        }
+        assertTrue(newIntersection != -1);
+        OSMChangeBatch batch = new OSMChangeBatch();
+        Way newWay = new Way();
+        newWay.nodes = new long[] {newIntersection, osm.nodes.keySet().iterator().next()};
+        newWay.addTag("highway", "residential");
+        batch.ways.put(Long.MAX_VALUE / 2, newWay);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        batch.apply(osm, executor, 2);
+        executor.shutdown();
+        osm.timestamp.set(osm.timestamp.get() + 60);
+        osm.close();
+
+        // The saved indexes are out of date and must be rebuilt from the updated MapDB.
+        osm = new OSM(dbPath);
+        osm.intersectionDetection = true;
+        osm.readFromFile(TEST_FILE);
+        assertTrue(osm.intersectionNodes.contains(newIntersection));
+        osm.close();
+
+        for (File file : dir.listFiles()) file.delete();
+        dir.delete();
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.conveyal.osmlib;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+public class PBFInputTest extends TestCase {
+
+    /**
+     * Reading a truncated file in parallel should fail rather than hang, even when the queue of decoded blocks is full
+     * at the moment the reader thread hits the end of the data.
+     */
+    public void testTruncatedFile() throws Exception {
+        byte[] bytes = Files.readAllBytes(Paths.get("./src/test/resources/porto_portugal.osm.pbf"));
+        byte[] truncated = Arrays.copyOf(bytes, bytes.length / 2);
+        PBFInput pbfInput = new PBFInput(new ByteArrayInputStream(truncated));
+        pbfInput.nThreads = 2;
+        long[] nEntities = new long[1];
+        try {
+            pbfInput.copyTo(new OSMEntitySink() {
+                @Override public void writeBegin() { }
+                @Override public void setReplicationTimestamp(long secondsSinceEpoch) { }
+                @Override public void writeNode(long id, Node node) { count(); }
+                @Override public void writeWay(long id, Way way) { count(); }
+                @Override public void writeRelation(long id, Relation relation) { count(); }
+                /** Let the reader thread fill the queue and reach the end of the data while the first block waits. */
+                private void count() {
+                    if (nEntities[0]++ == 0) {
+                        try {
+                            Thread.sleep(500);
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }
+                @Override public void writeEnd() { }
+            });
+            fail("Reading a truncated PBF file should throw an IOException.");
+        } catch (IOException e) {
+            // Expected, the blocks before the truncation should have been written.
+            assertTrue(nEntities[0] > 0);
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.conveyal.osmlib;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+public class ParallelBlockWriterTest extends TestCase {
+
+    /** Blocks compressed out of order must be written in the order they were submitted. */
+    public void testOrderedOutput() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ParallelBlockWriter writer = new ParallelBlockWriter(out, 3);
+        Random random = new Random(42);
+        // Many more blocks than the bound on pending blocks, each taking a random time to compress.
+        int nBlocks = 200;
+        for (int b = 0; b < nBlocks; b++) {
+            final byte block = (byte) b;
+            final int delayMillis = random.nextInt(5);
+            writer.submit(() -> {
+                Thread.sleep(delayMillis);
+                return new byte[] {block, block};
+            });
+        }
+        writer.close();
+        byte[] written = out.toByteArray();
+        assertEquals(nBlocks * 2, written.length);
+        for (int b = 0; b < nBlocks; b++) {
+            assertEquals((byte) b, written[b * 2]);
+            assertEquals((byte) b, written[b * 2 + 1]);
+        }
+    }
+
+    /** A block that fails to compress must make close fail, after the downstream stream has been closed. */
+    public void testFailurePropagation() {
+        boolean[] closed = new boolean[1];
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public void close() throws IOException {
+                closed[0] = true;
+                super.close();
+            }
+        };
+        ParallelBlockWriter writer = new ParallelBlockWriter(out, 2);
+        writer.submit(() -> new byte[] {1});
+        writer.submit(() -> {
+            throw new IOException("Compression failed.");
+        });
+        try {
+            for (int b = 0; b < 20; b++) {
+                writer.submit(() -> new byte[] {2});
+            }
+        } catch (RuntimeException e) {
+            // Submitting may already report the failure once the writer thread has seen it.
+        }
+        try {
+            writer.close();
+            fail("Closing the writer should report the failed block.");
+        } catch (RuntimeException e) {
+            // Expected.
+        }
+        assertTrue(closed[0]);
+        // Nothing after the failed block is written.
+        assertEquals(1, out.toByteArray().length);
+    }
+
+}
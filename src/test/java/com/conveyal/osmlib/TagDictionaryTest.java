@@ -0,0 +1,45 @@
+package com.conveyal.osmlib;
+
+import com.conveyal.osmlib.serializer.CompactWaySerializer;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The TagDictionary IDs are stored in OSM MapDB files and clustered tile files. These tests fail if dictionary entries
+ * are removed or reordered, which would silently corrupt every existing file.
+ */
+public class TagDictionaryTest extends TestCase {
+
+    public void testPinnedIds() {
+        assertEquals(1, TagDictionary.id("building"));
+        assertEquals(2, TagDictionary.id("highway"));
+        assertEquals(66, TagDictionary.id("yes"));
+        assertEquals(68, TagDictionary.id("residential"));
+        assertEquals(156, TagDictionary.id("survey"));
+        assertEquals("survey", TagDictionary.string(156));
+        assertEquals(TagDictionary.NONE, TagDictionary.id("not_in_dictionary"));
+    }
+
+    public void testPinnedWayEncoding() throws Exception {
+        Way way = new Way();
+        way.nodes = new long[] {10, 12, 11};
+        way.addTag("highway", "residential");
+        way.addTag("not_in_dictionary", "yes");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new CompactWaySerializer().serialize(new DataOutputStream(bytes), way);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        // Three nodes, as zigzag-encoded deltas 10, 2 and -1.
+        expected.write(new byte[] {3, 20, 4, 1});
+        // Two tags: highway=residential by ID, then a literal key (ID 0, length, UTF-8 bytes) with the value yes by ID.
+        expected.write(new byte[] {2, 2, 68, 0, 17});
+        expected.write("not_in_dictionary".getBytes(StandardCharsets.UTF_8));
+        expected.write(66);
+        assertTrue(Arrays.equals(expected.toByteArray(), bytes.toByteArray()));
+    }
+
+}
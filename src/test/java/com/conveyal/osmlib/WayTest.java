@@ -1,10 +1,32 @@
 package com.conveyal.osmlib;
 
+import com.conveyal.osmlib.serializer.CompactWaySerializer;
 import junit.framework.TestCase;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
 public class WayTest extends TestCase {
 	public void testWay(){
 		Way way = new Way();
 		assertNotNull( way );
 	}
+
+	public void testCompactSerializer() throws Exception {
+		Way way = new Way();
+		way.nodes = new long[] {10, 12, 11};
+		way.addTag("highway", "residential");
+		way.addTag("name", "Rue Jean-Jaurès");
+		way.addTag("not_in_dictionary", "yes");
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		CompactWaySerializer serializer = new CompactWaySerializer();
+		serializer.serialize(new DataOutputStream(bytes), way);
+		Way copy = serializer.deserialize(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), -1);
+		assertEquals(way, copy);
+		// Common keys and values are the same instances as the literals in the code.
+		assertSame("highway", copy.tags.get(0).key);
+		assertSame("residential", copy.getTag("highway"));
+	}
 }
@@ -0,0 +1,74 @@
+package com.conveyal.r5.analyst.scenario;
+
+import com.conveyal.r5.profile.StreetMode;
+import com.conveyal.r5.streets.StreetRouter;
+import com.conveyal.r5.streets.TurnTest;
+import com.conveyal.r5.transit.TransportNetwork;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that a road congestion modification with time of day attributes slows car searches down on the roads inside
+ * its polygons, only at the times of day when they are congested.
+ */
+public class RoadCongestionTest extends TurnTest {
+
+    private static final int MORNING_PEAK = 8 * 60 * 60;
+
+    private static final int NIGHT = 3 * 60 * 60;
+
+    /** A polygon around the street north of the center vertex, at half speed from 6 AM to noon. */
+    private static final String POLYGONS = "{\"type\": \"FeatureCollection\", \"features\": [{\"type\": \"Feature\", " +
+            "\"properties\": {\"name\": \"north\", \"scale\": 1, \"priority\": 1, " +
+            "\"night\": 1, \"morning\": 0.5, \"afternoon\": 1, \"evening\": 1}, " +
+            "\"geometry\": {\"type\": \"Polygon\", \"coordinates\": [[[-122.1235, 37.3635], [-122.1225, 37.3635], " +
+            "[-122.1225, 37.3645], [-122.1235, 37.3645], [-122.1235, 37.3635]]]}}]}";
+
+    @Test
+    public void testTimeOfDaySpeeds () throws Exception {
+        setUp(false);
+        int freeFlowNorth = route(NIGHT).getTravelTimeToVertex(vn);
+        int freeFlowEast = route(MORNING_PEAK).getTravelTimeToVertex(ve);
+
+        RoadCongestion roadCongestion = new RoadCongestion();
+        roadCongestion.timeOfDayAttributes = new String[] {"night", "morning", "afternoon", "evening"};
+        roadCongestion.resolveFeatures(new ByteArrayInputStream(POLYGONS.getBytes(StandardCharsets.UTF_8)));
+        assertTrue(roadCongestion.errors.isEmpty());
+        TransportNetwork network = new TransportNetwork();
+        network.streetLayer = streetLayer;
+        assertFalse(roadCongestion.apply(network));
+        assertNotNull(streetLayer.edgeStore.congestionProfiles);
+        assertEquals(1, streetLayer.edgeStore.congestionProfiles.getProfileCount());
+
+        assertEquals(freeFlowNorth, route(NIGHT).getTravelTimeToVertex(vn));
+        // Half of 255 is rounded down to 127, so the time is slightly more than doubled.
+        assertEquals((freeFlowNorth * 255 + 126) / 127, route(MORNING_PEAK).getTravelTimeToVertex(vn));
+        // Streets outside the polygon are not congested.
+        assertEquals(freeFlowEast, route(MORNING_PEAK).getTravelTimeToVertex(ve));
+    }
+
+    @Test
+    public void testInvalidBinCount () throws Exception {
+        RoadCongestion roadCongestion = new RoadCongestion();
+        roadCongestion.timeOfDayAttributes = new String[7];
+        roadCongestion.resolveFeatures(new ByteArrayInputStream(POLYGONS.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(1, roadCongestion.errors.size());
+    }
+
+    private StreetRouter route (int fromTime) {
+        StreetRouter router = new StreetRouter(streetLayer);
+        router.streetMode = StreetMode.CAR;
+        router.profileRequest.fromTime = fromTime;
+        router.setOrigin(vcenter);
+        router.route();
+        return router;
+    }
+
+}
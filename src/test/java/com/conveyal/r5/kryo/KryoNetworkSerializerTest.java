@@ -69,6 +69,11 @@ public class KryoNetworkSerializerTest {
         // Skip the linkage LoadingCache which can have its values evicted.
         // It and the map are keyed on street layers, which have identity equality so don't compare properly here.
         objectDiffer.ignoreFields("linkageCache", "linkageMap");
+        // Skip the edge cost cache, which is built lazily by searches and not serialized.
+        objectDiffer.ignoreFields("edgeCostCache");
+        // Skip the street layer's router pool and access search cache, which are also created lazily. The pool is keyed
+        // on threads, which should not be compared.
+        objectDiffer.ignoreFields("routerPool", "accessSearchCache");
         objectDiffer.useEquals(BitSet.class);
         // IntHashGrid contains unordered lists of elements in each bin. Lists are compared as ordered.
         objectDiffer.ignoreClasses(IntHashGrid.class);
@@ -0,0 +1,145 @@
+package com.conveyal.r5.kryo;
+
+import com.conveyal.gtfs.model.Trip;
+import com.conveyal.r5.streets.PackedGeometryStore;
+import com.conveyal.r5.transit.TripPattern;
+import com.conveyal.r5.transit.TripSchedule;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TShortArrayList;
+import org.junit.Test;
+
+import java.util.BitSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Round-trip tests for the hand-written serializers registered in KryoNetworkSerializer. The whole-network round
+ * trip is covered by KryoNetworkSerializerTest, these check edge cases (nulls, negative deltas, empty arrays) that
+ * may not appear in the test networks.
+ */
+public class PrimitiveSerializersTest {
+
+    @Test
+    public void testBitSetRoundTrip () {
+        BitSet bitSet = new BitSet();
+        bitSet.set(0);
+        bitSet.set(63, 130);
+        bitSet.set(100000);
+        assertEquals(bitSet, roundTrip(bitSet, BitSet.class));
+        assertEquals(new BitSet(), roundTrip(new BitSet(), BitSet.class));
+    }
+
+    @Test
+    public void testGeometryRoundTrip () {
+        PackedGeometryStore geometries = new PackedGeometryStore(3);
+        geometries.add(new int[] {400_000_000, -830_000_000, 400_000_150, -830_000_300});
+        geometries.add(new int[0]);
+        // Coordinates that jump around, including across the antimeridian and between hemispheres.
+        geometries.add(new int[] {-899_999_999, 1_799_999_999, 899_999_999, -1_799_999_999, 0, 0});
+        // Replace a geometry so that the store contains some unreferenced coordinates, which should not be written.
+        geometries.set(0, new int[] {400_000_000, -830_000_000, 400_000_100, -830_000_200, 400_000_150, -830_000_300});
+        assertSameGeometries(geometries, roundTrip(geometries, new PackedGeometryStoreSerializer(true)));
+        assertSameGeometries(geometries, roundTrip(geometries, new PackedGeometryStoreSerializer(false)));
+        // The layout of format version 1 networks, which is read when migrating them.
+        assertSameGeometries(geometries, roundTrip(geometries, new GeometryListSerializer()));
+    }
+
+    private static void assertSameGeometries (PackedGeometryStore expected, PackedGeometryStore actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    @Test
+    public void testTroveListRoundTrip () {
+        TShortArrayList speeds = new TShortArrayList(100, (short) -1);
+        speeds.add(new short[] {1389, 0, -5, Short.MAX_VALUE, Short.MIN_VALUE});
+        TShortArrayList copy = roundTrip(speeds, TShortArrayList.class);
+        assertEquals(speeds, copy);
+        assertEquals(speeds.getNoEntryValue(), copy.getNoEntryValue());
+    }
+
+    @Test
+    public void testTripPatternRoundTrip () {
+        TripPattern pattern = new TripPattern(TIntArrayList.wrap(new int[] {4, 8, 15, 16}));
+        pattern.originalId = 42;
+        pattern.servicesActive.set(3);
+
+        Trip trip = new Trip();
+        trip.feed_id = "feed";
+        trip.trip_id = "trip";
+        int[] arrivals = new int[] {25200, 25500, 25800, 26200};
+        int[] departures = new int[] {25200, 25530, 25800, 26200};
+        TripSchedule scheduled = TripSchedule.create(trip, arrivals, departures, null, new int[] {1, 2, 3, 4}, 3);
+        pattern.addTrip(scheduled);
+
+        // A frequency-based trip with phasing information, clock times past midnight and some null entries.
+        TripSchedule frequency = scheduled.clone();
+        frequency.headwaySeconds = new int[] {600, 900};
+        frequency.startTimes = new int[] {25200, 90000};
+        frequency.endTimes = new int[] {36000, 3600};
+        frequency.frequencyEntryIds = new String[] {"a", "b"};
+        frequency.phaseFromId = new String[] {null, "a"};
+        frequency.phaseAtStop = new String[] {null, "feed:stop"};
+        frequency.phaseFromStop = new String[] {null, "feed:other"};
+        frequency.phaseSeconds = new int[] {0, 300};
+        pattern.addTrip(frequency);
+
+        TripPattern copy = roundTrip(pattern, TripPattern.class);
+        assertEquals(pattern.originalId, copy.originalId);
+        assertEquals(pattern.routeId, copy.routeId);
+        assertEquals(pattern.directionId, copy.directionId);
+        assertArrayEquals(pattern.stops, copy.stops);
+        assertArrayEquals(pattern.pickups, copy.pickups);
+        assertArrayEquals(pattern.dropoffs, copy.dropoffs);
+        assertEquals(pattern.wheelchairAccessible, copy.wheelchairAccessible);
+        assertEquals(pattern.servicesActive, copy.servicesActive);
+        assertEquals(pattern.hasFrequencies, copy.hasFrequencies);
+        assertEquals(pattern.hasSchedules, copy.hasSchedules);
+        assertEquals(pattern.routeIndex, copy.routeIndex);
+        assertNull(copy.shape);
+        assertEquals(pattern.tripSchedules.size(), copy.tripSchedules.size());
+        for (int i = 0; i < pattern.tripSchedules.size(); i++) {
+            TripSchedule expected = pattern.tripSchedules.get(i);
+            TripSchedule actual = copy.tripSchedules.get(i);
+            assertEquals(expected.tripId, actual.tripId);
+            assertArrayEquals(expected.arrivals, actual.arrivals);
+            assertArrayEquals(expected.departures, actual.departures);
+            assertArrayEquals(expected.headwaySeconds, actual.headwaySeconds);
+            assertArrayEquals(expected.startTimes, actual.startTimes);
+            assertArrayEquals(expected.endTimes, actual.endTimes);
+            assertArrayEquals(expected.frequencyEntryIds, actual.frequencyEntryIds);
+            assertArrayEquals(expected.phaseFromId, actual.phaseFromId);
+            assertArrayEquals(expected.phaseAtStop, actual.phaseAtStop);
+            assertArrayEquals(expected.phaseFromStop, actual.phaseFromStop);
+            assertArrayEquals(expected.phaseSeconds, actual.phaseSeconds);
+            assertArrayEquals(expected.stopSequences, actual.stopSequences);
+            assertEquals(expected.flags, actual.flags);
+            assertEquals(expected.serviceCode, actual.serviceCode);
+        }
+    }
+
+    /** Write and re-read an object with the given serializer. */
+    private static <T> T roundTrip (T object, Serializer<T> serializer) {
+        Kryo kryo = KryoNetworkSerializer.makeKryo();
+        Output output = new Output(4096, -1);
+        serializer.write(kryo, output, object);
+        return serializer.read(kryo, new Input(output.toBytes()), null);
+    }
+
+    /** Write and re-read an object with a Kryo instance configured exactly as for saving networks. */
+    private static <T> T roundTrip (T object, Class<T> type) {
+        Kryo kryo = KryoNetworkSerializer.makeKryo();
+        Output output = new Output(4096, -1);
+        kryo.writeObject(output, object);
+        return kryo.readObject(new Input(output.toBytes()), type);
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.profile.StreetMode;
+import gnu.trove.map.TIntIntMap;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that travel times combined from retained searches are the same as those found by routing from each origin,
+ * including at the time limit and when bike searches continue on foot.
+ */
+public class AccessSearchCacheTest extends TurnTest {
+
+    /** Points along the edges es, enw, ee, esw and en, several of them sharing vertices. */
+    private static final double[][] ORIGINS = new double[][] {
+            {37.3625, -122.123}, {37.3635, -122.124}, {37.363, -122.1225}, {37.3625, -122.124}, {37.3638, -122.123}
+    };
+
+    @Test
+    public void testSameTravelTimes () {
+        setUp(false);
+        // Only some streets allow cycling, so bike searches must also walk.
+        streetLayer.edgeStore.getCursor(en).setFlag(EdgeStore.EdgeFlag.ALLOWS_BIKE);
+        streetLayer.edgeStore.getCursor(en + 1).setFlag(EdgeStore.EdgeFlag.ALLOWS_BIKE);
+        streetLayer.edgeStore.getCursor(es).setFlag(EdgeStore.EdgeFlag.ALLOWS_BIKE);
+        streetLayer.edgeStore.getCursor(es + 1).setFlag(EdgeStore.EdgeFlag.ALLOWS_BIKE);
+
+        AccessSearchCache cache = streetLayer.getAccessSearchCache();
+        for (StreetMode mode : new StreetMode[] {StreetMode.WALK, StreetMode.BICYCLE}) {
+            for (int timeLimitSeconds : new int[] {15, 3600}) {
+                for (double[] origin : ORIGINS) {
+                    StreetRouter router = createRouter(origin, mode, timeLimitSeconds);
+                    assertTrue(cache.canCombine(router));
+                    TIntIntMap combined = cache.getTravelTimesToVertices("job", router);
+                    router.route();
+                    if (mode != StreetMode.WALK) router.keepRoutingOnFoot();
+                    for (int vertex = 0; vertex < streetLayer.getVertexCount(); vertex++) {
+                        assertEquals(router.getTravelTimeToVertex(vertex), combined.get(vertex));
+                    }
+                }
+            }
+        }
+    }
+
+    private StreetRouter createRouter (double[] origin, StreetMode mode, int timeLimitSeconds) {
+        StreetRouter router = new StreetRouter(streetLayer);
+        router.streetMode = mode;
+        router.timeLimitSeconds = timeLimitSeconds;
+        router.quantityToMinimize = StreetRouter.State.RoutingVariable.DURATION_SECONDS;
+        assertTrue(router.setOrigin(origin[0], origin[1]));
+        return router;
+    }
+
+}
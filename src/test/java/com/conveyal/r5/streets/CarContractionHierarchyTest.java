@@ -0,0 +1,71 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.profile.StreetMode;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that car searches answered with a contraction hierarchy give the same results as exploring the network edge by
+ * edge, including turn restrictions with and without via edges, and when continuing the search on foot.
+ */
+public class CarContractionHierarchyTest extends TurnTest {
+
+    /** Points halfway along the edges es, enw, ee and esw. */
+    private static final double[][] ORIGINS = new double[][] {
+            {37.3625, -122.123}, {37.3635, -122.124}, {37.363, -122.1225}, {37.3625, -122.124}
+    };
+
+    @Test
+    public void testSameResults () {
+        setUp(false);
+        restrictTurn(false, es + 1, ew);
+        restrictTurn(false, en + 1, enw, ew);
+        restrictTurn(true, ee + 1, es);
+        streetLayer.carContractionHierarchy = CarContractionHierarchy.build(streetLayer);
+
+        int[] vertices = new int[] {vcenter, vn, vs, ve, vne, vw, vnw, vsw};
+        for (double[] origin : ORIGINS) {
+            StreetRouter withoutHierarchy = route(origin, false);
+            StreetRouter withHierarchy = route(origin, true);
+            assertEquals(withoutHierarchy.getReachedVertices(), withHierarchy.getReachedVertices());
+            for (int vertex : vertices) {
+                assertEquals(withoutHierarchy.getTravelTimeToVertex(vertex), withHierarchy.getTravelTimeToVertex(vertex));
+                StreetRouter.State state = withHierarchy.getStateAtVertex(vertex);
+                if (state == null) continue;
+                // The path to the state must be complete, back to an origin state at the end of the origin edge.
+                while (state.backState != null) state = state.backState;
+                assertEquals(withHierarchy.getOriginSplit().edge, state.backEdge & ~1);
+            }
+            withoutHierarchy.keepRoutingOnFoot();
+            withHierarchy.keepRoutingOnFoot();
+            assertEquals(withoutHierarchy.getReachedVertices(), withHierarchy.getReachedVertices());
+        }
+    }
+
+    @Test
+    public void testInvalidation () {
+        setUp(false);
+        CarContractionHierarchy hierarchy = CarContractionHierarchy.build(streetLayer);
+        assertTrue(hierarchy.isValidFor(streetLayer));
+        streetLayer.carContractionHierarchy = hierarchy;
+        // Adding edges invalidates the hierarchy, and searches fall back on exploring the network edge by edge.
+        streetLayer.edgeStore.addStreetPair(vn, vs, 1000, 8).setFlag(EdgeStore.EdgeFlag.ALLOWS_CAR);
+        streetLayer.buildEdgeLists();
+        assertFalse(hierarchy.isValidFor(streetLayer));
+        assertEquals(route(ORIGINS[0], false).getReachedVertices(), route(ORIGINS[0], true).getReachedVertices());
+    }
+
+    private StreetRouter route (double[] origin, boolean useContractionHierarchy) {
+        StreetRouter router = new StreetRouter(streetLayer);
+        router.useContractionHierarchy = useContractionHierarchy;
+        router.streetMode = StreetMode.CAR;
+        router.timeLimitSeconds = 3600;
+        assertTrue(router.setOrigin(origin[0], origin[1]));
+        router.route();
+        return router;
+    }
+
+}
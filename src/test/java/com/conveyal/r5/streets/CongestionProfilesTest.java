@@ -0,0 +1,56 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.profile.StreetMode;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check that identical congestion profiles are shared between edges, and that car searches are slowed down on
+ * congested edges only at the times of day when they are congested.
+ */
+public class CongestionProfilesTest extends TurnTest {
+
+    private static final int MORNING_PEAK = 8 * 60 * 60;
+
+    private static final int NIGHT = 3 * 60 * 60;
+
+    @Test
+    public void testCongestedSearch () {
+        setUp(false);
+        int freeFlowSeconds = route(NIGHT, true).getTravelTimeToVertex(vn);
+
+        // The street to the north runs at half speed in both directions from 8 to 9 AM.
+        double[] relativeSpeeds = new double[24];
+        Arrays.fill(relativeSpeeds, 1);
+        relativeSpeeds[8] = 0.5;
+        CongestionProfiles profiles = new CongestionProfiles(24);
+        profiles.setProfile(en, relativeSpeeds);
+        profiles.setProfile(en + 1, relativeSpeeds);
+        assertEquals(1, profiles.getProfileCount());
+        streetLayer.edgeStore.congestionProfiles = profiles;
+
+        for (boolean useFlatStates : new boolean[] {false, true}) {
+            assertEquals(freeFlowSeconds, route(NIGHT, useFlatStates).getTravelTimeToVertex(vn));
+            // Half of 255 is rounded down to 127, so the time is slightly more than doubled.
+            int congestedSeconds = (freeFlowSeconds * 255 + 126) / 127;
+            assertEquals(congestedSeconds, route(MORNING_PEAK, useFlatStates).getTravelTimeToVertex(vn));
+            // The same time of day on the next day is congested too.
+            assertEquals(congestedSeconds, route(MORNING_PEAK + CongestionProfiles.SECONDS_PER_DAY, useFlatStates)
+                    .getTravelTimeToVertex(vn));
+        }
+    }
+
+    private StreetRouter route (int fromTime, boolean useFlatStates) {
+        StreetRouter router = new StreetRouter(streetLayer);
+        router.useFlatStates = useFlatStates;
+        router.streetMode = StreetMode.CAR;
+        router.profileRequest.fromTime = fromTime;
+        router.setOrigin(vcenter);
+        router.route();
+        return router;
+    }
+
+}
@@ -0,0 +1,133 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.profile.StreetMode;
+import gnu.trove.map.TIntIntMap;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that storing states outside turn restrictions in flat arrays gives the same results as using State objects
+ * for every state, including when states pass in and out of turn restrictions.
+ */
+public class FlatStatesTest extends TurnTest {
+
+    @Test
+    public void testSameResults () {
+        setUp(false);
+        restrictTurn(false, es + 1, ew);
+        restrictTurn(false, en + 1, enw, ew);
+        restrictTurn(true, ee + 1, es);
+
+        int[] vertices = new int[] {vcenter, vn, vs, ve, vne, vw, vnw, vsw};
+        for (boolean reverseSearch : new boolean[] {false, true}) {
+            for (StreetMode mode : new StreetMode[] {StreetMode.WALK, StreetMode.CAR}) {
+                for (int origin : vertices) {
+                    StreetRouter objectRouter = route(mode, origin, reverseSearch, false);
+                    StreetRouter flatRouter = route(mode, origin, reverseSearch, true);
+                    assertEquals(objectRouter.getReachedVertices(), flatRouter.getReachedVertices());
+                    for (int vertex : vertices) {
+                        assertEquals(objectRouter.getTravelTimeToVertex(vertex), flatRouter.getTravelTimeToVertex(vertex));
+                        StreetRouter.State objectState = objectRouter.getStateAtVertex(vertex);
+                        StreetRouter.State flatState = flatRouter.getStateAtVertex(vertex);
+                        if (objectState == null) continue;
+                        assertEquals(objectState.getDurationSeconds(), flatState.getDurationSeconds());
+                        // The path to the state must be complete, back to the origin.
+                        while (flatState.backState != null) flatState = flatState.backState;
+                        assertEquals(0, flatState.getDurationSeconds());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testKeepRoutingOnFoot () {
+        setUp(false);
+        restrictTurn(false, es + 1, ew);
+        // Make one edge pair walk-only so the car search must continue on foot to reach its far end.
+        EdgeStore.Edge edge = streetLayer.edgeStore.getCursor(enw);
+        edge.clearFlag(EdgeStore.EdgeFlag.ALLOWS_CAR);
+        edge.advance();
+        edge.clearFlag(EdgeStore.EdgeFlag.ALLOWS_CAR);
+
+        StreetRouter objectRouter = route(StreetMode.CAR, vs, false, false);
+        StreetRouter flatRouter = route(StreetMode.CAR, vs, false, true);
+        objectRouter.keepRoutingOnFoot();
+        flatRouter.keepRoutingOnFoot();
+        TIntIntMap reached = flatRouter.getReachedVertices();
+        assertEquals(objectRouter.getReachedVertices(), reached);
+        assertTrue(reached.containsKey(vnw));
+    }
+
+    /** A router that is reset and reused, including its flat state arrays, must give the same results as a new one. */
+    @Test
+    public void testReusedRouter () {
+        setUp(false);
+        restrictTurn(false, es + 1, ew);
+        StreetRouterPool routerPool = streetLayer.getRouterPool();
+        StreetRouter reused = routerPool.acquire();
+        for (StreetMode mode : new StreetMode[] {StreetMode.CAR, StreetMode.WALK, StreetMode.CAR}) {
+            for (int origin : new int[] {vcenter, vnw, vs}) {
+                reused.streetMode = mode;
+                reused.timeLimitSeconds = 30;
+                reused.setOrigin(origin);
+                reused.route();
+                StreetRouter fresh = new StreetRouter(streetLayer);
+                fresh.streetMode = mode;
+                fresh.timeLimitSeconds = 30;
+                fresh.setOrigin(origin);
+                fresh.route();
+                assertEquals(fresh.getReachedVertices(), reused.getReachedVertices());
+                routerPool.release(reused);
+                // The thread gets back the router it released, with its settings restored to their defaults.
+                StreetRouter acquired = routerPool.acquire();
+                assertSame(reused, acquired);
+                assertEquals(0, acquired.timeLimitSeconds);
+                assertEquals(StreetMode.WALK, acquired.streetMode);
+            }
+        }
+    }
+
+    /**
+     * Routers retained by the pool of a scenario copy of a street layer must not keep that layer alive once nothing
+     * else refers to it, even though this thread lives on.
+     */
+    @Test
+    public void testReleasedLayerCollected () throws Exception {
+        setUp(false);
+        WeakReference<StreetLayer> scenarioLayer = routeOnScenarioCopy();
+        for (int i = 0; i < 50 && scenarioLayer.get() != null; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull(scenarioLayer.get());
+    }
+
+    /** Route on a scenario copy of the street layer with a pooled router, and release it to the copy's pool. */
+    private WeakReference<StreetLayer> routeOnScenarioCopy () {
+        StreetLayer copy = streetLayer.scenarioCopy(null, false);
+        StreetRouterPool routerPool = copy.getRouterPool();
+        StreetRouter router = routerPool.acquire();
+        router.setOrigin(vcenter);
+        router.route();
+        routerPool.release(router);
+        return new WeakReference<>(copy);
+    }
+
+    private StreetRouter route (StreetMode mode, int origin, boolean reverseSearch, boolean useFlatStates) {
+        StreetRouter router = new StreetRouter(streetLayer);
+        router.useFlatStates = useFlatStates;
+        router.streetMode = mode;
+        router.profileRequest.reverseSearch = reverseSearch;
+        router.setOrigin(origin);
+        router.route();
+        return router;
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.profile.StreetMode;
+import gnu.trove.map.TIntIntMap;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that landmark bounds never exceed actual path lengths, and that using them for goal direction does not
+ * change the result of point-to-point searches.
+ */
+public class LandmarksTest extends TurnTest {
+
+    @Test
+    public void testLowerBounds () {
+        setUp(false);
+        Landmarks landmarks = Landmarks.compute(streetLayer, 3);
+        assertTrue(landmarks.isValidFor(streetLayer));
+        int nVertices = streetLayer.getVertexCount();
+        for (int origin = 0; origin < nVertices; origin++) {
+            TIntIntMap distances = route(origin, StreetMode.WALK, StreetRouter.State.RoutingVariable.DISTANCE_MILLIMETERS);
+            TIntIntMap carTimes = route(origin, StreetMode.CAR, StreetRouter.State.RoutingVariable.DURATION_SECONDS);
+            for (int destination = 0; destination < nVertices; destination++) {
+                if (destination == origin) continue;
+                assertTrue(landmarks.lowerBound(origin, destination, false) <= distances.get(destination));
+                assertTrue(landmarks.lowerBound(origin, destination, true) <= carTimes.get(destination));
+            }
+        }
+        // Adding edges invalidates the bounds.
+        streetLayer.edgeStore.addStreetPair(vn, vs, 1000, 8);
+        assertFalse(landmarks.isValidFor(streetLayer));
+    }
+
+    @Test
+    public void testSameRoute () {
+        setUp(false);
+        restrictTurn(false, es + 1, ew);
+        StreetRouter.State withoutLandmarks = routeToWest();
+        streetLayer.landmarks = Landmarks.compute(streetLayer, 3);
+        StreetRouter.State withLandmarks = routeToWest();
+        assertEquals(withoutLandmarks.getDurationSeconds(), withLandmarks.getDurationSeconds());
+        assertEquals(withoutLandmarks.distance, withLandmarks.distance);
+    }
+
+    private TIntIntMap route (int origin, StreetMode mode, StreetRouter.State.RoutingVariable routingVariable) {
+        StreetRouter router = new StreetRouter(streetLayer);
+        router.streetMode = mode;
+        router.quantityToMinimize = routingVariable;
+        router.setOrigin(origin);
+        router.route();
+        return router.getReachedVertices();
+    }
+
+    private StreetRouter.State routeToWest () {
+        StreetRouter router = new StreetRouter(streetLayer);
+        router.streetMode = StreetMode.CAR;
+        router.setOrigin(vs);
+        router.setDestination(streetLayer.findSplit(37.363, -122.1235, 500, StreetMode.CAR));
+        router.route();
+        return router.getState(router.getDestinationSplit());
+    }
+
+}
@@ -0,0 +1,51 @@
+package com.conveyal.r5.streets;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Check that replacing geometries and extend-only copies behave like the List of int arrays this store replaced.
+ */
+public class PackedGeometryStoreTest {
+
+    @Test
+    public void testSetAndCopy () {
+        PackedGeometryStore store = new PackedGeometryStore(4);
+        store.add(new int[] {10, 20, 30, 40});
+        store.add(new int[0]);
+        store.add(new int[] {50, 60});
+        assertEquals(3, store.size());
+        assertEquals(2, store.nPoints(0));
+        assertEquals(0, store.nPoints(1));
+        assertEquals(30, store.getFixedLat(0, 1));
+        assertEquals(60, store.getFixedLon(2, 0));
+
+        // Replacing with a shorter geometry reuses the space, a longer one is appended. Neighbors must be unaffected.
+        store.set(0, new int[] {11, 21});
+        store.set(1, new int[] {1, 2, 3, 4, 5, 6});
+        assertArrayEquals(new int[] {11, 21}, store.get(0));
+        assertArrayEquals(new int[] {1, 2, 3, 4, 5, 6}, store.get(1));
+        assertArrayEquals(new int[] {50, 60}, store.get(2));
+
+        PackedGeometryStore copy = store.extendOnlyCopy();
+        copy.add(new int[0]);
+        copy.copy(store, 1, 3);
+        copy.set(3, new int[] {7, 8});
+        assertEquals(4, copy.size());
+        assertArrayEquals(new int[] {7, 8}, copy.get(3));
+        assertArrayEquals(new int[] {50, 60}, copy.get(2));
+        // Geometries in the baseline are shared with other copies and must not be modified.
+        try {
+            copy.set(0, new int[0]);
+            fail("Modifying a baseline geometry in an extend-only copy should fail.");
+        } catch (RuntimeException e) {
+            // Expected.
+        }
+        assertEquals(3, store.size());
+        assertArrayEquals(new int[] {1, 2, 3, 4, 5, 6}, store.get(1));
+    }
+
+}
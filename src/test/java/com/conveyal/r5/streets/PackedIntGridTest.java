@@ -0,0 +1,49 @@
+package com.conveyal.r5.streets;
+
+import gnu.trove.set.TIntSet;
+import org.junit.Test;
+import org.locationtech.jts.geom.Envelope;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that a packed grid returns the same items as the IntHashGrid it was packed from, on both sides of the zero
+ * meridian and equator, and that items inserted after packing are also found.
+ */
+public class PackedIntGridTest {
+
+    @Test
+    public void testSameQueryResults () {
+        Random random = new Random(42);
+        IntHashGrid grid = new IntHashGrid();
+        for (int item = 0; item < 2000; item++) {
+            Envelope envelope = randomEnvelope(random, 5000);
+            grid.insert(envelope, item);
+            // Inserting an item twice puts duplicates in the hash grid bins.
+            if (item % 10 == 0) grid.insert(envelope, item);
+        }
+        PackedIntGrid packed = grid.pack();
+        for (int i = 0; i < 500; i++) {
+            Envelope query = randomEnvelope(random, 50000);
+            assertEquals(grid.query(query), packed.query(query));
+        }
+
+        Envelope envelope = new Envelope(-1000, 1000, -1000, 1000);
+        packed.insert(envelope, 5000);
+        TIntSet result = packed.query(envelope);
+        assertTrue(result.contains(5000));
+        result.remove(5000);
+        assertEquals(grid.query(envelope), result);
+    }
+
+    /** @return an envelope of up to the given size within a few hundred bins of fixed-point coordinate zero. */
+    private static Envelope randomEnvelope (Random random, int maxSize) {
+        int x = random.nextInt(4_000_000) - 2_000_000;
+        int y = random.nextInt(4_000_000) - 2_000_000;
+        return new Envelope(x, x + random.nextInt(maxSize), y, y + random.nextInt(maxSize));
+    }
+
+}
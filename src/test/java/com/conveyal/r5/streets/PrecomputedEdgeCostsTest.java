@@ -0,0 +1,67 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.r5.profile.ProfileRequest;
+import com.conveyal.r5.profile.StreetMode;
+import gnu.trove.map.TIntIntMap;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Check that searches using precomputed edge costs give the same results as evaluating every edge during the search.
+ */
+public class PrecomputedEdgeCostsTest extends TurnTest {
+
+    @Test
+    public void testSameResults () {
+        setUp(false);
+        // Make one edge pair walk-only so bike and car searches must walk or avoid it.
+        EdgeStore.Edge edge = streetLayer.edgeStore.getCursor(ee);
+        edge.clearFlag(EdgeStore.EdgeFlag.ALLOWS_CAR);
+        edge.advance();
+        edge.clearFlag(EdgeStore.EdgeFlag.ALLOWS_CAR);
+
+        ProfileRequest request = new ProfileRequest();
+        PrecomputedEdgeCosts bikeCosts = streetLayer.edgeStore.getEdgeCostCache().get(StreetMode.BICYCLE, request);
+        // No edges allow cycling, so the bike is walked everywhere.
+        assertEquals(StreetMode.WALK, bikeCosts.getTraversalMode(ee));
+        PrecomputedEdgeCosts carCosts = streetLayer.edgeStore.getEdgeCostCache().get(StreetMode.CAR, request);
+        assertNull(carCosts.getTraversalMode(ee));
+        assertEquals(StreetMode.CAR, carCosts.getTraversalMode(en));
+
+        for (StreetMode mode : StreetMode.values()) {
+            assertEquals(route(mode, request, false), route(mode, request, true));
+        }
+    }
+
+    @Test
+    public void testCaching () {
+        setUp(false);
+        EdgeCostCache cache = streetLayer.edgeStore.getEdgeCostCache();
+        ProfileRequest request = new ProfileRequest();
+        PrecomputedEdgeCosts costs = cache.get(StreetMode.WALK, request);
+        // Parameters that don't affect walking don't cause costs to be recomputed.
+        request.bikeSpeed *= 2;
+        assertSame(costs, cache.get(StreetMode.WALK, request));
+        request.walkSpeed *= 2;
+        assertNotSame(costs, cache.get(StreetMode.WALK, request));
+        costs = cache.get(StreetMode.WALK, request);
+        // Adding edges causes costs to be recomputed.
+        streetLayer.edgeStore.addStreetPair(vn, vne, 15000, 8);
+        assertNotSame(costs, cache.get(StreetMode.WALK, request));
+    }
+
+    private TIntIntMap route (StreetMode mode, ProfileRequest request, boolean usePrecomputedEdgeCosts) {
+        StreetRouter router = new StreetRouter(streetLayer);
+        router.usePrecomputedEdgeCosts = usePrecomputedEdgeCosts;
+        router.streetMode = mode;
+        router.profileRequest = request;
+        router.setOrigin(vsw);
+        router.route();
+        return router.getReachedVertices();
+    }
+
+}
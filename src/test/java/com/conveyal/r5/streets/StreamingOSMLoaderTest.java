@@ -0,0 +1,51 @@
+package com.conveyal.r5.streets;
+
+import com.conveyal.osmlib.OSM;
+import com.conveyal.r5.point_to_point.builder.TNBuilderConfig;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Check that a street layer built from the partial OSM loaded by StreamingOSMLoader is the same as one built from a
+ * complete OSM, including its turn restrictions.
+ */
+public class StreamingOSMLoaderTest {
+
+    @Test
+    public void testSameStreetLayer () throws Exception {
+        File pbfFile = new File(StreamingOSMLoaderTest.class.getResource("reisterstown-via-restriction.pbf").toURI());
+
+        OSM completeOsm = new OSM(null);
+        completeOsm.intersectionDetection = true;
+        completeOsm.readFromFile(pbfFile.getPath());
+        int nCompleteNodes = completeOsm.nodes.size();
+        StreetLayer expected = new StreetLayer(TNBuilderConfig.defaultConfig());
+        expected.loadFromOsm(completeOsm, false, true);
+        completeOsm.close();
+
+        OSM partialOsm = StreamingOSMLoader.load(pbfFile);
+        assertTrue(partialOsm.nodes.size() <= nCompleteNodes);
+        StreetLayer actual = new StreetLayer(TNBuilderConfig.defaultConfig());
+        actual.loadFromOsm(partialOsm, false, true);
+        partialOsm.close();
+
+        assertEquals(expected.getVertexCount(), actual.getVertexCount());
+        assertEquals(expected.edgeStore.nEdges(), actual.edgeStore.nEdges());
+        assertEquals(expected.turnRestrictions.size(), actual.turnRestrictions.size());
+        EdgeStore.Edge expectedEdge = expected.edgeStore.getCursor();
+        EdgeStore.Edge actualEdge = actual.edgeStore.getCursor();
+        for (int e = 0; e < expected.edgeStore.nEdges(); e++) {
+            expectedEdge.seek(e);
+            actualEdge.seek(e);
+            assertEquals(expectedEdge.getOSMID(), actualEdge.getOSMID());
+            assertEquals(expectedEdge.getLengthMm(), actualEdge.getLengthMm());
+            assertEquals(expectedEdge.getFromVertex(), actualEdge.getFromVertex());
+            assertEquals(expectedEdge.getToVertex(), actualEdge.getToVertex());
+        }
+    }
+
+}
@@ -17,6 +17,22 @@ import static org.junit.Assert.assertTrue;
 public class TurnRestrictionTest extends TurnTest {
 
     private static final Logger LOG = LoggerFactory.getLogger(TurnRestrictionTest.class);
+
+    /** The bitsets of edges starting turn restrictions must follow restrictions as they are added and moved. */
+    @Test
+    public void testRestrictionStartEdges () {
+        setUp(false);
+        EdgeStore edgeStore = streetLayer.edgeStore;
+        assertFalse(edgeStore.startsTurnRestriction(es + 1, false));
+        restrictTurn(false, es + 1, ew);
+        assertTrue(edgeStore.startsTurnRestriction(es + 1, false));
+        assertTrue(edgeStore.startsTurnRestriction(ew, true));
+        assertFalse(edgeStore.startsTurnRestriction(ew, false));
+        edgeStore.moveTurnRestrictions(es + 1, en + 1);
+        assertFalse(edgeStore.startsTurnRestriction(es + 1, false));
+        assertTrue(edgeStore.startsTurnRestriction(en + 1, false));
+    }
+
     @Test
     public void testSimpleNoTurn () {
         setUp(false);
@@ -68,7 +68,7 @@ public abstract class TurnTest {
         LOG.debug("{}", restriction);
         int ridx = streetLayer.turnRestrictions.size();
         streetLayer.turnRestrictions.add(restriction);
-        streetLayer.edgeStore.turnRestrictions.put(restriction.fromEdge, ridx);
+        streetLayer.edgeStore.addTurnRestriction(restriction.fromEdge, ridx);
         streetLayer.addReverseTurnRestriction(restriction, ridx);
 
 
@@ -0,0 +1,81 @@
+package com.conveyal.r5.transit;
+
+import com.conveyal.gtfs.model.Frequency;
+import com.conveyal.gtfs.model.Trip;
+import gnu.trove.list.array.TIntArrayList;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static com.conveyal.r5.transit.TransitLayer.TIME_REVERSAL_SECONDS;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Check that the time-reversed copy of a transit layer runs every trip backward over the same stops, in an order
+ * suitable for searching forward in time, and that transfers are reversed.
+ */
+public class TimeReversedTransitLayerTest {
+
+    @Test
+    public void testReversal () {
+        TransitLayer layer = new TransitLayer();
+        for (int i = 0; i < 4; i++) {
+            layer.stopIdForIndex.add(String.format("FEED:STOP_%d", i));
+            layer.transfersForStop.add(new TIntArrayList());
+        }
+        // A transfer of 100 meters from stop 2 to stop 3.
+        layer.transfersForStop.get(2).add(new int[] {3, 100_000});
+
+        TripPattern pattern = new TripPattern(new TIntArrayList(new int[] {0, 1, 2}));
+        pattern.pickups[2] = PickDropType.NONE;
+        pattern.addTrip(TripSchedule.create(trip("EARLY"), new int[] {100, 200, 300}, new int[] {110, 210, 310}, null, new int[] {1, 2, 3}, 0));
+        pattern.addTrip(TripSchedule.create(trip("LATE"), new int[] {1000, 1100, 1200}, new int[] {1000, 1100, 1200}, null, new int[] {1, 2, 3}, 0));
+        Frequency frequency = new Frequency();
+        frequency.start_time = 3600;
+        frequency.end_time = 7200;
+        frequency.headway_secs = 600;
+        frequency.trip_id = "FREQUENCY";
+        TripSchedule frequencyTrip = TripSchedule.create(trip("FREQUENCY"), new int[] {50, 150, 250}, new int[] {60, 160, 260}, Arrays.asList(frequency), new int[] {1, 2, 3}, 0);
+        layer.tripPatterns.add(pattern);
+        layer.rebuildTransientIndexes();
+
+        TransitLayer reversedLayer = layer.getTimeReversedCopy();
+        TripPattern reversed = reversedLayer.tripPatterns.get(0);
+        assertArrayEquals(new int[] {2, 1, 0}, reversed.stops);
+        // Passengers could not board at stop 2, so they cannot alight there from the reversed trips.
+        assertEquals(PickDropType.NONE, reversed.dropoffs[0]);
+        assertEquals(PickDropType.SCHEDULED, reversed.pickups[0]);
+        // The late trip is the first to depart when running backward.
+        TripSchedule late = reversed.tripSchedules.get(0);
+        assertEquals("FEED:LATE", late.tripId);
+        assertArrayEquals(new int[] {TIME_REVERSAL_SECONDS - 310, TIME_REVERSAL_SECONDS - 210, TIME_REVERSAL_SECONDS - 110},
+                reversed.tripSchedules.get(1).arrivals);
+        assertArrayEquals(new int[] {TIME_REVERSAL_SECONDS - 300, TIME_REVERSAL_SECONDS - 200, TIME_REVERSAL_SECONDS - 100},
+                reversed.tripSchedules.get(1).departures);
+        assertArrayEquals(new int[] {3, 2, 1}, late.stopSequences);
+        assertEquals(0, reversedLayer.patternsForStop.get(2).get(0));
+
+        // The first vehicle on the frequency entry, starting at 3600, leaves its last stop at 3810 and is the last to
+        // start the reversed trip.
+        TripSchedule reversedFrequencyTrip = frequencyTrip.reversedInTime(TIME_REVERSAL_SECONDS);
+        assertArrayEquals(new int[] {0, 100, 200}, reversedFrequencyTrip.arrivals);
+        assertArrayEquals(new int[] {10, 110, 210}, reversedFrequencyTrip.departures);
+        assertEquals(TIME_REVERSAL_SECONDS - 7410, reversedFrequencyTrip.startTimes[0]);
+        assertEquals(TIME_REVERSAL_SECONDS - 3810, reversedFrequencyTrip.endTimes[0]);
+
+        // The transfer now leads from stop 3 to stop 2.
+        assertEquals(0, reversedLayer.transfersForStop.get(2).size());
+        assertArrayEquals(new int[] {2, 100_000}, reversedLayer.transfersForStop.get(3).toArray());
+        // The original layer is unchanged.
+        assertArrayEquals(new int[] {0, 1, 2}, layer.tripPatterns.get(0).stops);
+    }
+
+    private static Trip trip (String id) {
+        Trip trip = new Trip();
+        trip.feed_id = "FEED";
+        trip.trip_id = id;
+        return trip;
+    }
+
+}